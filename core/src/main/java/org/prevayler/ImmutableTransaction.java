@@ -0,0 +1,16 @@
+package org.prevayler;
+
+/**
+ * May be implemented by a Transaction or TransactionWithQuery that is never changed once it is given
+ * to Prevayler.execute(), and that does not share any object it holds with the caller or the prevalent
+ * system in a way that lets either of them change it. Such a transaction is executed directly even in
+ * transaction deep copy mode, instead of being deserialized again from the bytes written to the
+ * journal, since the copy would be the same.
+ * <p/>
+ * Fields holding Strings, primitive wrappers, enums and other immutable values are safe. A transaction
+ * holding a collection, an array or a Date is only safe if nobody keeps a reference to it and it is
+ * not handed to the prevalent system. PrevaylerFactory.configureImmutableTransactionVerification()
+ * checks this while testing.
+ */
+public interface ImmutableTransaction {
+}
@@ -0,0 +1,19 @@
+package org.prevayler;
+
+import org.prevayler.foundation.JournalSyncPolicy;
+
+/**
+ * May be implemented by a Transaction or TransactionWithQuery to be told how it was acknowledged by
+ * the journal. journaled() is called on the instance given to Prevayler.execute(), after the
+ * transaction has been written to the journal and before it is executed. It is not called during
+ * recovery, nor when there is no persistent journal.
+ */
+public interface JournalSyncListener {
+
+  /**
+   * @param policy The policy that acknowledged the transaction.
+   * @param forced Whether the transaction had already been forced to disk. If not, it can be lost if the operating system crashes before the policy forces it.
+   */
+  public void journaled(JournalSyncPolicy policy, boolean forced);
+
+}
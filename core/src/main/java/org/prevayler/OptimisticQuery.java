@@ -0,0 +1,15 @@
+package org.prevayler;
+
+/**
+ * May be implemented by a Query that only reads the prevalent system and copes with reading it while a
+ * transaction is changing it, by returning a wrong result or throwing, as long as it does not loop
+ * forever or change anything. Such a query is a cheap lookup, such as reading a field or a map, which
+ * is not worth taking a lock for.
+ * <p/>
+ * When queries are configured to run concurrently, see PrevaylerFactory.configureConcurrentQueries(),
+ * such a query is first executed without any lock and its result is only kept if no transaction was
+ * executed meanwhile. Otherwise it is executed again, under the same lock as other queries. It is
+ * always executed under that lock otherwise.
+ */
+public interface OptimisticQuery {
+}
@@ -6,6 +6,7 @@ package org.prevayler;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
 
 
 /**
@@ -61,6 +62,21 @@ public interface Prevayler<P> {
    */
   public <R> R execute(SureTransactionWithQuery<? super P, R> sureTransactionWithQuery);
 
+  /**
+   * Executes the given Transaction on the prevalentSystem() like execute(Transaction) does, but without blocking the calling thread while the transaction is journaled and executed. That work is done by a pool of pipeline threads instead, so many transactions submitted this way can share a single disk sync.
+   * The transaction takes its place in the sequence of transactions before this method returns, so transactions submitted one after the other are executed in that order. The calling thread only blocks if too many transactions are already waiting in the pipeline.
+   *
+   * @return A future that completes once the transaction has been journaled and executed, or completes exceptionally with the RuntimeException or Error thrown by either. Completes exceptionally with an IllegalStateException if this Prevayler has been closed.
+   */
+  public CompletableFuture<Void> executeAsync(Transaction<? super P> transaction);
+
+  /**
+   * The same as executeAsync(Transaction<P>) for a TransactionWithQuery.
+   *
+   * @return A future that completes with the result returned by the execution of the transactionWithQuery, or completes exceptionally with the Exception thrown by it.
+   */
+  public <R> CompletableFuture<R> executeAsync(TransactionWithQuery<? super P, R> transactionWithQuery);
+
   /**
    * Produces a complete serialized image of the underlying PrevalentSystem.
    * This will accelerate future system startups. Taking a snapshot once a day is enough for most applications.
@@ -72,7 +88,7 @@ public interface Prevayler<P> {
   public File takeSnapshot() throws Exception;
 
   /**
-   * Closes any files or other system resources opened by this Prevayler.
+   * Closes any files or other system resources opened by this Prevayler. Transactions already submitted with executeAsync() are journaled and executed first.
    *
    * @throws IOException if there is trouble closing a file or some other system resource.
    */
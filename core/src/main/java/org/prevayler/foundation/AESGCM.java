@@ -0,0 +1,109 @@
+package org.prevayler.foundation;
+
+import javax.crypto.AEADBadTagException;
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+/**
+ * What AESGCMBlockCodec and the AES-GCM streams have in common. Every message is encrypted with a
+ * 96-bit nonce made of a random salt, chosen for each file or stream, whose last 8 bytes are XORed
+ * with a counter that is never repeated within that file or stream, such as the offset of a block.
+ * The JCE provider uses the AES and carry-less multiplication instructions of the processor where
+ * available.
+ */
+class AESGCM {
+
+  static final int SALT_LENGTH = 12;
+  static final int TAG_LENGTH = 16;
+
+  private static final SecureRandom RANDOM = new SecureRandom();
+
+  private static final ThreadLocal CIPHERS = new ThreadLocal() {
+    protected Object initialValue() {
+      try {
+        return Cipher.getInstance("AES/GCM/NoPadding");
+      } catch (GeneralSecurityException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  };
+
+  /**
+   * @param key A 16, 24 or 32-byte AES key.
+   */
+  static SecretKey key(byte[] key) {
+    if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+      throw new IllegalArgumentException("Key must be 16, 24 or 32 bytes");
+    }
+    return new SecretKeySpec(key, "AES");
+  }
+
+  static byte[] salt() {
+    byte[] salt = new byte[SALT_LENGTH];
+    synchronized (RANDOM) {
+      RANDOM.nextBytes(salt);
+    }
+    return salt;
+  }
+
+  static byte[] nonce(byte[] salt, long counter) {
+    byte[] nonce = new byte[SALT_LENGTH];
+    System.arraycopy(salt, 0, nonce, 0, SALT_LENGTH);
+    for (int i = SALT_LENGTH - 1; i >= SALT_LENGTH - 8; i--) {
+      nonce[i] ^= (byte) counter;
+      counter >>>= 8;
+    }
+    return nonce;
+  }
+
+  static byte[] encrypt(SecretKey key, byte[] nonce, byte[] associatedData, byte[] plain, int length) throws IOException {
+    try {
+      Cipher cipher = cipher(Cipher.ENCRYPT_MODE, key, nonce);
+      cipher.updateAAD(associatedData);
+      return cipher.doFinal(plain, 0, length);
+    } catch (GeneralSecurityException e) {
+      throw failure("Unable to encrypt", e);
+    }
+  }
+
+  /**
+   * @throws StreamCorruptedException if the tag does not match, because the bytes were changed or were encrypted with another key.
+   */
+  static byte[] decrypt(SecretKey key, byte[] nonce, byte[] associatedData, byte[] encrypted, String what) throws IOException {
+    if (encrypted.length < TAG_LENGTH) throw new StreamCorruptedException(what + " is too short to be authenticated");
+    try {
+      Cipher cipher = cipher(Cipher.DECRYPT_MODE, key, nonce);
+      cipher.updateAAD(associatedData);
+      return cipher.doFinal(encrypted);
+    } catch (AEADBadTagException e) {
+      throw new StreamCorruptedException(what + " failed authentication: it is corrupted or was encrypted with another key");
+    } catch (GeneralSecurityException e) {
+      throw failure("Unable to decrypt " + what, e);
+    }
+  }
+
+  private static Cipher cipher(int mode, SecretKey key, byte[] nonce) throws GeneralSecurityException {
+    Cipher cipher;
+    try {
+      cipher = (Cipher) CIPHERS.get();
+    } catch (RuntimeException e) {
+      if (e.getCause() instanceof GeneralSecurityException) throw (GeneralSecurityException) e.getCause();
+      throw e;
+    }
+    cipher.init(mode, key, new GCMParameterSpec(TAG_LENGTH * 8, nonce));
+    return cipher;
+  }
+
+  private static IOException failure(String message, GeneralSecurityException cause) {
+    IOException failure = new IOException(message);
+    failure.initCause(cause);
+    return failure;
+  }
+
+}
@@ -0,0 +1,91 @@
+package org.prevayler.foundation;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+/**
+ * Encrypts each block with AES in Galois/Counter Mode, after encoding it with another codec if one is
+ * given, such as a DeflateBlockCodec, since encrypted bytes do not compress. A group of transactions
+ * synced together is encrypted as a whole, so the cost of initializing the cipher is paid once per
+ * group rather than once per transaction as with DESSerializer, and there is no padding.
+ * <p/>
+ * Each file is started with a random salt, kept in its header, and each block is encrypted with a
+ * nonce made of that salt and the offset of the block in the file, so that no nonce is used twice
+ * under the same key. The 16-byte authentication tag of each block covers its contents, its offset
+ * and its decoded length: a block that was changed, moved or encrypted with another key fails to
+ * decode with a StreamCorruptedException rather than being replayed.
+ * <p/>
+ * Journals encrypted per transaction by a DESSerializer can be converted with BlockJournalConverter.
+ *
+ * @see org.prevayler.implementation.journal.BlockJournalConverter
+ */
+public class AESGCMBlockCodec implements BlockCodec {
+
+  private final SecretKey _key;
+  private final BlockCodec _delegate;
+
+  /**
+   * @param key A 16, 24 or 32-byte AES key.
+   */
+  public AESGCMBlockCodec(byte[] key) {
+    this(key, null);
+  }
+
+  /**
+   * @param key      A 16, 24 or 32-byte AES key.
+   * @param delegate Encodes each block before it is encrypted, and decodes it after it is decrypted. Null to encrypt blocks as they are.
+   */
+  public AESGCMBlockCodec(byte[] key, BlockCodec delegate) {
+    _key = AESGCM.key(key);
+    _delegate = delegate;
+  }
+
+  public String name() {
+    return _delegate == null ? "aes-gcm" : "aes-gcm+" + _delegate.name();
+  }
+
+  /**
+   * A new random salt, followed by the parameters of the delegate, if any.
+   */
+  public byte[] startFile() throws IOException {
+    byte[] salt = AESGCM.salt();
+    if (_delegate == null) return salt;
+    byte[] delegateParameters = _delegate.startFile();
+    byte[] parameters = new byte[salt.length + delegateParameters.length];
+    System.arraycopy(salt, 0, parameters, 0, salt.length);
+    System.arraycopy(delegateParameters, 0, parameters, salt.length, delegateParameters.length);
+    return parameters;
+  }
+
+  public byte[] encode(byte[] parameters, long offset, byte[] block, int length) throws IOException {
+    byte[] plain = block;
+    int plainLength = length;
+    if (_delegate != null) {
+      plain = _delegate.encode(delegateParameters(parameters), offset, block, length);
+      plainLength = plain.length;
+    }
+    return AESGCM.encrypt(_key, AESGCM.nonce(parameters, offset), associatedData(length), plain, plainLength);
+  }
+
+  public byte[] decode(byte[] parameters, long offset, byte[] encoded, int decodedLength) throws IOException {
+    if (parameters.length < AESGCM.SALT_LENGTH) throw new StreamCorruptedException("File header too short for an AES-GCM salt");
+    byte[] plain = AESGCM.decrypt(_key, AESGCM.nonce(parameters, offset), associatedData(decodedLength), encoded, "Block at offset " + offset);
+    if (_delegate != null) return _delegate.decode(delegateParameters(parameters), offset, plain, decodedLength);
+    if (plain.length != decodedLength) throw new StreamCorruptedException("Block decrypts to " + plain.length + " bytes instead of " + decodedLength + " at offset " + offset);
+    return plain;
+  }
+
+  private static byte[] delegateParameters(byte[] parameters) {
+    byte[] delegateParameters = new byte[parameters.length - AESGCM.SALT_LENGTH];
+    System.arraycopy(parameters, AESGCM.SALT_LENGTH, delegateParameters, 0, delegateParameters.length);
+    return delegateParameters;
+  }
+
+  private static byte[] associatedData(int decodedLength) {
+    byte[] associatedData = new byte[4];
+    BinaryChunking.putInt(associatedData, 0, decodedLength);
+    return associatedData;
+  }
+
+}
@@ -0,0 +1,95 @@
+package org.prevayler.foundation;
+
+import javax.crypto.SecretKey;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Decrypts a stream written by AESGCMOutputStream, one segment at a time. No byte of a segment is
+ * returned before the whole segment is authenticated, and a stream that ends before its last segment
+ * is reported as truncated rather than read as a shorter stream.
+ */
+public class AESGCMInputStream extends InputStream {
+
+  private final InputStream _in;
+  private final SecretKey _key;
+  private byte[] _salt;
+  private long _segmentNumber = 0;
+  private byte[] _segment = new byte[0];
+  private int _position = 0;
+  private boolean _lastSegmentRead = false;
+
+  /**
+   * @param key The AES key the stream was written with.
+   */
+  public AESGCMInputStream(InputStream in, byte[] key) {
+    _in = in;
+    _key = AESGCM.key(key);
+  }
+
+  public int read() throws IOException {
+    if (!ensureSegment()) return -1;
+    return _segment[_position++] & 0xFF;
+  }
+
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    if (!ensureSegment()) return -1;
+    int read = Math.min(length, _segment.length - _position);
+    System.arraycopy(_segment, _position, buffer, offset, read);
+    _position += read;
+    return read;
+  }
+
+  public int available() {
+    return _segment.length - _position;
+  }
+
+  public void close() throws IOException {
+    _in.close();
+  }
+
+  private boolean ensureSegment() throws IOException {
+    if (_salt == null) readStreamHeader();
+    while (_position == _segment.length) {
+      if (_lastSegmentRead) return false;
+      readSegment();
+    }
+    return true;
+  }
+
+  private void readStreamHeader() throws IOException {
+    byte[] magic = readFully(AESGCMOutputStream.MAGIC.length);
+    for (int i = 0; i < magic.length; i++) {
+      if (magic[i] != AESGCMOutputStream.MAGIC[i]) throw new StreamCorruptedException("Not an AES-GCM stream");
+    }
+    _salt = readFully(AESGCM.SALT_LENGTH);
+  }
+
+  private void readSegment() throws IOException {
+    byte[] header = readFully(AESGCMOutputStream.SEGMENT_HEADER_LENGTH);
+    int length = BinaryChunking.getInt(header, 0);
+    if (length < 0 || length > AESGCMOutputStream.MAX_SEGMENT_SIZE || header[4] > 1) {
+      throw new StreamCorruptedException("Segment header corrupted in segment " + _segmentNumber);
+    }
+    byte[] encrypted = readFully(length + AESGCM.TAG_LENGTH);
+    _segment = AESGCM.decrypt(_key, AESGCM.nonce(_salt, _segmentNumber), header, encrypted, "Segment " + _segmentNumber);
+    _segmentNumber++;
+    _position = 0;
+    _lastSegmentRead = header[4] == 1;
+  }
+
+  private byte[] readFully(int length) throws IOException {
+    byte[] bytes = new byte[length];
+    int total = 0;
+    while (total < length) {
+      int read = _in.read(bytes, total, length - total);
+      if (read == -1) throw new EOFException("AES-GCM stream truncated in segment " + _segmentNumber);
+      total += read;
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,114 @@
+package org.prevayler.foundation;
+
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encrypts what is written to it with AES in Galois/Counter Mode, in segments of a fixed size, so that
+ * a stream of any length, such as a snapshot, is neither held in memory nor encrypted as a single
+ * message. The stream starts with a random salt:
+ * <pre>
+ *   4 bytes   "PAES"
+ *   12 bytes  salt
+ * </pre>
+ * Each segment follows, encrypted with a nonce made of the salt and the number of the segment:
+ * <pre>
+ *   int       length of the segment before it was encrypted
+ *   byte      1 for the last segment, 0 otherwise
+ *   ...       the encrypted segment, followed by its 16-byte authentication tag
+ * </pre>
+ * The segment header is authenticated along with the segment, so that AESGCMInputStream detects
+ * segments that were changed, reordered or dropped, including at the end of the stream.
+ */
+public class AESGCMOutputStream extends OutputStream {
+
+  public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024;
+
+  static final byte[] MAGIC = {'P', 'A', 'E', 'S'};
+  static final int SEGMENT_HEADER_LENGTH = 5;
+  static final int MAX_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+  private final OutputStream _out;
+  private final SecretKey _key;
+  private final byte[] _salt = AESGCM.salt();
+  private final byte[] _segment;
+  private int _count = 0;
+  private long _segmentNumber = 0;
+  private boolean _finished = false;
+
+  public AESGCMOutputStream(OutputStream out, byte[] key) throws IOException {
+    this(out, key, DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * @param key         A 16, 24 or 32-byte AES key.
+   * @param segmentSize The number of bytes encrypted into each segment.
+   */
+  public AESGCMOutputStream(OutputStream out, byte[] key, int segmentSize) throws IOException {
+    if (segmentSize < 1 || segmentSize > MAX_SEGMENT_SIZE) throw new IllegalArgumentException("The segment size must be between 1 and " + MAX_SEGMENT_SIZE);
+    _out = out;
+    _key = AESGCM.key(key);
+    _segment = new byte[segmentSize];
+    _out.write(MAGIC);
+    _out.write(_salt);
+  }
+
+  public void write(int b) throws IOException {
+    if (_count == _segment.length) writeSegment(false);
+    _segment[_count++] = (byte) b;
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (_count == _segment.length) writeSegment(false);
+      int copied = Math.min(length, _segment.length - _count);
+      System.arraycopy(bytes, offset, _segment, _count, copied);
+      _count += copied;
+      offset += copied;
+      length -= copied;
+    }
+  }
+
+  /**
+   * Flushes the segments already written. The segment being filled is only encrypted once it is full or the stream is finished.
+   */
+  public void flush() throws IOException {
+    _out.flush();
+  }
+
+  /**
+   * Encrypts what is left as the last segment, without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (_finished) return;
+    writeSegment(true);
+    _finished = true;
+    _out.flush();
+  }
+
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      _out.close();
+    }
+  }
+
+  private void writeSegment(boolean last) throws IOException {
+    if (_finished) throw new IOException("Stream finished");
+    byte[] header = segmentHeader(_count, last);
+    byte[] encrypted = AESGCM.encrypt(_key, AESGCM.nonce(_salt, _segmentNumber++), header, _segment, _count);
+    _out.write(header);
+    _out.write(encrypted);
+    _count = 0;
+  }
+
+  static byte[] segmentHeader(int length, boolean last) {
+    byte[] header = new byte[SEGMENT_HEADER_LENGTH];
+    BinaryChunking.putInt(header, 0, length);
+    header[4] = (byte) (last ? 1 : 0);
+    return header;
+  }
+
+}
@@ -0,0 +1,59 @@
+package org.prevayler.foundation;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A chunk with a fixed set of numeric header fields instead of the string parameters of a Chunk.
+ *
+ * @see BinaryChunking
+ */
+public class BinaryChunk {
+
+  private byte[] _bytes;
+  private ByteBuffer _buffer;
+  private final int _flags;
+  private final long _version;
+  private final long _time;
+
+  public BinaryChunk(byte[] bytes, int flags, long version, long time) {
+    _bytes = bytes;
+    _flags = flags;
+    _version = version;
+    _time = time;
+  }
+
+  /**
+   * A chunk whose bytes are the remaining bytes of the given buffer, typically a slice of a mapped journal file. They are only copied if getBytes() is called.
+   */
+  public BinaryChunk(ByteBuffer bytes, int flags, long version, long time) {
+    _buffer = bytes;
+    _flags = flags;
+    _version = version;
+    _time = time;
+  }
+
+  public byte[] getBytes() {
+    if (_bytes == null) _bytes = ByteBuffers.toArray(_buffer);
+    return _bytes;
+  }
+
+  /**
+   * The chunk bytes, without copying them. The returned buffer is not shared with other callers.
+   */
+  public ByteBuffer getByteBuffer() {
+    return _buffer != null ? _buffer.duplicate() : ByteBuffer.wrap(_bytes);
+  }
+
+  public int getFlags() {
+    return _flags;
+  }
+
+  public long getVersion() {
+    return _version;
+  }
+
+  public long getTime() {
+    return _time;
+  }
+
+}
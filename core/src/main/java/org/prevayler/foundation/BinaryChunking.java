@@ -0,0 +1,208 @@
+package org.prevayler.foundation;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * A fixed-width alternative to Chunking. Each chunk is written as a 32-byte little-endian header
+ * followed by the chunk bytes:
+ * <pre>
+ *   int  length of the chunk bytes
+ *   int  flags
+ *   long version
+ *   long time
+ *   int  CRC-32C of the preceding 24 header bytes
+ *   int  CRC-32C of the preceding 28 header bytes and the chunk bytes
+ * </pre>
+ * A header consisting entirely of zeros, as found in space preallocated at the end of a file,
+ * is read as the end of the stream.
+ * <p/>
+ * The header is checked on its own before its length is trusted, so that a corrupted length is
+ * reported as corruption, not as a chunk torn by the end of the stream, and never makes the reader
+ * allocate or skip a length that was not written.
+ * <p/>
+ * A journal also holds sync marks: empty chunks flagged with SYNC_MARK_FLAG whose version is the
+ * length of the file that had been forced to disk when they were written. They tell recovery which
+ * chunks were acknowledged, and readChunk() skips them.
+ */
+public class BinaryChunking {
+
+  public static final int HEADER_LENGTH = 32;
+  static final int HEADER_CHECKSUM_OFFSET = 24;
+  static final int CHECKSUM_OFFSET = 28;
+
+  /**
+   * Set in the flags of sync marks only.
+   */
+  static final int SYNC_MARK_FLAG = 1 << 31;
+
+  private static final byte[] NO_BYTES = new byte[0];
+
+  public static void writeChunk(OutputStream stream, BinaryChunk chunk) throws IOException {
+    writeChunk(stream, chunk.getBytes(), chunk.getFlags(), chunk.getVersion(), chunk.getTime());
+  }
+
+  /**
+   * Writes a chunk without creating a BinaryChunk for it, encoding the header in the ScratchBuffer of the calling thread.
+   */
+  public static void writeChunk(OutputStream stream, byte[] bytes, int flags, long version, long time) throws IOException {
+    ScratchBuffer scratch = ScratchBuffer.acquire();
+    try {
+      byte[] header = scratch.array(HEADER_LENGTH);
+      putInt(header, 0, bytes.length);
+      putInt(header, 4, flags);
+      putLong(header, 8, version);
+      putLong(header, 16, time);
+      putInt(header, HEADER_CHECKSUM_OFFSET, headerChecksum(header));
+      putInt(header, CHECKSUM_OFFSET, checksum(header, bytes));
+      stream.write(header, 0, HEADER_LENGTH);
+      stream.write(bytes);
+    } finally {
+      scratch.release();
+    }
+  }
+
+  /**
+   * Writes a sync mark telling that the first syncedLength bytes of the file were forced to disk before it.
+   */
+  public static void writeSyncMark(OutputStream stream, long syncedLength) throws IOException {
+    writeChunk(stream, NO_BYTES, SYNC_MARK_FLAG, syncedLength, 0);
+  }
+
+  /**
+   * Returns the next chunk, skipping sync marks, or null at the end of the stream.
+   */
+  public static BinaryChunk readChunk(InputStream stream) throws IOException {
+    BinaryChunk chunk;
+    do {
+      chunk = readChunkOrSyncMark(stream);
+    } while (chunk != null && isSyncMark(chunk));
+    return chunk;
+  }
+
+  static boolean isSyncMark(BinaryChunk chunk) {
+    return (chunk.getFlags() & SYNC_MARK_FLAG) != 0;
+  }
+
+  /**
+   * The synced length of the sync mark starting at the given offset of the buffer, or -1 if there is no
+   * intact sync mark there.
+   */
+  static long syncedLength(byte[] buffer, int offset) {
+    if (getInt(buffer, offset) != 0 || getInt(buffer, offset + 4) != SYNC_MARK_FLAG) return -1;
+    byte[] header = new byte[HEADER_LENGTH];
+    System.arraycopy(buffer, offset, header, 0, HEADER_LENGTH);
+    if (getInt(header, HEADER_CHECKSUM_OFFSET) != headerChecksum(header) || getInt(header, CHECKSUM_OFFSET) != checksum(header, NO_BYTES)) {
+      return -1;
+    }
+    return getLong(header, 8);
+  }
+
+  /**
+   * The length, header included, of the chunk whose header starts at the given offset of the buffer, or
+   * -1 if there is no intact header there.
+   */
+  static long chunkLength(byte[] buffer, int offset) {
+    int size = getInt(buffer, offset);
+    if (size < 0 || getInt(buffer, offset + HEADER_CHECKSUM_OFFSET) != headerChecksum(buffer, offset)) return -1;
+    return HEADER_LENGTH + (long) size;
+  }
+
+  private static BinaryChunk readChunkOrSyncMark(InputStream stream) throws IOException {
+    byte[] header = new byte[HEADER_LENGTH];
+    int headerRead = read(stream, header);
+    if (headerRead == 0 || headerRead == HEADER_LENGTH && isZeroed(header)) {
+      return null;
+    }
+    if (headerRead < HEADER_LENGTH) {
+      throw new EOFException("Unexpected end of stream in chunk header");
+    }
+
+    int size = getInt(header, 0);
+    if (getInt(header, HEADER_CHECKSUM_OFFSET) != headerChecksum(header) || size < 0) {
+      throw new StreamCorruptedException("Chunk header corrupted");
+    }
+
+    byte[] bytes = new byte[size];
+    if (read(stream, bytes) < size) {
+      throw new EOFException("Unexpected end of stream in chunk data");
+    }
+
+    if (getInt(header, CHECKSUM_OFFSET) != checksum(header, bytes)) {
+      throw new StreamCorruptedException("Chunk checksum mismatch");
+    }
+
+    return new BinaryChunk(bytes, getInt(header, 4), getLong(header, 8), getLong(header, 16));
+  }
+
+  private static int headerChecksum(byte[] header) {
+    return headerChecksum(header, 0);
+  }
+
+  private static int headerChecksum(byte[] buffer, int offset) {
+    Crc32c crc = new Crc32c();
+    crc.update(buffer, offset, HEADER_CHECKSUM_OFFSET);
+    return (int) crc.getValue();
+  }
+
+  private static int checksum(byte[] header, byte[] bytes) {
+    Crc32c crc = new Crc32c();
+    crc.update(header, 0, CHECKSUM_OFFSET);
+    crc.update(bytes, 0, bytes.length);
+    return (int) crc.getValue();
+  }
+
+  /**
+   * Reads until the buffer is full or the end of the stream is reached, returning the number of bytes read.
+   */
+  private static int read(InputStream stream, byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      int read = stream.read(buffer, total, buffer.length - total);
+      if (read == -1) {
+        break;
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  private static boolean isZeroed(byte[] header) {
+    for (int i = 0; i < header.length; i++) {
+      if (header[i] != 0) return false;
+    }
+    return true;
+  }
+
+  static void putInt(byte[] buffer, int offset, int value) {
+    for (int i = 0; i < 4; i++) {
+      buffer[offset + i] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  static void putLong(byte[] buffer, int offset, long value) {
+    for (int i = 0; i < 8; i++) {
+      buffer[offset + i] = (byte) (value >>> (8 * i));
+    }
+  }
+
+  static int getInt(byte[] buffer, int offset) {
+    int value = 0;
+    for (int i = 0; i < 4; i++) {
+      value |= (buffer[offset + i] & 0xFF) << (8 * i);
+    }
+    return value;
+  }
+
+  static long getLong(byte[] buffer, int offset) {
+    long value = 0;
+    for (int i = 0; i < 8; i++) {
+      value |= (buffer[offset + i] & 0xFFL) << (8 * i);
+    }
+    return value;
+  }
+
+}
@@ -0,0 +1,38 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+
+/**
+ * Encodes the groups of journal entries that a DurableOutputStream syncs together, each one as a whole,
+ * for example by compressing them. Encoded groups are framed by BlockEncoding, which also stores the
+ * parameters returned by startFile() in the header of each file, so that the same codec can decode
+ * the file later without any state of its own.
+ * <p/>
+ * Implementations must be thread-safe, since the stripes of a journal file are synced concurrently.
+ */
+public interface BlockCodec {
+
+  /**
+   * Identifies the codec and its format in the header of each file, so that a file is never decoded by the wrong codec.
+   */
+  public String name();
+
+  /**
+   * Called when a file is started. Returns what must be known to decode its blocks, such as a preset
+   * dictionary, to be kept in the file header. May be empty but not null.
+   */
+  public byte[] startFile() throws IOException;
+
+  /**
+   * Encodes the first length bytes of the block, which will be written at the given offset of a file started with the given parameters.
+   */
+  public byte[] encode(byte[] parameters, long offset, byte[] block, int length) throws IOException;
+
+  /**
+   * Decodes a block that was read from the given offset of a file started with the given parameters.
+   *
+   * @param decodedLength The length of the block before it was encoded.
+   */
+  public byte[] decode(byte[] parameters, long offset, byte[] encoded, int decodedLength) throws IOException;
+
+}
@@ -0,0 +1,78 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+
+/**
+ * The framing of files whose contents are written in blocks encoded by a BlockCodec. All integers are
+ * little-endian, as in BinaryChunking. A file starts with a header:
+ * <pre>
+ *   4 bytes  "PBLK"
+ *   int      length of the codec name, followed by the name in ASCII
+ *   int      length of the parameters returned by BlockCodec.startFile(), followed by the parameters
+ *   int      CRC-32C of the preceding header bytes
+ * </pre>
+ * Each block follows as a 12-byte header and the encoded bytes:
+ * <pre>
+ *   int  length of the encoded bytes
+ *   int  length of the block before it was encoded
+ *   int  CRC-32C of the preceding 8 header bytes and the encoded bytes
+ * </pre>
+ * A block header consisting entirely of zeros, as found in space preallocated at the end of a file,
+ * is read as the end of the file. Blocks are read back by BlockInputStream.
+ */
+public class BlockEncoding {
+
+  static final byte[] MAGIC = {'P', 'B', 'L', 'K'};
+  public static final int BLOCK_HEADER_LENGTH = 12;
+  static final int BLOCK_CHECKSUM_OFFSET = 8;
+  static final int MAX_NAME_LENGTH = 256;
+  static final int MAX_PARAMETERS_LENGTH = 1024 * 1024;
+
+  public static byte[] fileHeader(BlockCodec codec, byte[] parameters) throws IOException {
+    return fileHeader(codec.name().getBytes("US-ASCII"), parameters);
+  }
+
+  static byte[] fileHeader(byte[] name, byte[] parameters) {
+    if (name.length > MAX_NAME_LENGTH || parameters.length > MAX_PARAMETERS_LENGTH) {
+      throw new IllegalArgumentException("Block codec name or parameters too long");
+    }
+    byte[] header = new byte[MAGIC.length + 4 + name.length + 4 + parameters.length + 4];
+    System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+    int offset = MAGIC.length;
+    BinaryChunking.putInt(header, offset, name.length);
+    System.arraycopy(name, 0, header, offset + 4, name.length);
+    offset += 4 + name.length;
+    BinaryChunking.putInt(header, offset, parameters.length);
+    System.arraycopy(parameters, 0, header, offset + 4, parameters.length);
+    offset += 4 + parameters.length;
+    BinaryChunking.putInt(header, offset, checksum(header, 0, offset));
+    return header;
+  }
+
+  /**
+   * Encodes the first length bytes of the block and frames them, ready to be written at the given offset of the file.
+   */
+  public static byte[] block(BlockCodec codec, byte[] parameters, long offset, byte[] bytes, int length) throws IOException {
+    byte[] encoded = codec.encode(parameters, offset, bytes, length);
+    byte[] block = new byte[BLOCK_HEADER_LENGTH + encoded.length];
+    BinaryChunking.putInt(block, 0, encoded.length);
+    BinaryChunking.putInt(block, 4, length);
+    System.arraycopy(encoded, 0, block, BLOCK_HEADER_LENGTH, encoded.length);
+    BinaryChunking.putInt(block, BLOCK_CHECKSUM_OFFSET, blockChecksum(block, encoded));
+    return block;
+  }
+
+  static int blockChecksum(byte[] header, byte[] encoded) {
+    Crc32c crc = new Crc32c();
+    crc.update(header, 0, BLOCK_CHECKSUM_OFFSET);
+    crc.update(encoded, 0, encoded.length);
+    return (int) crc.getValue();
+  }
+
+  static int checksum(byte[] bytes, int offset, int length) {
+    Crc32c crc = new Crc32c();
+    crc.update(bytes, offset, length);
+    return (int) crc.getValue();
+  }
+
+}
@@ -0,0 +1,218 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+
+/**
+ * Reads back the contents of a file written in blocks by BlockEncoding, decoding one block at a time.
+ * <p/>
+ * Since each block holds whole journal entries synced together, a block that cannot be read was either
+ * torn by a crash while it was being written, and none of its entries was ever executed, or corrupted
+ * afterwards. A bad block followed only by the end of the file or by zeros is a torn write: the stream
+ * ends before it and its offset is kept in tornTailOffset(). A bad block followed by more data makes
+ * the stream throw a StreamCorruptedException instead, and isCorrupted() returns true from then on.
+ */
+public class BlockInputStream extends InputStream {
+
+  private final InputStream _input;
+  private final BlockCodec _codec;
+
+  private byte[] _parameters;
+  private long _fileOffset = 0;
+  private byte[] _block = new byte[0];
+  private int _blockPosition = 0;
+  private boolean _ended = false;
+  private boolean _corrupted = false;
+  private long _tornTailOffset = -1;
+
+  /**
+   * @param input The file contents from its start. Not buffered by this stream.
+   */
+  public BlockInputStream(InputStream input, BlockCodec codec) {
+    _input = input;
+    _codec = codec;
+  }
+
+  /**
+   * The offset in the file of the torn block found at its end, or -1 if there was none.
+   */
+  public long tornTailOffset() {
+    return _tornTailOffset;
+  }
+
+  public boolean isCorrupted() {
+    return _corrupted;
+  }
+
+  public int read() throws IOException {
+    if (!ensureBlock()) return -1;
+    return _block[_blockPosition++] & 0xFF;
+  }
+
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    if (!ensureBlock()) return -1;
+    int read = Math.min(length, _block.length - _blockPosition);
+    System.arraycopy(_block, _blockPosition, buffer, offset, read);
+    _blockPosition += read;
+    return read;
+  }
+
+  public long skip(long n) throws IOException {
+    if (n <= 0 || !ensureBlock()) return 0;
+    int skipped = (int) Math.min(n, _block.length - _blockPosition);
+    _blockPosition += skipped;
+    return skipped;
+  }
+
+  public int available() {
+    return _block.length - _blockPosition;
+  }
+
+  public void close() throws IOException {
+    _input.close();
+  }
+
+  private boolean ensureBlock() throws IOException {
+    if (_corrupted) throw new StreamCorruptedException("Corrupted block");
+    while (_blockPosition == _block.length) {
+      if (_ended) return false;
+      if (_parameters == null) readFileHeader();
+      else readBlock();
+    }
+    return true;
+  }
+
+  private void readFileHeader() throws IOException {
+    byte[] start = new byte[BlockEncoding.MAGIC.length + 4];
+    int read = readFromFile(start);
+    if (read == 0 || read == start.length && isZeroed(start, start.length)) {
+      _ended = true;
+      return;
+    }
+    if (read < start.length) {
+      tornAt(0);
+      return;
+    }
+    for (int i = 0; i < BlockEncoding.MAGIC.length; i++) {
+      if (start[i] != BlockEncoding.MAGIC[i]) throw corrupted("Not a block-encoded file");
+    }
+
+    byte[] name = readHeaderField(BinaryChunking.getInt(start, BlockEncoding.MAGIC.length), BlockEncoding.MAX_NAME_LENGTH);
+    if (name == null) return;
+    byte[] parametersLength = readHeaderField(4, 4);
+    if (parametersLength == null) return;
+    byte[] parameters = readHeaderField(BinaryChunking.getInt(parametersLength, 0), BlockEncoding.MAX_PARAMETERS_LENGTH);
+    if (parameters == null) return;
+    byte[] checksum = readHeaderField(4, 4);
+    if (checksum == null) return;
+
+    byte[] header = BlockEncoding.fileHeader(name, parameters);
+    if (BinaryChunking.getInt(header, header.length - 4) != BinaryChunking.getInt(checksum, 0)) {
+      if (isFollowedByData()) throw corrupted("File header checksum mismatch");
+      tornAt(0);
+      return;
+    }
+    if (!_codec.name().equals(new String(name, "US-ASCII"))) {
+      _ended = true;
+      throw new IOException("The file was written by the " + new String(name, "US-ASCII") + " block codec, but the " + _codec.name() + " codec is configured to read it.");
+    }
+    _parameters = parameters;
+  }
+
+  /**
+   * @return null if the file ends within the field, which makes it a torn header.
+   */
+  private byte[] readHeaderField(int length, int maxLength) throws IOException {
+    if (length < 0 || length > maxLength) throw corrupted("File header corrupted");
+    byte[] field = new byte[length];
+    if (readFromFile(field) < length) {
+      tornAt(0);
+      return null;
+    }
+    return field;
+  }
+
+  private void readBlock() throws IOException {
+    long blockOffset = _fileOffset;
+    byte[] header = new byte[BlockEncoding.BLOCK_HEADER_LENGTH];
+    int headerRead = readFromFile(header);
+    if (headerRead == 0 || headerRead == header.length && isZeroed(header, header.length)) {
+      _ended = true;
+      return;
+    }
+    if (headerRead < header.length) {
+      tornAt(blockOffset);
+      return;
+    }
+
+    int encodedLength = BinaryChunking.getInt(header, 0);
+    int decodedLength = BinaryChunking.getInt(header, 4);
+    if (encodedLength <= 0 || decodedLength <= 0) {
+      if (isFollowedByData()) throw corrupted("Block header corrupted at offset " + blockOffset);
+      tornAt(blockOffset);
+      return;
+    }
+
+    byte[] encoded = new byte[encodedLength];
+    if (readFromFile(encoded) < encodedLength) {
+      tornAt(blockOffset);
+      return;
+    }
+    if (BinaryChunking.getInt(header, BlockEncoding.BLOCK_CHECKSUM_OFFSET) != BlockEncoding.blockChecksum(header, encoded)) {
+      if (isFollowedByData()) throw corrupted("Block checksum mismatch at offset " + blockOffset);
+      tornAt(blockOffset);
+      return;
+    }
+
+    try {
+      _block = _codec.decode(_parameters, blockOffset, encoded, decodedLength);
+    } catch (IOException exception) {
+      _corrupted = true;
+      throw exception;
+    }
+    _blockPosition = 0;
+  }
+
+  /**
+   * Whether anything but zeros is found in the block-header-sized range that follows.
+   */
+  private boolean isFollowedByData() throws IOException {
+    byte[] next = new byte[BlockEncoding.BLOCK_HEADER_LENGTH];
+    int read = readFromFile(next);
+    return !isZeroed(next, read);
+  }
+
+  private void tornAt(long offset) {
+    _tornTailOffset = offset;
+    _ended = true;
+  }
+
+  private StreamCorruptedException corrupted(String message) {
+    _corrupted = true;
+    return new StreamCorruptedException(message);
+  }
+
+  /**
+   * Reads from the file until the buffer is full or the file ends, returning the number of bytes read.
+   */
+  private int readFromFile(byte[] buffer) throws IOException {
+    int total = 0;
+    while (total < buffer.length) {
+      int read = _input.read(buffer, total, buffer.length - total);
+      if (read == -1) break;
+      total += read;
+    }
+    _fileOffset += total;
+    return total;
+  }
+
+  private static boolean isZeroed(byte[] bytes, int length) {
+    for (int i = 0; i < length; i++) {
+      if (bytes[i] != 0) return false;
+    }
+    return true;
+  }
+
+}
@@ -0,0 +1,49 @@
+package org.prevayler.foundation;
+
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for chunk bytes held in a ByteBuffer, typically a slice of a mapped journal file.
+ */
+public class ByteBuffers {
+
+  /**
+   * Copies the remaining bytes of the buffer, without changing its position.
+   */
+  public static byte[] toArray(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  /**
+   * A stream over the remaining bytes of the buffer, which it consumes.
+   */
+  public static InputStream inputStream(final ByteBuffer buffer) {
+    return new InputStream() {
+      public int read() {
+        return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
+      }
+
+      public int read(byte[] bytes, int offset, int length) {
+        if (length == 0) return 0;
+        if (!buffer.hasRemaining()) return -1;
+        int read = Math.min(length, buffer.remaining());
+        buffer.get(bytes, offset, read);
+        return read;
+      }
+
+      public long skip(long n) {
+        int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+        buffer.position(buffer.position() + skipped);
+        return skipped;
+      }
+
+      public int available() {
+        return buffer.remaining();
+      }
+    };
+  }
+
+}
@@ -0,0 +1,24 @@
+package org.prevayler.foundation;
+
+/**
+ * Forces a file to disk once at least a given number of bytes have been flushed to it since it was
+ * last forced. At most that many bytes of acknowledged objects can be lost.
+ */
+public class ByteThresholdSyncPolicy extends JournalSyncPolicy {
+
+  private final long _thresholdInBytes;
+
+  public ByteThresholdSyncPolicy(long thresholdInBytes) {
+    if (thresholdInBytes <= 0) throw new IllegalArgumentException("Threshold must be positive: " + thresholdInBytes);
+    _thresholdInBytes = thresholdInBytes;
+  }
+
+  public boolean isForceRequired(long bytesSinceLastForce, long nanosSinceLastForce) {
+    return bytesSinceLastForce >= _thresholdInBytes;
+  }
+
+  public String toString() {
+    return "byte-threshold(" + _thresholdInBytes + ")";
+  }
+
+}
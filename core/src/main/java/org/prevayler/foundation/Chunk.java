@@ -1,11 +1,13 @@
 package org.prevayler.foundation;
 
+import java.nio.ByteBuffer;
 import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class Chunk {
 
   private byte[] _bytes;
+  private ByteBuffer _buffer;
   private Map _parameters;
 
   public Chunk(byte[] bytes) {
@@ -17,10 +19,26 @@ public class Chunk {
     _parameters = parameters;
   }
 
+  /**
+   * A chunk whose bytes are the remaining bytes of the given buffer, typically a slice of a mapped journal file. They are only copied if getBytes() is called.
+   */
+  public Chunk(ByteBuffer bytes, Map parameters) {
+    _buffer = bytes;
+    _parameters = parameters;
+  }
+
   public byte[] getBytes() {
+    if (_bytes == null) _bytes = ByteBuffers.toArray(_buffer);
     return _bytes;
   }
 
+  /**
+   * The chunk bytes, without copying them. The returned buffer is not shared with other callers.
+   */
+  public ByteBuffer getByteBuffer() {
+    return _buffer != null ? _buffer.duplicate() : ByteBuffer.wrap(_bytes);
+  }
+
   public void setParameter(String name, String value) {
     _parameters.put(name, value);
   }
@@ -44,6 +44,22 @@ public class Chunking {
     stream.write(CRLF);
   }
 
+  /**
+   * Writes a chunk without creating a Chunk and the Strings of its header. The given header must
+   * already hold what writeChunk() writes before the line break: the size of the bytes in upper case
+   * hex followed by the parameters, all of them valid tokens since they are not checked.
+   */
+  public static void writeChunk(OutputStream stream, ScratchBuffer header, byte[] bytes) throws IOException {
+    header.writeAscii(CRLF);
+    header.writeTo(stream);
+    stream.write(bytes);
+    stream.write(CRLF);
+  }
+
+  /**
+   * Returns the next chunk, or null at the end of the stream or where a header starts with a zero byte,
+   * as found in space preallocated at the end of a file. That space is not read any further.
+   */
   public static Chunk readChunk(InputStream stream) throws IOException {
     String header = readLine(stream);
 
@@ -91,7 +107,7 @@ public class Chunking {
     ByteArrayOutputStream header = new ByteArrayOutputStream();
     while (true) {
       int b = stream.read();
-      if (b == -1) {
+      if (b == -1 || b == 0) {  //No header holds a zero byte, so it is where the preallocated space starts.
         if (header.size() == 0) {
           return null;
         } else {
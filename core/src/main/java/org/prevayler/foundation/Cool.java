@@ -26,10 +26,11 @@ public class Cool {
     throw new RuntimeException("Unexpected Exception was thrown.", e);
   }
 
-  public static void startDaemon(Runnable runnable) {
+  public static Thread startDaemon(Runnable runnable) {
     Thread daemon = new Thread(runnable);
     daemon.setDaemon(true);
     daemon.start();
+    return daemon;
   }
 
 }
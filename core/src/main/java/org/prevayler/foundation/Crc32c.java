@@ -0,0 +1,58 @@
+package org.prevayler.foundation;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * The CRC-32C (Castagnoli) checksum, as used by iSCSI and ext4. Equivalent to java.util.zip.CRC32C,
+ * which is only available since Java 9.
+ */
+public class Crc32c implements Checksum {
+
+  private static final int POLYNOMIAL = 0x82F63B78;
+  private static final int[] TABLE = new int[256];
+
+  static {
+    for (int n = 0; n < 256; n++) {
+      int crc = n;
+      for (int k = 0; k < 8; k++) {
+        crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLYNOMIAL : crc >>> 1;
+      }
+      TABLE[n] = crc;
+    }
+  }
+
+  private int _crc = 0xFFFFFFFF;
+
+  public void update(int b) {
+    _crc = (_crc >>> 8) ^ TABLE[(_crc ^ b) & 0xFF];
+  }
+
+  public void update(byte[] bytes, int offset, int length) {
+    int crc = _crc;
+    for (int i = offset; i < offset + length; i++) {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ bytes[i]) & 0xFF];
+    }
+    _crc = crc;
+  }
+
+  /**
+   * Updates the checksum with the remaining bytes of the buffer, without changing its position.
+   */
+  public void update(ByteBuffer buffer) {
+    int crc = _crc;
+    for (int i = buffer.position(); i < buffer.limit(); i++) {
+      crc = (crc >>> 8) ^ TABLE[(crc ^ buffer.get(i)) & 0xFF];
+    }
+    _crc = crc;
+  }
+
+  public long getValue() {
+    return ~_crc & 0xFFFFFFFFL;
+  }
+
+  public void reset() {
+    _crc = 0xFFFFFFFF;
+  }
+
+}
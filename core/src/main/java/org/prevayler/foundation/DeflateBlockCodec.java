@@ -0,0 +1,143 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses each block with a Deflater of its own, so that blocks can be decoded independently.
+ * <p/>
+ * Small blocks compress poorly on their own, since the repeated class names and field layouts of the
+ * transactions in them are only seen once or twice. Optionally, each file is started with a preset
+ * dictionary made of the most recent bytes this codec encoded or decoded, which hold the transactions
+ * most likely to be repeated, and that dictionary is kept in the file header.
+ */
+public class DeflateBlockCodec implements BlockCodec {
+
+  /**
+   * The size of the deflate window, beyond which a preset dictionary is of no use.
+   */
+  public static final int MAX_DICTIONARY_LENGTH = 32 * 1024;
+
+  private static final byte[] NO_PARAMETERS = new byte[0];
+
+  private final int _level;
+
+  /**
+   * The most recent bytes encoded or decoded, right-aligned. All access guarded by itself.
+   */
+  private final byte[] _sample;
+  private int _sampleLength = 0;
+
+  /**
+   * Same as DeflateBlockCodec(Deflater.DEFAULT_COMPRESSION, MAX_DICTIONARY_LENGTH).
+   */
+  public DeflateBlockCodec() {
+    this(Deflater.DEFAULT_COMPRESSION, MAX_DICTIONARY_LENGTH);
+  }
+
+  /**
+   * @param level            The Deflater compression level, from 0 to 9, or Deflater.DEFAULT_COMPRESSION.
+   * @param dictionaryLength The length of the preset dictionary each file is started with, up to MAX_DICTIONARY_LENGTH. Zero for no dictionary.
+   */
+  public DeflateBlockCodec(int level, int dictionaryLength) {
+    if (dictionaryLength < 0 || dictionaryLength > MAX_DICTIONARY_LENGTH) {
+      throw new IllegalArgumentException("The dictionary length must be between 0 and " + MAX_DICTIONARY_LENGTH + ": " + dictionaryLength);
+    }
+    _level = level;
+    _sample = new byte[dictionaryLength];
+  }
+
+  public String name() {
+    return "deflate";
+  }
+
+  /**
+   * The dictionary, if any, is the sample of recent bytes, which is empty when nothing was encoded or decoded yet.
+   */
+  public byte[] startFile() {
+    synchronized (_sample) {
+      if (_sampleLength == 0) return NO_PARAMETERS;
+      byte[] dictionary = new byte[_sampleLength];
+      System.arraycopy(_sample, _sample.length - _sampleLength, dictionary, 0, _sampleLength);
+      return dictionary;
+    }
+  }
+
+  public byte[] encode(byte[] dictionary, long offset, byte[] block, int length) {
+    Deflater deflater = new Deflater(_level);
+    try {
+      if (dictionary.length > 0) deflater.setDictionary(dictionary);
+      deflater.setInput(block, 0, length);
+      deflater.finish();
+
+      byte[] encoded = new byte[length / 2 + 64];
+      int encodedLength = 0;
+      while (!deflater.finished()) {
+        if (encodedLength == encoded.length) encoded = grown(encoded, encodedLength);
+        encodedLength += deflater.deflate(encoded, encodedLength, encoded.length - encodedLength);
+      }
+      sample(block, length);
+      return encodedLength == encoded.length ? encoded : trimmed(encoded, encodedLength);
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public byte[] decode(byte[] dictionary, long offset, byte[] encoded, int decodedLength) throws IOException {
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(encoded);
+      byte[] block = new byte[decodedLength];
+      int length = 0;
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(block, length, block.length - length);
+        length += inflated;
+        if (inflated > 0) continue;
+        if (inflater.needsDictionary()) {
+          inflater.setDictionary(dictionary);
+        } else if (length == block.length || inflater.needsInput()) {
+          throw new StreamCorruptedException("Block does not decompress to its " + decodedLength + " bytes at offset " + offset);
+        }
+      }
+      if (length != decodedLength) throw new StreamCorruptedException("Block decompresses to " + length + " bytes instead of " + decodedLength + " at offset " + offset);
+      sample(block, length);
+      return block;
+    } catch (DataFormatException exception) {
+      throw new StreamCorruptedException("Corrupted block at offset " + offset + ": " + exception.getMessage());
+    } catch (IllegalArgumentException wrongDictionary) {
+      throw new StreamCorruptedException("Block at offset " + offset + " was compressed with another dictionary");
+    } finally {
+      inflater.end();
+    }
+  }
+
+  /**
+   * Keeps the last bytes of the block at the end of the sample, after what is left of the earlier ones.
+   */
+  private void sample(byte[] block, int length) {
+    if (_sample.length == 0) return;
+    synchronized (_sample) {
+      int kept = Math.min(length, _sample.length);
+      int shifted = Math.min(_sampleLength, _sample.length - kept);
+      System.arraycopy(_sample, _sample.length - shifted, _sample, _sample.length - shifted - kept, shifted);
+      System.arraycopy(block, length - kept, _sample, _sample.length - kept, kept);
+      _sampleLength = shifted + kept;
+    }
+  }
+
+  private static byte[] grown(byte[] bytes, int length) {
+    byte[] grown = new byte[bytes.length * 2];
+    System.arraycopy(bytes, 0, grown, 0, length);
+    return grown;
+  }
+
+  private static byte[] trimmed(byte[] bytes, int length) {
+    byte[] trimmed = new byte[length];
+    System.arraycopy(bytes, 0, trimmed, 0, length);
+    return trimmed;
+  }
+
+}
@@ -9,52 +9,302 @@ import org.prevayler.foundation.monitor.Monitor;
 
 import java.io.*;
 
+/**
+ * Reads the chunks of a journal file, treating a corrupted last chunk as the end of the file.
+ * <p/>
+ * Chunks in the binary format are checksummed, so their corruption is detected before they are
+ * deserialized and is located exactly. Whether a bad binary chunk was torn by a crash is decided by
+ * the sync marks written after it (see BinaryChunking): if one of them tells that the file had been
+ * forced to disk past the start of the bad chunk, the chunk had been acknowledged and reading stops
+ * with a StreamCorruptedException instead of silently dropping the chunks after it. Otherwise the
+ * chunk belongs to a group that was never acknowledged, possibly torn with valid chunks after it, as
+ * when a zeroed page is left inside a group by a power loss, and its offset is kept in
+ * tornTailOffset() so that the file can be truncated there.
+ * <p/>
+ * Optionally, the file is read through a MappedJournalReader, which hands out the bytes of each chunk
+ * without copying them.
+ * <p/>
+ * A file written in blocks by a BlockCodec is read through a BlockInputStream, and offsets are then
+ * those of the decoded contents, except for tornTailOffset(), which is that of the torn block.
+ */
 public class DurableInputStream {
 
+  private static final int SYNC_MARK_SCAN_LENGTH = 64 * 1024;
+
   private final File _file;
   private boolean _EOF = false;
   private Monitor _monitor;
-  private InputStream _fileStream;
+  private PositionInputStream _fileStream;
+  private MappedJournalReader _mappedReader;
+  private BlockInputStream _blockInput;
+  private long _tornTailOffset = -1;
 
 
   public DurableInputStream(File file, Monitor monitor) throws IOException {
+    this(file, monitor, false);
+  }
+
+
+  /**
+   * @param memoryMapped Whether the file is read through a MappedJournalReader instead of a buffered stream.
+   */
+  public DurableInputStream(File file, Monitor monitor, boolean memoryMapped) throws IOException {
+    this(file, monitor, memoryMapped, null);
+  }
+
+
+  /**
+   * @param blockCodec The codec the file was written in blocks with, or null if it was not. A block-encoded file is never memory-mapped.
+   */
+  public DurableInputStream(File file, Monitor monitor, boolean memoryMapped, BlockCodec blockCodec) throws IOException {
     _monitor = monitor;
     _file = file;
-    _fileStream = new BufferedInputStream(new FileInputStream(file));
+    if (blockCodec != null) {
+      _blockInput = new BlockInputStream(new BufferedInputStream(new FileInputStream(file)), blockCodec);
+      _fileStream = new PositionInputStream(_blockInput);
+    } else if (memoryMapped) {
+      _mappedReader = new MappedJournalReader(file);
+    } else {
+      _fileStream = new PositionInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+  }
+
+
+  public File file() {
+    return _file;
+  }
+
+
+  /**
+   * The offset of the torn binary chunk found at the end of the file, or -1 if there was none.
+   */
+  public long tornTailOffset() {
+    return _blockInput != null ? _blockInput.tornTailOffset() : _tornTailOffset;
   }
 
 
   public Chunk readChunk() throws IOException {
     if (_EOF) throw new EOFException();
 
+    long offset = position();
     try {
-      Chunk chunk = Chunking.readChunk(_fileStream);
+      Chunk chunk = _mappedReader != null ? _mappedReader.readChunk() : Chunking.readChunk(_fileStream);
       if (chunk != null) return chunk;
     } catch (EOFException eofx) {
       // Do nothing.
     } catch (ObjectStreamException scx) {
-      ignoreStreamCorruption(scx);
+      checkBlockCorruption(offset, scx);
+      ignoreStreamCorruption(offset, scx);
     } catch (UTFDataFormatException utfx) {
-      ignoreStreamCorruption(utfx);
+      ignoreStreamCorruption(offset, utfx);
     } catch (RuntimeException rx) {   //Some stream corruptions cause runtime exceptions in JDK1.3.1!
-      ignoreStreamCorruption(rx);
+      ignoreStreamCorruption(offset, rx);
     }
 
-    _fileStream.close();
-    _EOF = true;
+    close();
     throw new EOFException();
   }
 
 
-  private void ignoreStreamCorruption(Exception ex) {
-    String message = "Stream corruption found while reading a transaction from the journal. If this is a transaction that was being written when a system crash occurred, there is no problem because it was never executed on the Prevalent System. Before executing each transaction, Prevayler writes it to the journal and calls the java.io.FileDescritor.sync() method to instruct the Java API to physically sync all operating system RAM buffers to disk.";
+  public BinaryChunk readBinaryChunk() throws IOException {
+    if (_EOF) throw new EOFException();
+
+    long offset = position();
+    try {
+      BinaryChunk chunk = _mappedReader != null ? _mappedReader.readBinaryChunk() : BinaryChunking.readChunk(_fileStream);
+      if (chunk != null) return chunk;
+    } catch (EOFException eofx) {  //Only thrown once the header, and so the length that ran past the end, was verified.
+      _tornTailOffset = offset;
+      ignoreStreamCorruption(offset, eofx);
+    } catch (StreamCorruptedException scx) {
+      checkBlockCorruption(offset, scx);
+      if (_blockInput != null || isBeforeSyncedLength(offset)) {  //A chunk in an intact block was written as it is.
+        close();
+        String message = "Corrupted transaction found at offset " + offset + " of the journal, which had been synced. This is not a transaction torn by a system crash, so the journal cannot be recovered past it.";
+        _monitor.notify(this.getClass(), message, _file, scx);
+        throw new StreamCorruptedException(message + " File: " + _file);
+      }
+      _tornTailOffset = offset;
+      ignoreStreamCorruption(offset, scx);
+    }
+
+    close();
+    throw new EOFException();
+  }
+
+
+  /**
+   * A corrupted block was not torn by a system crash, whether its contents are text or binary chunks, since
+   * BlockInputStream only reports it when more data follows.
+   */
+  private void checkBlockCorruption(long offset, ObjectStreamException exception) throws IOException {
+    if (_blockInput == null || !_blockInput.isCorrupted()) return;
+    close();
+    String message = "Corrupted block found after offset " + offset + " of the journal, followed by more data. This is not a block torn by a system crash, so the journal cannot be recovered past it.";
+    _monitor.notify(this.getClass(), message, _file, exception);
+    throw new StreamCorruptedException(message + " File: " + _file);
+  }
+
+
+  /**
+   * Whether an intact sync mark found after the given offset tells that the file had been forced to disk
+   * past it. A mark can only tell about the bytes before it, which rules out marks made up by corruption.
+   * <p/>
+   * The chunks are walked by the lengths in their headers, so the bytes inside them are never scanned.
+   * Only where a header is not intact are the bytes scanned for the next one, and that scan gives up at
+   * SYNC_MARK_SCAN_LENGTH zero bytes in a row, which is the preallocated tail where no mark can follow.
+   * A chunk torn at the end of a preallocated file thus costs a single window of the file.
+   */
+  private boolean isBeforeSyncedLength(long offset) throws IOException {
+    FileWindow window = new FileWindow(_file);
+    try {
+      long position = offset;
+      while (window.load(position, BinaryChunking.HEADER_LENGTH)) {
+        long chunkLength = BinaryChunking.chunkLength(window.buffer(), window.index(position));
+        if (chunkLength == -1) {
+          position = nextIntactHeader(window, position + 1);
+          if (position == -1) return false;
+          continue;
+        }
+        long syncedLength = BinaryChunking.syncedLength(window.buffer(), window.index(position));
+        if (syncedLength > offset && syncedLength <= position) return true;
+        position += chunkLength;
+      }
+      return false;
+    } finally {
+      window.close();
+    }
+  }
+
+
+  private static long nextIntactHeader(FileWindow window, long position) throws IOException {
+    int zeros = 0;
+    for (; window.load(position, BinaryChunking.HEADER_LENGTH); position++) {
+      int index = window.index(position);
+      if (window.buffer()[index] != 0) zeros = 0;
+      else if (++zeros == SYNC_MARK_SCAN_LENGTH) return -1;
+      if (BinaryChunking.chunkLength(window.buffer(), index) != -1) return position;
+    }
+    return -1;
+  }
+
+
+  private void ignoreStreamCorruption(long offset, Exception ex) {
+    String message = "Stream corruption found at offset " + offset + " while reading a transaction from the journal. If this is a transaction that was being written when a system crash occurred, there is no problem because it was never executed on the Prevalent System. Before executing each transaction, Prevayler writes it to the journal and calls the java.io.FileDescritor.sync() method to instruct the Java API to physically sync all operating system RAM buffers to disk.";
     _monitor.notify(this.getClass(), message, _file, ex);
   }
 
 
   public void close() throws IOException {
-    _fileStream.close();
+    if (_mappedReader != null) _mappedReader.close();
+    else _fileStream.close();
     _EOF = true;
   }
 
+
+  /**
+   * The offset in the file of the next chunk to be read.
+   */
+  public long position() {
+    return _mappedReader != null ? _mappedReader.position() : _fileStream.position();
+  }
+
+
+  /**
+   * Skips ahead to the chunk starting at the given offset, which must not be before position().
+   */
+  public void skipTo(long offset) throws IOException {
+    if (offset < position()) throw new IllegalArgumentException("Cannot skip back to offset " + offset + " from " + position());
+    if (_mappedReader != null) {
+      _mappedReader.skipTo(offset);
+      return;
+    }
+    while (position() < offset) {
+      if (_fileStream.skip(offset - position()) <= 0) throw new EOFException();
+    }
+  }
+
+
+  /**
+   * A window of up to SYNC_MARK_SCAN_LENGTH bytes of a file, moved forward as its bytes are asked for.
+   */
+  private static class FileWindow {
+
+    private final RandomAccessFile _file;
+    private final byte[] _buffer = new byte[SYNC_MARK_SCAN_LENGTH];
+    private long _start = 0;
+    private int _length = 0;
+
+    FileWindow(File file) throws IOException {
+      _file = new RandomAccessFile(file, "r");
+    }
+
+    /**
+     * Whether the given bytes of the file are in the window, moving it to start at them if they were not.
+     * False if the file ends before them.
+     */
+    boolean load(long position, int length) throws IOException {
+      if (position >= _start && position + length <= _start + _length) return true;
+      _file.seek(position);
+      _start = position;
+      _length = 0;
+      while (_length < _buffer.length) {
+        int read = _file.read(_buffer, _length, _buffer.length - _length);
+        if (read == -1) break;
+        _length += read;
+      }
+      return _length >= length;
+    }
+
+    byte[] buffer() {
+      return _buffer;
+    }
+
+    int index(long position) {
+      return (int) (position - _start);
+    }
+
+    void close() throws IOException {
+      _file.close();
+    }
+
+  }
+
+
+  private static class PositionInputStream extends FilterInputStream {
+
+    private long _position = 0;
+
+    PositionInputStream(InputStream in) {
+      super(in);
+    }
+
+    long position() {
+      return _position;
+    }
+
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) _position++;
+      return b;
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) _position += read;
+      return read;
+    }
+
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      _position += skipped;
+      return skipped;
+    }
+
+    public boolean markSupported() {
+      return false;
+    }
+
+  }
+
 }
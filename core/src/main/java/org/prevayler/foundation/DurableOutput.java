@@ -0,0 +1,49 @@
+package org.prevayler.foundation;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * A file to which Guided objects are written in turn and then synced, allowing concurrent
+ * writers to share a single sync.
+ *
+ * @see DurableOutputStream
+ * @see MappedJournalOutputStream
+ */
+public interface DurableOutput {
+
+  /**
+   * Writes the given guide in its turn and returns only after it has been synced, that is flushed to the
+   * operating system and, if the JournalSyncPolicy of this output requires it, forced to disk. The guide
+   * is told which policy acknowledged it and whether it was forced.
+   */
+  public void sync(Guided guide) throws IOException;
+
+  /**
+   * Forces everything synced so far to disk. May be called from any thread, for example by a JournalSyncPolicy.
+   */
+  public void force() throws IOException;
+
+  /**
+   * Passes every group of objects synced from now on to the given tap, after calling its started()
+   * method with the number of bytes synced so far. The tap's finished() method is called when this
+   * output is closed.
+   */
+  public void addTap(JournalTap tap) throws IOException;
+
+  public void removeTap(JournalTap tap);
+
+  public void close() throws IOException;
+
+  public File file();
+
+  /**
+   * The number of bytes occupied by the objects written so far, before any block encoding, used to decide when to start a new file.
+   */
+  public long length();
+
+  public int fileSyncCount();
+
+  public boolean reallyClosed();
+
+}
@@ -8,8 +8,8 @@ import java.io.*;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 
-public class DurableOutputStream {
-  static final int JOURNAL_PREALLOCATE_LENGTH = 1024 * 1024;
+public class DurableOutputStream implements DurableOutput {
+  public static final int JOURNAL_PREALLOCATE_LENGTH = 1024 * 1024;
 
   /**
    * These two locks allow the two main activities of this class,
@@ -41,7 +41,26 @@ public class DurableOutputStream {
   /**
    * Immutable.
    */
-  private final boolean _journalDiskSync;
+  private final JournalSyncPolicy _syncPolicy;
+
+  /**
+   * Serializes forcing the file to disk, which may happen on the syncing thread or on a thread of
+   * the JournalSyncPolicy. May be acquired while holding _syncLock, and _writeLock may be acquired
+   * while holding it, never the other way round.
+   */
+  private final Object _forceLock = new Object();
+
+  /**
+   * Immutable. Null if the syncing thread should not wait for more writers.
+   */
+  private final GroupCommitPolicy _groupCommit;
+
+  /**
+   * Immutable. Null if objects are written as they are, otherwise each group synced is written as a
+   * block encoded with the parameters it gave for this file. See BlockEncoding.
+   */
+  private final BlockCodec _blockCodec;
+  private final byte[] _blockParameters;
 
   /**
    * All access guarded by _writeLock.
@@ -63,6 +82,21 @@ public class DurableOutputStream {
    */
   private int _objectsWritten = 0;
 
+  /**
+   * All access guarded by _writeLock.
+   */
+  private long _bytesWritten = 0;
+
+  /**
+   * The value of _objectsWritten when the buffers were last swapped. All access guarded by _writeLock.
+   */
+  private int _objectsSwapped = 0;
+
+  /**
+   * Whether the syncing thread is waiting for the batch to fill up. All access guarded by _writeLock.
+   */
+  private boolean _awaitingBatch = false;
+
   /**
    * All access guarded by _syncLock.
    */
@@ -73,22 +107,75 @@ public class DurableOutputStream {
    */
   private int _fileSyncCount = 0;
 
+  /**
+   * Replaced rather than modified. All access guarded by _syncLock.
+   */
+  private JournalTap[] _taps = new JournalTap[0];
+
+  /**
+   * Written while holding _syncLock, so readable with either lock.
+   */
+  private volatile int _objectsFlushed = 0;
+  private volatile long _bytesFlushed = 0;
+
+  /**
+   * The _bytesForced given in the last sync mark. All access guarded by _writeLock.
+   */
+  private long _bytesSyncMarked = 0;
+
+  /**
+   * All access guarded by _forceLock, except that _objectsForced and _bytesForced may be read at any time.
+   */
+  private volatile int _objectsForced = 0;
+  private volatile long _bytesForced = 0;
+  private long _lastForceNanos = System.nanoTime();
+
   public DurableOutputStream(File file, boolean journalDiskSync, long journalSizeThreshold) throws IOException {
+    this(file, journalDiskSync ? (JournalSyncPolicy) new PerGroupSyncPolicy() : new OSManagedSyncPolicy(), journalSizeThreshold, null, false);
+  }
+
+  /**
+   * @param syncPolicy   When the file is forced to disk.
+   * @param groupCommit  How long the syncing thread waits for more writers. Null to sync right away.
+   * @param preallocated Whether the file already exists and is filled with zeros, in which case it is
+   *                     overwritten from the start instead of being truncated first.
+   */
+  public DurableOutputStream(File file, JournalSyncPolicy syncPolicy, long journalSizeThreshold, GroupCommitPolicy groupCommit,
+                             boolean preallocated) throws IOException {
+    this(file, syncPolicy, journalSizeThreshold, groupCommit, preallocated, null);
+  }
+
+  /**
+   * @param blockCodec Encodes each group of objects synced together as a block, after a file header
+   *                   written right away. Null to write objects as they are.
+   */
+  public DurableOutputStream(File file, JournalSyncPolicy syncPolicy, long journalSizeThreshold, GroupCommitPolicy groupCommit,
+                             boolean preallocated, BlockCodec blockCodec) throws IOException {
     _file = file;
-    _fileOutputStream = new FileOutputStream(file);
+    _fileOutputStream = preallocated
+        ? new FileOutputStream(new RandomAccessFile(file, "rw").getFD())
+        : new FileOutputStream(file);
     _fileChannel = _fileOutputStream.getChannel();
     _preallocateLength = journalSizeThreshold == 0 ?
         JOURNAL_PREALLOCATE_LENGTH :
           (int) Math.min(journalSizeThreshold-1, JOURNAL_PREALLOCATE_LENGTH);
-    _journalDiskSync = journalDiskSync;
+    _syncPolicy = syncPolicy;
+    _groupCommit = groupCommit;
+    _blockCodec = blockCodec;
+    _blockParameters = blockCodec == null ? null : blockCodec.startFile();
+    if (blockCodec != null) {
+      byte[] header = BlockEncoding.fileHeader(blockCodec, _blockParameters);
+      _fileOutputStream.write(header);
+      _bytesFlushed = header.length;
+    }
+    _syncPolicy.opened(this);
   }
 
-  private void preallocate() throws IOException {
+  private void preallocate(int bufSize) throws IOException {
     assert _fileChannel != null :  "_fileChannel is null";
 
     long position = _fileChannel.position();
     long size = _fileChannel.size();
-    int bufSize = _inactive.size();
     long need = bufSize - (size - position);
     if (need <= 0) {
       return;
@@ -116,6 +203,8 @@ public class DurableOutputStream {
     // and try to write its object before we get to the sync.
 
     waitUntilSynced(thisWrite);
+
+    guide.acknowledged(_syncPolicy, _objectsForced >= thisWrite);
   }
 
   private int writeObject(Guided guide) throws IOException {
@@ -124,18 +213,40 @@ public class DurableOutputStream {
         throw new IOException("already closed");
       }
 
+      int sizeBefore;
       try {
+        writeSyncMark(guide);
+        sizeBefore = _active.size();
         guide.writeTo(_active);
       } catch (IOException exception) {
         internalClose();
         throw exception;
       }
 
+      guide.writtenAt(_bytesWritten);
+      _bytesWritten += _active.size() - sizeBefore;
       _objectsWritten++;
+      if (_awaitingBatch && _groupCommit.isBatchFull(_objectsWritten - _objectsSwapped, _active.size())) {
+        _writeLock.notifyAll();
+      }
       return _objectsWritten;
     }
   }
 
+  /**
+   * Lets the guide mark how much of the file is known to be on disk, if that grew since the last mark,
+   * so that recovery can tell acknowledged chunks from torn ones. Block-encoded files are not marked:
+   * their blocks are checked as a whole. Must be called holding the _writeLock.
+   */
+  private void writeSyncMark(Guided guide) throws IOException {
+    long bytesForced = _bytesForced;
+    if (_blockCodec != null || bytesForced <= _bytesSyncMarked) return;
+    int sizeBefore = _active.size();
+    guide.writeSyncMark(_active, bytesForced);
+    _bytesWritten += _active.size() - sizeBefore;
+    _bytesSyncMarked = bytesForced;
+  }
+
   private void waitUntilSynced(int thisWrite) throws IOException {
     // Here's the real magic. If this thread is the first to have written
     // an object after a period of inactivity, and there are no other
@@ -163,37 +274,68 @@ public class DurableOutputStream {
     // flush and sync all 10 objects at once. Each of the 10 threads will
     // acquire _syncLock in turn and now see that their object has already
     // been synced and do nothing.
+    //
+    // With a GroupCommitPolicy, the thread about to sync first waits a
+    // little, releasing the _writeLock, for more threads to add their
+    // objects to the _active buffer, so that the same sync covers them.
 
     synchronized (_syncLock) {
       if (_objectsSynced < thisWrite) {
         int objectsWritten;
+        int batchCount;
+        long waitNanos = 0;
         synchronized (_writeLock) {
           if (_closed) {
             throw new IOException("already closed");
           }
 
+          if (_groupCommit != null) {
+            waitNanos = awaitBatch();
+            if (_closed) {
+              throw new IOException("already closed");
+            }
+          }
+
           ByteArrayOutputStream swap = _active;
           _active = _inactive;
           _inactive = swap;
 
           objectsWritten = _objectsWritten;
+          batchCount = objectsWritten - _objectsSwapped;
+          _objectsSwapped = objectsWritten;
         }
 
         try {
+          long batchOffset = _bytesFlushed;
+          byte[] block = _blockCodec == null ? null
+              : BlockEncoding.block(_blockCodec, _blockParameters, batchOffset, _inactive.toByteArray(), _inactive.size());
+          int batchBytes = block == null ? _inactive.size() : block.length;
+
           // preallocate more disk space if needed
-          preallocate();
+          preallocate(batchBytes);
 
           // Resetting the buffer clears its contents but keeps the
           // allocated space. Therefore the buffers should quickly
           // reach a steady state of an appropriate size and then not
           // need to grow any more.
 
-          _inactive.writeTo(_fileOutputStream);
+          byte[] batch = _taps.length == 0 ? null : block != null ? block : _inactive.toByteArray();
+          if (block != null) _fileOutputStream.write(block);
+          else _inactive.writeTo(_fileOutputStream);
           _inactive.reset();
           _fileOutputStream.flush();
+          _objectsFlushed = objectsWritten;
+          _bytesFlushed += batchBytes;
 
-          if (_journalDiskSync) {
-            _fileChannel.force(false);
+          long forceStart = System.nanoTime();
+          if (isForceRequired(forceStart)) {
+            force();
+          }
+          if (_groupCommit != null) {
+            _groupCommit.recordSync(batchCount, batchBytes, System.nanoTime() - forceStart, waitNanos);
+          }
+          for (int i = 0; i < _taps.length; i++) {
+            _taps[i].flushed(_file, batchOffset, batch);
           }
         } catch (IOException exception) {
           internalClose();
@@ -206,6 +348,73 @@ public class DurableOutputStream {
     }
   }
 
+  private boolean isForceRequired(long now) {
+    synchronized (_forceLock) {
+      return _syncPolicy.isForceRequired(_bytesFlushed - _bytesForced, now - _lastForceNanos);
+    }
+  }
+
+  public void force() throws IOException {
+    synchronized (_forceLock) {
+      int objectsFlushed = _objectsFlushed;
+      long bytesFlushed = _bytesFlushed;
+      if (bytesFlushed == _bytesForced) return;
+
+      try {
+        _fileChannel.force(false);
+      } catch (IOException exception) {
+        internalClose();
+        throw exception;
+      }
+
+      _objectsForced = objectsFlushed;
+      _bytesForced = bytesFlushed;
+      _lastForceNanos = System.nanoTime();
+    }
+  }
+
+  public void addTap(JournalTap tap) throws IOException {
+    synchronized (_syncLock) {
+      synchronized (_writeLock) {
+        if (_closed) {
+          throw new IOException("already closed");
+        }
+      }
+      tap.started(_file, _bytesFlushed);
+      _taps = Taps.with(_taps, tap);
+    }
+  }
+
+  public void removeTap(JournalTap tap) {
+    synchronized (_syncLock) {
+      _taps = Taps.without(_taps, tap);
+    }
+  }
+
+  /**
+   * Must be called holding the _writeLock.
+   */
+  private long awaitBatch() {
+    _awaitingBatch = true;
+    try {
+      return _groupCommit.awaitBatch(_writeLock, new GroupCommitPolicy.Batch() {
+        public int pendingObjects() {
+          return _objectsWritten - _objectsSwapped;
+        }
+
+        public long pendingBytes() {
+          return _active.size();
+        }
+
+        public boolean isAbandoned() {
+          return _closed;
+        }
+      });
+    } finally {
+      _awaitingBatch = false;
+    }
+  }
+
   public void close() throws IOException {
     synchronized (_syncLock) {
       synchronized (_writeLock) {
@@ -214,6 +423,10 @@ public class DurableOutputStream {
         }
 
         internalClose();
+        _syncPolicy.closed(this);
+        for (int i = 0; i < _taps.length; i++) {
+          _taps[i].finished(_file);
+        }
         // remove preallocated bytes from the journal
         if (_fileChannel != null && _fileChannel.isOpen())
           _fileChannel.truncate(_fileChannel.position());
@@ -234,6 +447,12 @@ public class DurableOutputStream {
     return _file;
   }
 
+  public long length() {
+    synchronized (_writeLock) {
+      return _bytesWritten;
+    }
+  }
+
   public synchronized int fileSyncCount() {
     synchronized (_syncLock) {
       return _fileSyncCount;
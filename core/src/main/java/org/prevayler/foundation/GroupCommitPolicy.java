@@ -0,0 +1,129 @@
+package org.prevayler.foundation;
+
+/**
+ * Lets the thread that is about to sync a journal wait briefly for more writers, so that a single
+ * disk sync covers a larger group of objects. Without a policy a sync covers whatever happens to
+ * have been written while the previous sync was in progress, which under bursty load on fast disks
+ * means many syncs of very few objects each.
+ * <p/>
+ * The time the syncing thread waits adapts to the measured latency of the disk sync itself: it never
+ * exceeds the average sync latency, because waiting longer than a sync takes would cost more than it
+ * could save, and it is never more than maxDelayMicros. The syncing thread only waits at all when
+ * recent syncs have averaged at least two objects, so a lone writer is not delayed. It stops
+ * waiting as soon as maxBatchCount objects or maxBatchBytes bytes are pending.
+ * <p/>
+ * A policy is shared by all journal files it is configured for and accumulates statistics over all
+ * of them; see stats().
+ */
+public class GroupCommitPolicy {
+
+  /**
+   * Weight, as a right shift, given to each new measurement in the moving averages: 1/8.
+   */
+  private static final int AVERAGE_SHIFT = 3;
+
+  private final long _maxDelayNanos;
+  private final long _maxBatchBytes;
+  private final int _maxBatchCount;
+
+  /**
+   * Moving averages, scaled by 2^AVERAGE_SHIFT. All access synchronized on this.
+   */
+  private long _scaledForceNanos = 0;
+  private long _scaledBatchCount = 0;
+
+  /**
+   * All access synchronized on this.
+   */
+  private long _syncCount = 0;
+  private long _objectsSynced = 0;
+  private long _bytesSynced = 0;
+  private int _largestBatch = 0;
+  private long _forceNanos = 0;
+  private long _waitNanos = 0;
+
+  /**
+   * @param maxDelayMicros The longest the syncing thread will wait for more writers, in microseconds.
+   * @param maxBatchBytes  Stop waiting as soon as this many bytes are pending. Zero indicates no limit.
+   * @param maxBatchCount  Stop waiting as soon as this many objects are pending. Zero indicates no limit.
+   */
+  public GroupCommitPolicy(long maxDelayMicros, long maxBatchBytes, int maxBatchCount) {
+    if (maxDelayMicros < 0 || maxBatchBytes < 0 || maxBatchCount < 0) {
+      throw new IllegalArgumentException("Group commit limits must not be negative");
+    }
+    _maxDelayNanos = maxDelayMicros * 1000;
+    _maxBatchBytes = maxBatchBytes;
+    _maxBatchCount = maxBatchCount;
+  }
+
+  /**
+   * How long the thread about to sync should currently wait for more writers, in nanoseconds.
+   */
+  synchronized long batchWindowNanos() {
+    if (_scaledBatchCount < 2 << AVERAGE_SHIFT) return 0;
+    return Math.min(_maxDelayNanos, _scaledForceNanos >> AVERAGE_SHIFT);
+  }
+
+  boolean isBatchFull(int pendingObjects, long pendingBytes) {
+    return (_maxBatchCount != 0 && pendingObjects >= _maxBatchCount)
+        || (_maxBatchBytes != 0 && pendingBytes >= _maxBatchBytes);
+  }
+
+  /**
+   * Waits on the given lock, which must be held by the calling thread, until the batch is full, the
+   * window has elapsed or the batch is abandoned. Writers must notify the lock when they fill the batch.
+   * Returns the time waited in nanoseconds.
+   */
+  long awaitBatch(Object lock, Batch batch) {
+    long window = batchWindowNanos();
+    if (window == 0) return 0;
+
+    long start = System.nanoTime();
+    long remaining = window;
+    while (remaining > 0 && !batch.isAbandoned() && !isBatchFull(batch.pendingObjects(), batch.pendingBytes())) {
+      try {
+        lock.wait(remaining / 1000000, (int) (remaining % 1000000));
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        break;
+      }
+      remaining = window - (System.nanoTime() - start);
+    }
+    return System.nanoTime() - start;
+  }
+
+  synchronized void recordSync(int objects, long bytes, long forceNanos, long waitNanos) {
+    _scaledForceNanos += forceNanos - (_scaledForceNanos >> AVERAGE_SHIFT);
+    _scaledBatchCount += objects - (_scaledBatchCount >> AVERAGE_SHIFT);
+
+    _syncCount++;
+    _objectsSynced += objects;
+    _bytesSynced += bytes;
+    if (objects > _largestBatch) _largestBatch = objects;
+    _forceNanos += forceNanos;
+    _waitNanos += waitNanos;
+  }
+
+  /**
+   * The statistics accumulated so far by all journal files using this policy.
+   */
+  public synchronized GroupCommitStats stats() {
+    return new GroupCommitStats(_syncCount, _objectsSynced, _bytesSynced, _largestBatch, _forceNanos, _waitNanos,
+        batchWindowNanos());
+  }
+
+
+  /**
+   * The objects written but not yet synced, as seen by the thread about to sync them.
+   */
+  interface Batch {
+
+    int pendingObjects();
+
+    long pendingBytes();
+
+    boolean isAbandoned();
+
+  }
+
+}
@@ -0,0 +1,79 @@
+package org.prevayler.foundation;
+
+/**
+ * A snapshot of the batches achieved under a GroupCommitPolicy, for tuning its limits.
+ */
+public class GroupCommitStats {
+
+  private final long _syncCount;
+  private final long _objectsSynced;
+  private final long _bytesSynced;
+  private final int _largestBatch;
+  private final long _forceNanos;
+  private final long _waitNanos;
+  private final long _currentWindowNanos;
+
+  GroupCommitStats(long syncCount, long objectsSynced, long bytesSynced, int largestBatch,
+                   long forceNanos, long waitNanos, long currentWindowNanos) {
+    _syncCount = syncCount;
+    _objectsSynced = objectsSynced;
+    _bytesSynced = bytesSynced;
+    _largestBatch = largestBatch;
+    _forceNanos = forceNanos;
+    _waitNanos = waitNanos;
+    _currentWindowNanos = currentWindowNanos;
+  }
+
+  public long syncCount() {
+    return _syncCount;
+  }
+
+  public long objectsSynced() {
+    return _objectsSynced;
+  }
+
+  public long bytesSynced() {
+    return _bytesSynced;
+  }
+
+  public int largestBatch() {
+    return _largestBatch;
+  }
+
+  public double averageBatchCount() {
+    return _syncCount == 0 ? 0 : (double) _objectsSynced / _syncCount;
+  }
+
+  public double averageBatchBytes() {
+    return _syncCount == 0 ? 0 : (double) _bytesSynced / _syncCount;
+  }
+
+  /**
+   * Average time spent forcing each batch to disk, in microseconds.
+   */
+  public double averageForceMicros() {
+    return _syncCount == 0 ? 0 : _forceNanos / 1000.0 / _syncCount;
+  }
+
+  /**
+   * Average time spent waiting for more writers before each sync, in microseconds.
+   */
+  public double averageWaitMicros() {
+    return _syncCount == 0 ? 0 : _waitNanos / 1000.0 / _syncCount;
+  }
+
+  /**
+   * The window the syncing thread was waiting for more writers when this snapshot was taken, in microseconds.
+   */
+  public long currentWindowMicros() {
+    return _currentWindowNanos / 1000;
+  }
+
+  public String toString() {
+    return "syncs=" + _syncCount + " objects=" + _objectsSynced + " bytes=" + _bytesSynced
+        + " averageBatch=" + averageBatchCount() + " largestBatch=" + _largestBatch
+        + " averageForceMicros=" + averageForceMicros() + " averageWaitMicros=" + averageWaitMicros()
+        + " windowMicros=" + currentWindowMicros();
+  }
+
+}
@@ -5,12 +5,19 @@ import java.io.OutputStream;
 
 public abstract class Guided {
 
-  private final Turn _turn;
+  private final PipelineTurn _turn;
 
-  protected Guided(Turn turn) {
+  protected Guided(PipelineTurn turn) {
     _turn = turn;
   }
 
+  /**
+   * Creates a guide taking the same turn as the given one, for writing the same object in another way.
+   */
+  protected Guided(Guided guided) {
+    this(guided._turn);
+  }
+
   public void startTurn() {
     _turn.start();
   }
@@ -25,4 +32,26 @@ public abstract class Guided {
 
   public abstract void writeTo(OutputStream stream) throws IOException;
 
+  /**
+   * Called by a DurableOutput right before the object is written, whenever more of the file has been
+   * forced to disk since it last called it, with the length forced so far. Writes nothing by default.
+   * See BinaryChunking.writeSyncMark().
+   */
+  public void writeSyncMark(OutputStream stream, long syncedLength) throws IOException {
+  }
+
+  /**
+   * Called by a DurableOutput right after the object has been written, before it is synced, with the
+   * offset in the file at which it starts. Does nothing by default.
+   */
+  public void writtenAt(long offset) {
+  }
+
+  /**
+   * Called once the object has been synced by a DurableOutput, to tell which policy acknowledged it and
+   * whether it had actually been forced to disk by then. Does nothing by default.
+   */
+  public void acknowledged(JournalSyncPolicy policy, boolean forced) {
+  }
+
 }
@@ -0,0 +1,72 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Acknowledges objects as soon as they are flushed to the operating system and forces every open
+ * file to disk at a fixed interval from a background thread. A group flushed when the interval has
+ * already elapsed is forced before it is acknowledged, so even if the background thread falls behind,
+ * only objects acknowledged within about one interval can be lost.
+ */
+public class IntervalSyncPolicy extends JournalSyncPolicy {
+
+  private final long _intervalInMillis;
+
+  /**
+   * All access guarded by this.
+   */
+  private ScheduledExecutorService _scheduler;
+  private final Map _scheduledForces = new HashMap();
+
+  public IntervalSyncPolicy(long intervalInMillis) {
+    if (intervalInMillis <= 0) throw new IllegalArgumentException("Interval must be positive: " + intervalInMillis);
+    _intervalInMillis = intervalInMillis;
+  }
+
+  public boolean isForceRequired(long bytesSinceLastForce, long nanosSinceLastForce) {
+    return nanosSinceLastForce >= TimeUnit.MILLISECONDS.toNanos(_intervalInMillis);
+  }
+
+  public synchronized void opened(final DurableOutput output) {
+    if (_scheduler == null) {
+      _scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Prevayler journal sync every " + _intervalInMillis + "ms");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    Runnable force = new Runnable() {
+      public void run() {
+        try {
+          output.force();
+        } catch (IOException exception) {
+          // The next group written to the file will fail the same way and abort the transaction pipeline.
+        }
+      }
+    };
+    _scheduledForces.put(output, _scheduler.scheduleWithFixedDelay(force, _intervalInMillis, _intervalInMillis, TimeUnit.MILLISECONDS));
+  }
+
+  public synchronized void closed(DurableOutput output) {
+    ScheduledFuture scheduled = (ScheduledFuture) _scheduledForces.remove(output);
+    if (scheduled != null) scheduled.cancel(false);
+    if (_scheduledForces.isEmpty() && _scheduler != null) {
+      _scheduler.shutdown();
+      _scheduler = null;
+    }
+  }
+
+  public String toString() {
+    return "interval(" + _intervalInMillis + "ms)";
+  }
+
+}
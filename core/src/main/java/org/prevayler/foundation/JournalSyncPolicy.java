@@ -0,0 +1,39 @@
+package org.prevayler.foundation;
+
+/**
+ * Decides when the objects written to a DurableOutput are forced to disk, and so how many of the
+ * most recently acknowledged objects may be lost if the operating system crashes.
+ * <p/>
+ * After each group of objects is written and flushed to the operating system, isForceRequired()
+ * decides whether the group is forced before its writers are released. A policy may also force
+ * files from a background thread, being told about each file through opened() and closed().
+ * A policy can be shared by any number of files.
+ *
+ * @see PerGroupSyncPolicy
+ * @see IntervalSyncPolicy
+ * @see ByteThresholdSyncPolicy
+ * @see OSManagedSyncPolicy
+ */
+public abstract class JournalSyncPolicy {
+
+  /**
+   * Whether the group of objects just flushed must be forced to disk before its writers are released.
+   *
+   * @param bytesSinceLastForce Bytes flushed to the file since it was last forced, including the current group.
+   * @param nanosSinceLastForce Nanoseconds since the file was last forced, or since it was opened.
+   */
+  public abstract boolean isForceRequired(long bytesSinceLastForce, long nanosSinceLastForce);
+
+  /**
+   * Called when a file starts using this policy.
+   */
+  public void opened(DurableOutput output) {
+  }
+
+  /**
+   * Called when a file stops using this policy, after everything written to it has been flushed.
+   */
+  public void closed(DurableOutput output) {
+  }
+
+}
@@ -0,0 +1,31 @@
+package org.prevayler.foundation;
+
+import java.io.File;
+
+/**
+ * Receives the bytes of journal files as they are synced, exactly as they are written to the files,
+ * without decoding them. Used to ship journals to replicas.
+ * <p/>
+ * All methods are called while the DurableOutput holds its sync lock, so they must return quickly,
+ * typically handing the bytes to another thread.
+ */
+public interface JournalTap {
+
+  /**
+   * The tap was added to the given file, which already holds the given number of bytes. The bytes
+   * after those will be passed to flushed().
+   */
+  public void started(File file, long length);
+
+  /**
+   * A group of objects was synced to the given file at the given offset. Groups are passed in file
+   * order. The array is shared by all taps and must not be modified.
+   */
+  public void flushed(File file, long offset, byte[] bytes);
+
+  /**
+   * Nothing more will be written to the given file.
+   */
+  public void finished(File file);
+
+}
@@ -0,0 +1,516 @@
+package org.prevayler.foundation;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedList;
+
+/**
+ * A DurableOutput that writes objects straight into memory-mapped segments of the file
+ * instead of buffering them and copying them to a FileOutputStream. Segments are mapped
+ * ahead of the write position, so the file grows a whole segment at a time, and a group
+ * commit only has to force the range of the file that is actually dirty.
+ * <p/>
+ * The same group commit scheme as in DurableOutputStream is used: whichever thread finds
+ * its object not yet synced forces everything written so far on behalf of all waiting
+ * writers.
+ */
+public class MappedJournalOutputStream implements DurableOutput {
+  static final int SEGMENT_LENGTH = 8 * 1024 * 1024;
+
+  /**
+   * Segments are no shorter than this even when the journal size threshold is, so that small journals
+   * are not mapped a few bytes at a time. The unused rest of the last segment is truncated on close.
+   */
+  static final int MIN_SEGMENT_LENGTH = 64 * 1024;
+
+  /**
+   * MappedByteBuffer.force(int, int) only exists since Java 13. On older runtimes
+   * the whole segment is forced, which still only writes its dirty pages.
+   */
+  private static final Method FORCE_RANGE = forceRangeMethod();
+
+  /**
+   * Same roles as in DurableOutputStream. Where both locks are required, we always
+   * acquire the _syncLock before acquiring the _writeLock to avoid deadlock.
+   */
+  private final Object _writeLock = new Object();
+  private final Object _syncLock = new Object();
+
+  private final File _file;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private final RandomAccessFile _randomAccessFile;
+
+  /**
+   * All access guarded by _syncLock, except for mapping new segments, which is guarded by _writeLock.
+   */
+  private final FileChannel _fileChannel;
+
+  private final int _segmentLength;
+
+  /**
+   * Immutable.
+   */
+  private final JournalSyncPolicy _syncPolicy;
+
+  /**
+   * Immutable. Null if the syncing thread should not wait for more writers.
+   */
+  private final GroupCommitPolicy _groupCommit;
+
+  /**
+   * Mapped segments not yet completely synced, in file order. All access guarded by _writeLock.
+   */
+  private final LinkedList _segments = new LinkedList();
+
+  /**
+   * Index in the file of the first element of _segments. All access guarded by _writeLock.
+   */
+  private long _firstSegmentIndex = 0;
+
+  /**
+   * A view of the last element of _segments positioned where the next byte will be written.
+   * All access guarded by _writeLock.
+   */
+  private ByteBuffer _current;
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private long _bytesWritten = 0;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private long _bytesSynced = 0;
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private boolean _closed = false;
+
+  /**
+   * All access guarded by _writeLock.
+   */
+  private int _objectsWritten = 0;
+
+  /**
+   * Whether the syncing thread is waiting for the batch to fill up. All access guarded by _writeLock.
+   */
+  private boolean _awaitingBatch = false;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private int _objectsSynced = 0;
+
+  /**
+   * All access guarded by _syncLock.
+   */
+  private int _fileSyncCount = 0;
+
+  /**
+   * Replaced rather than modified. All access guarded by _syncLock.
+   */
+  private JournalTap[] _taps = new JournalTap[0];
+
+  /**
+   * The _bytesForced given in the last sync mark. All access guarded by _writeLock.
+   */
+  private long _bytesSyncMarked = 0;
+
+  /**
+   * All access guarded by _syncLock, except that _objectsForced and _bytesForced may be read at any time.
+   */
+  private volatile int _objectsForced = 0;
+  private volatile long _bytesForced = 0;
+  private long _lastForceNanos = System.nanoTime();
+
+  /**
+   * Writes into the mapped segments at _bytesWritten. Only used while holding _writeLock.
+   */
+  private final OutputStream _mappedStream = new OutputStream() {
+    public void write(int b) throws IOException {
+      write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    public void write(byte[] bytes, int offset, int length) throws IOException {
+      while (length > 0) {
+        if (!_current.hasRemaining()) mapNextSegment();
+        int count = Math.min(length, _current.remaining());
+        _current.put(bytes, offset, count);
+        offset += count;
+        length -= count;
+      }
+    }
+  };
+
+  public MappedJournalOutputStream(File file, boolean journalDiskSync, long journalSizeThreshold) throws IOException {
+    this(file, journalDiskSync ? (JournalSyncPolicy) new PerGroupSyncPolicy() : new OSManagedSyncPolicy(), journalSizeThreshold, null, false);
+  }
+
+  /**
+   * @param syncPolicy   When the written range of the file is forced to disk.
+   * @param groupCommit  How long the syncing thread waits for more writers. Null to sync right away.
+   * @param preallocated Whether the file already exists and is filled with zeros, in which case its
+   *                     existing length is mapped instead of growing the file.
+   */
+  public MappedJournalOutputStream(File file, JournalSyncPolicy syncPolicy, long journalSizeThreshold, GroupCommitPolicy groupCommit,
+                                   boolean preallocated) throws IOException {
+    this(file, segmentLength(journalSizeThreshold), syncPolicy, groupCommit, preallocated);
+  }
+
+  MappedJournalOutputStream(File file, int segmentLength, JournalSyncPolicy syncPolicy, GroupCommitPolicy groupCommit,
+                            boolean preallocated) throws IOException {
+    _file = file;
+    _randomAccessFile = new RandomAccessFile(file, "rw");
+    _fileChannel = _randomAccessFile.getChannel();
+    if (!preallocated) _fileChannel.truncate(0);
+    _segmentLength = segmentLength;
+    _syncPolicy = syncPolicy;
+    _groupCommit = groupCommit;
+    mapNextSegment();
+    _syncPolicy.opened(this);
+  }
+
+  static int segmentLength(long journalSizeThreshold) {
+    if (journalSizeThreshold == 0) return SEGMENT_LENGTH;
+    return (int) Math.max(MIN_SEGMENT_LENGTH, Math.min(journalSizeThreshold, SEGMENT_LENGTH));
+  }
+
+  private void mapNextSegment() throws IOException {
+    long index = _firstSegmentIndex + _segments.size();
+    MappedByteBuffer segment = _fileChannel.map(FileChannel.MapMode.READ_WRITE, index * _segmentLength, _segmentLength);
+    _segments.addLast(segment);
+    _current = segment.duplicate();
+  }
+
+  public void sync(Guided guide) throws IOException {
+    long thisWrite;
+
+    guide.startTurn();
+    try {
+      thisWrite = writeObject(guide);
+    } finally {
+      guide.endTurn();
+    }
+
+    waitUntilSynced(thisWrite);
+
+    guide.acknowledged(_syncPolicy, _objectsForced >= thisWrite);
+  }
+
+  private long writeObject(Guided guide) throws IOException {
+    synchronized (_writeLock) {
+      if (_closed) {
+        throw new IOException("already closed");
+      }
+
+      try {
+        long bytesForced = _bytesForced;
+        if (bytesForced > _bytesSyncMarked) {  //See DurableOutputStream.writeSyncMark().
+          guide.writeSyncMark(_mappedStream, bytesForced);
+          _bytesSyncMarked = bytesForced;
+          _bytesWritten = writePosition();
+        }
+        guide.writeTo(_mappedStream);
+      } catch (IOException exception) {
+        internalClose();
+        throw exception;
+      }
+
+      guide.writtenAt(_bytesWritten);
+      _bytesWritten = writePosition();
+      _objectsWritten++;
+      if (_awaitingBatch && _groupCommit.isBatchFull(_objectsWritten - _objectsSynced, _bytesWritten - _bytesSynced)) {
+        _writeLock.notifyAll();
+      }
+      return _objectsWritten;
+    }
+  }
+
+  /**
+   * Must be called holding the _writeLock.
+   */
+  private long writePosition() {
+    return (_firstSegmentIndex + _segments.size() - 1) * _segmentLength + _current.position();
+  }
+
+  private void waitUntilSynced(long thisWrite) throws IOException {
+    // See DurableOutputStream.waitUntilSynced(). The difference is that there is
+    // no buffer to swap: the objects are already in the mapped pages, so the
+    // syncing thread only needs to force the range written since the last sync.
+
+    synchronized (_syncLock) {
+      if (_objectsSynced < thisWrite) {
+        int objectsWritten;
+        long bytesWritten;
+        byte[] batch = null;
+        long waitNanos = 0;
+        synchronized (_writeLock) {
+          if (_closed) {
+            throw new IOException("already closed");
+          }
+
+          if (_groupCommit != null) {
+            waitNanos = awaitBatch();
+            if (_closed) {
+              throw new IOException("already closed");
+            }
+          }
+
+          objectsWritten = _objectsWritten;
+          bytesWritten = _bytesWritten;
+          if (_taps.length > 0) batch = copy(_bytesSynced, bytesWritten);
+        }
+
+        long forceStart = System.nanoTime();
+        if (_syncPolicy.isForceRequired(bytesWritten - _bytesForced, forceStart - _lastForceNanos)) {
+          forceUpTo(objectsWritten, bytesWritten);
+        }
+        if (_groupCommit != null) {
+          _groupCommit.recordSync(objectsWritten - _objectsSynced, bytesWritten - _bytesSynced,
+              System.nanoTime() - forceStart, waitNanos);
+        }
+
+        for (int i = 0; i < _taps.length; i++) {
+          _taps[i].flushed(_file, _bytesSynced, batch);
+        }
+
+        _bytesSynced = bytesWritten;
+        _objectsSynced = objectsWritten;
+        _fileSyncCount++;
+
+        releaseSyncedSegments();
+      }
+    }
+  }
+
+  /**
+   * Copies the given range out of the mapped segments. Must be called holding the _writeLock.
+   */
+  private byte[] copy(long from, long to) {
+    byte[] bytes = new byte[(int) (to - from)];
+    for (int i = 0; i < _segments.size(); i++) {
+      long segmentStart = (_firstSegmentIndex + i) * _segmentLength;
+      long start = Math.max(from, segmentStart);
+      long end = Math.min(to, segmentStart + _segmentLength);
+      if (start < end) {
+        ByteBuffer segment = ((ByteBuffer) _segments.get(i)).duplicate();
+        segment.position((int) (start - segmentStart));
+        segment.get(bytes, (int) (start - from), (int) (end - start));
+      }
+    }
+    return bytes;
+  }
+
+  public void addTap(JournalTap tap) throws IOException {
+    synchronized (_syncLock) {
+      synchronized (_writeLock) {
+        if (_closed) {
+          throw new IOException("already closed");
+        }
+      }
+      tap.started(_file, _bytesSynced);
+      _taps = Taps.with(_taps, tap);
+    }
+  }
+
+  public void removeTap(JournalTap tap) {
+    synchronized (_syncLock) {
+      _taps = Taps.without(_taps, tap);
+    }
+  }
+
+  /**
+   * Must be called holding both locks. Writers only read _objectsSynced and _bytesSynced
+   * while the syncing thread waits here, so they need no _syncLock to do so.
+   */
+  private long awaitBatch() {
+    _awaitingBatch = true;
+    try {
+      return _groupCommit.awaitBatch(_writeLock, new GroupCommitPolicy.Batch() {
+        public int pendingObjects() {
+          return _objectsWritten - _objectsSynced;
+        }
+
+        public long pendingBytes() {
+          return _bytesWritten - _bytesSynced;
+        }
+
+        public boolean isAbandoned() {
+          return _closed;
+        }
+      });
+    } finally {
+      _awaitingBatch = false;
+    }
+  }
+
+  /**
+   * Forces everything synced so far. Holds the _syncLock while forcing, so syncing threads wait for a
+   * background force to complete rather than forcing the same range again.
+   */
+  public void force() throws IOException {
+    synchronized (_syncLock) {
+      forceUpTo(_objectsSynced, _bytesSynced);
+    }
+  }
+
+  /**
+   * Must be called holding the _syncLock.
+   */
+  private void forceUpTo(int objects, long bytes) throws IOException {
+    if (bytes <= _bytesForced) return;
+
+    Object[] segments;
+    long firstSegmentIndex;
+    synchronized (_writeLock) {
+      if (_closed) {
+        throw new IOException("already closed");
+      }
+      segments = _segments.toArray();
+      firstSegmentIndex = _firstSegmentIndex;
+    }
+
+    try {
+      // Segments already released by releaseSyncedSegments() were forced before that.
+      force(segments, firstSegmentIndex, _bytesForced, bytes);
+    } catch (IOException exception) {
+      internalClose();
+      throw exception;
+    }
+
+    _objectsForced = objects;
+    _bytesForced = bytes;
+    _lastForceNanos = System.nanoTime();
+  }
+
+  private void force(Object[] segments, long firstSegmentIndex, long from, long to) throws IOException {
+    for (int i = 0; i < segments.length; i++) {
+      long segmentStart = (firstSegmentIndex + i) * _segmentLength;
+      long start = Math.max(from, segmentStart);
+      long end = Math.min(to, segmentStart + _segmentLength);
+      if (start < end) {
+        force((MappedByteBuffer) segments[i], (int) (start - segmentStart), (int) (end - start));
+      }
+    }
+  }
+
+  private static void force(MappedByteBuffer segment, int index, int length) throws IOException {
+    if (FORCE_RANGE == null) {
+      segment.force();
+      return;
+    }
+    try {
+      FORCE_RANGE.invoke(segment, new Object[]{Integer.valueOf(index), Integer.valueOf(length)});
+    } catch (Exception exception) {
+      Throwable cause = exception.getCause() != null ? exception.getCause() : exception;
+      IOException ioException = new IOException("Unable to force mapped journal segment");
+      ioException.initCause(cause);
+      throw ioException;
+    }
+  }
+
+  private static Method forceRangeMethod() {
+    try {
+      return MappedByteBuffer.class.getMethod("force", new Class[]{int.class, int.class});
+    } catch (NoSuchMethodException exception) {
+      return null;
+    }
+  }
+
+  /**
+   * Drops our references to segments that have been completely synced so that they can be unmapped.
+   * The sync policy may not have forced them yet, and FileChannel.force() does not guarantee to write
+   * changes made through a mapped buffer, so what was not forced is forced through the segment first.
+   * Must be called holding the _syncLock.
+   */
+  private void releaseSyncedSegments() throws IOException {
+    Object[] segments;
+    long firstSegmentIndex;
+    int released = 0;
+    synchronized (_writeLock) {
+      segments = _segments.toArray();
+      firstSegmentIndex = _firstSegmentIndex;
+    }
+    while (released < segments.length - 1 && (firstSegmentIndex + released + 1) * _segmentLength <= _bytesSynced) {
+      released++;
+    }
+    if (released == 0) return;
+
+    Object[] releasedSegments = new Object[released];
+    System.arraycopy(segments, 0, releasedSegments, 0, released);
+    try {
+      force(releasedSegments, firstSegmentIndex, _bytesForced, (firstSegmentIndex + released) * _segmentLength);
+    } catch (IOException exception) {
+      internalClose();
+      throw exception;
+    }
+
+    synchronized (_writeLock) {
+      if (_closed) return;
+      for (int i = 0; i < released; i++) _segments.removeFirst();
+      _firstSegmentIndex += released;
+    }
+  }
+
+  public void close() throws IOException {
+    synchronized (_syncLock) {
+      synchronized (_writeLock) {
+        if (_closed) {
+          return;
+        }
+
+        internalClose();
+        _syncPolicy.closed(this);
+        for (int i = 0; i < _taps.length; i++) {
+          _taps[i].finished(_file);
+        }
+        try {
+          // Remove the unused rest of the last segment from the journal. Some platforms
+          // refuse to truncate a file that is still mapped, in which case the zeroed
+          // tail is left in place and is ignored when the journal is read.
+          _fileChannel.truncate(_bytesWritten);
+        } catch (IOException ignored) {
+        }
+        _randomAccessFile.close();
+      }
+    }
+  }
+
+  private void internalClose() {
+    synchronized (_writeLock) {
+      _closed = true;
+      _segments.clear();
+      _current = null;
+    }
+  }
+
+  public File file() {
+    return _file;
+  }
+
+  public long length() {
+    synchronized (_writeLock) {
+      return _bytesWritten;
+    }
+  }
+
+  public int fileSyncCount() {
+    synchronized (_syncLock) {
+      return _fileSyncCount;
+    }
+  }
+
+  public boolean reallyClosed() {
+    synchronized (_writeLock) {
+      return _closed;
+    }
+  }
+}
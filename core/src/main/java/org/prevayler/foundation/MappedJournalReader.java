@@ -0,0 +1,275 @@
+package org.prevayler.foundation;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Reads the chunks of a journal file through memory-mapped windows of the file instead of a
+ * buffered stream. Headers are parsed in place and the bytes of each chunk are handed out as a
+ * slice of the mapping (see Chunk.getByteBuffer() and BinaryChunk.getByteBuffer()), so nothing is
+ * copied out of the page cache before a transaction is deserialized.
+ * <p/>
+ * Reads exactly what Chunking.readChunk() and BinaryChunking.readChunk() read, throwing the same
+ * exceptions for the same corruptions.
+ * <p/>
+ * Slices remain valid after the reader is closed, for as long as they are referenced.
+ */
+public class MappedJournalReader {
+
+  private static final long WINDOW_LENGTH = 64 * 1024 * 1024;
+  private static final int INITIAL_HEADER_SCAN = 256;
+  private static final String SEPARATORS = "()<>@,;:\\\"/[]?={}";
+
+  private final RandomAccessFile _file;
+  private final FileChannel _channel;
+  private final long _length;
+
+  private MappedByteBuffer _window;
+  private long _windowStart;
+
+  private long _position = 0;
+
+
+  public MappedJournalReader(File file) throws IOException {
+    _file = new RandomAccessFile(file, "r");
+    _channel = _file.getChannel();
+    _length = _channel.size();
+  }
+
+
+  /**
+   * The offset in the file of the next chunk to be read.
+   */
+  public long position() {
+    return _position;
+  }
+
+
+  /**
+   * Moves to the chunk starting at the given offset.
+   */
+  public void skipTo(long offset) {
+    _position = offset;
+  }
+
+
+  /**
+   * @return null at the end of the file.
+   * @see Chunking#readChunk(java.io.InputStream)
+   */
+  public Chunk readChunk() throws IOException {
+    long start = _position;
+    if (start >= _length) return null;
+
+    int lineLength = headerLineLength(start);
+    ByteBuffer header = slice(start, lineLength);
+    if (header.get(0) == 0) {
+      _position = _length;
+      return null;
+    }
+
+    Map parameters = new LinkedHashMap();
+    int size = parseHeader(header, parameters);
+    long dataStart = start + lineLength;
+
+    if (_length - dataStart < size) {
+      _position = _length;
+      throw new EOFException("Unexpected end of stream in chunk data");
+    }
+    ByteBuffer bytes = slice(dataStart, size);
+
+    long trailerStart = dataStart + size;
+    long trailerAvailable = _length - trailerStart;
+    int cr = trailerAvailable > 0 ? byteAt(trailerStart) : -1;
+    int lf = trailerAvailable > 1 ? byteAt(trailerStart + 1) : -1;
+    _position = Math.min(_length, trailerStart + 2);
+    if (cr == -1 || cr == '\r' && lf == -1) {
+      throw new EOFException("Unexpected end of stream in chunk trailer");
+    } else if (cr != '\r' || lf != '\n') {
+      throw new IOException("Chunk trailer corrupted");
+    }
+
+    return new Chunk(bytes, parameters);
+  }
+
+
+  /**
+   * @return null at the end of the file or where a header consists entirely of zeros. Sync marks are skipped.
+   * @see BinaryChunking#readChunk(java.io.InputStream)
+   */
+  public BinaryChunk readBinaryChunk() throws IOException {
+    BinaryChunk chunk;
+    do {
+      chunk = readBinaryChunkOrSyncMark();
+    } while (chunk != null && BinaryChunking.isSyncMark(chunk));
+    return chunk;
+  }
+
+
+  private BinaryChunk readBinaryChunkOrSyncMark() throws IOException {
+    long start = _position;
+    long available = _length - start;
+    if (available <= 0) return null;
+    if (available < BinaryChunking.HEADER_LENGTH) {
+      _position = _length;
+      throw new EOFException("Unexpected end of stream in chunk header");
+    }
+
+    ByteBuffer header = slice(start, BinaryChunking.HEADER_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    _position = start + BinaryChunking.HEADER_LENGTH;
+    if (isZeroed(header)) return null;
+
+    int size = header.getInt(0);
+    Crc32c headerCrc = new Crc32c();
+    headerCrc.update(slice(start, BinaryChunking.HEADER_CHECKSUM_OFFSET));
+    if (header.getInt(BinaryChunking.HEADER_CHECKSUM_OFFSET) != (int) headerCrc.getValue() || size < 0) {
+      throw new StreamCorruptedException("Chunk header corrupted");
+    }
+    if (available - BinaryChunking.HEADER_LENGTH < size) {
+      _position = _length;
+      throw new EOFException("Unexpected end of stream in chunk data");
+    }
+
+    ByteBuffer bytes = slice(_position, size);
+    _position += size;
+
+    int checksum = header.getInt(BinaryChunking.CHECKSUM_OFFSET);
+    BinaryChunk chunk = new BinaryChunk(bytes, header.getInt(4), header.getLong(8), header.getLong(16));
+
+    Crc32c crc = new Crc32c();
+    header.limit(BinaryChunking.CHECKSUM_OFFSET);
+    crc.update(header);
+    crc.update(bytes);
+    if (checksum != (int) crc.getValue()) {
+      throw new StreamCorruptedException("Chunk checksum mismatch");
+    }
+    return chunk;
+  }
+
+
+  public void close() throws IOException {
+    _window = null;
+    _file.close();
+  }
+
+
+  /**
+   * The length of the header line starting at the given offset, including its line feed.
+   */
+  private int headerLineLength(long start) throws IOException {
+    long scan = INITIAL_HEADER_SCAN;
+    while (true) {
+      int length = (int) Math.min(scan, _length - start);
+      ByteBuffer line = slice(start, length);
+      if (line.get(0) == 0) return 1;
+      for (int i = 0; i < length; i++) {
+        if (line.get(i) == '\n') return i + 1;
+        if (line.get(i) == 0) return tornHeader();  //No header holds a zero byte, so it is where the preallocated space starts.
+      }
+      if (start + length >= _length) return tornHeader();
+      scan *= 2;
+    }
+  }
+
+
+  private int tornHeader() throws EOFException {
+    _position = _length;
+    throw new EOFException("Unexpected end of stream in chunk header");
+  }
+
+
+  /**
+   * Parses a header matching Chunking's header pattern, "SIZE(;TOKEN=TOKEN)*\r\n", without regular expressions or copying.
+   *
+   * @return The size of the chunk bytes.
+   */
+  private static int parseHeader(ByteBuffer header, Map parameters) throws IOException {
+    int end = header.remaining();
+    int i = 0;
+    long size = 0;
+    while (i < end && hexDigit(header.get(i)) >= 0) {
+      size = size * 16 + hexDigit(header.get(i));
+      i++;
+    }
+    if (i == 0 || i > 8 || (i > 1 && header.get(0) == '0') || size > Integer.MAX_VALUE) throw corruptedHeader();
+
+    while (i < end && header.get(i) == ';') {
+      int nameStart = ++i;
+      i = tokenEnd(header, i, end);
+      String name = ascii(header, nameStart, i);
+      if (i >= end || header.get(i) != '=') throw corruptedHeader();
+      int valueStart = ++i;
+      i = tokenEnd(header, i, end);
+      parameters.put(name, ascii(header, valueStart, i));
+    }
+
+    if (i != end - 2 || header.get(i) != '\r' || header.get(i + 1) != '\n') throw corruptedHeader();
+    return (int) size;
+  }
+
+  private static int tokenEnd(ByteBuffer header, int start, int end) throws IOException {
+    int i = start;
+    while (i < end && isTokenByte(header.get(i))) i++;
+    if (i == start) throw corruptedHeader();
+    return i;
+  }
+
+  private static boolean isTokenByte(byte b) {
+    return b > 0x20 && b < 0x7F && SEPARATORS.indexOf(b) < 0;
+  }
+
+  private static int hexDigit(byte b) {
+    if (b >= '0' && b <= '9') return b - '0';
+    if (b >= 'A' && b <= 'F') return b - 'A' + 10;
+    return -1;
+  }
+
+  private static String ascii(ByteBuffer buffer, int start, int end) {
+    char[] chars = new char[end - start];
+    for (int i = 0; i < chars.length; i++) {
+      chars[i] = (char) buffer.get(start + i);
+    }
+    return new String(chars);
+  }
+
+  private static IOException corruptedHeader() {
+    return new IOException("Chunk header corrupted");
+  }
+
+  private static boolean isZeroed(ByteBuffer header) {
+    for (int i = 0; i < header.limit(); i++) {
+      if (header.get(i) != 0) return false;
+    }
+    return true;
+  }
+
+
+  private int byteAt(long offset) throws IOException {
+    return slice(offset, 1).get(0) & 0xFF;
+  }
+
+  /**
+   * The given range of the file, mapping a new window if the current one does not contain it.
+   */
+  private ByteBuffer slice(long offset, int length) throws IOException {
+    if (_window == null || offset < _windowStart || offset + length > _windowStart + _window.capacity()) {
+      long windowLength = Math.min(Math.max(WINDOW_LENGTH, length), _length - offset);
+      _window = _channel.map(FileChannel.MapMode.READ_ONLY, offset, windowLength);
+      _windowStart = offset;
+    }
+    ByteBuffer slice = _window.duplicate();
+    slice.position((int) (offset - _windowStart));
+    slice.limit(slice.position() + length);
+    return slice.slice();
+  }
+
+}
@@ -0,0 +1,17 @@
+package org.prevayler.foundation;
+
+/**
+ * Never forces anything to disk, leaving it to the operating system to write flushed objects out
+ * whenever it sees fit. This is what <code>journalDiskSync == false</code> means.
+ */
+public class OSManagedSyncPolicy extends JournalSyncPolicy {
+
+  public boolean isForceRequired(long bytesSinceLastForce, long nanosSinceLastForce) {
+    return false;
+  }
+
+  public String toString() {
+    return "os-managed";
+  }
+
+}
@@ -0,0 +1,190 @@
+package org.prevayler.foundation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.SequenceInputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * Decompresses a gzip stream written by ParallelGZIPOutputStream on several threads: the reading
+ * thread only cuts the stream into members, using the member length kept in their headers, and a
+ * pool of threads decompresses the next few members while the current one is being read.
+ * <p/>
+ * Any other gzip stream is read too, from the first member without a length on, but on the reading
+ * thread only, through a GZIPInputStream.
+ */
+public class ParallelGZIPInputStream extends InputStream {
+
+  private final InputStream _in;
+  private final int _maxPending;
+  private final ExecutorService _decompressors;
+
+  /**
+   * Futures of the members read but not yet consumed, in order.
+   */
+  private final LinkedList _pending = new LinkedList();
+
+  private byte[] _block = new byte[0];
+  private int _position = 0;
+  private boolean _endOfMembers = false;
+  private InputStream _sequential;
+
+  /**
+   * @param threads The number of threads decompressing members.
+   */
+  public ParallelGZIPInputStream(InputStream in, int threads) {
+    if (threads < 1) throw new IllegalArgumentException("There must be at least one thread.");
+    _in = new BufferedInputStream(in);
+    _maxPending = threads * 2;
+    _decompressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Prevayler gzip decompressor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public int read() throws IOException {
+    if (!ensureBlock()) return _sequential == null ? -1 : _sequential.read();
+    return _block[_position++] & 0xFF;
+  }
+
+  public int read(byte[] buffer, int offset, int length) throws IOException {
+    if (length == 0) return 0;
+    if (!ensureBlock()) return _sequential == null ? -1 : _sequential.read(buffer, offset, length);
+    int read = Math.min(length, _block.length - _position);
+    System.arraycopy(_block, _position, buffer, offset, read);
+    _position += read;
+    return read;
+  }
+
+  public int available() {
+    return _block.length - _position;
+  }
+
+  public void close() throws IOException {
+    _decompressors.shutdownNow();
+    _in.close();
+  }
+
+  /**
+   * @return false once the members with a length are all consumed, either at the end of the stream or where sequential reading takes over.
+   */
+  private boolean ensureBlock() throws IOException {
+    while (_position == _block.length) {
+      readAhead();
+      if (_pending.isEmpty()) {
+        _decompressors.shutdown();
+        return false;
+      }
+      _block = take();
+      _position = 0;
+    }
+    return true;
+  }
+
+  private void readAhead() throws IOException {
+    while (!_endOfMembers && _pending.size() < _maxPending) {
+      byte[] header = new byte[ParallelGZIPOutputStream.HEADER_LENGTH];
+      int read = read(_in, header, header.length);
+      if (read == 0) {
+        _endOfMembers = true;
+        return;
+      }
+
+      int length = read == header.length ? ParallelGZIPOutputStream.memberLength(header) : -1;
+      if (length < 0) {
+        _endOfMembers = true;
+        _sequential = new GZIPInputStream(new SequenceInputStream(new ByteArrayInputStream(header, 0, read), _in));
+        return;
+      }
+      if (length < header.length + ParallelGZIPOutputStream.TRAILER_LENGTH) throw new ZipException("Corrupted gzip member length");
+
+      final byte[] member = new byte[length];
+      System.arraycopy(header, 0, member, 0, header.length);
+      if (read(_in, member, header.length, length - header.length) < length - header.length) {
+        throw new EOFException("Unexpected end of gzip stream");
+      }
+      _pending.addLast(_decompressors.submit(new Callable() {
+        public Object call() throws IOException {
+          return decompress(member);
+        }
+      }));
+    }
+  }
+
+  private byte[] take() throws IOException {
+    Future member = (Future) _pending.removeFirst();
+    try {
+      return (byte[]) member.get();
+    } catch (InterruptedException exception) {
+      _decompressors.shutdownNow();
+      throw new InterruptedIOException("Interrupted while decompressing");
+    } catch (ExecutionException exception) {
+      _decompressors.shutdownNow();
+      if (exception.getCause() instanceof IOException) throw (IOException) exception.getCause();
+      IOException failure = new IOException("Unable to decompress gzip member");
+      failure.initCause(exception.getCause());
+      throw failure;
+    }
+  }
+
+  static byte[] decompress(byte[] member) throws IOException {
+    int trailer = member.length - ParallelGZIPOutputStream.TRAILER_LENGTH;
+    byte[] block = new byte[BinaryChunking.getInt(member, trailer + 4)];
+    Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(member, ParallelGZIPOutputStream.HEADER_LENGTH, trailer - ParallelGZIPOutputStream.HEADER_LENGTH);
+      int length = 0;
+      while (!inflater.finished()) {
+        int inflated = inflater.inflate(block, length, block.length - length);
+        if (inflated == 0 && !inflater.finished()) throw new ZipException("Gzip member does not decompress to its length");
+        length += inflated;
+      }
+      if (length != block.length) throw new ZipException("Gzip member does not decompress to its length");
+    } catch (DataFormatException exception) {
+      throw new ZipException("Corrupted gzip member: " + exception.getMessage());
+    } finally {
+      inflater.end();
+    }
+
+    CRC32 crc = new CRC32();
+    crc.update(block, 0, block.length);
+    if ((int) crc.getValue() != BinaryChunking.getInt(member, trailer)) throw new ZipException("Corrupted gzip member: CRC mismatch");
+    return block;
+  }
+
+  private static int read(InputStream in, byte[] buffer, int length) throws IOException {
+    return read(in, buffer, 0, length);
+  }
+
+  /**
+   * Reads until the given length is read or the stream ends, returning the number of bytes read.
+   */
+  private static int read(InputStream in, byte[] buffer, int offset, int length) throws IOException {
+    int total = 0;
+    while (total < length) {
+      int read = in.read(buffer, offset + total, length - total);
+      if (read == -1) break;
+      total += read;
+    }
+    return total;
+  }
+
+}
@@ -0,0 +1,218 @@
+package org.prevayler.foundation;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses what is written to it on several threads, in the manner of pigz: the bytes are cut into
+ * blocks of a fixed size, each block is compressed into a gzip member of its own by a pool of threads,
+ * and the members are written in order. The result is a valid multi-member gzip stream, which
+ * GZIPInputStream and the gzip tool read as a whole.
+ * <p/>
+ * The header of each member has an extra field, with subfield ID "PZ", holding the length of the whole
+ * member, so that ParallelGZIPInputStream can hand members to several threads to decompress without
+ * decompressing them first to find where they end. Other gzip readers ignore the field.
+ * <p/>
+ * Only a few blocks are compressed ahead of the one being written, so memory use does not depend on
+ * the length of the stream. Blocks are compressed independently, which costs a little compression
+ * compared to GZIPOutputStream.
+ */
+public class ParallelGZIPOutputStream extends OutputStream {
+
+  public static final int DEFAULT_BLOCK_SIZE = 1024 * 1024;
+
+  static final int HEADER_LENGTH = 20;
+  static final int TRAILER_LENGTH = 8;
+  static final int FLAG_EXTRA = 4;
+  static final byte SUBFIELD_ID1 = 'P';
+  static final byte SUBFIELD_ID2 = 'Z';
+
+  private final OutputStream _out;
+  private final int _level;
+  private final int _blockSize;
+  private final int _maxPending;
+  private final ExecutorService _compressors;
+
+  /**
+   * Futures of the compressed members not yet written, in order.
+   */
+  private final LinkedList _pending = new LinkedList();
+
+  private byte[] _block;
+  private int _count = 0;
+  private boolean _anyMember = false;
+  private boolean _finished = false;
+
+  public ParallelGZIPOutputStream(OutputStream out, int threads) {
+    this(out, threads, DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param threads   The number of threads compressing blocks.
+   * @param blockSize The number of bytes compressed into each gzip member.
+   * @param level     The Deflater compression level.
+   */
+  public ParallelGZIPOutputStream(OutputStream out, int threads, int blockSize, int level) {
+    if (threads < 1 || blockSize < 1) throw new IllegalArgumentException("There must be at least one thread and one byte per block.");
+    _out = out;
+    _level = level;
+    _blockSize = blockSize;
+    _maxPending = threads * 2;
+    _block = new byte[blockSize];
+    _compressors = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Prevayler gzip compressor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  public void write(int b) throws IOException {
+    if (_count == _blockSize) submitBlock();
+    _block[_count++] = (byte) b;
+  }
+
+  public void write(byte[] bytes, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (_count == _blockSize) submitBlock();
+      int copied = Math.min(length, _blockSize - _count);
+      System.arraycopy(bytes, offset, _block, _count, copied);
+      _count += copied;
+      offset += copied;
+      length -= copied;
+    }
+  }
+
+  /**
+   * Writes the members already compressed. The block being filled is only compressed once it is full or the stream is finished.
+   */
+  public void flush() throws IOException {
+    while (!_pending.isEmpty() && ((Future) _pending.getFirst()).isDone()) writeMember();
+    _out.flush();
+  }
+
+  /**
+   * Compresses what is left and writes all members, without closing the underlying stream.
+   */
+  public void finish() throws IOException {
+    if (_finished) return;
+    try {
+      if (_count > 0 || !_anyMember) submitBlock();
+      while (!_pending.isEmpty()) writeMember();
+      _out.flush();
+    } finally {
+      _finished = true;
+      _compressors.shutdownNow();
+    }
+  }
+
+  public void close() throws IOException {
+    try {
+      finish();
+    } finally {
+      _out.close();
+    }
+  }
+
+  private void submitBlock() throws IOException {
+    if (_finished) throw new IOException("Stream finished");
+    final byte[] block = _block;
+    final int length = _count;
+    _pending.addLast(_compressors.submit(new Callable() {
+      public Object call() {
+        return member(block, length, _level);
+      }
+    }));
+    _anyMember = true;
+    _block = new byte[_blockSize];
+    _count = 0;
+    while (_pending.size() > _maxPending) writeMember();
+  }
+
+  private void writeMember() throws IOException {
+    Future member = (Future) _pending.removeFirst();
+    try {
+      _out.write((byte[]) member.get());
+    } catch (InterruptedException exception) {
+      _compressors.shutdownNow();
+      throw new InterruptedIOException("Interrupted while compressing");
+    } catch (ExecutionException exception) {
+      _compressors.shutdownNow();
+      IOException failure = new IOException("Unable to compress block");
+      failure.initCause(exception.getCause());
+      throw failure;
+    }
+  }
+
+  /**
+   * Compresses the block into a complete gzip member, whose extra field holds the member length.
+   */
+  static byte[] member(byte[] block, int length, int level) {
+    Deflater deflater = new Deflater(level, true);
+    try {
+      deflater.setInput(block, 0, length);
+      deflater.finish();
+      byte[] member = new byte[HEADER_LENGTH + length + length / 1000 + 64 + TRAILER_LENGTH];
+      int end = HEADER_LENGTH;
+      while (true) {
+        end += deflater.deflate(member, end, member.length - TRAILER_LENGTH - end);
+        if (deflater.finished()) break;
+        byte[] grown = new byte[member.length * 2];
+        System.arraycopy(member, 0, grown, 0, end);
+        member = grown;
+      }
+
+      CRC32 crc = new CRC32();
+      crc.update(block, 0, length);
+      int memberLength = end + TRAILER_LENGTH;
+      writeHeader(member, memberLength);
+      BinaryChunking.putInt(member, end, (int) crc.getValue());
+      BinaryChunking.putInt(member, end + 4, length);
+      if (memberLength == member.length) return member;
+      byte[] trimmed = new byte[memberLength];
+      System.arraycopy(member, 0, trimmed, 0, memberLength);
+      return trimmed;
+    } finally {
+      deflater.end();
+    }
+  }
+
+  private static void writeHeader(byte[] member, int memberLength) {
+    member[0] = (byte) 0x1f;
+    member[1] = (byte) 0x8b;
+    member[2] = Deflater.DEFLATED;
+    member[3] = FLAG_EXTRA;
+    BinaryChunking.putInt(member, 4, 0);  //No modification time.
+    member[8] = 0;
+    member[9] = (byte) 255;  //Unknown operating system.
+    member[10] = 8;  //Length of the extra field, two bytes.
+    member[11] = 0;
+    member[12] = SUBFIELD_ID1;
+    member[13] = SUBFIELD_ID2;
+    member[14] = 4;  //Length of the subfield data, two bytes.
+    member[15] = 0;
+    BinaryChunking.putInt(member, 16, memberLength);
+  }
+
+  /**
+   * For ParallelGZIPInputStream: the length of the member whose header starts the given bytes, or -1 if the header is not one written by this class.
+   */
+  static int memberLength(byte[] header) {
+    if (header[0] != (byte) 0x1f || header[1] != (byte) 0x8b || header[2] != Deflater.DEFLATED) return -1;
+    if (header[3] != FLAG_EXTRA || header[10] != 8 || header[11] != 0) return -1;
+    if (header[12] != SUBFIELD_ID1 || header[13] != SUBFIELD_ID2 || header[14] != 4 || header[15] != 0) return -1;
+    return BinaryChunking.getInt(header, 16);
+  }
+
+}
@@ -0,0 +1,56 @@
+package org.prevayler.foundation;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Spins for a while and then parks the waiting thread until its barrier is passable. Only the parked
+ * threads whose barriers have become passable are unparked, rather than every waiting thread, and
+ * turns moving on while no thread is parked cost a single read. This is the strategy to use unless
+ * there is a processor for every pipeline thread, since it does not keep processors busy.
+ */
+public class ParkWaitStrategy implements WaitStrategy {
+
+  private static final int SPINS = 100;
+
+  private final ConcurrentLinkedQueue _parked = new ConcurrentLinkedQueue();
+
+  public void waitFor(Barrier barrier) {
+    for (int i = 0; i < SPINS; i++) {
+      if (barrier.isPassable()) return;
+    }
+
+    Parked parked = new Parked(Thread.currentThread(), barrier);
+    _parked.add(parked);  //Before checking the barrier again, so that signalAll() cannot miss it.
+    try {
+      while (!barrier.isPassable()) {
+        LockSupport.park(this);
+        if (Thread.interrupted()) Cool.unexpected(new InterruptedException());
+      }
+    } finally {
+      _parked.remove(parked);
+    }
+  }
+
+  public void signalAll() {
+    if (_parked.isEmpty()) return;
+    Iterator parked = _parked.iterator();
+    while (parked.hasNext()) {
+      Parked next = (Parked) parked.next();
+      if (next._barrier.isPassable()) LockSupport.unpark(next._thread);
+    }
+  }
+
+
+  private static class Parked {
+    final Thread _thread;
+    final Barrier _barrier;
+
+    Parked(Thread thread, Barrier barrier) {
+      _thread = thread;
+      _barrier = barrier;
+    }
+  }
+
+}
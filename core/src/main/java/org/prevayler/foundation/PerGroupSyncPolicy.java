@@ -0,0 +1,17 @@
+package org.prevayler.foundation;
+
+/**
+ * Forces every group of objects to disk before acknowledging any of them. No acknowledged object is
+ * ever lost. This is what <code>journalDiskSync == true</code> means.
+ */
+public class PerGroupSyncPolicy extends JournalSyncPolicy {
+
+  public boolean isForceRequired(long bytesSinceLastForce, long nanosSinceLastForce) {
+    return true;
+  }
+
+  public String toString() {
+    return "per-group";
+  }
+
+}
@@ -0,0 +1,30 @@
+package org.prevayler.foundation;
+
+/**
+ * The place of one object in the sequence of a processing pipeline, such as a Turn or a turn of a
+ * RingBufferPipeline. Objects go through the same stages in the same order: each stage is only started
+ * once the preceding object has ended it.
+ */
+public interface PipelineTurn {
+
+  /**
+   * Start a stage in the pipeline. Will block until the preceding turn has ended the same stage.
+   *
+   * @throws IllegalStateException if this or any preceding turn has been aborted.
+   */
+  public void start();
+
+  /**
+   * End a stage in the pipeline. Allows the next turn to start the same stage.
+   */
+  public void end();
+
+  /**
+   * Abort the pipeline. Prevents this or any following turn from continuing, but doesn't affect
+   * preceding turns already further along in the pipeline.
+   *
+   * @throws IllegalStateException always, with the given message and cause.
+   */
+  public void abort(String message, Throwable cause);
+
+}
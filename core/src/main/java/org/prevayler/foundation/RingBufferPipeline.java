@@ -0,0 +1,188 @@
+package org.prevayler.foundation;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Sequences threads through the stages of a processing pipeline like a chain of Turns, without
+ * locks and without allocating a turn per object. Turns are taken from a ring of slots allocated up
+ * front, in the order of a sequence counter: claiming a turn is a compare-and-set on the counter, and
+ * each slot keeps a single counter of the stages its turn has ended, which the next turn reads to know
+ * whether it may start the same stage. Threads waiting for the turn ahead of them use a WaitStrategy
+ * instead of a monitor, so ending a stage wakes no thread that cannot start it.
+ * <p/>
+ * In a CentralPublisher, the stages after the sequence assignment are those of the journal (writing
+ * the transaction, syncing it and closing or indexing files) followed by the execution of the
+ * transaction and the notification of its subscribers.
+ * <p/>
+ * Each turn must be released once it has gone through all its stages, which frees its slot for the
+ * turn the size of the ring after it. No more turns than the size of the ring can be in the pipeline
+ * at once: claiming more waits for the oldest to be released.
+ */
+public class RingBufferPipeline {
+
+  public static final int DEFAULT_SIZE = 1024;
+
+  private static final int STAGE_BITS = 8;
+
+  /**
+   * The stage count of a released turn. Also the maximum number of stages, plus one.
+   */
+  private static final int RELEASED = (1 << STAGE_BITS) - 1;
+
+  private final Slot[] _slots;
+  private final int _mask;
+  private final WaitStrategy _waitStrategy;
+
+  /**
+   * The sequence of the next turn to be claimed.
+   */
+  private final AtomicLong _cursor;
+
+  /**
+   * The sequence of the first aborted turn, or Long.MAX_VALUE.
+   */
+  private final AtomicLong _abortedFrom = new AtomicLong(Long.MAX_VALUE);
+
+  /**
+   * @param size The number of slots in the ring, a power of two.
+   */
+  public RingBufferPipeline(int size, WaitStrategy waitStrategy) {
+    if (size < 1 || (size & (size - 1)) != 0) throw new IllegalArgumentException("The ring size must be a power of two: " + size);
+    _slots = new Slot[size];
+    _mask = size - 1;
+    _waitStrategy = waitStrategy;
+
+    //Each slot starts as if released by a turn before the first one, so the first turns wait for nothing.
+    for (int i = 0; i < size; i++) _slots[i] = new Slot(i);
+    _cursor = new AtomicLong(size);
+  }
+
+  /**
+   * The sequence of the next turn to be claimed.
+   */
+  public long cursor() {
+    return _cursor.get();
+  }
+
+  /**
+   * Claims the turn with the given sequence, if it is still the next one. Used to do something in the
+   * order of the turns, such as reading a clock, without a lock: read the cursor, do it, and start
+   * over if this fails.
+   */
+  public boolean tryClaim(long sequence) {
+    return _cursor.compareAndSet(sequence, sequence + 1);
+  }
+
+  /**
+   * Claims the next turn.
+   *
+   * @throws IllegalStateException if any turn has been aborted.
+   */
+  public Slot claim() {
+    return turn(_cursor.getAndIncrement());
+  }
+
+  /**
+   * The turn with the given sequence, which must have been claimed by the calling thread. Waits for its slot to be released by the turn before it in the slot.
+   *
+   * @throws IllegalStateException if any turn has been aborted.
+   */
+  public Slot turn(long sequence) {
+    checkNotAborted(sequence);
+    Slot slot = _slots[(int) (sequence & _mask)];
+    awaitPosition(slot, position(sequence - _slots.length, RELEASED), sequence);
+    checkNotAborted(sequence);
+    slot.take(sequence);
+    return slot;
+  }
+
+  private void awaitPosition(final Slot slot, final long position, final long sequence) {
+    if (slot._position >= position) return;
+    _waitStrategy.waitFor(new WaitStrategy.Barrier() {
+      public boolean isPassable() {
+        return slot._position >= position || _abortedFrom.get() <= sequence;
+      }
+    });
+  }
+
+  private void checkNotAborted(long sequence) {
+    if (_abortedFrom.get() <= sequence) {
+      throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+    }
+  }
+
+  private static long position(long sequence, int stages) {
+    return (sequence << STAGE_BITS) + stages;
+  }
+
+
+  /**
+   * A turn through the pipeline, in a slot of the ring that is reused by later turns once it is released.
+   */
+  public class Slot implements PipelineTurn {
+
+    /**
+     * The sequence of the turn in this slot, shifted left by STAGE_BITS, plus the number of stages it has ended.
+     */
+    private volatile long _position;
+
+    private long _sequence;
+    private int _started;
+    private int _ended;
+
+    private Slot(long releasedSequence) {
+      _sequence = releasedSequence;
+      _position = position(releasedSequence, RELEASED);
+    }
+
+    private void take(long sequence) {
+      _sequence = sequence;
+      _started = 0;
+      _ended = 0;
+      _position = position(sequence, 0);
+    }
+
+    public long sequence() {
+      return _sequence;
+    }
+
+    public void start() {
+      if (_started + 1 >= RELEASED) throw new IllegalStateException("A turn cannot go through more than " + (RELEASED - 1) + " stages");
+      _started++;
+      checkNotAborted(_sequence);
+      awaitPosition(previous(), position(_sequence - 1, _started), _sequence);
+      checkNotAborted(_sequence);
+    }
+
+    public void end() {
+      _ended++;
+      _position = position(_sequence, _ended);
+      _waitStrategy.signalAll();
+    }
+
+    /**
+     * Ends whatever stages the turns after this one still have to go through, once the turn before it is released, and frees the slot. Does nothing if the turn was aborted.
+     */
+    public void release() {
+      if (_abortedFrom.get() <= _sequence) return;
+      awaitPosition(previous(), position(_sequence - 1, RELEASED), _sequence);
+      _position = position(_sequence, RELEASED);
+      _waitStrategy.signalAll();
+    }
+
+    public void abort(String message, Throwable cause) {
+      long abortedFrom = _abortedFrom.get();
+      while (_sequence < abortedFrom && !_abortedFrom.compareAndSet(abortedFrom, _sequence)) {
+        abortedFrom = _abortedFrom.get();
+      }
+      _waitStrategy.signalAll();
+      throw new IllegalStateException(message, cause);
+    }
+
+    private Slot previous() {
+      return _slots[(int) ((_sequence - 1) & _mask)];
+    }
+
+  }
+
+}
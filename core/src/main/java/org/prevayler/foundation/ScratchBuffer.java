@@ -0,0 +1,90 @@
+package org.prevayler.foundation;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A ByteArrayOutputStream reused by the thread that acquires it, so that transactions can be serialized
+ * and journal entries encoded without allocating, and growing, a new buffer for every transaction.
+ * <p/>
+ * A buffer must be released by the thread that acquired it, once its contents have been copied or
+ * written out. A buffer grown beyond MAX_RETAINED_LENGTH by an unusually large object is not kept.
+ */
+public class ScratchBuffer extends ByteArrayOutputStream {
+
+  private static final int INITIAL_LENGTH = 256;
+  private static final int MAX_RETAINED_LENGTH = 64 * 1024;
+  private static final byte[] HEX_DIGITS = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'A', 'B', 'C', 'D', 'E', 'F'};
+
+  private static final ThreadLocal _buffers = new ThreadLocal() {
+    protected Object initialValue() {
+      return new ScratchBuffer();
+    }
+  };
+
+  private boolean _acquired = false;
+
+  private ScratchBuffer() {
+    super(INITIAL_LENGTH);
+  }
+
+  /**
+   * The empty buffer of the calling thread, or a new one if that is already in use, by a serializer
+   * that serializes another transaction while serializing one, for example.
+   */
+  public static ScratchBuffer acquire() {
+    ScratchBuffer buffer = (ScratchBuffer) _buffers.get();
+    if (buffer._acquired) buffer = new ScratchBuffer();
+    buffer._acquired = true;
+    return buffer;
+  }
+
+  public synchronized void release() {
+    reset();
+    if (buf.length > MAX_RETAINED_LENGTH) buf = new byte[INITIAL_LENGTH];
+    _acquired = false;
+  }
+
+  /**
+   * The internal array, grown if necessary to at least the given length, so that fixed-length
+   * contents can be encoded in place. Its first size() bytes are the contents written so far.
+   */
+  public synchronized byte[] array(int minimumLength) {
+    if (buf.length < minimumLength) {
+      byte[] grown = new byte[Math.max(minimumLength, buf.length * 2)];
+      System.arraycopy(buf, 0, grown, 0, count);
+      buf = grown;
+    }
+    return buf;
+  }
+
+  public void writeAscii(byte[] ascii) {
+    write(ascii, 0, ascii.length);
+  }
+
+  /**
+   * Writes the value as Integer.toHexString() would, with upper case digits.
+   */
+  public synchronized void writeHex(int value) {
+    int shift = 28;
+    while (shift > 0 && (value >>> shift) == 0) shift -= 4;
+    for (; shift >= 0; shift -= 4) {
+      write(HEX_DIGITS[(value >>> shift) & 0xF]);
+    }
+  }
+
+  /**
+   * Writes the value as String.valueOf() would. Digits are taken from the value made negative, so that Long.MIN_VALUE needs no special case.
+   */
+  public synchronized void writeDecimal(long value) {
+    if (value < 0) write('-');
+    else value = -value;
+
+    long power = 1;
+    while (power <= Long.MAX_VALUE / 10 && value / (power * 10) != 0) power *= 10;
+    for (; power > 0; power /= 10) {
+      write('0' - (int) (value / power));
+      value %= power;
+    }
+  }
+
+}
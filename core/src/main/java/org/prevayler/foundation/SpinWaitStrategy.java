@@ -0,0 +1,17 @@
+package org.prevayler.foundation;
+
+/**
+ * Checks the barrier in a busy loop, for the lowest latency when every pipeline thread has a processor of its own.
+ */
+public class SpinWaitStrategy implements WaitStrategy {
+
+  public void waitFor(Barrier barrier) {
+    while (!barrier.isPassable()) {
+      // Spin.
+    }
+  }
+
+  public void signalAll() {
+  }
+
+}
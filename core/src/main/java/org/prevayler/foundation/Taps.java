@@ -0,0 +1,27 @@
+package org.prevayler.foundation;
+
+/**
+ * Copy-on-write arrays of JournalTaps, shared by the DurableOutput implementations.
+ */
+class Taps {
+
+  static JournalTap[] with(JournalTap[] taps, JournalTap tap) {
+    JournalTap[] result = new JournalTap[taps.length + 1];
+    System.arraycopy(taps, 0, result, 0, taps.length);
+    result[taps.length] = tap;
+    return result;
+  }
+
+  static JournalTap[] without(JournalTap[] taps, JournalTap tap) {
+    for (int i = 0; i < taps.length; i++) {
+      if (taps[i] == tap) {
+        JournalTap[] result = new JournalTap[taps.length - 1];
+        System.arraycopy(taps, 0, result, 0, i);
+        System.arraycopy(taps, i + 1, result, i, result.length - i);
+        return result;
+      }
+    }
+    return taps;
+  }
+
+}
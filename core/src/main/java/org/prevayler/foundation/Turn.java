@@ -1,10 +1,12 @@
 package org.prevayler.foundation;
 
+import java.util.concurrent.atomic.AtomicReferenceFieldUpdater;
+
 /**
  * Used to control progression of threads through the stages of a processing
  * pipeline.
  */
-public class Turn {
+public class Turn implements PipelineTurn {
 
   /**
    * The first turn through a pipeline, allowed to flow freely through all
@@ -14,7 +16,11 @@ public class Turn {
     return new Turn(true);
   }
 
-  private Turn _next;
+  private static final AtomicReferenceFieldUpdater NEXT = AtomicReferenceFieldUpdater.newUpdater(Turn.class, Turn.class, "_next");
+
+  private volatile Turn _next;
+
+  private volatile boolean _aborted = false;
 
   private int _allowed;
 
@@ -25,18 +31,29 @@ public class Turn {
 
   /**
    * The next turn through the pipeline, allowed to flow only as far as this
-   * turn has already gone.
+   * turn has already gone. Takes no lock: the first thread to ask for it
+   * links it with a compare-and-set, and the others get that one.
    *
    * @throws IllegalStateException if this or any preceding turn has been aborted.
    */
-  public synchronized Turn next() {
-    if (_allowed < 0) {
-      throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
+  public Turn next() {
+    checkNotAborted();
+    Turn next = _next;
+    if (next != null) return next;
+
+    Turn created = new Turn(false);
+    if (!NEXT.compareAndSet(this, null, created)) return _next;
+    if (_aborted) {  //An abort that went by before the turn was linked would have missed it.
+      created.dieWithFollowing();
+      checkNotAborted();
     }
-    if (_next == null) {
-      _next = new Turn(false);
+    return created;
+  }
+
+  private void checkNotAborted() {
+    if (_aborted) {
+      throw new IllegalStateException("All transaction processing is now aborted, probably due to an earlier IOException.");
     }
-    return _next;
   }
 
   /**
@@ -75,14 +92,19 @@ public class Turn {
    * @throws IllegalStateException always, with the given message and cause.
    */
   public void abort(String message, Throwable cause) {
+    dieWithFollowing();
+    throw new IllegalStateException(message, cause);
+  }
+
+  private void dieWithFollowing() {
     Turn turn = this;
     while (turn != null) {
       turn = turn.die();
     }
-    throw new IllegalStateException(message, cause);
   }
 
   private synchronized Turn die() {
+    _aborted = true;
     _allowed = Integer.MIN_VALUE;
     notifyAll();
     return _next;
@@ -0,0 +1,34 @@
+package org.prevayler.foundation;
+
+/**
+ * How the threads of a RingBufferPipeline wait for the turns ahead of them: by spinning, which is the
+ * fastest when there is a processor for every thread; by yielding; or by parking, which leaves the
+ * processors to other threads.
+ *
+ * @see SpinWaitStrategy
+ * @see YieldWaitStrategy
+ * @see ParkWaitStrategy
+ */
+public interface WaitStrategy {
+
+  /**
+   * Returns once the barrier is passable. Interrupts are not expected.
+   */
+  public void waitFor(Barrier barrier);
+
+  /**
+   * Called whenever a turn moves on, so that threads blocked by this strategy check their barriers again.
+   */
+  public void signalAll();
+
+
+  public interface Barrier {
+
+    /**
+     * Must be cheap and safe to call from any thread, at any time.
+     */
+    public boolean isPassable();
+
+  }
+
+}
@@ -0,0 +1,21 @@
+package org.prevayler.foundation;
+
+/**
+ * Spins for a while and then yields the processor between checks of the barrier, which keeps latency
+ * low while letting other threads run when there are more pipeline threads than processors.
+ */
+public class YieldWaitStrategy implements WaitStrategy {
+
+  private static final int SPINS = 100;
+
+  public void waitFor(Barrier barrier) {
+    for (int i = 0; i < SPINS; i++) {
+      if (barrier.isPassable()) return;
+    }
+    while (!barrier.isPassable()) Thread.yield();
+  }
+
+  public void signalAll() {
+  }
+
+}
@@ -0,0 +1,60 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.AESGCMInputStream;
+import org.prevayler.foundation.AESGCMOutputStream;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Encrypts each object as a stream of authenticated AES-GCM segments, through AESGCMOutputStream. Meant
+ * for snapshots, to be given a delegate that compresses, since encrypted bytes do not compress:
+ * <pre>
+ *   factory.configureSnapshotSerializer("aessnapshot", new AESGCMSerializer(new GZIPSerializer(new JavaSerializer()), key));
+ * </pre>
+ * Snapshots written before by a DESSerializer are still read if it is also configured, under its own
+ * suffix, since the snapshot to recover from is read by the serializer configured for its suffix.
+ * <p/>
+ * Journals are better encrypted by an AESGCMBlockCodec, which encrypts the transactions synced together
+ * as a whole, than by this serializer, which would encrypt each transaction on its own.
+ *
+ * @see org.prevayler.foundation.AESGCMBlockCodec
+ */
+public class AESGCMSerializer implements Serializer {
+
+  private final Serializer _delegate;
+  private final byte[] _key;
+  private final int _segmentSize;
+
+  /**
+   * @param key A 16, 24 or 32-byte AES key.
+   */
+  public AESGCMSerializer(Serializer delegate, byte[] key) {
+    this(delegate, key, AESGCMOutputStream.DEFAULT_SEGMENT_SIZE);
+  }
+
+  /**
+   * @param key         A 16, 24 or 32-byte AES key.
+   * @param segmentSize The number of bytes encrypted and authenticated together.
+   */
+  public AESGCMSerializer(Serializer delegate, byte[] key, int segmentSize) {
+    if (key == null || (key.length != 16 && key.length != 24 && key.length != 32)) {
+      throw new IllegalArgumentException("Key must be 16, 24 or 32 bytes");
+    }
+    _delegate = delegate;
+    _key = (byte[]) key.clone();
+    _segmentSize = segmentSize;
+  }
+
+  public void writeObject(OutputStream stream, Object object) throws Exception {
+    AESGCMOutputStream encrypt = new AESGCMOutputStream(stream, _key, _segmentSize);
+    _delegate.writeObject(encrypt, object);
+    encrypt.close();
+  }
+
+  public Object readObject(InputStream stream) throws Exception {
+    AESGCMInputStream decrypt = new AESGCMInputStream(stream, _key);
+    return _delegate.readObject(decrypt);
+  }
+
+}
@@ -0,0 +1,248 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.ObjectInputStreamWithClassLoader;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes and reads objects using Java serialization, but without the stream header and with each class
+ * descriptor replaced by an integer ID. The descriptors themselves are kept once, in a class registry
+ * file, so a journal of small transactions is several times smaller than with JavaSerializer and
+ * reading it only resolves each class once instead of once per transaction.
+ * <p/>
+ * A class is given a new ID the first time it is written with a descriptor not yet in the registry, for
+ * example after fields were added to it, so objects written before keep being read with the descriptor
+ * they were written with. New descriptors are appended to the registry file and synced before the
+ * object using them is returned, so a journal never refers to an ID that is not in the registry.
+ * <p/>
+ * The registry file must be kept, backed up and copied along with the journal files it belongs to,
+ * which cannot be read without it. Meant for journals: snapshots gain little, since they are written in
+ * a single stream.
+ */
+public class CompactSerializer implements Serializer {
+
+  private final File _registryFile;
+  private final ClassLoader _loader;
+
+  /**
+   * The descriptors written to the registry file, by ID, as bytes of a Java serialization stream.
+   */
+  private final List _descriptorBytes = new ArrayList();
+
+  /**
+   * IDs by descriptor bytes, wrapped in ByteBuffers for their content equality.
+   */
+  private final Map _idsByDescriptor = new HashMap();
+
+  private final Map _idsByClass = new ConcurrentHashMap();
+  private final Map _descriptorsById = new ConcurrentHashMap();
+  private final Map _classesByName = new ConcurrentHashMap();
+
+  public CompactSerializer(File registryFile) throws IOException {
+    this(registryFile, null);
+  }
+
+  /**
+   * @param registryFile The file listing the class descriptors, created if it does not exist. Usually next to the journal files, in the prevalence directory.
+   */
+  public CompactSerializer(File registryFile, ClassLoader loader) throws IOException {
+    _registryFile = registryFile;
+    _loader = loader;
+    loadRegistry();
+  }
+
+
+  public void writeObject(OutputStream stream, Object object) throws IOException {
+    ObjectOutputStream objects = new CompactOutputStream(stream);
+    objects.writeObject(object);
+    objects.close();
+  }
+
+  public Object readObject(InputStream stream) throws IOException, ClassNotFoundException {
+    ObjectInputStream objects = new CompactInputStream(stream);
+    Object object = objects.readObject();
+    objects.close();
+    return object;
+  }
+
+
+  /**
+   * The number of class descriptors in the registry.
+   */
+  public synchronized int registeredClasses() {
+    return _descriptorBytes.size();
+  }
+
+
+  private int idFor(ObjectStreamClass descriptor) throws IOException {
+    Class type = descriptor.forClass();
+    Integer id = type == null ? null : (Integer) _idsByClass.get(type);
+    if (id == null) {
+      id = new Integer(register(serialized(descriptor)));
+      if (type != null) _idsByClass.put(type, id);
+    }
+    return id.intValue();
+  }
+
+  private synchronized int register(byte[] descriptor) throws IOException {
+    Integer id = (Integer) _idsByDescriptor.get(ByteBuffer.wrap(descriptor));
+    if (id != null) return id.intValue();
+
+    appendToRegistry(descriptor);
+    _descriptorBytes.add(descriptor);
+    _idsByDescriptor.put(ByteBuffer.wrap(descriptor), new Integer(_descriptorBytes.size() - 1));
+    return _descriptorBytes.size() - 1;
+  }
+
+  private ObjectStreamClass descriptor(int id) throws IOException, ClassNotFoundException {
+    Integer key = new Integer(id);
+    ObjectStreamClass descriptor = (ObjectStreamClass) _descriptorsById.get(key);
+    if (descriptor != null) return descriptor;
+
+    byte[] bytes;
+    synchronized (this) {
+      if (id < 0 || id >= _descriptorBytes.size()) {
+        throw new StreamCorruptedException("Class ID " + id + " is not in the class registry " + _registryFile);
+      }
+      bytes = (byte[]) _descriptorBytes.get(id);
+    }
+    ObjectInputStream input = new ObjectInputStreamWithClassLoader(new ByteArrayInputStream(bytes), _loader);
+    descriptor = (ObjectStreamClass) input.readObject();
+    _descriptorsById.put(key, descriptor);
+    return descriptor;
+  }
+
+  private static byte[] serialized(ObjectStreamClass descriptor) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ObjectOutputStream output = new ObjectOutputStream(bytes);
+    output.writeObject(descriptor);
+    output.close();
+    return bytes.toByteArray();
+  }
+
+
+  /**
+   * Reads the descriptors of the registry file, each one preceded by its length. A descriptor cut short
+   * by a crash while it was being appended is cut off, since no object using it was written.
+   */
+  private void loadRegistry() throws IOException {
+    if (!_registryFile.exists()) return;
+    long complete = 0;
+    DataInputStream input = new DataInputStream(new FileInputStream(_registryFile));
+    try {
+      while (true) {
+        byte[] descriptor = new byte[input.readInt()];
+        input.readFully(descriptor);
+        _descriptorBytes.add(descriptor);
+        _idsByDescriptor.put(ByteBuffer.wrap(descriptor), new Integer(_descriptorBytes.size() - 1));
+        complete += 4 + descriptor.length;
+      }
+    } catch (EOFException endOfRegistry) {
+    } finally {
+      input.close();
+    }
+
+    if (complete == _registryFile.length()) return;
+    RandomAccessFile file = new RandomAccessFile(_registryFile, "rw");
+    try {
+      file.setLength(complete);
+    } finally {
+      file.close();
+    }
+  }
+
+  private void appendToRegistry(byte[] descriptor) throws IOException {
+    FileOutputStream output = new FileOutputStream(_registryFile, true);
+    try {
+      DataOutputStream data = new DataOutputStream(output);
+      data.writeInt(descriptor.length);
+      data.write(descriptor);
+      data.flush();
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+  }
+
+
+  private static void writeId(OutputStream output, int id) throws IOException {
+    while ((id & ~0x7F) != 0) {
+      output.write((id & 0x7F) | 0x80);
+      id >>>= 7;
+    }
+    output.write(id);
+  }
+
+  private static int readId(InputStream input) throws IOException {
+    int id = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      int b = input.read();
+      if (b < 0) throw new EOFException();
+      id |= (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) return id;
+    }
+    throw new StreamCorruptedException("Malformed class ID");
+  }
+
+
+  private class CompactOutputStream extends ObjectOutputStream {
+
+    CompactOutputStream(OutputStream stream) throws IOException {
+      super(stream);
+    }
+
+    protected void writeStreamHeader() {
+    }
+
+    protected void writeClassDescriptor(ObjectStreamClass descriptor) throws IOException {
+      writeId(this, idFor(descriptor));
+    }
+
+  }
+
+
+  private class CompactInputStream extends ObjectInputStream {
+
+    CompactInputStream(InputStream stream) throws IOException {
+      super(stream);
+    }
+
+    protected void readStreamHeader() {
+    }
+
+    protected ObjectStreamClass readClassDescriptor() throws IOException, ClassNotFoundException {
+      return descriptor(readId(this));
+    }
+
+    protected Class resolveClass(ObjectStreamClass descriptor) throws IOException, ClassNotFoundException {
+      Class resolved = (Class) _classesByName.get(descriptor.getName());
+      if (resolved != null) return resolved;
+      resolved = _loader != null ? Class.forName(descriptor.getName(), false, _loader) : super.resolveClass(descriptor);
+      _classesByName.put(descriptor.getName(), resolved);
+      return resolved;
+    }
+
+  }
+
+}
@@ -18,6 +18,14 @@ import java.io.OutputStream;
 import java.security.GeneralSecurityException;
 import java.security.spec.KeySpec;
 
+/**
+ * Encrypts each object on its own with DES or 3DES. For journals, an AESGCMBlockCodec encrypts whole
+ * groups of transactions faster and authenticates them, and BlockJournalConverter converts existing
+ * journals to it. For snapshots, see AESGCMSerializer.
+ *
+ * @see org.prevayler.foundation.AESGCMBlockCodec
+ * @see org.prevayler.implementation.journal.BlockJournalConverter
+ */
 public class DESSerializer implements Serializer {
 
   private ThreadLocal _ciphers = new ThreadLocal() {
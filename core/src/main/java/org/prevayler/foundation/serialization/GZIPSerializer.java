@@ -15,6 +15,13 @@ import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
 
+/**
+ * Compresses each object on its own, with a gzip header and trailer. For journals of small transactions,
+ * which this makes bigger rather than smaller, configure a DeflateBlockCodec instead, which compresses the
+ * transactions synced together as a whole.
+ *
+ * @see org.prevayler.foundation.DeflateBlockCodec
+ */
 public class GZIPSerializer implements Serializer {
 
   private final Serializer _delegate;
@@ -0,0 +1,67 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.ParallelGZIPInputStream;
+import org.prevayler.foundation.ParallelGZIPOutputStream;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses and decompresses on several threads, through ParallelGZIPOutputStream and
+ * ParallelGZIPInputStream, for snapshots of large prevalent systems, which GZIPSerializer compresses
+ * on a single thread. The files written are valid gzip files, and snapshots written by GZIPSerializer
+ * are read too, on a single thread. For example:
+ * <pre>
+ *   factory.configureSnapshotSerializer("gzsnapshot", new ParallelGZIPSerializer(new JavaSerializer()));
+ * </pre>
+ * Not meant for journals, whose transactions are too small to be cut into blocks. See DeflateBlockCodec instead.
+ */
+public class ParallelGZIPSerializer implements Serializer {
+
+  private final Serializer _delegate;
+  private final int _threads;
+  private final int _blockSize;
+  private final int _level;
+
+  /**
+   * Compresses on as many threads as there are processors.
+   */
+  public ParallelGZIPSerializer(Serializer delegate) {
+    this(delegate, Runtime.getRuntime().availableProcessors(), ParallelGZIPOutputStream.DEFAULT_BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+  }
+
+  /**
+   * @param threads   The number of threads compressing or decompressing blocks of each snapshot.
+   * @param blockSize The number of bytes compressed into each gzip member.
+   * @param level     The Deflater compression level.
+   */
+  public ParallelGZIPSerializer(Serializer delegate, int threads, int blockSize, int level) {
+    _delegate = delegate;
+    _threads = threads;
+    _blockSize = blockSize;
+    _level = level;
+  }
+
+  public void writeObject(OutputStream stream, Object object) throws Exception {
+    ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(stream, _threads, _blockSize, _level);
+    try {
+      _delegate.writeObject(gzip, object);
+    } finally {
+      gzip.close();
+    }
+  }
+
+  /**
+   * Closes the stream, so that the threads decompressing ahead stop even if the object ends before the stream does.
+   */
+  public Object readObject(InputStream stream) throws Exception {
+    ParallelGZIPInputStream gunzip = new ParallelGZIPInputStream(stream, _threads);
+    try {
+      return _delegate.readObject(gunzip);
+    } finally {
+      gunzip.close();
+    }
+  }
+
+}
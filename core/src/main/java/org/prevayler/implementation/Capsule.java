@@ -1,40 +1,89 @@
 package org.prevayler.implementation;
 
+import org.prevayler.ImmutableTransaction;
+import org.prevayler.JournalSyncListener;
+import org.prevayler.foundation.BinaryChunk;
+import org.prevayler.foundation.ByteBuffers;
 import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.JournalSyncPolicy;
+import org.prevayler.foundation.ScratchBuffer;
 import org.prevayler.foundation.serialization.Serializer;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Date;
 
 public abstract class Capsule implements Serializable {
 
-  private final byte[] _serialized;
+  private static final int WITH_QUERY_FLAG = 1;
+
+  private volatile byte[] _serialized;
+  private transient ByteBuffer _serializedBuffer = null;
   private transient Object _directTransaction = null;
+  private transient JournalSyncListener _syncListener = null;
+  private transient volatile boolean _executionFailed = false;
+  private transient boolean _skipExecution = false;
+  private transient boolean _immutableInDeepCopyMode = false;
+  private transient boolean _verifyImmutability = false;
 
   protected Capsule(Object transaction, Serializer journalSerializer, boolean transactionDeepCopyMode) {
-    if (transactionDeepCopyMode == false) {
+    if (transactionDeepCopyMode == false || transaction instanceof ImmutableTransaction) {
       _directTransaction = transaction;
     }
+    _immutableInDeepCopyMode = transactionDeepCopyMode && transaction instanceof ImmutableTransaction;
+    if (transaction instanceof JournalSyncListener) {
+      _syncListener = (JournalSyncListener) transaction;
+    }
+    ScratchBuffer bytes = ScratchBuffer.acquire();
     try {
-      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
       journalSerializer.writeObject(bytes, transaction);
       _serialized = bytes.toByteArray();
     } catch (Exception exception) {
       throw new Error("Unable to serialize transaction", exception);
+    } finally {
+      bytes.release();
     }
   }
 
+  /**
+   * Makes executeOn() check that an ImmutableTransaction executed directly in deep copy mode is the same
+   * as the copy that would have been deserialized from the journal, which is only worth it while testing.
+   */
+  void verifyImmutability() {
+    _verifyImmutability = _immutableInDeepCopyMode;
+  }
+
   protected Capsule(byte[] serialized) {
     _serialized = serialized;
   }
 
+  /**
+   * A capsule whose serialized transaction is read straight from the remaining bytes of the buffer, typically a slice of a mapped journal file, and only copied to an array if serialized() is called.
+   */
+  protected Capsule(ByteBuffer serialized) {
+    if (serialized.hasArray() && serialized.arrayOffset() + serialized.position() == 0 && serialized.remaining() == serialized.array().length) {
+      _serialized = serialized.array();
+    } else {
+      _serializedBuffer = serialized;
+    }
+  }
+
   /**
    * Gets the serialized representation of the transaction. Callers must not modify the returned array.
    */
   public byte[] serialized() {
-    return _serialized;
+    byte[] serialized = _serialized;
+    if (serialized == null) {
+      serialized = ByteBuffers.toArray(_serializedBuffer);
+      _serialized = serialized;
+    }
+    return serialized;
   }
 
   /**
@@ -42,16 +91,49 @@ public abstract class Capsule implements Serializable {
    */
   public Object deserialize(Serializer journalSerializer) {
     try {
-      return journalSerializer.readObject(new ByteArrayInputStream(_serialized));
+      InputStream serialized = _serialized != null
+          ? new ByteArrayInputStream(_serialized)
+          : ByteBuffers.inputStream(_serializedBuffer.duplicate());
+      return journalSerializer.readObject(serialized);
     } catch (Exception exception) {
       throw new Error("Unable to deserialize transaction", exception);
     }
   }
 
+  /**
+   * Deserializes the transaction ahead of time, on the calling thread, so that executeOn() executes it without deserializing it again. Used to deserialize recovered transactions in parallel. If the transaction cannot be deserialized, executeOn() will fail as usual.
+   */
+  public void deserializeInAdvance(Serializer journalSerializer) {
+    if (_directTransaction != null || _skipExecution) return;
+    try {
+      _directTransaction = deserialize(journalSerializer);
+    } catch (Error error) {
+      // Thrown again by executeOn(), in journal order.
+    }
+  }
+
+  /**
+   * A capsule of the same kind holding the transaction deserialized with the journal serializer and serialized again with the new one. Used to convert journal files.
+   */
+  public Capsule reserialize(Serializer journalSerializer, Serializer newJournalSerializer) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    newJournalSerializer.writeObject(bytes, deserialize(journalSerializer));
+    return isWithQuery() ? (Capsule) new TransactionWithQueryCapsule(bytes.toByteArray()) : new TransactionCapsule(bytes.toByteArray());
+  }
+
+  /**
+   * Tells the original transaction, if it is a JournalSyncListener, how it was acknowledged by the journal.
+   */
+  void journaled(JournalSyncPolicy policy, boolean forced) {
+    if (_syncListener != null) _syncListener.journaled(policy, forced);
+  }
+
   /**
    * Executes a freshly deserialized copy of the transaction by default. If <code>configureTransactionDeepCopy</code> was set to <code>true</code> on your <code>PrevaylerFactory</code>, this will execute the transaction directly. The execution will synchronize on the prevalentSystem.
    */
   public void executeOn(Object prevalentSystem, Date executionTime, Serializer journalSerializer) {
+    if (_skipExecution) return;
+
     Object transaction;
     if (_directTransaction != null) {
       transaction = _directTransaction;
@@ -59,11 +141,54 @@ public abstract class Capsule implements Serializable {
       transaction = deserialize(journalSerializer);
     }
 
-    synchronized (prevalentSystem) {
-      justExecute(transaction, prevalentSystem, executionTime);
+    if (_verifyImmutability) verifyImmutability(transaction, journalSerializer, "before");
+    try {
+      synchronized (prevalentSystem) {
+        justExecute(transaction, prevalentSystem, executionTime);
+      }
+    } catch (RuntimeException rx) {
+      _executionFailed = true;
+      throw rx;
+    }
+    if (_verifyImmutability) verifyImmutability(transaction, journalSerializer, "after");
+  }
+
+  /**
+   * Serializes the ImmutableTransaction again and compares it to the bytes written to the journal, so
+   * that one that was changed by its caller or shares an object changed by the prevalent system fails
+   * fast instead of leaving the prevalent system different from what recovery will produce. Requires a
+   * journal Serializer that always writes equal objects the same way.
+   */
+  private void verifyImmutability(Object transaction, Serializer journalSerializer, String when) {
+    ScratchBuffer bytes = ScratchBuffer.acquire();
+    try {
+      journalSerializer.writeObject(bytes, transaction);
+      if (!Arrays.equals(bytes.toByteArray(), serialized())) {
+        throw new Error("ImmutableTransaction " + transaction.getClass().getName() + " was changed " + when + " it was executed. It cannot be executed directly in transaction deep copy mode.");
+      }
+    } catch (Error error) {
+      throw error;
+    } catch (Exception exception) {
+      throw new Error("Unable to serialize transaction", exception);
+    } finally {
+      bytes.release();
     }
   }
 
+  /**
+   * Whether executeOn() threw a RuntimeException, so that the journal can mark the transaction as aborted.
+   */
+  public boolean executionFailed() {
+    return _executionFailed;
+  }
+
+  /**
+   * Makes executeOn() do nothing, without even deserializing the transaction. Used for recovered transactions the journal marked as aborted.
+   */
+  public void skipExecution() {
+    _skipExecution = true;
+  }
+
   /**
    * Actually executes the Transaction or TransactionWithQuery. The caller
    * is responsible for synchronizing on the prevalentSystem.
@@ -75,18 +200,39 @@ public abstract class Capsule implements Serializable {
    */
   public abstract Capsule cleanCopy();
 
+  private void writeObject(ObjectOutputStream stream) throws IOException {
+    serialized();
+    stream.defaultWriteObject();
+  }
+
   Chunk toChunk() {
-    Chunk chunk = new Chunk(_serialized);
-    chunk.setParameter("withQuery", String.valueOf(this instanceof TransactionWithQueryCapsule));
+    Chunk chunk = new Chunk(serialized());
+    chunk.setParameter("withQuery", String.valueOf(isWithQuery()));
     return chunk;
   }
 
   static Capsule fromChunk(Chunk chunk) {
     boolean withQuery = Boolean.valueOf(chunk.getParameter("withQuery")).booleanValue();
     if (withQuery) {
-      return new TransactionWithQueryCapsule(chunk.getBytes());
+      return new TransactionWithQueryCapsule(chunk.getByteBuffer());
+    } else {
+      return new TransactionCapsule(chunk.getByteBuffer());
+    }
+  }
+
+  boolean isWithQuery() {
+    return this instanceof TransactionWithQueryCapsule;
+  }
+
+  int binaryFlags() {
+    return isWithQuery() ? WITH_QUERY_FLAG : 0;
+  }
+
+  static Capsule fromBinaryChunk(BinaryChunk chunk) {
+    if ((chunk.getFlags() & WITH_QUERY_FLAG) != 0) {
+      return new TransactionWithQueryCapsule(chunk.getByteBuffer());
     } else {
-      return new TransactionCapsule(chunk.getBytes());
+      return new TransactionCapsule(chunk.getByteBuffer());
     }
   }
 
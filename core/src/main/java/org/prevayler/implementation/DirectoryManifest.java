@@ -0,0 +1,283 @@
+package org.prevayler.implementation;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * A file listing the snapshot and journal files of a prevalence directory with their versions, so that
+ * PrevaylerDirectory can find them without listing the directory and matching every name. A journal
+ * file holds the transactions from its version up to the version of the next journal file listed.
+ * <p/>
+ * Files are added to the manifest before they are created and removed after they are gone, so the
+ * manifest never misses a file written by Prevayler. Each addition or removal appends one record, with
+ * its own checksum, and syncs it, so a new journal file costs a single small write while the
+ * transaction pipeline waits. The records are compacted when the manifest is loaded, by rewriting it
+ * to a temporary file that is synced and renamed over it.
+ * <p/>
+ * A manifest that is missing, cannot be parsed or lists a file that does not exist when it is loaded is
+ * replaced by a new one made from a directory listing. Files copied into the directory by hand are only
+ * seen once the manifest is deleted.
+ */
+class DirectoryManifest {
+
+  private static final String HEADER = "prevayler manifest 2";
+  private static final String ADD = "add";
+  private static final String REMOVE = "remove";
+  private static final String SNAPSHOT = "snapshot";
+  private static final String JOURNAL = "journal";
+
+  private final File _directory;
+  private final File _file;
+  private final File _tempFile;
+
+  /**
+   * Snapshot and journal files by name, which sorts them by version since versions have a fixed number of digits. Null until loaded.
+   */
+  private SortedMap _snapshots;
+  private SortedMap _journals;
+
+
+  DirectoryManifest(File directory) {
+    _directory = directory;
+    _file = new File(directory, "prevayler.manifest");
+    _tempFile = new File(directory, "prevayler.manifest.tmp");
+  }
+
+
+  File file() {
+    return _file;
+  }
+
+
+  synchronized File latestSnapshot() throws IOException {
+    load();
+    File latest = last(_snapshots);
+    if (latest != null && latest.exists()) return latest;
+    if (latest != null) rebuild();
+    return last(_snapshots);
+  }
+
+
+  /**
+   * @param digits The version of the transaction wanted, as it appears in file names. Names starting with
+   *               it, followed by a dot, sort before it followed by a slash, and names of later versions after.
+   */
+  synchronized File findInitialJournalFile(String digits) throws IOException {
+    load();
+    File initial = last(_journals.headMap(digits + "/"));
+    if (initial != null && initial.exists()) return initial;
+    if (initial != null) rebuild();
+    return last(_journals.headMap(digits + "/"));
+  }
+
+
+  /**
+   * All journal files, in transaction order. They were all found when the manifest was loaded.
+   */
+  synchronized File[] journalFiles() throws IOException {
+    load();
+    return (File[]) _journals.values().toArray(new File[_journals.size()]);
+  }
+
+
+  /**
+   * Must be called before a snapshot or journal file is created.
+   */
+  synchronized void add(File file) throws IOException {
+    load();
+    SortedMap files = files(file);
+    if (files == null || file.equals(files.get(file.getName()))) return;
+    files.put(file.getName(), file);
+    append(ADD, file);
+  }
+
+
+  /**
+   * Must be called after a snapshot or journal file has been deleted or renamed away.
+   */
+  synchronized void remove(File file) throws IOException {
+    load();
+    SortedMap files = files(file);
+    if (files == null || files.remove(file.getName()) == null) return;
+    append(REMOVE, file);
+  }
+
+
+  private SortedMap files(File file) {
+    if (!_directory.equals(file.getParentFile())) return null;
+    if (PrevaylerDirectory.snapshotVersion(file) >= 0) return _snapshots;
+    if (PrevaylerDirectory.journalVersion(file) >= 0) return _journals;
+    return null;
+  }
+
+
+  private static File last(SortedMap files) {
+    return files.isEmpty() ? null : (File) files.get(files.lastKey());
+  }
+
+
+  private void load() throws IOException {
+    if (_journals != null) return;
+    int records = read();
+    if (records < 0) rebuild();
+    else if (records > _snapshots.size() + _journals.size()) write();
+  }
+
+
+  /**
+   * @return The number of records read, or -1 if the manifest is missing or inconsistent.
+   */
+  private int read() throws IOException {
+    if (!_file.exists()) return -1;
+    SortedMap snapshots = new TreeMap();
+    SortedMap journals = new TreeMap();
+    List lines = new ArrayList();
+
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(_file), "UTF-8"));
+    try {
+      if (!HEADER.equals(reader.readLine())) return -1;
+      String line;
+      while ((line = reader.readLine()) != null) lines.add(line);
+    } finally {
+      reader.close();
+    }
+
+    for (int i = 0; i < lines.size(); i++) {
+      String line = (String) lines.get(i);
+      int checksumStart = line.lastIndexOf(' ') + 1;
+      if (checksumStart == 0 || !line.substring(checksumStart).equals(checksum(line.substring(0, checksumStart)))) return -1;
+      String[] fields = line.substring(0, checksumStart - 1).split(" ");
+      if (fields.length != 4) return -1;
+      File file = new File(_directory, fields[3]);
+      SortedMap files;
+      if (SNAPSHOT.equals(fields[1]) && String.valueOf(PrevaylerDirectory.snapshotVersion(file)).equals(fields[2])) {
+        files = snapshots;
+      } else if (JOURNAL.equals(fields[1]) && String.valueOf(PrevaylerDirectory.journalVersion(file)).equals(fields[2])) {
+        files = journals;
+      } else {
+        return -1;
+      }
+      if (ADD.equals(fields[0])) files.put(file.getName(), file);
+      else if (REMOVE.equals(fields[0])) files.remove(file.getName());
+      else return -1;
+    }
+
+    if (!allExist(snapshots) || !allExist(journals)) return -1;
+    _snapshots = snapshots;
+    _journals = journals;
+    return lines.size();
+  }
+
+
+  private static boolean allExist(SortedMap files) {
+    for (Iterator iterator = files.values().iterator(); iterator.hasNext(); ) {
+      if (!((File) iterator.next()).exists()) return false;
+    }
+    return true;
+  }
+
+
+  /**
+   * Lists the directory and writes a new manifest.
+   */
+  private void rebuild() throws IOException {
+    File[] files = _directory.listFiles();
+    if (files == null) throw new IOException("Error reading file list from directory " + _directory);
+
+    _snapshots = new TreeMap();
+    _journals = new TreeMap();
+    for (int i = 0; i < files.length; i++) {
+      SortedMap kind = files(files[i]);
+      if (kind != null) kind.put(files[i].getName(), files[i]);
+    }
+    write();
+  }
+
+
+  /**
+   * Rewrites the manifest with a single record for each file listed.
+   */
+  private void write() throws IOException {
+    FileOutputStream output = new FileOutputStream(_tempFile);
+    try {
+      Writer writer = new OutputStreamWriter(output, "UTF-8");
+      writer.write(HEADER + "\n");
+      writeRecords(writer, _snapshots);
+      writeRecords(writer, _journals);
+      writer.flush();
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+
+    if (_tempFile.renameTo(_file)) return;
+    _file.delete();
+    if (!_tempFile.renameTo(_file)) {
+      _journals = null;  //Loaded again, from a listing if the manifest was deleted.
+      throw new IOException("Unable to rename " + _tempFile + " to " + _file);
+    }
+  }
+
+
+  private void writeRecords(Writer writer, SortedMap files) throws IOException {
+    for (Iterator iterator = files.values().iterator(); iterator.hasNext(); ) {
+      writer.write(record(ADD, (File) iterator.next()));
+    }
+  }
+
+
+  /**
+   * Appends a single record and syncs it. A record torn by a crash makes the manifest inconsistent, so
+   * it is rebuilt from a listing when it is next loaded.
+   */
+  private void append(String operation, File file) throws IOException {
+    if (!_file.exists()) {
+      write();
+      return;
+    }
+    FileOutputStream output = new FileOutputStream(_file, true);
+    try {
+      output.write(record(operation, file).getBytes("UTF-8"));
+      output.getFD().sync();
+    } catch (IOException exception) {
+      _journals = null;  //Loaded again, and rebuilt if the record was only partly appended.
+      throw exception;
+    } finally {
+      output.close();
+    }
+  }
+
+
+  /**
+   * A line with the operation, the kind of file, its version and its name, followed by a checksum of all that.
+   */
+  private static String record(String operation, File file) {
+    long snapshotVersion = PrevaylerDirectory.snapshotVersion(file);
+    String fields = snapshotVersion >= 0
+        ? operation + " " + SNAPSHOT + " " + snapshotVersion + " " + file.getName() + " "
+        : operation + " " + JOURNAL + " " + PrevaylerDirectory.journalVersion(file) + " " + file.getName() + " ";
+    return fields + checksum(fields) + "\n";
+  }
+
+
+  private static String checksum(String fields) {
+    CRC32 crc = new CRC32();
+    byte[] bytes = fields.getBytes(Charset.forName("UTF-8"));
+    crc.update(bytes, 0, bytes.length);
+    return Long.toHexString(crc.getValue());
+  }
+
+}
@@ -1,6 +1,7 @@
 package org.prevayler.implementation;
 
 import org.prevayler.Clock;
+import org.prevayler.OptimisticQuery;
 import org.prevayler.Query;
 import org.prevayler.foundation.Cool;
 import org.prevayler.foundation.DeepCopier;
@@ -12,14 +13,26 @@ import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 import java.io.File;
 import java.io.IOException;
 import java.util.Date;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 public class PrevalentSystemGuard<P> implements TransactionSubscriber {
 
-  private P _prevalentSystem; // All access to field is synchronized on "this", and all access to object is synchronized on itself; "this" is always locked before the object
+  private volatile P _prevalentSystem; // All writes to field are synchronized on "this". All access to object is synchronized on itself, or guarded by _queryLock if not null; "this" is always locked before the object
   private long _systemVersion; // All access is synchronized on "this"
   private boolean _ignoreRuntimeExceptions; // All access is synchronized on "this"
   private final Serializer _journalSerializer;
 
+  /**
+   * Null unless queries run concurrently: transactions are then executed under its write lock and queries under its read lock, instead of all of them synchronizing on the prevalent system.
+   */
+  private ReentrantReadWriteLock _queryLock;
+
+  /**
+   * Write-locked while a transaction is executed, when queries run concurrently, so that OptimisticQueries can tell whether one was executed while they ran. Never read-locked.
+   */
+  private final StampedLock _transactionStamps = new StampedLock();
+
   public PrevalentSystemGuard(P prevalentSystem, long systemVersion, Serializer journalSerializer) {
     _prevalentSystem = prevalentSystem;
     _systemVersion = systemVersion;
@@ -27,6 +40,15 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
     _journalSerializer = journalSerializer;
   }
 
+  /**
+   * Makes queries run concurrently with each other, under the read lock of a ReentrantReadWriteLock whose write lock is held while a transaction is executed. Must be called before the guard is used.
+   *
+   * @param fairToTransactions Whether the lock is fair, so that a transaction waits only for the queries that arrived before it, at some cost in query throughput. Otherwise new queries only wait for a transaction if it is the longest waiting thread, which a steady stream of queries can keep from happening for a while.
+   */
+  public void concurrentQueries(boolean fairToTransactions) {
+    _queryLock = new ReentrantReadWriteLock(fairToTransactions);
+  }
+
   public P prevalentSystem() {
     synchronized (this) {
       if (_prevalentSystem == null) {
@@ -70,10 +92,14 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
       try {
         // Don't synchronize on _prevalentSystem here so that the capsule can deserialize a fresh
         // copy of the transaction without blocking queries.
-        capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer);
+        if (_queryLock == null) {
+          capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer);
+        } else {
+          executeLocked(capsule, executionTime);
+        }
       } catch (RuntimeException rx) {
         if (!_ignoreRuntimeExceptions)
-          throw rx;  //TODO Guarantee that transactions received from pending transaction recovery don't ever throw RuntimeExceptions. Maybe use a wrapper for that.
+          throw rx;  //TODO Guarantee that transactions received from pending transaction recovery don't ever throw RuntimeExceptions. Those marked as aborted in the journal are already skipped (see Capsule.skipExecution()).
       } catch (Error error) {
         _prevalentSystem = null;
         throw error;
@@ -83,7 +109,21 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
     }
   }
 
+  private void executeLocked(Capsule capsule, Date executionTime) {
+    capsule.deserializeInAdvance(_journalSerializer);
+    _queryLock.writeLock().lock();
+    long stamp = _transactionStamps.writeLock();
+    try {
+      capsule.executeOn(_prevalentSystem, executionTime, _journalSerializer);
+    } finally {
+      _transactionStamps.unlockWrite(stamp);
+      _queryLock.writeLock().unlock();
+    }
+  }
+
   public <R> R executeQuery(Query<? super P, R> sensitiveQuery, Clock clock) throws Exception {
+    if (_queryLock != null) return executeConcurrently(sensitiveQuery, clock);
+
     synchronized (this) {
       if (_prevalentSystem == null) {
         throw new Error("Prevayler is no longer processing queries due to an Error thrown from an earlier transaction.");
@@ -95,6 +135,35 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
     }
   }
 
+  private <R> R executeConcurrently(Query<? super P, R> sensitiveQuery, Clock clock) throws Exception {
+    if (sensitiveQuery instanceof OptimisticQuery) {
+      long stamp = _transactionStamps.tryOptimisticRead();
+      if (stamp != 0) {
+        try {
+          R result = sensitiveQuery.query(prevalentSystemForQueries(), clock.time());
+          if (_transactionStamps.validate(stamp)) return result;
+        } catch (Throwable throwable) {  //A transaction running at the same time can make the query throw anything, StackOverflowError included.
+          if (_transactionStamps.validate(stamp)) throw throwable;
+        }
+      }
+    }
+
+    _queryLock.readLock().lock();
+    try {
+      return sensitiveQuery.query(prevalentSystemForQueries(), clock.time());
+    } finally {
+      _queryLock.readLock().unlock();
+    }
+  }
+
+  private P prevalentSystemForQueries() {
+    P prevalentSystem = _prevalentSystem;
+    if (prevalentSystem == null) {
+      throw new Error("Prevayler is no longer processing queries due to an Error thrown from an earlier transaction.");
+    }
+    return prevalentSystem;
+  }
+
   public File takeSnapshot(GenericSnapshotManager<P> snapshotManager) throws Exception {
     synchronized (this) {
       if (_prevalentSystem == null) {
@@ -122,7 +191,9 @@ public class PrevalentSystemGuard<P> implements TransactionSubscriber {
       }
 
       synchronized (_prevalentSystem) {
-        return new PrevalentSystemGuard<P>((P) DeepCopier.deepCopyParallel(_prevalentSystem, snapshotSerializer), _systemVersion, _journalSerializer);
+        PrevalentSystemGuard<P> copy = new PrevalentSystemGuard<P>((P) DeepCopier.deepCopyParallel(_prevalentSystem, snapshotSerializer), _systemVersion, _journalSerializer);
+        if (_queryLock != null) copy.concurrentQueries(_queryLock.isFair());
+        return copy;
       }
     }
   }
@@ -25,21 +25,73 @@ public class PrevaylerDirectory {
 
   private File _directory;
 
+  /**
+   * The directories holding the stripes of each journal file, the first being _directory itself.
+   */
+  private File[] _journalStripes;
+
+  /**
+   * Lists the snapshot and journal files in _directory, or null to list the directory itself.
+   */
+  private final DirectoryManifest _manifest;
+
   public PrevaylerDirectory(String directory) {
     this(new File(directory));
   }
 
   public PrevaylerDirectory(File directory) {
+    this(directory, new File[0]);
+  }
+
+  /**
+   * A directory whose journal files are striped across itself and the given additional directories,
+   * preferably on separate devices. Each stripe of a journal file has the same name in its own
+   * directory, and the stripe in this directory is always the last one created, so findInitialJournalFile()
+   * and journalFiles() only need to look here. Snapshots are kept in this directory only.
+   */
+  public PrevaylerDirectory(File directory, File[] additionalJournalDirectories) {
+    this(directory, additionalJournalDirectories, false);
+  }
+
+  /**
+   * @param manifest Whether snapshot and journal files are found through a DirectoryManifest kept in the
+   *                 directory instead of by listing it. Files are then added to and removed from the manifest
+   *                 with addToManifest() and removeFromManifest(), which do nothing otherwise. A single
+   *                 PrevaylerDirectory should be shared by everything using the directory, since it keeps the
+   *                 manifest in memory.
+   */
+  public PrevaylerDirectory(File directory, File[] additionalJournalDirectories, boolean manifest) {
     _directory = directory;
+    _manifest = manifest ? new DirectoryManifest(directory) : null;
+    _journalStripes = new File[additionalJournalDirectories.length + 1];
+    _journalStripes[0] = directory;
+    System.arraycopy(additionalJournalDirectories, 0, _journalStripes, 1, additionalJournalDirectories.length);
   }
 
   /**
-   * Ensure that the directory exists, creating it and parent directories if necessary.
+   * Ensure that the directory and any additional journal directories exist, creating them and parent directories if necessary.
    *
-   * @throws IOException if the directory can't be created or isn't a directory.
+   * @throws IOException if a directory can't be created or isn't a directory.
    */
   public void produceDirectory() throws IOException {
-    FileManager.produceDirectory(_directory);
+    for (int i = 0; i < _journalStripes.length; i++) {
+      FileManager.produceDirectory(_journalStripes[i]);
+    }
+  }
+
+  /**
+   * The number of directories each journal file is striped across. One unless additional journal directories were given.
+   */
+  public int journalStripeCount() {
+    return _journalStripes.length;
+  }
+
+  /**
+   * The given stripe of a journal file, which is the journal file itself for stripe zero.
+   */
+  public File journalStripeFile(File journal, int stripe) {
+    if (stripe == 0) return journal;
+    return new File(_journalStripes[stripe], journal.getName());
   }
 
   /**
@@ -94,8 +146,12 @@ public class PrevaylerDirectory {
     if (version < 0) {
       throw new IllegalArgumentException("Snapshot and journal version numbers must be non-negative: " + version);
     }
-    String fileName = "0000000000000000000" + version;
-    return new File(_directory, fileName.substring(fileName.length() - DIGITS_IN_FILENAME) + "." + suffix);
+    return new File(_directory, digits(version) + "." + suffix);
+  }
+
+  private static String digits(long version) {
+    String digits = "0000000000000000000" + version;
+    return digits.substring(digits.length() - DIGITS_IN_FILENAME);
   }
 
 
@@ -130,6 +186,8 @@ public class PrevaylerDirectory {
    * Returns null if no snapshot file was found.
    */
   public File latestSnapshot() throws IOException {
+    if (_manifest != null) return _manifest.latestSnapshot();
+
     File[] files = _directory.listFiles();
     if (files == null) throw new IOException("Error reading file list from directory " + _directory);
 
@@ -147,11 +205,16 @@ public class PrevaylerDirectory {
   }
 
   /**
-   * Find the journal file containing the desired transaction.
+   * Find the journal file containing the desired transaction. If journals are striped, this is the
+   * stripe in this directory and the others are found with journalStripeFile().
    * <p/>
    * Returns null if no appropriate journal file was found.
    */
-  public File findInitialJournalFile(long initialTransactionWanted) {
+  public File findInitialJournalFile(long initialTransactionWanted) throws IOException {
+    if (_manifest != null) {
+      return initialTransactionWanted < 0 ? null : _manifest.findInitialJournalFile(digits(initialTransactionWanted));
+    }
+
     File[] journals = _directory.listFiles(new FileFilter() {
       public boolean accept(File pathname) {
         return pathname.getName().matches(JOURNAL_FILENAME_PATTERN);
@@ -177,6 +240,57 @@ public class PrevaylerDirectory {
     return null;
   }
 
+  /**
+   * All journal files in the directory, whatever their suffix, in transaction order.
+   */
+  public File[] journalFiles() throws IOException {
+    if (_manifest != null) return _manifest.journalFiles();
+    return journalFiles(JOURNAL_SUFFIX_PATTERN);
+  }
+
+  /**
+   * All journal files in the directory with the given suffix, in transaction order.
+   */
+  public File[] journalFiles(final String suffix) {
+    File[] journals = _directory.listFiles(new FileFilter() {
+      public boolean accept(File pathname) {
+        return pathname.getName().matches("\\d{" + DIGITS_IN_FILENAME + "}\\." + suffix);
+      }
+    });
+    if (journals == null) {
+      return new File[0];
+    }
+
+    Arrays.sort(journals, new Comparator() {
+      public int compare(Object o1, Object o2) {
+        return new Long(journalVersion((File) o1)).compareTo(new Long(journalVersion((File) o2)));
+      }
+    });
+    return journals;
+  }
+
+  /**
+   * The preallocated file that will become the next journal file, prepared in advance by JournalSegmentManager.
+   */
+  public File spareJournalFile() {
+    return new File(_directory, "nextJournal.spare");
+  }
+
+  /**
+   * The file that becomes spareJournalFile() once it has been completely preallocated.
+   */
+  public File preparingSpareJournalFile() {
+    return new File(_directory, "nextJournal.spare.preparing");
+  }
+
+  /**
+   * The sparse index kept next to a journal file (see JournalIndex). Index files are not journal
+   * files and are never necessary for recovery, since they can be rebuilt.
+   */
+  public static File journalIndexFile(File journal) {
+    return new File(journal.getPath() + ".jindex");
+  }
+
   /**
    * Create a temporary file in the directory.
    */
@@ -184,6 +298,22 @@ public class PrevaylerDirectory {
     return File.createTempFile(prefix, suffix, _directory);
   }
 
+  /**
+   * Adds a snapshot or journal file in this directory to the manifest, if one is kept. Must be called
+   * before the file is created.
+   */
+  public void addToManifest(File file) throws IOException {
+    if (_manifest != null) _manifest.add(file);
+  }
+
+  /**
+   * Removes a snapshot or journal file from the manifest, if one is kept. Must be called after the file
+   * has been deleted or renamed away.
+   */
+  public void removeFromManifest(File file) throws IOException {
+    if (_manifest != null) _manifest.remove(file);
+  }
+
   /**
    * Rename a journal file to indicate it was found empty and is being ignored.
    */
@@ -196,13 +326,10 @@ public class PrevaylerDirectory {
    * Determine which snapshot and journal files are still necessary for recovery.
    * <p/>
    * Necessary files include the latest snapshot file and any journal files
-   * potentially containing transactions after that snapshot version.
+   * potentially containing transactions after that snapshot version, including
+   * their stripes in additional journal directories.
    */
   public Set necessaryFiles() throws IOException {
-    File[] allFiles = _directory.listFiles();
-    if (allFiles == null) {
-      throw new IOException("Error reading file list from directory " + _directory);
-    }
     File latestSnapshot = latestSnapshot();
     long systemVersion = latestSnapshot == null ? 0 : snapshotVersion(latestSnapshot);
     File initialJournal = findInitialJournalFile(systemVersion + 1);
@@ -213,13 +340,51 @@ public class PrevaylerDirectory {
     if (initialJournal != null) {
       neededFiles.add(initialJournal);
       long initialJournalVersion = journalVersion(initialJournal);
+      if (_manifest != null) {
+        addNecessaryJournalFiles(neededFiles, initialJournalVersion);
+        return neededFiles;
+      }
+
+      File[] allFiles = listFiles(_directory);
       for (int i = 0; i < allFiles.length; i++) {
         File file = allFiles[i];
         if (journalVersion(file) > initialJournalVersion) {
           neededFiles.add(file);
         }
       }
+      for (int stripe = 1; stripe < _journalStripes.length; stripe++) {
+        File[] stripeFiles = listFiles(_journalStripes[stripe]);
+        for (int i = 0; i < stripeFiles.length; i++) {
+          if (journalVersion(stripeFiles[i]) >= initialJournalVersion) {
+            neededFiles.add(stripeFiles[i]);
+          }
+        }
+      }
     }
     return neededFiles;
   }
+
+  /**
+   * Adds the journal files of the manifest from the initial one on, with their stripes.
+   */
+  private void addNecessaryJournalFiles(Set neededFiles, long initialJournalVersion) throws IOException {
+    File[] journals = _manifest.journalFiles();
+    for (int i = 0; i < journals.length; i++) {
+      long version = journalVersion(journals[i]);
+      if (version < initialJournalVersion) continue;
+      if (version > initialJournalVersion) neededFiles.add(journals[i]);
+      for (int stripe = 1; stripe < _journalStripes.length; stripe++) {
+        File stripeFile = journalStripeFile(journals[i], stripe);
+        if (stripeFile.exists()) neededFiles.add(stripeFile);
+      }
+    }
+  }
+
+  private static File[] listFiles(File directory) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      throw new IOException("Error reading file list from directory " + directory);
+    }
+    return files;
+  }
 }
@@ -5,15 +5,27 @@
 package org.prevayler.implementation;
 
 import org.prevayler.*;
+import org.prevayler.foundation.Turn;
 import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.publishing.CentralPublisher;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 
 import java.io.File;
 import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class PrevaylerImpl<P> implements Prevayler<P> {
 
+  public static final int DEFAULT_PIPELINE_THREADS = 16;
+  public static final int DEFAULT_PIPELINE_CAPACITY = 1024;
+
   private final PrevalentSystemGuard<P> _guard;
   private final Clock _clock;
 
@@ -24,6 +36,23 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
   private final Serializer _journalSerializer;
 
   private boolean _transactionDeepCopyMode;
+  private final boolean _immutableTransactionVerification;
+
+  private final int _pipelineThreads;
+  private final int _pipelineCapacity;
+
+  /**
+   * A permit for each transaction submitted with executeAsync() that the pipeline can hold, taken until it has been executed.
+   */
+  private final Semaphore _pipelineRoom;
+
+  /**
+   * Runs the publications claimed by executeAsync(), in the order they were claimed. Only started when first needed. All access guarded by _pipelineLock.
+   */
+  private ThreadPoolExecutor _pipeline;
+  private boolean _closed = false;
+  private Turn _nextPublicationTurn = Turn.first();  //Only used if the publisher is not a CentralPublisher.
+  private final Object _pipelineLock = new Object();
 
 
   /**
@@ -35,6 +64,37 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
    */
   public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
                        Serializer journalSerializer, boolean transactionDeepCopyMode) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, DEFAULT_PIPELINE_THREADS);
+  }
+
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode, int pipelineThreads) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, pipelineThreads, false);
+  }
+
+  /**
+   * @param immutableTransactionVerification Whether each ImmutableTransaction executed directly in deep copy mode is checked against the copy that would have been executed instead. See ImmutableTransaction.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode, int pipelineThreads,
+                       boolean immutableTransactionVerification) throws IOException, ClassNotFoundException {
+    this(snapshotManager, transactionPublisher, journalSerializer, transactionDeepCopyMode, pipelineThreads, DEFAULT_PIPELINE_CAPACITY, immutableTransactionVerification);
+  }
+
+  /**
+   * @param pipelineThreads The number of threads publishing transactions submitted with executeAsync().
+   * @param pipelineCapacity The number of transactions submitted with executeAsync() that can wait to be executed. Submitting more blocks until the oldest have been executed.
+   * @param immutableTransactionVerification Whether each ImmutableTransaction executed directly in deep copy mode is checked against the copy that would have been executed instead. See ImmutableTransaction.
+   */
+  public PrevaylerImpl(GenericSnapshotManager<P> snapshotManager, TransactionPublisher transactionPublisher,
+                       Serializer journalSerializer, boolean transactionDeepCopyMode, int pipelineThreads,
+                       int pipelineCapacity, boolean immutableTransactionVerification) throws IOException, ClassNotFoundException {
+    if (pipelineThreads < 1) throw new IllegalArgumentException("At least one pipeline thread is needed, not " + pipelineThreads);
+    if (pipelineCapacity < 1) throw new IllegalArgumentException("The pipeline capacity must be at least one: " + pipelineCapacity);
+    _pipelineThreads = pipelineThreads;
+    _pipelineCapacity = pipelineCapacity;
+    _pipelineRoom = new Semaphore(pipelineCapacity);
+
     _snapshotManager = snapshotManager;
 
     _guard = _snapshotManager.recoveredPrevalentSystem();
@@ -47,6 +107,7 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
     _journalSerializer = journalSerializer;
 
     _transactionDeepCopyMode = transactionDeepCopyMode;
+    _immutableTransactionVerification = immutableTransactionVerification;
   }
 
   public P prevalentSystem() {
@@ -60,11 +121,12 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
 
 
   public void execute(Transaction<? super P> transaction) {
-    publish(new TransactionCapsule<P>(transaction, _journalSerializer, _transactionDeepCopyMode));    //TODO Optimization: The Censor can use the actual given transaction if it is Immutable instead of deserializing a new one from the byte array, even if "_transactionDeepCopyMode" is "true"
+    publish(new TransactionCapsule<P>(transaction, _journalSerializer, _transactionDeepCopyMode));
   }
 
 
   private void publish(Capsule capsule) {
+    if (_immutableTransactionVerification) capsule.verifyImmutability();
     _publisher.publish(capsule);
   }
 
@@ -81,6 +143,121 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
   }
 
 
+  public CompletableFuture<Void> executeAsync(Transaction<? super P> transaction) {
+    final CompletableFuture<Void> future = new CompletableFuture<Void>();
+    submit(new TransactionCapsule<P>(transaction, _journalSerializer, _transactionDeepCopyMode), future, new Runnable() {
+      public void run() {
+        future.complete(null);
+      }
+    });
+    return future;
+  }
+
+
+  public <R> CompletableFuture<R> executeAsync(TransactionWithQuery<? super P, R> transactionWithQuery) {
+    final TransactionWithQueryCapsule<? super P, R> capsule = new TransactionWithQueryCapsule<P, R>(transactionWithQuery, _journalSerializer, _transactionDeepCopyMode);
+    final CompletableFuture<R> future = new CompletableFuture<R>();
+    submit(capsule, future, new Runnable() {
+      public void run() {
+        try {
+          future.complete(capsule.result());
+        } catch (Exception exception) {
+          future.completeExceptionally(exception);
+        }
+      }
+    });
+    return future;
+  }
+
+
+  /**
+   * Claims the turn and system version of the capsule in the calling thread, so that transactions are journaled and executed in the order they were submitted,
+   * and leaves the rest of the publication to the pipeline threads, which complete the future once the sync of the group the transaction was journaled with
+   * is over and it has been executed. Blocks while the pipeline is full.
+   */
+  private void submit(Capsule capsule, final CompletableFuture<?> future, final Runnable completion) {
+    try {
+      if (_immutableTransactionVerification) capsule.verifyImmutability();
+      _pipelineRoom.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      future.completeExceptionally(e);
+      return;
+    } catch (Throwable throwable) {
+      future.completeExceptionally(throwable);
+      return;
+    }
+
+    synchronized (_pipelineLock) {
+      if (_closed) {
+        _pipelineRoom.release();
+        future.completeExceptionally(new IllegalStateException("This Prevayler has been closed."));
+        return;
+      }
+      final Runnable publication;
+      try {
+        publication = claim(capsule);
+      } catch (Throwable throwable) {
+        _pipelineRoom.release();
+        future.completeExceptionally(throwable);
+        return;
+      }
+      pipeline().execute(new Runnable() {
+        public void run() {
+          try {
+            publication.run();
+            completion.run();
+          } catch (Throwable throwable) {
+            future.completeExceptionally(throwable);
+          } finally {
+            _pipelineRoom.release();
+          }
+        }
+      });
+    }
+  }
+
+
+  /**
+   * The publication of a capsule whose turn has already been taken. Other publishers than a CentralPublisher are kept in order by a Turn of their own. Guarded by _pipelineLock.
+   */
+  private Runnable claim(final Capsule capsule) {
+    if (_publisher instanceof CentralPublisher) return ((CentralPublisher) _publisher).claim(capsule);
+
+    final Turn turn = _nextPublicationTurn;
+    _nextPublicationTurn = turn.next();
+    return new Runnable() {
+      public void run() {
+        turn.start();
+        try {
+          _publisher.publish(capsule);
+        } finally {
+          turn.end();
+        }
+      }
+    };
+  }
+
+
+  /**
+   * Its queue can hold all transactions allowed in by _pipelineRoom, and its threads take them in the order they were queued. Guarded by _pipelineLock.
+   */
+  private ThreadPoolExecutor pipeline() {
+    if (_pipeline == null) {
+      _pipeline = new ThreadPoolExecutor(_pipelineThreads, _pipelineThreads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(_pipelineCapacity), new ThreadFactory() {
+        private final AtomicInteger _count = new AtomicInteger();
+
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Prevayler pipeline " + _count.incrementAndGet());
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    }
+    return _pipeline;
+  }
+
+
   public <R> R execute(SureTransactionWithQuery<? super P, R> sureTransactionWithQuery) {
     try {
       return execute((TransactionWithQuery<? super P, R>) sureTransactionWithQuery);
@@ -98,6 +275,18 @@ public class PrevaylerImpl<P> implements Prevayler<P> {
 
 
   public void close() throws IOException {
+    synchronized (_pipelineLock) {
+      _closed = true;
+      if (_pipeline != null) {
+        _pipeline.shutdown();
+        try {
+          while (!_pipeline.awaitTermination(1, TimeUnit.SECONDS)) ;
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException("Interrupted while waiting for asynchronous transactions to be executed");
+        }
+      }
+    }
     _publisher.close();
   }
 
@@ -3,6 +3,7 @@ package org.prevayler.implementation;
 import org.prevayler.Transaction;
 import org.prevayler.foundation.serialization.Serializer;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 class TransactionCapsule<P> extends Capsule {
@@ -17,6 +18,10 @@ class TransactionCapsule<P> extends Capsule {
     super(serialized);
   }
 
+  public TransactionCapsule(ByteBuffer serialized) {
+    super(serialized);
+  }
+
   protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
     ((Transaction<P>) transaction).executeOn((P) prevalentSystem, executionTime);
   }
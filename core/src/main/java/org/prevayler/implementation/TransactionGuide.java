@@ -1,8 +1,9 @@
 package org.prevayler.implementation;
 
-import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.BinaryChunking;
 import org.prevayler.foundation.Guided;
-import org.prevayler.foundation.Turn;
+import org.prevayler.foundation.JournalSyncPolicy;
+import org.prevayler.foundation.PipelineTurn;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -11,8 +12,9 @@ import java.util.Date;
 public class TransactionGuide extends Guided {
 
   private final TransactionTimestamp _transactionTimestamp;
+  private long _journalOffset = -1;
 
-  public TransactionGuide(TransactionTimestamp transactionTimestamp, Turn pipelineTurn) {
+  public TransactionGuide(TransactionTimestamp transactionTimestamp, PipelineTurn pipelineTurn) {
     super(pipelineTurn);
     _transactionTimestamp = transactionTimestamp;
   }
@@ -32,7 +34,45 @@ public class TransactionGuide extends Guided {
   }
 
   public void writeTo(OutputStream stream) throws IOException {
-    Chunking.writeChunk(stream, _transactionTimestamp.toChunk());
+    _transactionTimestamp.writeChunkTo(stream);
+  }
+
+  public void acknowledged(JournalSyncPolicy policy, boolean forced) {
+    _transactionTimestamp.capsule().journaled(policy, forced);
+  }
+
+  public void writtenAt(long offset) {
+    _journalOffset = offset;
+  }
+
+  /**
+   * The offset in its journal file at which the transaction was written, or -1 if it has not been written.
+   */
+  public long journalOffset() {
+    return _journalOffset;
+  }
+
+  /**
+   * A guide taking the same turn as this one that writes the transaction as a BinaryChunk.
+   */
+  public Guided binary() {
+    return new Guided(this) {
+      public void writeTo(OutputStream stream) throws IOException {
+        _transactionTimestamp.writeBinaryChunkTo(stream);
+      }
+
+      public void writeSyncMark(OutputStream stream, long syncedLength) throws IOException {
+        BinaryChunking.writeSyncMark(stream, syncedLength);
+      }
+
+      public void writtenAt(long offset) {
+        TransactionGuide.this.writtenAt(offset);
+      }
+
+      public void acknowledged(JournalSyncPolicy policy, boolean forced) {
+        TransactionGuide.this.acknowledged(policy, forced);
+      }
+    };
   }
 
 }
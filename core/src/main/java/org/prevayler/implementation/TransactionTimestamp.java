@@ -4,18 +4,45 @@
 
 package org.prevayler.implementation;
 
+import org.prevayler.foundation.BinaryChunk;
+import org.prevayler.foundation.BinaryChunking;
 import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.ScratchBuffer;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
 import java.util.Date;
 
+/**
+ * A journaled transaction with its version and execution time.
+ * <p/>
+ * The journal entry of a transaction can also carry abort markers: the versions of earlier transactions
+ * that threw a RuntimeException when first executed, so that recovery can skip them. In the text format
+ * they are a chunk parameter. In the binary format they are flagged and prefixed to the chunk bytes, as
+ * a count followed by the versions.
+ */
 public class TransactionTimestamp implements Serializable {
 
   static final long serialVersionUID = 1L;
 
+  private static final String ABORT_MARKERS_PARAMETER = "abortedTransactions";
+  private static final String ABORT_MARKERS_SEPARATOR = "+";
+  private static final int ABORT_MARKERS_FLAG = 2;
+  private static final long[] NO_ABORT_MARKERS = new long[0];
+
+  private static final byte[] WITH_QUERY_TRUE = ascii(";withQuery=true");
+  private static final byte[] WITH_QUERY_FALSE = ascii(";withQuery=false");
+  private static final byte[] SYSTEM_VERSION = ascii(";systemVersion=");
+  private static final byte[] EXECUTION_TIME = ascii(";executionTime=");
+
   private final Capsule _capsule;
   private final long _systemVersion;
   private final long _executionTime;
+  private transient long[] _abortMarkers = NO_ABORT_MARKERS;
 
   public TransactionTimestamp(Capsule capsule, long systemVersion, Date executionTime) {
     this(capsule, systemVersion, executionTime.getTime());
@@ -39,6 +66,20 @@ public class TransactionTimestamp implements Serializable {
     return new Date(_executionTime);
   }
 
+  /**
+   * The versions of earlier transactions that failed when first executed, journaled with this one.
+   */
+  public long[] abortMarkers() {
+    return _abortMarkers == null ? NO_ABORT_MARKERS : _abortMarkers;
+  }
+
+  /**
+   * Must be called before the transaction is written to the journal.
+   */
+  public void setAbortMarkers(long[] abortedTransactions) {
+    _abortMarkers = abortedTransactions;
+  }
+
   public TransactionTimestamp cleanCopy() {
     return new TransactionTimestamp(_capsule.cleanCopy(), _systemVersion, _executionTime);
   }
@@ -47,14 +88,122 @@ public class TransactionTimestamp implements Serializable {
     Chunk chunk = _capsule.toChunk();
     chunk.setParameter("systemVersion", String.valueOf(_systemVersion));
     chunk.setParameter("executionTime", String.valueOf(_executionTime));
+    if (abortMarkers().length > 0) chunk.setParameter(ABORT_MARKERS_PARAMETER, joinAbortMarkers(_abortMarkers));
     return chunk;
   }
 
+  /**
+   * Writes the same bytes as Chunking.writeChunk(stream, toChunk()), but encodes the chunk header
+   * straight into a ScratchBuffer instead of creating the Chunk, its parameter map and their Strings.
+   */
+  public void writeChunkTo(OutputStream stream) throws IOException {
+    if (abortMarkers().length > 0) {
+      Chunking.writeChunk(stream, toChunk());
+      return;
+    }
+
+    byte[] serialized = _capsule.serialized();
+    ScratchBuffer header = ScratchBuffer.acquire();
+    try {
+      header.writeHex(serialized.length);
+      header.writeAscii(_capsule.isWithQuery() ? WITH_QUERY_TRUE : WITH_QUERY_FALSE);
+      header.writeAscii(SYSTEM_VERSION);
+      header.writeDecimal(_systemVersion);
+      header.writeAscii(EXECUTION_TIME);
+      header.writeDecimal(_executionTime);
+      Chunking.writeChunk(stream, header, serialized);
+    } finally {
+      header.release();
+    }
+  }
+
+  /**
+   * Writes the same bytes as BinaryChunking.writeChunk(stream, toBinaryChunk()), without creating the BinaryChunk.
+   */
+  public void writeBinaryChunkTo(OutputStream stream) throws IOException {
+    if (abortMarkers().length > 0) {
+      BinaryChunking.writeChunk(stream, toBinaryChunk());
+      return;
+    }
+    BinaryChunking.writeChunk(stream, _capsule.serialized(), _capsule.binaryFlags(), _systemVersion, _executionTime);
+  }
+
   public static TransactionTimestamp fromChunk(Chunk chunk) {
     Capsule capsule = Capsule.fromChunk(chunk);
     long systemVersion = Long.parseLong(chunk.getParameter("systemVersion"));
     long executionTime = Long.parseLong(chunk.getParameter("executionTime"));
-    return new TransactionTimestamp(capsule, systemVersion, executionTime);
+    TransactionTimestamp timestamp = new TransactionTimestamp(capsule, systemVersion, executionTime);
+    timestamp.setAbortMarkers(abortMarkers(chunk));
+    return timestamp;
+  }
+
+  public BinaryChunk toBinaryChunk() {
+    if (abortMarkers().length == 0) {
+      return new BinaryChunk(_capsule.serialized(), _capsule.binaryFlags(), _systemVersion, _executionTime);
+    }
+    byte[] serialized = _capsule.serialized();
+    ByteBuffer bytes = ByteBuffer.allocate(4 + 8 * _abortMarkers.length + serialized.length);
+    bytes.putInt(_abortMarkers.length);
+    for (int i = 0; i < _abortMarkers.length; i++) bytes.putLong(_abortMarkers[i]);
+    bytes.put(serialized);
+    return new BinaryChunk(bytes.array(), _capsule.binaryFlags() | ABORT_MARKERS_FLAG, _systemVersion, _executionTime);
+  }
+
+  public static TransactionTimestamp fromBinaryChunk(BinaryChunk chunk) {
+    if ((chunk.getFlags() & ABORT_MARKERS_FLAG) == 0) {
+      return new TransactionTimestamp(Capsule.fromBinaryChunk(chunk), chunk.getVersion(), chunk.getTime());
+    }
+    ByteBuffer bytes = chunk.getByteBuffer();
+    long[] abortMarkers = readAbortMarkers(bytes);
+    BinaryChunk transaction = new BinaryChunk(bytes.slice(), chunk.getFlags() & ~ABORT_MARKERS_FLAG, chunk.getVersion(), chunk.getTime());
+    TransactionTimestamp timestamp = new TransactionTimestamp(Capsule.fromBinaryChunk(transaction), chunk.getVersion(), chunk.getTime());
+    timestamp.setAbortMarkers(abortMarkers);
+    return timestamp;
+  }
+
+  /**
+   * The abort markers of a Chunk, read without decoding the transaction.
+   */
+  public static long[] abortMarkers(Chunk chunk) {
+    String markers = chunk.getParameter(ABORT_MARKERS_PARAMETER);
+    if (markers == null) return NO_ABORT_MARKERS;
+    String[] versions = markers.split("\\" + ABORT_MARKERS_SEPARATOR);
+    long[] abortMarkers = new long[versions.length];
+    for (int i = 0; i < versions.length; i++) abortMarkers[i] = Long.parseLong(versions[i]);
+    return abortMarkers;
+  }
+
+  /**
+   * The abort markers of a BinaryChunk, read without decoding the transaction.
+   */
+  public static long[] abortMarkers(BinaryChunk chunk) {
+    if ((chunk.getFlags() & ABORT_MARKERS_FLAG) == 0) return NO_ABORT_MARKERS;
+    return readAbortMarkers(chunk.getByteBuffer());
+  }
+
+  private static long[] readAbortMarkers(ByteBuffer bytes) {
+    int count = bytes.getInt();
+    if (count < 0 || count > bytes.remaining() / 8) throw new IllegalArgumentException("Corrupted abort markers");
+    long[] abortMarkers = new long[count];
+    for (int i = 0; i < count; i++) abortMarkers[i] = bytes.getLong();
+    return abortMarkers;
+  }
+
+  private static byte[] ascii(String string) {
+    try {
+      return string.getBytes("US-ASCII");
+    } catch (UnsupportedEncodingException exception) {
+      throw new Error(exception);
+    }
+  }
+
+  private static String joinAbortMarkers(long[] abortMarkers) {
+    StringBuffer markers = new StringBuffer();
+    for (int i = 0; i < abortMarkers.length; i++) {
+      if (i > 0) markers.append(ABORT_MARKERS_SEPARATOR);
+      markers.append(abortMarkers[i]);
+    }
+    return markers.toString();
   }
 
 }
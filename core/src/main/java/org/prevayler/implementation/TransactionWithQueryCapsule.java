@@ -3,6 +3,7 @@ package org.prevayler.implementation;
 import org.prevayler.TransactionWithQuery;
 import org.prevayler.foundation.serialization.Serializer;
 
+import java.nio.ByteBuffer;
 import java.util.Date;
 
 class TransactionWithQueryCapsule<P, R> extends Capsule {
@@ -19,6 +20,10 @@ class TransactionWithQueryCapsule<P, R> extends Capsule {
     super(serialized);
   }
 
+  public TransactionWithQueryCapsule(ByteBuffer serialized) {
+    super(serialized);
+  }
+
   protected void justExecute(Object transaction, Object prevalentSystem, Date executionTime) {
     try {
       _queryResult = ((TransactionWithQuery<P, R>) transaction).executeAndQuery((P) prevalentSystem, executionTime);
@@ -7,34 +7,64 @@ package org.prevayler.implementation.clock;
 import org.prevayler.Clock;
 
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A Clock that stops at the time it is paused, for as long as it is paused at least once, and is then
+ * only moved forward by advanceTo(). It never goes back, even if the real clock does.
+ * <p/>
+ * The number of pauses and the time are kept in atomic longs of their own, without a lock, so neither
+ * limits the other. The first pause reads the real clock before it takes effect and only then moves the
+ * time forward to it, so no time read after it returns is earlier than the time it stops at.
+ */
 public class PausableClock implements Clock {
 
   private final Clock _realClock;
-  private final BrokenClock _brokenClock = new BrokenClock();
-  private Clock _activeClock;
+  private final AtomicLong _pauses = new AtomicLong(0);
+  private final AtomicLong _millis = new AtomicLong(Long.MIN_VALUE);
 
 
   public PausableClock(Clock realClock) {
     _realClock = realClock;
-    resume();
   }
 
-  public synchronized Date time() {
-    return _activeClock.time();
+  public Date time() {
+    if (_pauses.get() != 0) return new Date(_millis.get());
+
+    Date realTime = _realClock.time();
+    long millis = _millis.get();
+    return realTime.getTime() >= millis ? realTime : new Date(millis);
   }
 
-  public synchronized void pause() {
-    advanceTo(_realClock.time());
-    _activeClock = _brokenClock;
+  public void pause() {
+    while (true) {
+      long pauses = _pauses.get();
+      if (pauses != 0) {
+        if (_pauses.compareAndSet(pauses, pauses + 1)) return;
+        continue;
+      }
+      long realMillis = _realClock.time().getTime();
+      if (_pauses.compareAndSet(0, 1)) {
+        advanceTo(realMillis);
+        return;
+      }
+    }
   }
 
   public void advanceTo(Date time) {
-    _brokenClock.advanceTo(time);
+    advanceTo(time.getTime());
+  }
+
+  private void advanceTo(long millis) {
+    while (true) {
+      long current = _millis.get();
+      if (millis <= current) return;
+      if (_millis.compareAndSet(current, millis)) return;
+    }
   }
 
-  public synchronized void resume() {
-    _activeClock = _realClock;
+  public void resume() {
+    _pauses.decrementAndGet();
   }
 
   public Date realTime() {
@@ -0,0 +1,95 @@
+package org.prevayler.implementation.journal;
+
+import org.prevayler.foundation.BinaryChunking;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.DurableInputStream;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.monitor.SimpleMonitor;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+
+import java.io.*;
+
+/**
+ * Converts the journal files of a prevalence directory to the binary format of BinaryChunking,
+ * so that a system switched to the binary format does not have to keep reading its old journals
+ * in the chunked text format. Must only be run while no Prevayler is using the directory.
+ * <p/>
+ * Each file is converted to a temporary file which is synced and then renamed to the binary
+ * journal suffix before the original is deleted, so an interrupted conversion leaves every
+ * transaction in at least one readable file.
+ * <p/>
+ * Journals striped across additional directories are not supported: each file is converted as a whole journal.
+ */
+public class BinaryJournalConverter {
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1 || args.length > 2) {
+      System.err.println("Usage: java " + BinaryJournalConverter.class.getName() + " <prevalenceDirectory> [journalSuffix]");
+      System.exit(1);
+    }
+    String journalSuffix = args.length > 1 ? args[1] : "journal";
+    int converted = convert(new PrevaylerDirectory(args[0]), journalSuffix, new SimpleMonitor());
+    System.out.println(converted + " journal file(s) converted.");
+  }
+
+  /**
+   * Converts every journal file with the given suffix and returns the number of files converted.
+   */
+  public static int convert(PrevaylerDirectory directory, String journalSuffix, Monitor monitor) throws IOException {
+    PrevaylerDirectory.checkValidJournalSuffix(journalSuffix);
+    String binarySuffix = PersistentJournal.binaryJournalSuffix(journalSuffix);
+
+    File[] journals = directory.journalFiles(journalSuffix);
+    for (int i = 0; i < journals.length; i++) {
+      File journal = journals[i];
+      File binaryJournal = directory.journalFile(PrevaylerDirectory.journalVersion(journal), binarySuffix);
+      if (binaryJournal.exists()) {
+        throw new IOException("Both " + journal + " and " + binaryJournal + " exist");
+      }
+
+      File tempFile = directory.createTempFile("convert", "." + binarySuffix + "Temp");
+      try {
+        writeBinaryCopy(journal, tempFile, monitor);
+      } catch (IOException exception) {
+        tempFile.delete();
+        throw exception;
+      }
+
+      directory.addToManifest(binaryJournal);
+      if (!tempFile.renameTo(binaryJournal)) {
+        tempFile.delete();
+        throw new IOException("Unable to rename " + tempFile + " to " + binaryJournal);
+      }
+      if (!journal.delete()) {
+        throw new IOException("Unable to delete " + journal + " after converting it to " + binaryJournal);
+      }
+      directory.removeFromManifest(journal);
+      JournalIndex.delete(journal);  //Its offsets are those of the text file. The binary file is indexed during the next recovery.
+    }
+    return journals.length;
+  }
+
+  private static void writeBinaryCopy(File journal, File target, Monitor monitor) throws IOException {
+    DurableInputStream input = new DurableInputStream(journal, monitor);
+    FileOutputStream fileOutput = new FileOutputStream(target);
+    try {
+      OutputStream output = new BufferedOutputStream(fileOutput);
+      while (true) {
+        Chunk chunk;
+        try {
+          chunk = input.readChunk();
+        } catch (EOFException endOfJournal) {
+          break;
+        }
+        BinaryChunking.writeChunk(output, TransactionTimestamp.fromChunk(chunk).toBinaryChunk());
+      }
+      output.flush();
+      fileOutput.getFD().sync();
+    } finally {
+      input.close();
+      fileOutput.close();
+    }
+  }
+
+}
@@ -0,0 +1,132 @@
+package org.prevayler.implementation.journal;
+
+import org.prevayler.foundation.BlockCodec;
+import org.prevayler.foundation.BlockEncoding;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.DurableInputStream;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.Capsule;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.TransactionTimestamp;
+
+import java.io.*;
+
+/**
+ * Converts the journal files of a prevalence directory to block-encoded journal files, re-serializing
+ * each transaction with another serializer on the way. This is the migration path from journals
+ * encrypted transaction by transaction with a DESSerializer to journals encrypted block by block with
+ * an AESGCMBlockCodec:
+ * <pre>
+ *   BlockJournalConverter.convert(directory, "journal", new DESSerializer(new JavaSerializer(), desKey),
+ *       new JavaSerializer(), new AESGCMBlockCodec(aesKey), monitor);
+ * </pre>
+ * after which the Prevayler is configured with the new serializer and codec. Must only be run while no
+ * Prevayler is using the directory.
+ * <p/>
+ * As with BinaryJournalConverter, each file is converted to a temporary file which is synced and then
+ * renamed to the block journal suffix before the original is deleted, and journals striped across
+ * additional directories are not supported.
+ */
+public class BlockJournalConverter {
+
+  /**
+   * The number of bytes of transactions encoded together in each block of the converted files.
+   */
+  static final int BLOCK_SIZE = 64 * 1024;
+
+  /**
+   * Converts every journal file with the given suffix and returns the number of files converted.
+   *
+   * @param oldSerializer The serializer the transactions in the journal files were written with.
+   * @param newSerializer The serializer the Prevayler will be configured with to read them back.
+   * @param blockCodec    The block codec the Prevayler will be configured with.
+   */
+  public static int convert(PrevaylerDirectory directory, String journalSuffix, Serializer oldSerializer, Serializer newSerializer,
+                            BlockCodec blockCodec, Monitor monitor) throws IOException {
+    PrevaylerDirectory.checkValidJournalSuffix(journalSuffix);
+    String blockSuffix = PersistentJournal.blockJournalSuffix(journalSuffix);
+
+    File[] journals = directory.journalFiles(journalSuffix);
+    for (int i = 0; i < journals.length; i++) {
+      File journal = journals[i];
+      File blockJournal = directory.journalFile(PrevaylerDirectory.journalVersion(journal), blockSuffix);
+      if (blockJournal.exists()) {
+        throw new IOException("Both " + journal + " and " + blockJournal + " exist");
+      }
+
+      File tempFile = directory.createTempFile("convert", "." + blockSuffix + "Temp");
+      try {
+        writeBlockCopy(journal, tempFile, oldSerializer, newSerializer, blockCodec, monitor);
+      } catch (IOException exception) {
+        tempFile.delete();
+        throw exception;
+      }
+
+      directory.addToManifest(blockJournal);
+      if (!tempFile.renameTo(blockJournal)) {
+        tempFile.delete();
+        throw new IOException("Unable to rename " + tempFile + " to " + blockJournal);
+      }
+      if (!journal.delete()) {
+        throw new IOException("Unable to delete " + journal + " after converting it to " + blockJournal);
+      }
+      directory.removeFromManifest(journal);
+      JournalIndex.delete(journal);
+    }
+    return journals.length;
+  }
+
+  private static void writeBlockCopy(File journal, File target, Serializer oldSerializer, Serializer newSerializer,
+                                     BlockCodec blockCodec, Monitor monitor) throws IOException {
+    DurableInputStream input = new DurableInputStream(journal, monitor);
+    FileOutputStream fileOutput = new FileOutputStream(target);
+    try {
+      OutputStream output = new BufferedOutputStream(fileOutput);
+      byte[] parameters = blockCodec.startFile();
+      byte[] header = BlockEncoding.fileHeader(blockCodec, parameters);
+      output.write(header);
+      long offset = header.length;
+
+      ByteArrayOutputStream batch = new ByteArrayOutputStream();
+      while (true) {
+        Chunk chunk;
+        try {
+          chunk = input.readChunk();
+        } catch (EOFException endOfJournal) {
+          break;
+        }
+        reserialize(TransactionTimestamp.fromChunk(chunk), oldSerializer, newSerializer).writeChunkTo(batch);
+        if (batch.size() >= BLOCK_SIZE) offset += writeBlock(output, blockCodec, parameters, offset, batch);
+      }
+      if (batch.size() > 0) writeBlock(output, blockCodec, parameters, offset, batch);
+      output.flush();
+      fileOutput.getFD().sync();
+    } finally {
+      input.close();
+      fileOutput.close();
+    }
+  }
+
+  private static int writeBlock(OutputStream output, BlockCodec blockCodec, byte[] parameters, long offset, ByteArrayOutputStream batch) throws IOException {
+    byte[] block = BlockEncoding.block(blockCodec, parameters, offset, batch.toByteArray(), batch.size());
+    output.write(block);
+    batch.reset();
+    return block.length;
+  }
+
+  private static TransactionTimestamp reserialize(TransactionTimestamp timestamp, Serializer oldSerializer, Serializer newSerializer) throws IOException {
+    Capsule capsule;
+    try {
+      capsule = timestamp.capsule().reserialize(oldSerializer, newSerializer);
+    } catch (Exception exception) {
+      IOException failure = new IOException("Unable to reserialize transaction " + timestamp.systemVersion());
+      failure.initCause(exception);
+      throw failure;
+    }
+    TransactionTimestamp result = new TransactionTimestamp(capsule, timestamp.systemVersion(), timestamp.executionTime());
+    result.setAbortMarkers(timestamp.abortMarkers());
+    return result;
+  }
+
+}
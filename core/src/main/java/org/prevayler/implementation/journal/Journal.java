@@ -21,5 +21,10 @@ public interface Journal {
 
   public long nextTransaction();
 
+  /**
+   * Called when the given journaled transaction threw a RuntimeException when executed, so that the journal can mark it as aborted and have recovery skip it.
+   */
+  public void transactionFailed(long transaction);
+
 }
 // END SNIPPET: journal
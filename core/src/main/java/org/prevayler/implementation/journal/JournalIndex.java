@@ -0,0 +1,208 @@
+package org.prevayler.implementation.journal;
+
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+/**
+ * A sparse index of journal files, so that recovering from a transaction in the middle of a large
+ * journal file seeks close to it instead of reading every chunk before it. Every transaction whose
+ * number is a multiple of the interval is mapped to the offset of its chunk in a sidecar file named
+ * after the journal file (see PrevaylerDirectory.journalIndexFile()). Entries are 16 bytes, the
+ * transaction number followed by the offset, in transaction order, and are looked up by binary search.
+ * <p/>
+ * Entries are appended after their transactions are synced, without syncing the index file itself, so
+ * an index is only a hint: PersistentJournal only seeks to an entry once the chunk at its offset turns
+ * out to hold its transaction, and rebuilds any index found missing or stale while recovering.
+ */
+public class JournalIndex {
+
+  private static final int ENTRY_LENGTH = 16;
+
+  private final int _interval;
+
+  /**
+   * @param interval The number of transactions between entries.
+   */
+  public JournalIndex(int interval) {
+    if (interval < 1) throw new IllegalArgumentException("The journal index interval must be at least one transaction.");
+    _interval = interval;
+  }
+
+
+  public int interval() {
+    return _interval;
+  }
+
+
+  public boolean isIndexed(long transaction) {
+    return transaction % _interval == 0;
+  }
+
+
+  /**
+   * Starts a new, empty index for the given journal file, replacing any index left by an earlier file
+   * of the same name.
+   */
+  public Writer startIndexing(File journal) throws IOException {
+    return new Writer(PrevaylerDirectory.journalIndexFile(journal));
+  }
+
+
+  /**
+   * The entry of the given journal file's index with the greatest transaction not after the given
+   * one, as {transaction, offset}, or null if there is no such entry or no index.
+   */
+  public static long[] find(File journal, long transaction) throws IOException {
+    File indexFile = PrevaylerDirectory.journalIndexFile(journal);
+    if (!indexFile.exists()) return null;
+
+    RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+    try {
+      long low = 0;
+      long high = index.length() / ENTRY_LENGTH - 1;
+      long[] found = null;
+      while (low <= high) {
+        long middle = (low + high) >>> 1;
+        index.seek(middle * ENTRY_LENGTH);
+        long indexed = index.readLong();
+        if (indexed <= transaction) {
+          found = new long[]{indexed, index.readLong()};
+          low = middle + 1;
+        } else {
+          high = middle - 1;
+        }
+      }
+      return found;
+    } finally {
+      index.close();
+    }
+  }
+
+
+  /**
+   * Deletes the index of a journal file that is being renamed away or replaced.
+   */
+  public static void delete(File journal) {
+    PrevaylerDirectory.journalIndexFile(journal).delete();
+  }
+
+
+  /**
+   * Collects the entries of a journal file read from its start, to rewrite its index if that is found
+   * missing or different.
+   */
+  public Rebuilder rebuild(File journal) {
+    return new Rebuilder(journal);
+  }
+
+
+  /**
+   * Appends entries to the index of the journal file being written. Not thread safe: PersistentJournal
+   * appends in transaction order, taking the turn of each transaction.
+   */
+  public static class Writer {
+
+    private final File _file;
+    private final FileOutputStream _output;
+    private final byte[] _entry = new byte[ENTRY_LENGTH];
+    private boolean _closed = false;
+
+    private Writer(File file) throws IOException {
+      _file = file;
+      _output = new FileOutputStream(file);
+    }
+
+    public File file() {
+      return _file;
+    }
+
+    public void append(long transaction, long offset) throws IOException {
+      if (_closed) return;
+      putLong(_entry, 0, transaction);
+      putLong(_entry, 8, offset);
+      _output.write(_entry);
+    }
+
+    public void close() throws IOException {
+      if (_closed) return;
+      _closed = true;
+      _output.close();
+    }
+
+    /**
+     * Stops indexing and deletes the index, after it could not be written. It is rebuilt during the next recovery.
+     */
+    public void discard() {
+      try {
+        close();
+      } catch (IOException ignored) {
+      }
+      _file.delete();
+    }
+
+  }
+
+
+  public class Rebuilder {
+
+    private final File _journal;
+    private final ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+    private final DataOutputStream _entries = new DataOutputStream(_bytes);
+
+    private Rebuilder(File journal) {
+      _journal = journal;
+    }
+
+    public void read(long transaction, long offset) throws IOException {
+      if (!isIndexed(transaction)) return;
+      _entries.writeLong(transaction);
+      _entries.writeLong(offset);
+    }
+
+    /**
+     * @return Whether the index had to be rewritten.
+     */
+    public boolean finish() throws IOException {
+      byte[] rebuilt = _bytes.toByteArray();
+      File indexFile = PrevaylerDirectory.journalIndexFile(_journal);
+      if (indexFile.exists() && Arrays.equals(rebuilt, contents(indexFile))) return false;
+
+      FileOutputStream output = new FileOutputStream(indexFile);
+      try {
+        output.write(rebuilt);
+      } finally {
+        output.close();
+      }
+      return true;
+    }
+
+    private byte[] contents(File indexFile) throws IOException {
+      RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+      try {
+        if (index.length() != _bytes.size()) return null;
+        byte[] contents = new byte[(int) index.length()];
+        index.readFully(contents);
+        return contents;
+      } finally {
+        index.close();
+      }
+    }
+
+  }
+
+
+  private static void putLong(byte[] bytes, int offset, long value) {
+    for (int i = 7; i >= 0; i--) {
+      bytes[offset + i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+}
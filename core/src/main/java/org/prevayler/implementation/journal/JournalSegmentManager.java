@@ -0,0 +1,258 @@
+package org.prevayler.implementation.journal;
+
+import org.prevayler.foundation.DurableOutput;
+import org.prevayler.foundation.DurableOutputStream;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.implementation.PrevaylerDirectory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Takes the slow parts of starting a new journal file off the transaction pipeline. A spare file,
+ * already created and filled with zeros up to the expected journal size, is kept ready on a
+ * background thread, so that starting a new journal file only takes a rename. Retired journal files
+ * are truncated and closed on the same thread.
+ * <p/>
+ * Optionally, the spare is made from the oldest journal file that is no longer needed for recovery
+ * (see PrevaylerDirectory.necessaryFiles()) instead of a new file, so that its disk space is reused.
+ * Such files are overwritten with zeros before use, since the journal readers treat a zeroed tail as
+ * the end of the journal but would misread the old transactions. A file that may still be read, by a
+ * replica catching up for example, is not recycled: see startReading().
+ */
+public class JournalSegmentManager {
+
+  private static final int ZEROS_LENGTH = 64 * 1024;
+
+  private final PrevaylerDirectory _directory;
+  private final long _segmentLength;
+  private final boolean _recycleUnnecessaryJournals;
+  private final Monitor _monitor;
+
+  private final ExecutorService _background;
+
+  /**
+   * Guards renaming files to and from the spare journal file name. All access to _preparationPending
+   * is also guarded by this lock.
+   */
+  private final Object _spareLock = new Object();
+  private boolean _preparationPending = false;
+
+  /**
+   * The first transactions still to be read from the journal files by each reader, as Longs. Guards
+   * choosing a journal file to recycle and renaming it, so that a reader either keeps it from being
+   * chosen or does not find it.
+   */
+  private final List _readers = new ArrayList();
+
+  /**
+   * The first exception thrown while closing a retired journal file, if any.
+   */
+  private volatile Exception _failure;
+
+  /**
+   * @param journalSizeThresholdInBytes The size threshold of the journal, which is preallocated in each spare file. If zero, a default length is preallocated.
+   * @param recycleUnnecessaryJournals  Whether journal files no longer needed for recovery are reused as spares.
+   */
+  public JournalSegmentManager(PrevaylerDirectory directory, long journalSizeThresholdInBytes, boolean recycleUnnecessaryJournals, Monitor monitor) throws IOException {
+    _directory = directory;
+    _directory.produceDirectory();
+    _segmentLength = journalSizeThresholdInBytes == 0 ? DurableOutputStream.JOURNAL_PREALLOCATE_LENGTH : journalSizeThresholdInBytes;
+    _recycleUnnecessaryJournals = recycleUnnecessaryJournals;
+    _monitor = monitor;
+
+    _background = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "Prevayler journal segment manager");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+
+    _directory.preparingSpareJournalFile().delete();  //Left behind half prepared by a crash.
+    requestSpare();
+  }
+
+
+  /**
+   * Renames the spare file to the given journal file if one is ready. Never waits for a spare to be
+   * prepared.
+   *
+   * @return Whether the journal file is now a preallocated spare. If not, it has to be created as usual.
+   */
+  public boolean claimSpare(File journal) {
+    boolean claimed;
+    synchronized (_spareLock) {
+      File spare = _directory.spareJournalFile();
+      claimed = spare.exists() && !journal.exists() && spare.renameTo(journal);
+    }
+    requestSpare();
+    return claimed;
+  }
+
+
+  /**
+   * Closes the given journal file on the background thread. All objects written to it must have been synced.
+   */
+  public void retire(final DurableOutput journal) {
+    _background.execute(new Runnable() {
+      public void run() {
+        try {
+          journal.close();
+        } catch (Exception exception) {
+          if (_failure == null) _failure = exception;
+          _monitor.notify(JournalSegmentManager.class, "Unable to close retired journal file.", journal.file(), exception);
+        }
+      }
+    });
+  }
+
+
+  /**
+   * Keeps the journal files holding the given transaction and the later ones from being recycled until
+   * finishedReading() is called with the same transaction. Must be called before the files are looked
+   * for.
+   */
+  public void startReading(long initialTransaction) {
+    synchronized (_readers) {
+      _readers.add(Long.valueOf(initialTransaction));
+    }
+  }
+
+
+  public void finishedReading(long initialTransaction) {
+    synchronized (_readers) {
+      _readers.remove(Long.valueOf(initialTransaction));
+    }
+  }
+
+
+  /**
+   * The first exception thrown while closing a retired journal file, or null.
+   */
+  public Exception failure() {
+    return _failure;
+  }
+
+
+  private void requestSpare() {
+    synchronized (_spareLock) {
+      if (_preparationPending) return;
+      _preparationPending = true;
+    }
+    _background.execute(new Runnable() {
+      public void run() {
+        try {
+          prepareSpare();
+        } catch (IOException exception) {
+          _directory.preparingSpareJournalFile().delete();
+          _monitor.notify(JournalSegmentManager.class, "Unable to prepare the next journal file in advance. It will be created when needed.",
+              _directory.preparingSpareJournalFile(), exception);
+        } finally {
+          synchronized (_spareLock) {
+            _preparationPending = false;
+          }
+        }
+      }
+    });
+  }
+
+
+  private void prepareSpare() throws IOException {
+    if (_directory.spareJournalFile().exists()) return;
+
+    File preparing = _directory.preparingSpareJournalFile();
+    if (_recycleUnnecessaryJournals) {
+      File unnecessary;
+      boolean renamed;
+      synchronized (_readers) {
+        unnecessary = oldestUnnecessaryJournal();
+        renamed = unnecessary != null && unnecessary.renameTo(preparing);
+      }
+      if (renamed) {
+        _directory.removeFromManifest(unnecessary);
+        JournalIndex.delete(unnecessary);
+        _monitor.notify(JournalSegmentManager.class, "Recycling journal file no longer needed for recovery.", unnecessary);
+      }
+    }
+
+    fillWithZeros(preparing);
+
+    synchronized (_spareLock) {
+      if (!preparing.renameTo(_directory.spareJournalFile())) {
+        throw new IOException("Unable to rename " + preparing + " to " + _directory.spareJournalFile());
+      }
+    }
+  }
+
+
+  /**
+   * Must be called holding the _readers lock.
+   */
+  private File oldestUnnecessaryJournal() throws IOException {
+    Set necessary = _directory.necessaryFiles();
+    File[] journals = _directory.journalFiles();
+    for (int i = 0; i < journals.length; i++) {
+      if (necessary.contains(journals[i])) continue;
+      long nextJournal = i + 1 < journals.length ? PrevaylerDirectory.journalVersion(journals[i + 1]) : Long.MAX_VALUE;
+      return nextJournal > firstTransactionRead() ? null : journals[i];  //Later files are read too.
+    }
+    return null;
+  }
+
+
+  /**
+   * Must be called holding the _readers lock.
+   */
+  private long firstTransactionRead() {
+    long first = Long.MAX_VALUE;
+    for (int i = 0; i < _readers.size(); i++) first = Math.min(first, ((Long) _readers.get(i)).longValue());
+    return first;
+  }
+
+
+  /**
+   * Overwrites the whole file with zeros, actually allocating its blocks rather than leaving holes,
+   * and syncs it so that no metadata needs to be synced when the journal is first written.
+   */
+  private void fillWithZeros(File file) throws IOException {
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    try {
+      output.setLength(_segmentLength);
+      byte[] zeros = new byte[ZEROS_LENGTH];
+      long remaining = _segmentLength;
+      while (remaining > 0) {
+        int length = (int) Math.min(remaining, zeros.length);
+        output.write(zeros, 0, length);
+        remaining -= length;
+      }
+      output.getFD().sync();
+    } finally {
+      output.close();
+    }
+  }
+
+
+  /**
+   * Waits for retired journal files to be closed and stops the background thread. The spare file, if
+   * any, is left in place to be used by the next PersistentJournal on the same directory.
+   */
+  public void close() throws IOException {
+    _background.shutdown();
+    try {
+      while (!_background.awaitTermination(1, TimeUnit.SECONDS)) ;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while closing retired journal files");
+    }
+  }
+
+}
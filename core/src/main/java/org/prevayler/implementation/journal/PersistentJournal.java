@@ -7,35 +7,112 @@ package org.prevayler.implementation.journal;
 
 import org.prevayler.foundation.*;
 import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.monitor.NullMonitor;
 import org.prevayler.implementation.PrevaylerDirectory;
 import org.prevayler.implementation.TransactionGuide;
 import org.prevayler.implementation.TransactionTimestamp;
 import org.prevayler.implementation.publishing.TransactionSubscriber;
 
+import java.io.Closeable;
 import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
 
 
 /**
  * A Journal that will write all transactions to .journal files.
+ * <p/>
+ * Transactions can alternatively be written in the binary format of BinaryChunking, to files whose
+ * suffix is the journal suffix prefixed with "b" (.bjournal by default). Files of both formats are
+ * read during recovery, so a system can switch formats at any time.
+ * <p/>
+ * If the PrevaylerDirectory has additional journal directories, each journal file is striped across
+ * all of them: transaction n is written to stripe n % stripeCount, each stripe through its own
+ * DurableOutput, so that groups of transactions on different devices are synced in parallel.
+ * Recovery reads the stripes of each journal file back in the same rotation. A transaction is still
+ * only executed after all transactions before it have been synced, so a crash can only lose a suffix
+ * of the transactions, possibly leaving later ones in other stripes. Those are ignored, since the
+ * next journal file is started where recovery stopped and any later journal files are renamed away.
+ * <p/>
+ * Optionally, journal files in a single stripe are indexed by a sparse JournalIndex, so that recovery
+ * and journal tailing seek straight to the transactions they want instead of reading each journal
+ * file from its start.
+ * <p/>
+ * Optionally, transactions that throw a RuntimeException when first executed are marked as aborted in
+ * the journal entry of a later transaction, and recovery skips them without deserializing them. Since
+ * markers follow the transactions they mark, recovery holds back the last few transactions it reads
+ * until the markers that may follow them have been read. Only systems whose failing transactions leave
+ * them unchanged can use abort markers, since skipped transactions do not get to change them again.
+ * <p/>
+ * Optionally, each group of transactions synced together is written as a single block encoded by a
+ * BlockCodec, compressed for example, to files whose suffix is prefixed with "z" (.zjournal and
+ * .zbjournal by default). Block-encoded files are always written through a buffered FileOutputStream,
+ * and can only be read back with the same codec configured. Their indexes hold offsets in the decoded
+ * contents, so seeking to a transaction still decodes the blocks before it.
  */
 public class PersistentJournal implements Journal {
 
+  /**
+   * The number of transactions recovery holds back waiting for abort markers. Transactions marked later are executed anyway.
+   */
+  private static final int ABORT_MARKER_WINDOW = 1024;
+
   private final PrevaylerDirectory _directory;
-  private DurableOutputStream _outputJournal;
+  private DurableOutput _outputJournal;
+
+  /**
+   * The stripes of the current journal file, the first being _outputJournal.
+   */
+  private DurableOutput[] _outputStripes;
+
+  /**
+   * The index of the current journal file, or null if it is not indexed.
+   */
+  private JournalIndex.Writer _indexWriter;
+
+  /**
+   * Guards _taps and starting new journal files, so that taps follow the journal from file to file.
+   */
+  private final Object _tapLock = new Object();
+  private final List _taps = new ArrayList();
+
+  /**
+   * Closed along with this journal, before its files. See closeWithJournal().
+   */
+  private final List _closeables = new ArrayList();
 
   private final long _journalSizeThresholdInBytes;
   private final long _journalAgeThresholdInMillis;
   private StopWatch _journalAgeTimer;
 
-  private final boolean _journalDiskSync;
+  private final JournalSyncPolicy _journalSyncPolicy;
+  private final boolean _journalMemoryMapped;
+  private final boolean _journalBinaryFormat;
+  private final GroupCommitPolicy _groupCommit;
+  private final JournalSegmentManager _segmentManager;
+  private final RecoveryPipeline _recoveryPipeline;
+  private final JournalIndex _journalIndex;
+  private final boolean _abortMarkers;
+  private final BlockCodec _blockCodec;
+
+  /**
+   * Transactions that failed since the last journal entry was written, to be marked as aborted in the next one.
+   */
+  private final List _failedTransactions = new ArrayList();
 
   private long _nextTransaction;
   private boolean _nextTransactionInitialized = false;
   private Monitor _monitor;
 
   private final String _journalSuffix;
+  private final String _binaryJournalSuffix;
+  private final String _blockJournalSuffix;
+  private final String _blockBinaryJournalSuffix;
 
   /**
    * @param directory
@@ -44,6 +121,26 @@ public class PersistentJournal implements Journal {
    */
   public PersistentJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
                            boolean journalDiskSync, String journalSuffix, Monitor monitor) throws IOException {
+    this(directory, journalSizeThresholdInBytes, journalAgeThresholdInMillis,
+        journalDiskSync ? (JournalSyncPolicy) new PerGroupSyncPolicy() : new OSManagedSyncPolicy(),
+        false, false, null, null, null, null, false, null, journalSuffix, monitor);
+  }
+
+  /**
+   * @param journalSyncPolicy When transactions written to the journal are forced to disk. See JournalSyncPolicy.
+   * @param journalMemoryMapped Whether journal files are written through memory-mapped segments (see MappedJournalOutputStream) instead of a buffered FileOutputStream, and read through a MappedJournalReader during recovery.
+   * @param journalBinaryFormat Whether new journal files are written in the binary format, with the suffix returned by binaryJournalSuffix().
+   * @param groupCommit How long each sync waits for more transactions to be written. Null to sync right away.
+   * @param segmentManager Prepares new journal files in advance and closes old ones in the background. Null to do both while the transaction pipeline waits.
+   * @param recoveryPipeline Decodes and deserializes transactions on several threads during recovery. Null to recover them one at a time.
+   * @param journalIndex Indexes journal files that are not striped. Null to read every journal file from its start.
+   * @param abortMarkers Whether transactions that failed when first executed are marked as aborted, so that recovery skips them.
+   * @param blockCodec Encodes each group of transactions synced together in new journal files, and decodes block-encoded journal files during recovery. Null to write transactions as they are.
+   */
+  public PersistentJournal(PrevaylerDirectory directory, long journalSizeThresholdInBytes, long journalAgeThresholdInMillis,
+                           JournalSyncPolicy journalSyncPolicy, boolean journalMemoryMapped, boolean journalBinaryFormat,
+                           GroupCommitPolicy groupCommit, JournalSegmentManager segmentManager, RecoveryPipeline recoveryPipeline,
+                           JournalIndex journalIndex, boolean abortMarkers, BlockCodec blockCodec, String journalSuffix, Monitor monitor) throws IOException {
     PrevaylerDirectory.checkValidJournalSuffix(journalSuffix);
 
     _monitor = monitor;
@@ -51,8 +148,35 @@ public class PersistentJournal implements Journal {
     _directory.produceDirectory();
     _journalSizeThresholdInBytes = journalSizeThresholdInBytes;
     _journalAgeThresholdInMillis = journalAgeThresholdInMillis;
-    _journalDiskSync = journalDiskSync;
+    _journalSyncPolicy = journalSyncPolicy;
+    _journalMemoryMapped = journalMemoryMapped;
+    _journalBinaryFormat = journalBinaryFormat;
+    _groupCommit = groupCommit;
+    _segmentManager = segmentManager;
+    _recoveryPipeline = recoveryPipeline;
+    _journalIndex = journalIndex;
+    _abortMarkers = abortMarkers;
+    _blockCodec = blockCodec;
     _journalSuffix = journalSuffix;
+    _binaryJournalSuffix = binaryJournalSuffix(journalSuffix);
+    _blockJournalSuffix = blockJournalSuffix(journalSuffix);
+    _blockBinaryJournalSuffix = blockJournalSuffix(_binaryJournalSuffix);
+  }
+
+
+  /**
+   * The suffix of journal files written in the binary format by a journal configured with the given suffix.
+   */
+  public static String binaryJournalSuffix(String journalSuffix) {
+    return "b" + journalSuffix;
+  }
+
+
+  /**
+   * The suffix of block-encoded journal files written by a journal configured with the given suffix, itself prefixed with "b" for the binary format.
+   */
+  public static String blockJournalSuffix(String journalSuffix) {
+    return "z" + journalSuffix;
   }
 
 
@@ -60,38 +184,59 @@ public class PersistentJournal implements Journal {
     if (!_nextTransactionInitialized)
       throw new IllegalStateException("Journal.update() has to be called at least once before Journal.append().");
 
-    DurableOutputStream myOutputJournal;
-    DurableOutputStream outputJournalToClose = null;
+    DurableOutput myOutputJournal;
+    DurableOutput[] outputStripesToClose = null;
+    JournalIndex.Writer myIndexWriter;
+    JournalIndex.Writer indexWriterToClose = null;
 
     guide.startTurn();
     try {
       guide.checkSystemVersion(_nextTransaction);
 
+      if (_segmentManager != null && _segmentManager.failure() != null) {
+        abort(_segmentManager.failure(), _outputJournal.file(), "closing", guide);
+      }
+
       if (!isOutputJournalStillValid()) {
-        outputJournalToClose = _outputJournal;
-        _outputJournal = createOutputJournal(_nextTransaction, guide);
+        synchronized (_tapLock) {
+          outputStripesToClose = _outputStripes;
+          _outputStripes = createOutputStripes(_nextTransaction, guide);
+          _outputJournal = _outputStripes[0];
+          addTaps(_outputJournal, guide);
+        }
+        indexWriterToClose = _indexWriter;
+        _indexWriter = startIndexing(_outputJournal.file());
         _journalAgeTimer = StopWatch.start();
       }
 
-      _nextTransaction++;
+      myOutputJournal = _outputStripes[stripe(_nextTransaction, _outputStripes.length)];
+      myIndexWriter = _journalIndex != null && _journalIndex.isIndexed(_nextTransaction) ? _indexWriter : null;
+      if (_abortMarkers) guide.timestamp().setAbortMarkers(takeFailedTransactions());
 
-      myOutputJournal = _outputJournal;
+      _nextTransaction++;
     } finally {
       guide.endTurn();
     }
 
     try {
-      myOutputJournal.sync(guide);
+      myOutputJournal.sync(_journalBinaryFormat ? guide.binary() : guide);
     } catch (Exception exception) {
-      abort(exception, _outputJournal.file(), "writing to", guide);
+      abort(exception, myOutputJournal.file(), "writing to", guide);
     }
 
     guide.startTurn();
     try {
-      try {
-        if (outputJournalToClose != null) outputJournalToClose.close();
-      } catch (Exception exception) {
-        abort(exception, outputJournalToClose.file(), "closing", guide);
+      if (myIndexWriter != null) index(myIndexWriter, guide);
+      if (indexWriterToClose != null) closeIndex(indexWriterToClose);
+      if (outputStripesToClose != null) {
+        for (int i = 0; i < outputStripesToClose.length; i++) {
+          try {
+            if (_segmentManager != null) _segmentManager.retire(outputStripesToClose[i]);
+            else outputStripesToClose[i].close();
+          } catch (Exception exception) {
+            abort(exception, outputStripesToClose[i].file(), "closing", guide);
+          }
+        }
       }
     } finally {
       guide.endTurn();
@@ -99,6 +244,26 @@ public class PersistentJournal implements Journal {
   }
 
 
+  public void transactionFailed(long transaction) {
+    if (!_abortMarkers) return;
+    synchronized (_failedTransactions) {
+      _failedTransactions.add(new Long(transaction));
+    }
+  }
+
+
+  private long[] takeFailedTransactions() {
+    synchronized (_failedTransactions) {
+      long[] failed = new long[_failedTransactions.size()];
+      for (int i = 0; i < failed.length; i++) {
+        failed[i] = ((Long) _failedTransactions.get(i)).longValue();
+      }
+      _failedTransactions.clear();
+      return failed;
+    }
+  }
+
+
   private boolean isOutputJournalStillValid() {
     return _outputJournal != null
         && !isOutputJournalTooBig()
@@ -112,16 +277,147 @@ public class PersistentJournal implements Journal {
   }
 
 
+  /**
+   * The size threshold applies to each stripe.
+   */
   private boolean isOutputJournalTooBig() {
-    return _journalSizeThresholdInBytes != 0
-        && _outputJournal.file().length() >= _journalSizeThresholdInBytes;
+    if (_journalSizeThresholdInBytes == 0) return false;
+    for (int i = 0; i < _outputStripes.length; i++) {
+      if (_outputStripes[i].length() >= _journalSizeThresholdInBytes) return true;
+    }
+    return false;
+  }
+
+
+  /**
+   * Starts passing the bytes synced to the journal to the given tap, from the current journal file
+   * on, and then to every new journal file. Not supported with striped journals.
+   *
+   * @return The first transaction of the journal file the tap starts in, or of the next journal file if none has been started yet. Journal files starting with earlier transactions are complete.
+   */
+  public long addJournalTap(JournalTap tap) throws IOException {
+    if (_directory.journalStripeCount() > 1) {
+      throw new UnsupportedOperationException("Journal taps are not supported with striped journals.");
+    }
+    synchronized (_tapLock) {
+      _taps.add(tap);
+      if (_outputJournal == null) return nextTransaction();
+      _outputJournal.addTap(tap);
+      return PrevaylerDirectory.journalVersion(_outputJournal.file());
+    }
+  }
+
+
+  public void removeJournalTap(JournalTap tap) {
+    synchronized (_tapLock) {
+      _taps.remove(tap);
+      if (_outputJournal != null) _outputJournal.removeTap(tap);
+    }
+  }
+
+
+  /**
+   * Closes the given resource, typically a server shipping this journal to replicas, when this journal
+   * is closed. Failures to close it are reported to the Monitor.
+   */
+  public void closeWithJournal(Closeable closeable) {
+    synchronized (_closeables) {
+      _closeables.add(closeable);
+    }
+  }
+
+
+  /**
+   * Must be called holding the _tapLock.
+   */
+  private void addTaps(DurableOutput outputJournal, Guided guide) {
+    for (int i = 0; i < _taps.size(); i++) {
+      try {
+        outputJournal.addTap((JournalTap) _taps.get(i));
+      } catch (IOException exception) {
+        abort(exception, outputJournal.file(), "creating", guide);
+      }
+    }
+  }
+
+
+  /**
+   * @return null if journal files are not indexed or are striped.
+   */
+  private JournalIndex.Writer startIndexing(File journal) {
+    if (_journalIndex == null || _outputStripes.length > 1) return null;
+    try {
+      return _journalIndex.startIndexing(journal);
+    } catch (IOException exception) {
+      _monitor.notify(PersistentJournal.class, "Unable to create journal index. The journal file will be indexed during the next recovery.", journal, exception);
+      JournalIndex.delete(journal);
+      return null;
+    }
+  }
+
+
+  /**
+   * Called in the turn of the transaction, after it is synced, so that entries are appended in transaction order and only for synced transactions.
+   */
+  private void index(JournalIndex.Writer writer, TransactionGuide guide) {
+    try {
+      writer.append(guide.timestamp().systemVersion(), guide.journalOffset());
+    } catch (IOException exception) {
+      _monitor.notify(PersistentJournal.class, "Unable to write journal index. The journal file will be indexed during the next recovery.", writer.file(), exception);
+      writer.discard();
+    }
   }
 
 
-  private DurableOutputStream createOutputJournal(long transactionNumber, Guided guide) {
-    File file = _directory.journalFile(transactionNumber, _journalSuffix);
+  private void closeIndex(JournalIndex.Writer writer) {
     try {
-      return new DurableOutputStream(file, _journalDiskSync, _journalSizeThresholdInBytes);
+      writer.close();
+    } catch (IOException exception) {
+      _monitor.notify(PersistentJournal.class, "Unable to close journal index. The journal file will be indexed during the next recovery.", writer.file(), exception);
+      writer.discard();
+    }
+  }
+
+
+  private static int stripe(long transaction, int stripeCount) {
+    return (int) (transaction % stripeCount);
+  }
+
+
+  /**
+   * Creates the stripe in the main directory last, so that a journal file found there always has all its stripes.
+   */
+  private DurableOutput[] createOutputStripes(long transactionNumber, Guided guide) {
+    File journal = _directory.journalFile(transactionNumber, outputSuffix());
+    try {
+      _directory.addToManifest(journal);
+    } catch (IOException exception) {
+      abort(exception, journal, "creating", guide);
+    }
+    DurableOutput[] stripes = new DurableOutput[_directory.journalStripeCount()];
+    for (int i = stripes.length - 1; i >= 0; i--) {
+      stripes[i] = createOutputJournal(_directory.journalStripeFile(journal, i), i == 0, guide);
+    }
+    return stripes;
+  }
+
+
+  private String outputSuffix() {
+    if (_blockCodec != null) return _journalBinaryFormat ? _blockBinaryJournalSuffix : _blockJournalSuffix;
+    return _journalBinaryFormat ? _binaryJournalSuffix : _journalSuffix;
+  }
+
+
+  private DurableOutput createOutputJournal(File file, boolean mayUseSpare, Guided guide) {
+    try {
+      boolean preallocated = mayUseSpare && _segmentManager != null && _segmentManager.claimSpare(file);
+      if (_blockCodec != null) {
+        return new DurableOutputStream(file, _journalSyncPolicy, _journalSizeThresholdInBytes, _groupCommit, preallocated, _blockCodec);
+      }
+      if (_journalMemoryMapped) {
+        return new MappedJournalOutputStream(file, _journalSyncPolicy, _journalSizeThresholdInBytes, _groupCommit, preallocated);
+      }
+      return new DurableOutputStream(file, _journalSyncPolicy, _journalSizeThresholdInBytes, _groupCommit, preallocated);
     } catch (Exception exception) {
       abort(exception, file, "creating", guide);
       return null;
@@ -134,16 +430,36 @@ public class PersistentJournal implements Journal {
    * If there are no journal files in the directory (when a snapshot is taken and all journal files are manually deleted, for example), the initialTransaction parameter in the first call to this method will define what the next transaction number will be. We have to find clearer/simpler semantics.
    */
   public void update(TransactionSubscriber subscriber, long initialTransactionWanted) throws IOException, ClassNotFoundException {
-    File initialJournal = _directory.findInitialJournalFile(initialTransactionWanted);
+    startReadingJournalFiles(initialTransactionWanted);
+    try {
+      File initialJournal = _directory.findInitialJournalFile(initialTransactionWanted);
 
-    if (initialJournal == null) {
-      initializeNextTransaction(initialTransactionWanted, 1);
-      return;
+      if (initialJournal == null) {
+        initializeNextTransaction(initialTransactionWanted, 1);
+        return;
+      }
+
+      long nextTransaction = recoverPendingTransactions(subscriber, initialTransactionWanted, initialJournal);
+
+      initializeNextTransaction(initialTransactionWanted, nextTransaction);
+    } finally {
+      finishedReadingJournalFiles(initialTransactionWanted);
     }
+  }
 
-    long nextTransaction = recoverPendingTransactions(subscriber, initialTransactionWanted, initialJournal);
 
-    initializeNextTransaction(initialTransactionWanted, nextTransaction);
+  /**
+   * Keeps the journal files holding the given transaction and the later ones from being recycled until
+   * finishedReadingJournalFiles() is called with the same transaction, so that they can be read directly,
+   * as update() reads them. Must be called before the files are looked for.
+   */
+  public void startReadingJournalFiles(long initialTransaction) {
+    if (_segmentManager != null) _segmentManager.startReading(initialTransaction);
+  }
+
+
+  public void finishedReadingJournalFiles(long initialTransaction) {
+    if (_segmentManager != null) _segmentManager.finishedReading(initialTransaction);
   }
 
 
@@ -164,13 +480,37 @@ public class PersistentJournal implements Journal {
 
 
   private long recoverPendingTransactions(TransactionSubscriber subscriber, long initialTransaction, File initialJournal) throws IOException {
+    RecoveryPipeline.Recovery recovery = _recoveryPipeline == null ? null : _recoveryPipeline.start(subscriber);
+    try {
+      long nextTransaction = recoverPendingTransactions(subscriber, recovery, initialTransaction, initialJournal);
+      if (recovery != null) recovery.finish();
+      return nextTransaction;
+    } finally {
+      if (recovery != null) recovery.cancel();
+    }
+  }
+
+  private long recoverPendingTransactions(TransactionSubscriber subscriber, RecoveryPipeline.Recovery recovery, long initialTransaction, File initialJournal) throws IOException {
     long recoveringTransaction = PrevaylerDirectory.journalVersion(initialJournal);
     File journal = initialJournal;
-    DurableInputStream input = new DurableInputStream(journal, _monitor);
+    DurableInputStream[] inputStripes = openInputStripes(journal);
+    boolean binary = isBinary(journal);
+
+    LinkedList heldBack = _abortMarkers ? new LinkedList() : null;
+
+    JournalIndex.Rebuilder rebuiltIndex = null;
+    if (isIndexed(inputStripes)) {
+      long indexed = skipToIndexedTransaction(inputStripes[0], recoveringTransaction, initialTransaction);
+      if (indexed == recoveringTransaction) rebuiltIndex = startRebuildingIndex(journal);
+      recoveringTransaction = indexed;
+    }
 
     while (true) {
       try {
-        Chunk chunk = input.readChunk();
+        DurableInputStream input = inputStripes[stripe(recoveringTransaction, inputStripes.length)];
+        long offset = input.position();
+        Object chunk = binary ? (Object) input.readBinaryChunk() : input.readChunk();
+        if (rebuiltIndex != null) rebuiltIndex.read(recoveringTransaction, offset);
 
         if (recoveringTransaction >= initialTransaction) {
           if (!journal.getName().endsWith(_journalSuffix)) {
@@ -178,36 +518,288 @@ public class PersistentJournal implements Journal {
                 journal + ", but only " + _journalSuffix + " files are supported");
           }
 
-          TransactionTimestamp entry = TransactionTimestamp.fromChunk(chunk);
-
-          if (entry.systemVersion() != recoveringTransaction) {
-            throw new IOException("Expected " + recoveringTransaction + " but was " + entry.systemVersion());
+          if (heldBack != null) {
+            holdBack(subscriber, recovery, heldBack, chunk, recoveringTransaction);
+          } else if (recovery != null) {
+            recovery.submit(chunk, recoveringTransaction);
+          } else {
+            subscriber.receive(decode(chunk, recoveringTransaction));
           }
-
-          subscriber.receive(entry);
         }
 
         recoveringTransaction++;
 
       } catch (EOFException eof) {
-        File nextFile = _directory.journalFile(recoveringTransaction, _journalSuffix);
-        if (journal.equals(nextFile))
-          PrevaylerDirectory.renameUnusedFile(journal);  //The first transaction in this log file is incomplete. We need to reuse this file name.
+        closeInputStripes(inputStripes);
+        if (!_nextTransactionInitialized) truncateTornTails(inputStripes);
+        File nextFile = existingJournalFile(recoveringTransaction);
+        if (journal.equals(nextFile)) {
+          JournalIndex.delete(journal);
+          for (int i = 0; i < inputStripes.length; i++) {
+            PrevaylerDirectory.renameUnusedFile(_directory.journalStripeFile(journal, i));  //The first transaction in this log file is incomplete. We need to reuse this file name.
+          }
+          _directory.removeFromManifest(journal);
+        } else if (rebuiltIndex != null) {
+          finishRebuildingIndex(rebuiltIndex, journal);
+        }
         journal = nextFile;
-        if (!journal.exists()) break;
-        input = new DurableInputStream(journal, _monitor);
+        if (!journal.exists()) {
+          renameAbandonedJournalFiles(recoveringTransaction);
+          break;
+        }
+        inputStripes = openInputStripes(journal);
+        binary = isBinary(journal);
+        rebuiltIndex = isIndexed(inputStripes) ? startRebuildingIndex(journal) : null;
       }
     }
+    if (heldBack != null) {
+      while (!heldBack.isEmpty()) deliver(subscriber, recovery, (HeldBack) heldBack.removeFirst());
+    }
     return recoveringTransaction;
   }
 
+  /**
+   * Marks the transactions held back that the given chunk's abort markers name, holds the chunk back in
+   * turn and delivers the oldest transaction held back once there are more than ABORT_MARKER_WINDOW.
+   */
+  private void holdBack(TransactionSubscriber subscriber, RecoveryPipeline.Recovery recovery, LinkedList heldBack, Object chunk, long transaction) throws IOException {
+    long[] markers = chunk instanceof BinaryChunk
+        ? TransactionTimestamp.abortMarkers((BinaryChunk) chunk)
+        : TransactionTimestamp.abortMarkers((Chunk) chunk);
+    for (int i = 0; i < markers.length; i++) {
+      for (Iterator iterator = heldBack.iterator(); iterator.hasNext(); ) {
+        HeldBack held = (HeldBack) iterator.next();
+        if (held._transaction == markers[i]) held._aborted = true;
+      }
+    }
+
+    heldBack.addLast(new HeldBack(chunk, transaction));
+    if (heldBack.size() > ABORT_MARKER_WINDOW) deliver(subscriber, recovery, (HeldBack) heldBack.removeFirst());
+  }
+
+  private void deliver(TransactionSubscriber subscriber, RecoveryPipeline.Recovery recovery, HeldBack held) throws IOException {
+    if (recovery != null) {
+      recovery.submit(held._chunk, held._transaction, held._aborted);
+      return;
+    }
+    TransactionTimestamp entry = decode(held._chunk, held._transaction);
+    if (held._aborted) entry.capsule().skipExecution();
+    subscriber.receive(entry);
+  }
+
+  /**
+   * A chunk read during recovery, waiting for abort markers.
+   */
+  private static class HeldBack {
+    private final Object _chunk;
+    private final long _transaction;
+    private boolean _aborted = false;
+
+    private HeldBack(Object chunk, long transaction) {
+      _chunk = chunk;
+      _transaction = transaction;
+    }
+  }
+
+  private boolean isIndexed(DurableInputStream[] inputStripes) {
+    return _journalIndex != null && inputStripes.length == 1;
+  }
+
+  /**
+   * Skips the given journal file ahead to the indexed transaction closest to, and not after, the
+   * initial transaction, once the chunk found at its offset turns out to hold it.
+   *
+   * @return The transaction the input was skipped to, or the first transaction of the file if it was not skipped.
+   */
+  private long skipToIndexedTransaction(DurableInputStream input, long firstTransaction, long initialTransaction) throws IOException {
+    long[] entry = JournalIndex.find(input.file(), initialTransaction);
+    if (entry == null || entry[0] <= firstTransaction) return firstTransaction;
+    if (!isChunkAt(input.file(), entry[0], entry[1])) {
+      _monitor.notify(PersistentJournal.class, "Ignoring stale journal index. It will be rebuilt.", PrevaylerDirectory.journalIndexFile(input.file()));
+      return firstTransaction;
+    }
+    input.skipTo(entry[1]);
+    return entry[0];
+  }
+
+  /**
+   * The offset in the given complete journal file of the indexed transaction closest to, and not after,
+   * the given one, or zero if there is none, so that the file can be read from there instead of from its start.
+   * Always zero for block-encoded files, whose indexes hold offsets in the decoded contents.
+   */
+  public long indexedOffset(File journal, long transaction) throws IOException {
+    if (isBlockEncoded(journal)) return 0;
+    long[] entry = JournalIndex.find(journal, transaction);
+    if (entry == null || !isChunkAt(journal, entry[0], entry[1])) return 0;
+    return entry[1];
+  }
+
+  private boolean isChunkAt(File journal, long transaction, long offset) throws IOException {
+    DurableInputStream input = new DurableInputStream(journal, new NullMonitor(), false, blockCodec(journal));
+    try {
+      input.skipTo(offset);
+      decode(isBinary(journal) ? (Object) input.readBinaryChunk() : input.readChunk(), transaction);
+      return true;
+    } catch (IOException stale) {
+      return false;
+    } catch (RuntimeException stale) {
+      return false;
+    } finally {
+      input.close();
+    }
+  }
+
+  /**
+   * Indexes are only rebuilt while recovering, since the journal file being written has its own index.
+   */
+  private JournalIndex.Rebuilder startRebuildingIndex(File journal) {
+    return _nextTransactionInitialized ? null : _journalIndex.rebuild(journal);
+  }
+
+  private void finishRebuildingIndex(JournalIndex.Rebuilder rebuiltIndex, File journal) {
+    try {
+      if (rebuiltIndex.finish()) {
+        _monitor.notify(PersistentJournal.class, "Rebuilt missing or stale journal index.", PrevaylerDirectory.journalIndexFile(journal));
+      }
+    } catch (IOException exception) {
+      _monitor.notify(PersistentJournal.class, "Unable to rebuild journal index.", PrevaylerDirectory.journalIndexFile(journal), exception);
+    }
+  }
+
+  /**
+   * Decodes a Chunk or BinaryChunk read from a journal file, which must hold the expected transaction.
+   */
+  static TransactionTimestamp decode(Object chunk, long expectedTransaction) throws IOException {
+    TransactionTimestamp entry = chunk instanceof BinaryChunk
+        ? TransactionTimestamp.fromBinaryChunk((BinaryChunk) chunk)
+        : TransactionTimestamp.fromChunk((Chunk) chunk);
+
+    if (entry.systemVersion() != expectedTransaction) {
+      throw new IOException("Expected " + expectedTransaction + " but was " + entry.systemVersion());
+    }
+    return entry;
+  }
+
+  /**
+   * Journal files starting after the last recovered transaction can only have been left by a crash
+   * while an earlier transaction, in another stripe or journal file, had not been synced yet. Their
+   * transactions were never executed, and their names will be reused.
+   */
+  private void renameAbandonedJournalFiles(long nextTransaction) throws IOException {
+    File[] journals = _directory.journalFiles();
+    for (int i = 0; i < journals.length; i++) {
+      if (PrevaylerDirectory.journalVersion(journals[i]) < nextTransaction) continue;
+      _monitor.notify(PersistentJournal.class, "Ignoring journal file left by a crash after an unsynced transaction.", journals[i]);
+      JournalIndex.delete(journals[i]);
+      for (int stripe = 0; stripe < _directory.journalStripeCount(); stripe++) {
+        PrevaylerDirectory.renameUnusedFile(_directory.journalStripeFile(journals[i], stripe));
+      }
+      _directory.removeFromManifest(journals[i]);
+    }
+  }
+
+  /**
+   * Cuts a torn binary chunk off the end of a journal file, which is done only when recovering, before
+   * any new transactions are journaled. Text chunks are never truncated, since their corruption cannot
+   * be told apart from a torn write.
+   */
+  private void truncateTornTails(DurableInputStream[] stripes) throws IOException {
+    for (int i = 0; i < stripes.length; i++) {
+      long offset = stripes[i].tornTailOffset();
+      if (offset < 0) continue;
+
+      RandomAccessFile file = new RandomAccessFile(stripes[i].file(), "rw");
+      try {
+        file.setLength(offset);
+      } finally {
+        file.close();
+      }
+      _monitor.notify(PersistentJournal.class, "Truncated torn transaction at offset " + offset + " of journal file.", stripes[i].file());
+    }
+  }
+
+  /**
+   * Opens the stripes of the given journal file. A journal file written with fewer stripes than are
+   * configured now has no files in the last directories, so the stripe count is that of the leading
+   * directories having the file.
+   */
+  private DurableInputStream[] openInputStripes(File journal) throws IOException {
+    int stripeCount = 1;
+    while (stripeCount < _directory.journalStripeCount() && _directory.journalStripeFile(journal, stripeCount).exists()) {
+      stripeCount++;
+    }
+    DurableInputStream[] stripes = new DurableInputStream[stripeCount];
+    for (int i = 0; i < stripeCount; i++) {
+      stripes[i] = new DurableInputStream(_directory.journalStripeFile(journal, i), _monitor, _journalMemoryMapped, blockCodec(journal));
+    }
+    return stripes;
+  }
+
+  /**
+   * Stripes other than the one that ended the journal file may still have later transactions, left by a crash.
+   */
+  private void closeInputStripes(DurableInputStream[] stripes) throws IOException {
+    for (int i = 0; i < stripes.length; i++) {
+      stripes[i].close();
+    }
+  }
+
+  /**
+   * The journal file starting with the given transaction in any format, preferring block-encoded and then binary ones if several exist.
+   */
+  private File existingJournalFile(long transaction) {
+    String[] suffixes = {_blockBinaryJournalSuffix, _blockJournalSuffix, _binaryJournalSuffix};
+    for (int i = 0; i < suffixes.length; i++) {
+      File file = _directory.journalFile(transaction, suffixes[i]);
+      if (file.exists()) return file;
+    }
+    return _directory.journalFile(transaction, _journalSuffix);
+  }
+
+  private boolean isBinary(File journal) {
+    return journal.getName().endsWith("." + _binaryJournalSuffix) || journal.getName().endsWith("." + _blockBinaryJournalSuffix);
+  }
+
+  private boolean isBlockEncoded(File journal) {
+    return journal.getName().endsWith("." + _blockJournalSuffix) || journal.getName().endsWith("." + _blockBinaryJournalSuffix);
+  }
+
+  /**
+   * @return null if the given journal file is not block-encoded.
+   */
+  private BlockCodec blockCodec(File journal) throws IOException {
+    if (!isBlockEncoded(journal)) return null;
+    if (_blockCodec == null) throw new IOException("Journal file " + journal + " is block-encoded, but no block codec is configured to read it.");
+    return _blockCodec;
+  }
+
   private void abort(Exception exception, File journal, String action, Guided guide) {
     guide.abortTurn("All transaction processing is now aborted. An IOException was thrown while " + action + " a .journal file.", exception);
   }
 
 
   public void close() throws IOException {
-    if (_outputJournal != null) _outputJournal.close();
+    closeCloseables();
+    if (_indexWriter != null) closeIndex(_indexWriter);
+    if (_outputStripes != null) {
+      for (int i = 0; i < _outputStripes.length; i++) {
+        _outputStripes[i].close();
+      }
+    }
+    if (_segmentManager != null) _segmentManager.close();
+  }
+
+  private void closeCloseables() {
+    synchronized (_closeables) {
+      for (int i = 0; i < _closeables.size(); i++) {
+        try {
+          ((Closeable) _closeables.get(i)).close();
+        } catch (IOException exception) {
+          _monitor.notify(PersistentJournal.class, "Unable to close " + _closeables.get(i) + " along with the journal.", exception);
+        }
+      }
+      _closeables.clear();
+    }
   }
 
   public long nextTransaction() {
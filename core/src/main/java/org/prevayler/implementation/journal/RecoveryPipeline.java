@@ -0,0 +1,220 @@
+package org.prevayler.implementation.journal;
+
+import org.prevayler.foundation.StopWatch;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recovers journaled transactions in three stages instead of one at a time: the thread calling
+ * PersistentJournal.update() only reads chunks from the journal files, a pool of decoding threads
+ * turns them into transactions and deserializes them ahead of time (see Capsule.deserializeInAdvance()),
+ * and a single applying thread hands them to the subscriber in journal order.
+ * <p/>
+ * Decoded transactions wait in a reorder buffer of bounded size until all earlier ones have been
+ * applied. When it is full, reading waits, so memory use does not depend on the size of the journal.
+ * <p/>
+ * Progress is reported to the Monitor every few seconds, and the throughput of the last recovery is
+ * kept for inspection.
+ */
+public class RecoveryPipeline {
+
+  private static final long PROGRESS_INTERVAL_MILLIS = 5000;
+  private static final Object END = new Object();
+
+  private final int _decodingThreads;
+  private final int _reorderBufferSize;
+  private final Serializer _journalSerializer;
+  private final Monitor _monitor;
+
+  private volatile long _transactionsRecovered;
+  private volatile long _millisRecovering;
+
+  /**
+   * @param decodingThreads   The number of threads decoding and deserializing transactions.
+   * @param reorderBufferSize The number of transactions that can be read ahead of the one being applied.
+   * @param journalSerializer The serializer the transactions were journaled with.
+   */
+  public RecoveryPipeline(int decodingThreads, int reorderBufferSize, Serializer journalSerializer, Monitor monitor) {
+    if (decodingThreads < 1 || reorderBufferSize < 1) {
+      throw new IllegalArgumentException("There must be at least one decoding thread and room for one transaction in the reorder buffer.");
+    }
+    _decodingThreads = decodingThreads;
+    _reorderBufferSize = reorderBufferSize;
+    _journalSerializer = journalSerializer;
+    _monitor = monitor;
+  }
+
+
+  /**
+   * The number of transactions applied by the last recovery.
+   */
+  public long transactionsRecovered() {
+    return _transactionsRecovered;
+  }
+
+  /**
+   * The throughput of the last recovery, in transactions per second.
+   */
+  public double transactionsPerSecond() {
+    return _transactionsRecovered * 1000.0 / Math.max(1, _millisRecovering);
+  }
+
+
+  Recovery start(TransactionSubscriber subscriber) {
+    return new Recovery(subscriber);
+  }
+
+
+  /**
+   * A single pass over the journal, delivering to one subscriber.
+   */
+  class Recovery implements Runnable {
+
+    private final TransactionSubscriber _subscriber;
+    private final ExecutorService _decoders;
+    private final BlockingQueue _reorderBuffer = new ArrayBlockingQueue(_reorderBufferSize);
+    private final Thread _applier;
+    private final StopWatch _stopWatch = StopWatch.start();
+
+    private volatile Throwable _failure;
+    private long _applied = 0;
+
+    private Recovery(TransactionSubscriber subscriber) {
+      _subscriber = subscriber;
+      _decoders = Executors.newFixedThreadPool(_decodingThreads, new ThreadFactory() {
+        public Thread newThread(Runnable runnable) {
+          Thread thread = new Thread(runnable, "Prevayler recovery decoder");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      _applier = new Thread(this, "Prevayler recovery applier");
+      _applier.setDaemon(true);
+      _applier.start();
+    }
+
+
+    /**
+     * Queues a chunk read from the journal for decoding. Waits while the reorder buffer is full.
+     */
+    void submit(Object chunk, long expectedTransaction) throws IOException {
+      submit(chunk, expectedTransaction, false);
+    }
+
+    /**
+     * @param aborted Whether the journal marked the transaction as aborted, in which case it is delivered without being deserialized, and not executed.
+     */
+    void submit(final Object chunk, final long expectedTransaction, final boolean aborted) throws IOException {
+      throwFailure();
+      Future decoded = _decoders.submit(new Callable() {
+        public Object call() throws Exception {
+          TransactionTimestamp entry = PersistentJournal.decode(chunk, expectedTransaction);
+          if (aborted) entry.capsule().skipExecution();
+          else entry.capsule().deserializeInAdvance(_journalSerializer);
+          return entry;
+        }
+      });
+      put(decoded);
+    }
+
+
+    /**
+     * Waits for all queued transactions to be applied.
+     */
+    void finish() throws IOException {
+      put(END);
+      try {
+        _applier.join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while recovering transactions");
+      } finally {
+        _decoders.shutdown();
+      }
+      throwFailure();
+
+      _transactionsRecovered = _applied;
+      _millisRecovering = _stopWatch.millisEllapsed();
+      _monitor.notify(RecoveryPipeline.class, "Recovered " + _applied + " transactions in " + _millisRecovering + " ms ("
+          + (long) transactionsPerSecond() + " per second) with " + _decodingThreads + " decoding threads.");
+    }
+
+
+    /**
+     * Stops the pipeline if the journal could not be read to the end. Does nothing after finish().
+     */
+    void cancel() {
+      _decoders.shutdownNow();
+      _applier.interrupt();
+    }
+
+
+    public void run() {
+      long lastReport = 0;
+      try {
+        while (true) {
+          Object next = _reorderBuffer.take();
+          if (next == END) return;
+
+          TransactionTimestamp entry = (TransactionTimestamp) ((Future) next).get();
+          _subscriber.receive(entry);
+          _applied++;
+
+          long millis = _stopWatch.millisEllapsed();
+          if (millis - lastReport >= PROGRESS_INTERVAL_MILLIS) {
+            lastReport = millis;
+            _monitor.notify(RecoveryPipeline.class, "Recovered " + _applied + " transactions so far ("
+                + (_applied * 1000 / Math.max(1, millis)) + " per second).");
+          }
+        }
+      } catch (InterruptedException e) {
+        // Cancelled.
+      } catch (ExecutionException e) {
+        _failure = e.getCause();
+      } catch (RuntimeException e) {
+        _failure = e;
+      } catch (Error e) {
+        _failure = e;
+      } finally {
+        if (_failure != null) _reorderBuffer.clear();  // Lets the reader see the failure instead of waiting.
+      }
+    }
+
+
+    private void put(Object next) throws IOException {
+      try {
+        while (!_reorderBuffer.offer(next, 100, TimeUnit.MILLISECONDS)) {
+          throwFailure();
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while recovering transactions");
+      }
+    }
+
+
+    private void throwFailure() throws IOException {
+      Throwable failure = _failure;
+      if (failure == null) return;
+      if (failure instanceof IOException) throw (IOException) failure;
+      if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+      if (failure instanceof Error) throw (Error) failure;
+      throw new RuntimeException(failure);
+    }
+
+  }
+
+}
@@ -59,6 +59,9 @@ public class TransientJournal implements Journal {
   public void close() {
   }
 
+  public void transactionFailed(long transaction) {
+  }
+
   public synchronized long nextTransaction() {
     if (!_initialTransactionInitialized) throw new IllegalStateException("update() must be called at least once");
     return _initialTransaction + journal.size();
@@ -8,18 +8,28 @@ package org.prevayler.implementation.publishing;
 import org.prevayler.Clock;
 import org.prevayler.implementation.TransactionTimestamp;
 
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
 
 
 /**
  * This class provides basic subscriber addition and notification.
+ * <p/>
+ * Subscribers are kept in an array that is replaced, never changed, when one is added or cancelled,
+ * so notifying them takes no lock. A notification being delivered when a subscription is cancelled
+ * can still reach the cancelled subscriber.
+ * <p/>
+ * Subscribers are notified one after the other in the thread publishing the transaction, which is on
+ * the critical path of every transaction. Only those that must see the transaction before it is
+ * over, such as the PrevalentSystemGuard, should be subscribed directly. Others should be handed the
+ * transaction asynchronously by subscribing them through a POBox. POBoxes are always notified after
+ * the other subscribers.
  */
 public abstract class AbstractPublisher implements TransactionPublisher {
 
+  private static final Subscription[] NO_SUBSCRIPTIONS = new Subscription[0];
+
   protected final Clock _clock;
-  private final List _subscribers = new LinkedList();
+  private final AtomicReference _subscriptions = new AtomicReference(NO_SUBSCRIPTIONS);
 
 
   public AbstractPublisher(Clock clock) {
@@ -30,17 +40,84 @@ public abstract class AbstractPublisher implements TransactionPublisher {
     return _clock;
   }
 
-  public synchronized void addSubscriber(TransactionSubscriber subscriber) {
-    _subscribers.add(subscriber);
+  /**
+   * Does nothing if the subscriber is already subscribed.
+   */
+  public void addSubscriber(TransactionSubscriber subscriber) {
+    while (true) {
+      Subscription[] subscriptions = subscriptions();
+      if (indexOf(subscriptions, subscriber) != -1) return;
+
+      Subscription[] added = new Subscription[subscriptions.length + 1];
+      int synchronous = 0;
+      while (synchronous < subscriptions.length && !subscriptions[synchronous].isAsynchronous()) synchronous++;
+      int position = subscriber instanceof POBox ? subscriptions.length : synchronous;
+      System.arraycopy(subscriptions, 0, added, 0, position);
+      added[position] = new Subscription(subscriber);
+      System.arraycopy(subscriptions, position, added, position + 1, subscriptions.length - position);
+      if (_subscriptions.compareAndSet(subscriptions, added)) return;
+    }
+  }
+
+  public void cancelSubscription(TransactionSubscriber subscriber) {
+    while (true) {
+      Subscription[] subscriptions = subscriptions();
+      int index = indexOf(subscriptions, subscriber);
+      if (index == -1) return;
+
+      Subscription[] remaining = new Subscription[subscriptions.length - 1];
+      System.arraycopy(subscriptions, 0, remaining, 0, index);
+      System.arraycopy(subscriptions, index + 1, remaining, index, remaining.length - index);
+      if (_subscriptions.compareAndSet(subscriptions, remaining)) return;
+    }
+  }
+
+  /**
+   * How long the given subscriber took to receive each transaction, or null if it is not subscribed. For a POBox, this is only the time it took to queue the transaction. See POBox.deliveryLatency().
+   */
+  public DeliveryLatency deliveryLatency(TransactionSubscriber subscriber) {
+    Subscription[] subscriptions = subscriptions();
+    int index = indexOf(subscriptions, subscriber);
+    return index == -1 ? null : subscriptions[index]._latency;
   }
 
-  public synchronized void cancelSubscription(TransactionSubscriber subscriber) {
-    _subscribers.remove(subscriber);
+  protected void notifySubscribers(TransactionTimestamp transactionTimestamp) {
+    Subscription[] subscriptions = subscriptions();
+    for (int i = 0; i < subscriptions.length; i++) subscriptions[i].deliver(transactionTimestamp);
   }
 
-  protected synchronized void notifySubscribers(TransactionTimestamp transactionTimestamp) {
-    Iterator i = _subscribers.iterator();
-    while (i.hasNext()) ((TransactionSubscriber) i.next()).receive(transactionTimestamp);
+  private Subscription[] subscriptions() {
+    return (Subscription[]) _subscriptions.get();
+  }
+
+  private static int indexOf(Subscription[] subscriptions, TransactionSubscriber subscriber) {
+    for (int i = 0; i < subscriptions.length; i++) {
+      if (subscriptions[i]._subscriber == subscriber) return i;
+    }
+    return -1;
+  }
+
+
+  private static class Subscription {
+    private final TransactionSubscriber _subscriber;
+    private final DeliveryLatency _latency = new DeliveryLatency();
+
+    Subscription(TransactionSubscriber subscriber) {
+      _subscriber = subscriber;
+    }
+
+    boolean isAsynchronous() {
+      return _subscriber instanceof POBox;
+    }
+
+    void deliver(TransactionTimestamp transactionTimestamp) {
+      long start = System.nanoTime();
+      try {
+        _subscriber.receive(transactionTimestamp);
+      } finally {
+        _latency.record(System.nanoTime() - start);
+      }
+    }
   }
 
 }
@@ -5,7 +5,7 @@
 package org.prevayler.implementation.publishing;
 
 import org.prevayler.Clock;
-import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.RingBufferPipeline;
 import org.prevayler.foundation.Turn;
 import org.prevayler.implementation.Capsule;
 import org.prevayler.implementation.TransactionGuide;
@@ -14,64 +14,124 @@ import org.prevayler.implementation.clock.PausableClock;
 import org.prevayler.implementation.journal.Journal;
 
 import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
 
 public class CentralPublisher extends AbstractPublisher {
 
   private final PausableClock _pausableClock;
   private final Journal _journal;
 
-  private volatile int _pendingPublications = 0;
-  private final Object _pendingPublicationsMonitor = new Object();
+  /**
+   * Read-locked by every publication, so that subscribing, which write-locks it, waits for the publications in progress and holds up new ones. Its read lock takes no monitor.
+   */
+  private final StampedLock _subscriptionBarrier = new StampedLock();
 
-  private Turn _nextTurn = Turn.first();
-  private long _nextTransaction;
-  private final Object _nextTurnMonitor = new Object();
+  private final AtomicReference _nextTurn = new AtomicReference(new NextTurn(Turn.first(), 0));
+
+  private final RingBufferPipeline _pipeline;
+  private long _firstSequence;  //Only written while _subscriptionBarrier is write-locked.
+  private long _firstTransaction;  //Only written while _subscriptionBarrier is write-locked.
 
 
   public CentralPublisher(Clock clock, Journal journal) {
+    this(clock, journal, null);
+  }
+
+  /**
+   * @param pipeline Sequences transactions instead of a chain of Turns, if not null. The transaction of each sequence gets the system version of the next transaction when the last subscriber was added, plus the number of sequences claimed since.
+   */
+  public CentralPublisher(Clock clock, Journal journal, RingBufferPipeline pipeline) {
     super(new PausableClock(clock));
     _pausableClock = (PausableClock) _clock; //This is just to avoid casting the inherited _clock every time.
 
     _journal = journal;
+    _pipeline = pipeline;
   }
 
 
   public void publish(Capsule capsule) {
-    synchronized (_pendingPublicationsMonitor) {  //Blocks all new subscriptions until the publication is over.
-      if (_pendingPublications == 0) _pausableClock.pause();
-      _pendingPublications++;
-    }
+    claim(capsule).run();
+  }
+
 
+  /**
+   * Takes the turn and the system version of the given capsule in the calling thread, and returns the rest of its publication,
+   * which can then be run by any thread. It must be run: the transactions claimed afterwards wait for it, and so do new subscriptions.
+   */
+  public Runnable claim(final Capsule capsule) {
+    final long stamp = _subscriptionBarrier.readLock();  //Blocks all new subscriptions until the publication is over.
     try {
-      publishWithoutWorryingAboutNewSubscriptions(capsule);  // Suggestions for a better method name are welcome.  :)
-    } finally {
-      synchronized (_pendingPublicationsMonitor) {
-        _pendingPublications--;
-        if (_pendingPublications == 0) {
-          _pausableClock.resume();
-          _pendingPublicationsMonitor.notifyAll();
+      _pausableClock.pause();
+    } catch (RuntimeException exception) {  //The clock was not paused, so there is nothing to resume.
+      _subscriptionBarrier.unlockRead(stamp);
+      throw exception;
+    }
+    try {
+      if (_pipeline != null) return claimThroughPipeline(capsule, stamp);
+      final TransactionGuide guide = guideFor(capsule);
+      return new Runnable() {
+        public void run() {
+          try {
+            publishWithoutWorryingAboutNewSubscriptions(guide);  // Suggestions for a better method name are welcome.  :)
+          } finally {
+            endPublication(stamp);
+          }
         }
-      }
+      };
+    } catch (RuntimeException exception) {
+      endPublication(stamp);
+      throw exception;
     }
   }
 
+  private void endPublication(long stamp) {
+    _pausableClock.resume();
+    _subscriptionBarrier.unlockRead(stamp);
+  }
+
 
-  private void publishWithoutWorryingAboutNewSubscriptions(Capsule capsule) {
-    TransactionGuide guide = guideFor(capsule);
+  private void publishWithoutWorryingAboutNewSubscriptions(TransactionGuide guide) {
     _journal.append(guide);
     notifySubscribers(guide);
   }
 
-  private TransactionGuide guideFor(Capsule capsule) {
-    synchronized (_nextTurnMonitor) {
-      TransactionTimestamp timestamp = new TransactionTimestamp(capsule, _nextTransaction, _pausableClock.realTime());
-
-      // Count this transaction
-      Turn turn = _nextTurn;
-      _nextTurn = _nextTurn.next();
-      _nextTransaction++;
+  /**
+   * The clock is read before the sequence is claimed, and read again if another thread claims it first, so execution times never go back in the order of the sequence.
+   */
+  private Runnable claimThroughPipeline(Capsule capsule, final long stamp) {
+    long sequence;
+    Date executionTime;
+    do {
+      sequence = _pipeline.cursor();
+      executionTime = _pausableClock.realTime();
+    } while (!_pipeline.tryClaim(sequence));
+
+    final RingBufferPipeline.Slot turn = _pipeline.turn(sequence);
+    final TransactionGuide guide = new TransactionGuide(new TransactionTimestamp(capsule, _firstTransaction + sequence - _firstSequence, executionTime), turn);
+    return new Runnable() {
+      public void run() {
+        try {
+          publishWithoutWorryingAboutNewSubscriptions(guide);
+        } finally {
+          turn.release();
+          endPublication(stamp);
+        }
+      }
+    };
+  }
 
-      return new TransactionGuide(timestamp, turn);
+  /**
+   * As with the pipeline, the clock is read before the turn is taken, and read again if another thread takes it first.
+   */
+  private TransactionGuide guideFor(Capsule capsule) {
+    while (true) {
+      NextTurn next = (NextTurn) _nextTurn.get();
+      Date executionTime = _pausableClock.realTime();
+      if (_nextTurn.compareAndSet(next, next.following())) {
+        return new TransactionGuide(new TransactionTimestamp(capsule, next._transaction, executionTime), next._turn);
+      }
     }
   }
 
@@ -81,22 +141,30 @@ public class CentralPublisher extends AbstractPublisher {
       _pausableClock.advanceTo(guide.executionTime());
       notifySubscribers(guide.timestamp());
     } finally {
+      if (guide.timestamp().capsule().executionFailed()) _journal.transactionFailed(guide.timestamp().systemVersion());
       guide.endTurn();
     }
   }
 
 
+  /**
+   * A subscriber already subscribed is updated again from initialTransaction, without being subscribed twice. No transaction is published meanwhile.
+   */
   public void subscribe(TransactionSubscriber subscriber, long initialTransaction) throws IOException, ClassNotFoundException {
-    synchronized (_pendingPublicationsMonitor) {
-      while (_pendingPublications != 0) Cool.wait(_pendingPublicationsMonitor);
-
+    long stamp = _subscriptionBarrier.writeLock();
+    try {
       _journal.update(subscriber, initialTransaction);
 
-      synchronized (_nextTurnMonitor) {
-        _nextTransaction = _journal.nextTransaction();
+      long nextTransaction = _journal.nextTransaction();
+      _nextTurn.set(new NextTurn(((NextTurn) _nextTurn.get())._turn, nextTransaction));
+      if (_pipeline != null) {
+        _firstTransaction = nextTransaction;
+        _firstSequence = _pipeline.cursor();
       }
 
       super.addSubscriber(subscriber);
+    } finally {
+      _subscriptionBarrier.unlockWrite(stamp);
     }
   }
 
@@ -105,4 +173,22 @@ public class CentralPublisher extends AbstractPublisher {
     _journal.close();
   }
 
+
+  /**
+   * The turn and system version of the next transaction, replaced as a whole when a transaction takes them.
+   */
+  private static class NextTurn {
+    private final Turn _turn;
+    private final long _transaction;
+
+    NextTurn(Turn turn, long transaction) {
+      _turn = turn;
+      _transaction = transaction;
+    }
+
+    NextTurn following() {
+      return new NextTurn(_turn.next(), _transaction + 1);
+    }
+  }
+
 }
@@ -0,0 +1,45 @@
+package org.prevayler.implementation.publishing;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The time notifications took to be delivered to a subscriber, since they were created or since the last reset().
+ */
+public class DeliveryLatency {
+
+  private final AtomicLong _deliveries = new AtomicLong();
+  private final AtomicLong _totalNanos = new AtomicLong();
+  private final AtomicLong _maxNanos = new AtomicLong();
+
+
+  void record(long nanos) {
+    _deliveries.incrementAndGet();
+    _totalNanos.addAndGet(nanos);
+    long max = _maxNanos.get();
+    while (nanos > max && !_maxNanos.compareAndSet(max, nanos)) max = _maxNanos.get();
+  }
+
+  public long deliveries() {
+    return _deliveries.get();
+  }
+
+  public long averageNanos() {
+    long deliveries = _deliveries.get();
+    return deliveries == 0 ? 0 : _totalNanos.get() / deliveries;
+  }
+
+  public long maxNanos() {
+    return _maxNanos.get();
+  }
+
+  public void reset() {
+    _deliveries.set(0);
+    _totalNanos.set(0);
+    _maxNanos.set(0);
+  }
+
+  public String toString() {
+    return deliveries() + " deliveries, average " + averageNanos() + "ns, max " + maxNanos() + "ns";
+  }
+
+}
@@ -8,56 +8,274 @@ package org.prevayler.implementation.publishing;
 import org.prevayler.foundation.Cool;
 import org.prevayler.implementation.TransactionTimestamp;
 
-import java.util.LinkedList;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
 
 
 /**
  * An assyncronous buffer for transaction subscribers.
+ * <p/>
+ * Notifications wait in a ring of fixed capacity. Publishing threads claim a slot with a
+ * compare-and-set on the tail of the ring, without a lock, and the single delivering thread takes
+ * every notification waiting at once and hands them to the delegate as a batch, freeing their slots
+ * afterwards. What happens to a notification that finds the ring full depends on the overflow policy:
+ * <ul>
+ * <li>BLOCK_PUBLISHER: the publishing thread waits for room, which holds up all transactions.</li>
+ * <li>DISCONNECT_SUBSCRIBER: the subscription is cancelled, the notifications waiting are discarded
+ * and the delegate is closed if it is Closeable, which disconnects a replica.</li>
+ * <li>SPILL_TO_JOURNAL: that notification and all the following ones are dropped, and are read back
+ * from the journal once the delegate has caught up, by subscribing again from the first one dropped.
+ * The journal must still have it by then, and the publisher must be a CentralPublisher, which can
+ * update a subscriber again. Otherwise, the subscriber is disconnected.</li>
+ * </ul>
  */
 public class POBox implements TransactionSubscriber, Runnable {
 
-  private final LinkedList _queue = new LinkedList();
+  public static final int DEFAULT_CAPACITY = 16 * 1024;
+
+  public static final int BLOCK_PUBLISHER = 0;
+  public static final int DISCONNECT_SUBSCRIBER = 1;
+  public static final int SPILL_TO_JOURNAL = 2;
+
+  private static final long NOT_SPILLING = -1;
+
+  private final AtomicReferenceArray _slots;
+  private final long[] _queuedAt;  //Written before the slot is set, read after it is.
+  private final DeliveryLatency _latency = new DeliveryLatency();
   private final TransactionSubscriber _delegate;
+  private final int _overflowPolicy;
+  private final TransactionPublisher _publisher;
+
+  /**
+   * The sequence of the next notification to be queued.
+   */
+  private final AtomicLong _tail = new AtomicLong();
 
+  /**
+   * The sequence of the oldest notification not yet delivered. Only written by the delivering thread.
+   */
+  private volatile long _head = 0;
+
+  private final Thread _deliveringThread;
+  private volatile boolean _deliveringThreadParked = false;
+
+  private volatile int _blockedPublishers = 0;
+  private final Object _notFullMonitor = new Object();
   private final Object _emptynessMonitor = new Object();
 
+  /**
+   * The system version of the first notification dropped while spilling, or NOT_SPILLING.
+   */
+  private final AtomicLong _spillingFrom = new AtomicLong(NOT_SPILLING);
+  private volatile boolean _subscribingAgain = false;
+  private volatile boolean _disconnected = false;
+  private final AtomicLong _overflows = new AtomicLong();
+
 
+  /**
+   * Buffers up to DEFAULT_CAPACITY notifications, blocking the publisher when they are more.
+   */
   public POBox(TransactionSubscriber delegate) {
+    this(delegate, DEFAULT_CAPACITY, BLOCK_PUBLISHER, null);
+  }
+
+  /**
+   * @param overflowPolicy BLOCK_PUBLISHER, DISCONNECT_SUBSCRIBER or SPILL_TO_JOURNAL.
+   * @param publisher      The publisher this POBox will be subscribed to. Only needed if the overflow policy is not BLOCK_PUBLISHER.
+   */
+  public POBox(TransactionSubscriber delegate, int capacity, int overflowPolicy, TransactionPublisher publisher) {
+    if (capacity < 1) throw new IllegalArgumentException("The capacity must be at least one: " + capacity);
+    if (overflowPolicy < BLOCK_PUBLISHER || overflowPolicy > SPILL_TO_JOURNAL) throw new IllegalArgumentException("Unknown overflow policy: " + overflowPolicy);
+    if (overflowPolicy != BLOCK_PUBLISHER && publisher == null) throw new IllegalArgumentException("The publisher is needed to cancel the subscription on overflow.");
+    _slots = new AtomicReferenceArray(capacity);
+    _queuedAt = new long[capacity];
     _delegate = delegate;
-    Cool.startDaemon(this);
+    _overflowPolicy = overflowPolicy;
+    _publisher = publisher;
+    _deliveringThread = Cool.startDaemon(this);
   }
 
 
-  public synchronized void receive(TransactionTimestamp transactionTimestamp) {
-    _queue.add(transactionTimestamp);
-    notify();
+  /**
+   * The number of notifications queued or being delivered.
+   */
+  public int depth() {
+    return (int) (_tail.get() - _head);
   }
 
+  public int capacity() {
+    return _slots.length();
+  }
 
-  public void run() {
+  /**
+   * How long notifications took from being received by this POBox to being received by the delegate.
+   */
+  public DeliveryLatency deliveryLatency() {
+    return _latency;
+  }
+
+  /**
+   * The number of notifications that found the buffer full.
+   */
+  public long overflows() {
+    return _overflows.get();
+  }
+
+
+  public void receive(TransactionTimestamp transactionTimestamp) {
+    if (_disconnected) return;
+    long spillingFrom = _spillingFrom.get();
+    if (spillingFrom != NOT_SPILLING) {
+      if (!_subscribingAgain || transactionTimestamp.systemVersion() != spillingFrom) return;
+      _spillingFrom.set(NOT_SPILLING);  //The journal is being read back from the first notification dropped.
+    }
+    if (offer(transactionTimestamp)) return;
+
+    _overflows.incrementAndGet();
+    if (_overflowPolicy == BLOCK_PUBLISHER) {
+      waitToOffer(transactionTimestamp);
+    } else if (_overflowPolicy == SPILL_TO_JOURNAL) {
+      _spillingFrom.compareAndSet(NOT_SPILLING, transactionTimestamp.systemVersion());
+      wakeDeliveringThread();
+    } else {
+      _disconnected = true;
+      wakeDeliveringThread();
+    }
+  }
+
+  private boolean offer(TransactionTimestamp transactionTimestamp) {
     while (true) {
-      TransactionTimestamp notification = waitForNotification();
-      _delegate.receive(notification);
+      long tail = _tail.get();
+      if (tail - _head >= _slots.length()) return false;
+      if (_tail.compareAndSet(tail, tail + 1)) {
+        _queuedAt[slot(tail)] = System.nanoTime();
+        _slots.set(slot(tail), transactionTimestamp);
+        wakeDeliveringThread();
+        return true;
+      }
+    }
+  }
+
+  private void waitToOffer(TransactionTimestamp transactionTimestamp) {
+    synchronized (_notFullMonitor) {
+      _blockedPublishers++;
+      try {
+        while (!offer(transactionTimestamp)) Cool.wait(_notFullMonitor);
+      } finally {
+        _blockedPublishers--;
+      }
+    }
+  }
+
+  private void wakeDeliveringThread() {
+    if (_deliveringThreadParked) LockSupport.unpark(_deliveringThread);
+  }
+
+
+  public void run() {
+    while (!_disconnected) {
+      long head = _head;
+      long tail = _tail.get();
+      if (head == tail) {
+        if (_spillingFrom.get() != NOT_SPILLING && !_subscribingAgain) subscribeAgain();
+        parkUntilNotified();
+        continue;
+      }
+      deliver(head, tail);
     }
+    disconnect();
   }
 
+  private void deliver(long head, long tail) {
+    for (long sequence = head; sequence < tail; sequence++) {
+      TransactionTimestamp notification = awaitSlot(sequence);
+      long queuedAt = _queuedAt[slot(sequence)];
+      _slots.set(slot(sequence), null);
+      _delegate.receive(notification);
+      _latency.record(System.nanoTime() - queuedAt);
+    }
+    _head = tail;
 
-  private synchronized TransactionTimestamp waitForNotification() {
-    while (_queue.size() == 0) {
+    if (_blockedPublishers != 0) {
+      synchronized (_notFullMonitor) {
+        _notFullMonitor.notifyAll();
+      }
+    }
+    if (_tail.get() == tail) {
       synchronized (_emptynessMonitor) {
-        _emptynessMonitor.notify();
+        _emptynessMonitor.notifyAll();
+      }
+    }
+  }
+
+  /**
+   * The notification of a sequence is stored just after the sequence is claimed.
+   */
+  private TransactionTimestamp awaitSlot(long sequence) {
+    while (true) {
+      TransactionTimestamp notification = (TransactionTimestamp) _slots.get(slot(sequence));
+      if (notification != null) return notification;
+      Thread.yield();
+    }
+  }
+
+  private void parkUntilNotified() {
+    _deliveringThreadParked = true;
+    if (_tail.get() == _head && !_disconnected && (_spillingFrom.get() == NOT_SPILLING || _subscribingAgain)) LockSupport.park(this);
+    _deliveringThreadParked = false;
+  }
+
+  /**
+   * Subscribing again reads the dropped notifications from the journal into this POBox, so it is done in another thread while this one keeps delivering them.
+   * The subscription is not cancelled first: the publisher delivers no notification while it reads the journal, so the first one dropped is the first one received afterwards.
+   */
+  private void subscribeAgain() {
+    _subscribingAgain = true;
+    Cool.startDaemon(new Runnable() {
+      public void run() {
+        try {
+          _publisher.subscribe(POBox.this, _spillingFrom.get());
+        } catch (Exception exception) {
+          _disconnected = true;
+        } finally {
+          _subscribingAgain = false;
+          wakeDeliveringThread();
+        }
       }
-      Cool.wait(this);
+    });
+  }
+
+  private void disconnect() {
+    _publisher.cancelSubscription(this);
+    for (int i = 0; i < _slots.length(); i++) _slots.set(i, null);
+    _head = _tail.get();
+    synchronized (_emptynessMonitor) {
+      _emptynessMonitor.notifyAll();
     }
-    return (TransactionTimestamp) _queue.removeFirst();
+    if (_delegate instanceof Closeable) {
+      try {
+        ((Closeable) _delegate).close();
+      } catch (IOException ignored) {
+      }
+    }
+  }
+
+  private int slot(long sequence) {
+    return (int) (sequence % _slots.length());
   }
 
 
+  /**
+   * Waits until all notifications received have been delivered, or the subscriber disconnected.
+   */
   public void waitToEmpty() {
     synchronized (_emptynessMonitor) {
-      while (_queue.size() != 0) Cool.wait(_emptynessMonitor);
+      while (depth() != 0 && !_disconnected) Cool.wait(_emptynessMonitor);
     }
   }
 
 
-}
\ No newline at end of file
+}
@@ -64,6 +64,7 @@ public class GenericSnapshotManager<P> {
     writeSnapshot(prevalentSystem, tempFile);
 
     File permanent = snapshotFile(version);
+    _directory.addToManifest(permanent);
     permanent.delete();
     if (!tempFile.renameTo(permanent)) throw new IOException(
         "Temporary snapshot file generated: " + tempFile + "\nUnable to rename it permanently to: " + permanent);
@@ -5,9 +5,19 @@
 
 package org.prevayler;
 
+import org.prevayler.foundation.BlockCodec;
+import org.prevayler.foundation.ByteThresholdSyncPolicy;
+import org.prevayler.foundation.GroupCommitPolicy;
+import org.prevayler.foundation.IntervalSyncPolicy;
+import org.prevayler.foundation.JournalSyncPolicy;
+import org.prevayler.foundation.OSManagedSyncPolicy;
+import org.prevayler.foundation.PerGroupSyncPolicy;
+import org.prevayler.foundation.RingBufferPipeline;
+import org.prevayler.foundation.WaitStrategy;
 import org.prevayler.foundation.monitor.Monitor;
 import org.prevayler.foundation.monitor.SimpleMonitor;
 import org.prevayler.foundation.network.OldNetworkImpl;
+import org.prevayler.foundation.serialization.CompactSerializer;
 import org.prevayler.foundation.serialization.JavaSerializer;
 import org.prevayler.foundation.serialization.Serializer;
 import org.prevayler.foundation.serialization.XStreamSerializer;
@@ -15,15 +25,22 @@ import org.prevayler.implementation.PrevaylerDirectory;
 import org.prevayler.implementation.PrevaylerImpl;
 import org.prevayler.implementation.clock.MachineClock;
 import org.prevayler.implementation.journal.Journal;
+import org.prevayler.implementation.journal.JournalIndex;
+import org.prevayler.implementation.journal.JournalSegmentManager;
 import org.prevayler.implementation.journal.PersistentJournal;
+import org.prevayler.implementation.journal.RecoveryPipeline;
 import org.prevayler.implementation.journal.TransientJournal;
 import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.POBox;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.replication.ClientPublisher;
+import org.prevayler.implementation.replication.RawJournalClientPublisher;
+import org.prevayler.implementation.replication.RawJournalServer;
 import org.prevayler.implementation.replication.ServerListener;
 import org.prevayler.implementation.snapshot.GenericSnapshotManager;
 import org.prevayler.implementation.snapshot.NullSnapshotManager;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.HashMap;
@@ -45,18 +62,43 @@ public class PrevaylerFactory<P> {
   private Clock _clock;
 
   private boolean _transactionDeepCopyMode = true;
+  private boolean _immutableTransactionVerification = false;
+  private int _pipelineThreads = PrevaylerImpl.DEFAULT_PIPELINE_THREADS;
+  private int _pipelineCapacity = PrevaylerImpl.DEFAULT_PIPELINE_CAPACITY;
+  private WaitStrategy _pipelineWaitStrategy;
+  private boolean _concurrentQueries = false;
+  private boolean _concurrentQueriesFairToTransactions = false;
 
   private boolean _transientMode;
   private String _prevalenceDirectory;
+  private String[] _journalStripeDirectories = new String[0];
   private NullSnapshotManager<P> _nullSnapshotManager;
 
   private long _journalSizeThreshold;
   private long _journalAgeThreshold;
   private boolean _journalDiskSync = true;
+  private JournalSyncPolicy _journalSyncPolicy;
+  private boolean _journalMemoryMapped = false;
+  private boolean _journalBinaryFormat = false;
+  private BlockCodec _journalBlockCodec;
+  private GroupCommitPolicy _groupCommit;
+  private boolean _journalFilePreparation = false;
+  private boolean _journalFileRecycling = false;
+  private int _recoveryThreads = 0;
+  private int _recoveryReorderBufferSize;
+  private int _journalIndexInterval = 0;
+  private boolean _directoryManifest = false;
+  private boolean _abortMarkers = false;
 
   private int _serverPort = -1;
+  private int _serverBufferCapacity = POBox.DEFAULT_CAPACITY;
+  private int _serverOverflowPolicy = POBox.BLOCK_PUBLISHER;
   private String _remoteServerIpAddress;
   private int _remoteServerPort;
+  private int _rawJournalServerPort = -1;
+  private long _rawJournalServerBufferSize = RawJournalServer.DEFAULT_BUFFER_SIZE;
+  private String _rawJournalRemoteServerIpAddress;
+  private int _rawJournalRemoteServerPort;
   public static final int DEFAULT_REPLICATION_PORT = 8756;
 
   private Monitor _monitor;
@@ -191,6 +233,80 @@ public class PrevaylerFactory<P> {
     _transactionDeepCopyMode = transactionDeepCopyMode;
   }
 
+  /**
+   * Configures whether transactions implementing {@link ImmutableTransaction}, which are executed directly even in
+   * transaction deep copy mode, are checked to be the same as the deep copy that would have been executed instead. The
+   * default is <code>false</code>.
+   *
+   * @param immutableTransactionVerification <br>
+   *                                         <br>If <code>true</code>, each such transaction is serialized again before and
+   *                                         after it is executed and compared to what was written to the journal. If they
+   *                                         differ, an Error is thrown and Prevayler stops processing transactions, since
+   *                                         recovery would not produce the same prevalent system. Meant for tests: it
+   *                                         costs more than the deep copy it checks.
+   */
+  public void configureImmutableTransactionVerification(boolean immutableTransactionVerification) {
+    _immutableTransactionVerification = immutableTransactionVerification;
+  }
+
+  /**
+   * Configures the number of threads that journal and execute transactions submitted with {@link Prevayler#executeAsync(Transaction)} and {@link Prevayler#executeAsync(TransactionWithQuery)}. The threads are only started when the first such transaction is submitted. The default is {@link PrevaylerImpl#DEFAULT_PIPELINE_THREADS}.
+   * <br>Each pipeline thread carries one transaction through the journal at a time, and all those waiting for their transactions to be synced to disk share a single sync, so the number of threads bounds the size of the groups synced together. See also {@link #configureGroupCommit(GroupCommitPolicy)}.
+   */
+  public void configurePipelineThreads(int pipelineThreads) {
+    if (pipelineThreads < 1) throw new IllegalArgumentException("At least one pipeline thread is needed, not " + pipelineThreads);
+    _pipelineThreads = pipelineThreads;
+  }
+
+  /**
+   * Configures the number of transactions submitted with {@link Prevayler#executeAsync(Transaction)} and {@link Prevayler#executeAsync(TransactionWithQuery)} that can wait to be executed. Submitting more blocks the submitting thread until the oldest have been executed. The default is {@link PrevaylerImpl#DEFAULT_PIPELINE_CAPACITY}.
+   */
+  public void configurePipelineCapacity(int pipelineCapacity) {
+    if (pipelineCapacity < 1) throw new IllegalArgumentException("The pipeline capacity must be at least one: " + pipelineCapacity);
+    _pipelineCapacity = pipelineCapacity;
+  }
+
+  /**
+   * Same as configureConcurrentQueries(concurrentQueries, false).
+   */
+  public void configureConcurrentQueries(boolean concurrentQueries) {
+    configureConcurrentQueries(concurrentQueries, false);
+  }
+
+  /**
+   * Configures queries to be executed concurrently with each other. The default is <code>false</code>: every query and
+   * transaction synchronizes on the prevalent system, so a single query runs at a time.
+   *
+   * @param concurrentQueries  <br>
+   *                           <br>If <code>true</code>, queries are executed under the read lock of a ReentrantReadWriteLock,
+   *                           and transactions under its write lock. Queries must then be safe to execute at the same time
+   *                           as each other, which they are if they only read the prevalent system. Queries that implement
+   *                           OptimisticQuery are first executed without any lock. Snapshots still exclude transactions
+   *                           but not queries.
+   * @param fairToTransactions <br>
+   *                           <br>The policy against transactions being starved by queries. If <code>true</code>, the lock is
+   *                           fair: a transaction only waits for the queries that arrived before it, and queries arriving
+   *                           after it wait for it, at some cost in query throughput. If <code>false</code>, queries only
+   *                           wait for a transaction that is the longest waiting thread for the lock.
+   * @see OptimisticQuery
+   */
+  public void configureConcurrentQueries(boolean concurrentQueries, boolean fairToTransactions) {
+    _concurrentQueries = concurrentQueries;
+    _concurrentQueriesFairToTransactions = fairToTransactions;
+  }
+
+  /**
+   * Configures transactions to be sequenced through the journal and their execution by a RingBufferPipeline of
+   * {@link RingBufferPipeline#DEFAULT_SIZE} turns whose threads wait with the given strategy, instead of a chain of
+   * Turns, which allocates a monitor per transaction and wakes every waiting thread whenever one moves on. The default
+   * is <code>null</code>, for Turns.
+   * <br>A ParkWaitStrategy is the safe choice. A SpinWaitStrategy or a YieldWaitStrategy only pays off with no more
+   * threads executing transactions than there are processors.
+   */
+  public void configurePipelineWaitStrategy(WaitStrategy pipelineWaitStrategy) {
+    _pipelineWaitStrategy = pipelineWaitStrategy;
+  }
+
   /**
    * Configures the Clock that will be used by the created Prevayler. The Clock interface can be implemented by the application if it requires Prevayler to use a special time source other than the machine clock (default).
    */
@@ -236,6 +352,46 @@ public class PrevaylerFactory<P> {
     _serverPort = port;
   }
 
+  /**
+   * Configures the buffer of transactions waiting to be sent to each replica of the replication server. The default is
+   * {@link POBox#DEFAULT_CAPACITY} transactions and {@link POBox#BLOCK_PUBLISHER}.
+   *
+   * @param capacity       The number of transactions a replica can fall behind.
+   * @param overflowPolicy POBox.BLOCK_PUBLISHER, POBox.DISCONNECT_SUBSCRIBER or POBox.SPILL_TO_JOURNAL. See POBox.
+   */
+  public void configureReplicationServerBuffer(int capacity, int overflowPolicy) {
+    _serverBufferCapacity = capacity;
+    _serverOverflowPolicy = overflowPolicy;
+  }
+
+
+  /**
+   * Ships the journal files to read-only replicas as raw bytes, using FileChannel.transferTo() for complete files and forwarding the bytes of each group commit as it is synced. Requires a persistent journal that is not striped. The port is released, and the replicas disconnected, when the Prevayler is closed. See configureRawJournalReplicationClient().
+   *
+   * @param port The port replicas connect to.
+   */
+  public void configureRawJournalReplicationServer(int port) {
+    _rawJournalServerPort = port;
+  }
+
+  /**
+   * Configures the bytes synced to the journal that are queued for each replica of the raw journal replication server. A replica falling further behind is sent the journal files written meanwhile from the files instead. The default is {@link RawJournalServer#DEFAULT_BUFFER_SIZE}.
+   *
+   * @param bufferSize The number of bytes a replica can fall behind before it is caught up from the journal files.
+   */
+  public void configureRawJournalReplicationServerBuffer(long bufferSize) {
+    _rawJournalServerBufferSize = bufferSize;
+  }
+
+
+  /**
+   * Makes the created Prevayler a read-only replica of the Prevayler configured with configureRawJournalReplicationServer() at the given address. The replica keeps no journal of its own and cannot execute transactions. It recovers from its own snapshot, if any, and then from the journal shipped by the server.
+   */
+  public void configureRawJournalReplicationClient(String remoteServerIpAddress, int remoteServerPort) {
+    _rawJournalRemoteServerIpAddress = remoteServerIpAddress;
+    _rawJournalRemoteServerPort = remoteServerPort;
+  }
+
 
   private void configureNullSnapshotManager(NullSnapshotManager<P> snapshotManager) {
     _nullSnapshotManager = snapshotManager;
@@ -271,11 +427,233 @@ public class PrevaylerFactory<P> {
    *                        physical disk before it is executed (using {@link java.io.FileDescriptor#sync()}).
    *                        (Many transactions may be written at once, but no transaction will be executed
    *                        before it is written to disk.)
+   * @see #configureJournalSyncPolicy(JournalSyncPolicy)
    */
   public void configureJournalDiskSync(boolean journalDiskSync) {
     _journalDiskSync = journalDiskSync;
   }
 
+  /**
+   * Configures when transactions written to the journal are forced to disk, overriding {@link #configureJournalDiskSync(boolean)}.
+   *
+   * @param journalSyncPolicy <br>
+   *                          <br>{@link PerGroupSyncPolicy} forces every group of transactions before they are executed,
+   *                          which is the same as <code>configureJournalDiskSync(true)</code>.
+   *                          <br>{@link OSManagedSyncPolicy} never forces, which is the same as
+   *                          <code>configureJournalDiskSync(false)</code>.
+   *                          <br>{@link IntervalSyncPolicy} forces the journal from a background thread at a fixed
+   *                          interval, so transactions execute at nearly the speed of OSManagedSyncPolicy while only
+   *                          those executed within about the last interval can be lost in a crash.
+   *                          <br>{@link ByteThresholdSyncPolicy} forces the journal whenever a given number of bytes
+   *                          has been written since it was last forced.
+   *                          <br>
+   *                          <br>Transactions implementing {@link JournalSyncListener} are told which policy
+   *                          acknowledged them and whether they had been forced to disk.
+   *                          <br>
+   *                          <br>If <code>null</code> (default), the policy is chosen by configureJournalDiskSync().
+   */
+  public void configureJournalSyncPolicy(JournalSyncPolicy journalSyncPolicy) {
+    _journalSyncPolicy = journalSyncPolicy;
+  }
+
+  /**
+   * Configures whether the journal is written and read through memory-mapped file segments. The default is <code>false</code>.
+   *
+   * @param journalMemoryMapped <br>
+   *                            <br>If <code>true</code>, transactions are written directly into memory-mapped segments
+   *                            of the journal file and each group commit only forces the range of the file written since
+   *                            the previous one. This avoids copying every group of transactions into a FileOutputStream
+   *                            and growing the file in small steps with a metadata sync each time. Journal files are
+   *                            truncated to their actual contents when closed, but a journal left behind by a crash may end
+   *                            with a zeroed tail, which is ignored during recovery. During recovery, journal files are
+   *                            read through a MappedJournalReader, which parses chunk headers in place and hands each
+   *                            transaction to the deserializer without copying it out of the mapping.
+   *                            <br>
+   *                            <br>If <code>false</code> (default), transactions are buffered and written to the journal
+   *                            with a regular FileOutputStream and read back through a BufferedInputStream.
+   * @see #configureJournalDiskSync(boolean)
+   */
+  public void configureJournalMemoryMapped(boolean journalMemoryMapped) {
+    _journalMemoryMapped = journalMemoryMapped;
+  }
+
+  /**
+   * Configures the record format of new journal files. The default is <code>false</code>.
+   *
+   * @param journalBinaryFormat <br>
+   *                            <br>If <code>true</code>, each transaction is written with a fixed 28-byte binary header
+   *                            holding its length, flags, system version, execution time and a CRC-32C checksum, to files
+   *                            whose suffix is the journal suffix prefixed with "b" (".bjournal" by default). Headers are
+   *                            decoded without any text parsing and corrupted records are detected by their checksum.
+   *                            <br>
+   *                            <br>If <code>false</code> (default), transactions are written as chunks with a textual header.
+   *                            <br>
+   *                            <br>Journal files of both formats are read during recovery, so the format can be changed
+   *                            at any time. Existing journals can also be converted offline with BinaryJournalConverter.
+   */
+  public void configureJournalBinaryFormat(boolean journalBinaryFormat) {
+    _journalBinaryFormat = journalBinaryFormat;
+  }
+
+  /**
+   * Configures new journal files to be written in blocks, each holding a group of transactions synced together encoded
+   * as a whole. The default is <code>null</code>.
+   *
+   * @param journalBlockCodec <br>
+   *                          <br>If not <code>null</code>, new journal files get a suffix prefixed with "z" (".zjournal"
+   *                          and ".zbjournal" by default) and are always written through a buffered FileOutputStream, even
+   *                          if they are configured to be memory-mapped. A DeflateBlockCodec compresses whole groups of
+   *                          transactions, which shrinks journals of small transactions far more than compressing each
+   *                          transaction with a GZIPSerializer, especially with a preset dictionary. An AESGCMBlockCodec
+   *                          encrypts and authenticates them, after compressing them if it is given a DeflateBlockCodec.
+   *                          <br>
+   *                          <br>Block-encoded journal files can only be read, during recovery and by raw journal
+   *                          replicas, with a codec of the same kind configured, but journal files written without blocks
+   *                          are read either way, so a codec can be configured at any time.
+   * @see org.prevayler.foundation.BlockEncoding
+   */
+  public void configureJournalBlockCodec(BlockCodec journalBlockCodec) {
+    _journalBlockCodec = journalBlockCodec;
+  }
+
+  /**
+   * Configures the journal to wait briefly before each disk sync for more transactions to be written, so that a
+   * single sync covers more of them. By default each sync covers only the transactions written while the previous
+   * sync was in progress.
+   *
+   * @param groupCommit The limits of the wait. The policy also accumulates statistics on the batches achieved
+   *                    (see {@link GroupCommitPolicy#stats()}), so keep a reference to it to tune the limits.
+   * @see #configureGroupCommit(long, long, int)
+   */
+  public void configureGroupCommit(GroupCommitPolicy groupCommit) {
+    _groupCommit = groupCommit;
+  }
+
+  /**
+   * Configures whether the next journal file is prepared in advance. The default is <code>false</code>.
+   *
+   * @param journalFilePreparation <br>
+   *                               <br>If <code>true</code>, a spare file filled with zeros up to the journal file size
+   *                               threshold (see {@link #configureJournalFileSizeThreshold(long)}) is kept ready by a
+   *                               background thread. When the journal rolls over to a new file, the spare is simply
+   *                               renamed, and the old journal file is truncated and closed in the background, so
+   *                               transactions are not held up while the file system allocates space.
+   *                               <br>
+   *                               <br>If <code>false</code> (default), new journal files are created and old ones
+   *                               closed while the transaction that caused the rollover waits.
+   * @see #configureJournalFileRecycling(boolean)
+   */
+  public void configureJournalFilePreparation(boolean journalFilePreparation) {
+    _journalFilePreparation = journalFilePreparation;
+  }
+
+  /**
+   * Configures whether journal files no longer needed for recovery are reused instead of creating new ones. The default is <code>false</code>.
+   *
+   * @param journalFileRecycling <br>
+   *                             <br>If <code>true</code>, the next journal file is prepared in advance as with
+   *                             {@link #configureJournalFilePreparation(boolean)}, but from the oldest journal file that
+   *                             only contains transactions older than the latest snapshot, if there is one. That file is
+   *                             renamed and overwritten with zeros, so its transactions are lost. Only use this if such
+   *                             journal files are not kept for any other purpose, such as backups.
+   *                             Journal files still being read by replicas catching up are not reused until they
+   *                             have been read.
+   *                             <br>
+   *                             <br>If <code>false</code> (default), journal files are never deleted or reused.
+   * @see PrevaylerDirectory#necessaryFiles()
+   */
+  public void configureJournalFileRecycling(boolean journalFileRecycling) {
+    _journalFileRecycling = journalFileRecycling;
+  }
+
+  /**
+   * Configures additional directories, ideally on separate disks, across which each journal file is striped together with the prevalence directory.
+   * The default is no additional directories.
+   *
+   * @param additionalJournalDirectories <br>
+   *                                     <br>Transaction n is written to the stripe in directory n % (additionalJournalDirectories.length + 1),
+   *                                     the prevalence directory being directory 0. Each stripe is synced independently, so groups of
+   *                                     transactions are synced to several disks in parallel instead of waiting for each other on one.
+   *                                     Transactions are still executed strictly in order, each only after all previous ones have been synced.
+   *                                     <br>
+   *                                     <br>The same directories, in the same order, must be configured to recover the system. Directories may
+   *                                     be added later, but not removed or reordered while their journal files are still needed for recovery.
+   * @see PrevaylerDirectory#necessaryFiles()
+   */
+  public void configureJournalStripeDirectories(String[] additionalJournalDirectories) {
+    _journalStripeDirectories = additionalJournalDirectories;
+  }
+
+  /**
+   * Configures recovery to decode and deserialize journaled transactions on several threads ahead of applying them.
+   * The default is to recover transactions one at a time.
+   *
+   * @param decodingThreads   <br>
+   *                          <br>The number of threads decoding and deserializing transactions while one thread reads the journal
+   *                          files and another applies the transactions in order. Zero recovers transactions one at a time.
+   * @param reorderBufferSize <br>
+   *                          <br>The number of transactions that can be read ahead of the one being applied, which bounds the memory
+   *                          used by recovery.
+   * @see org.prevayler.implementation.journal.RecoveryPipeline
+   */
+  public void configureParallelRecovery(int decodingThreads, int reorderBufferSize) {
+    _recoveryThreads = decodingThreads;
+    _recoveryReorderBufferSize = reorderBufferSize;
+  }
+
+  /**
+   * Configures whether the snapshot and journal files of the prevalence directory are listed in a manifest file kept in
+   * the directory, so that they are found without listing the directory. The default is <code>false</code>.
+   *
+   * @param directoryManifest <br>
+   *                          <br>If <code>true</code>, the manifest is updated whenever a snapshot or journal file is
+   *                          created or renamed away, and the directory is only listed when the manifest is missing or
+   *                          found inconsistent. Delete the manifest after copying snapshot or journal files into the
+   *                          directory by hand, since it would not list them.
+   * @see org.prevayler.implementation.PrevaylerDirectory#PrevaylerDirectory(File, File[], boolean)
+   */
+  public void configureDirectoryManifest(boolean directoryManifest) {
+    _directoryManifest = directoryManifest;
+  }
+
+  /**
+   * Configures a sparse index to be kept next to each journal file, so that recovery and journal tailing
+   * seek straight to the transactions they want instead of reading each journal file from its start.
+   * Journal files striped across additional directories are not indexed. The default is no index.
+   *
+   * @param interval <br>
+   *                 <br>The number of transactions between index entries. Zero keeps no index.
+   * @see org.prevayler.implementation.journal.JournalIndex
+   */
+  public void configureJournalIndexInterval(int interval) {
+    _journalIndexInterval = interval;
+  }
+
+  /**
+   * Configures whether transactions that throw a RuntimeException when executed are marked as aborted in the journal, so
+   * that recovery skips them instead of deserializing and executing them again. The default is <code>false</code>.
+   *
+   * @param abortMarkers <br>
+   *                     <br>If <code>true</code>, a failed transaction is marked in the journal entry of a later
+   *                     transaction. Only use this if your transactions leave the prevalent system unchanged whenever
+   *                     they throw a RuntimeException, since recovery would otherwise lose their partial changes.
+   */
+  public void configureAbortMarkers(boolean abortMarkers) {
+    _abortMarkers = abortMarkers;
+  }
+
+  /**
+   * Same as configureGroupCommit(new GroupCommitPolicy(maxDelayMicros, maxBatchBytes, maxBatchCount)).
+   *
+   * @param maxDelayMicros The longest a sync will wait for more transactions, in microseconds. The actual wait adapts to
+   *                       the measured latency of the disk sync and is never longer than one sync takes on average.
+   * @param maxBatchBytes  The sync stops waiting once this many bytes are pending. Zero indicates no limit.
+   * @param maxBatchCount  The sync stops waiting once this many transactions are pending. Zero indicates no limit.
+   */
+  public void configureGroupCommit(long maxDelayMicros, long maxBatchBytes, int maxBatchCount) {
+    configureGroupCommit(new GroupCommitPolicy(maxDelayMicros, maxBatchBytes, maxBatchCount));
+  }
+
 
   public void configureJournalSerializer(JavaSerializer serializer) {
     configureJournalSerializer("journal", serializer);
@@ -285,6 +663,13 @@ public class PrevaylerFactory<P> {
     configureJournalSerializer("xstreamjournal", serializer);
   }
 
+  /**
+   * Journal files written with a CompactSerializer can only be read along with its class registry file, which should be kept in the prevalence directory.
+   */
+  public void configureJournalSerializer(CompactSerializer serializer) {
+    configureJournalSerializer("compactjournal", serializer);
+  }
+
   /**
    * Configures the transaction journal Serializer to be used by the Prevayler created by this factory. Only one Serializer is supported at a time. If you want to change the Serializer of a system in production, you will have to take a snapshot first because the journal files written by the previous Serializer will not be read.
    */
@@ -329,10 +714,15 @@ public class PrevaylerFactory<P> {
    * @throws ClassNotFoundException If a class of a serialized Object is not found when reading a .journal or .snapshot file.
    */
   public Prevayler<P> create() throws Exception {
-    GenericSnapshotManager<P> snapshotManager = snapshotManager();
-    TransactionPublisher publisher = publisher(snapshotManager);
-    if (_serverPort != -1) new ServerListener(publisher, new OldNetworkImpl(), _serverPort);
-    return new PrevaylerImpl<P>(snapshotManager, publisher, journalSerializer(), _transactionDeepCopyMode);
+    PrevaylerDirectory directory = directory();
+    GenericSnapshotManager<P> snapshotManager = snapshotManager(directory);
+    if (_concurrentQueries) snapshotManager.recoveredPrevalentSystem().concurrentQueries(_concurrentQueriesFairToTransactions);
+    Journal journal = isReplica() ? null : journal(directory);
+    TransactionPublisher publisher = publisher(journal);
+    if (_serverPort != -1) new ServerListener(publisher, new OldNetworkImpl(), _serverPort, _serverBufferCapacity, _serverOverflowPolicy);
+    PrevaylerImpl<P> prevayler = new PrevaylerImpl<P>(snapshotManager, publisher, journalSerializer(), _transactionDeepCopyMode, _pipelineThreads, _pipelineCapacity, _immutableTransactionVerification);
+    if (_rawJournalServerPort != -1) new RawJournalServer(persistentJournal(journal), directory, journalSuffix(), _rawJournalServerPort, monitor(), _rawJournalServerBufferSize);
+    return prevayler;
   }
 
 
@@ -347,36 +737,83 @@ public class PrevaylerFactory<P> {
   }
 
 
-  private TransactionPublisher publisher(GenericSnapshotManager<P> snapshotManager) throws IOException {
+  private boolean isReplica() {
+    return _remoteServerIpAddress != null || _rawJournalRemoteServerIpAddress != null;
+  }
+
+  private TransactionPublisher publisher(Journal journal) throws IOException {
     if (_remoteServerIpAddress != null)
       return new ClientPublisher(new OldNetworkImpl(), _remoteServerIpAddress, _remoteServerPort);
-    return new CentralPublisher(clock(), journal());
+    if (_rawJournalRemoteServerIpAddress != null)
+      return new RawJournalClientPublisher(_rawJournalRemoteServerIpAddress, _rawJournalRemoteServerPort, _journalBlockCodec, monitor());
+    if (_pipelineWaitStrategy != null)
+      return new CentralPublisher(clock(), journal, new RingBufferPipeline(RingBufferPipeline.DEFAULT_SIZE, _pipelineWaitStrategy));
+    return new CentralPublisher(clock(), journal);
+  }
+
+  private PersistentJournal persistentJournal(Journal journal) {
+    if (!(journal instanceof PersistentJournal))
+      throw new IllegalStateException("Raw journal replication requires a persistent journal.");
+    if (_journalStripeDirectories.length > 0)
+      throw new IllegalStateException("Raw journal replication does not support striped journals.");
+    return (PersistentJournal) journal;
+  }
+
+  /**
+   * Shared by the snapshot manager, the journal and the raw journal server, so that they share the directory manifest.
+   */
+  private PrevaylerDirectory directory() {
+    return new PrevaylerDirectory(new File(prevalenceDirectory()), journalStripeDirectories(), _directoryManifest);
   }
 
-  private Journal journal() throws IOException {
+  private Journal journal(PrevaylerDirectory directory) throws IOException {
     if (_transientMode) {
       return (Journal) new TransientJournal();
     } else {
-      PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
-      return new PersistentJournal(directory, _journalSizeThreshold, _journalAgeThreshold, _journalDiskSync, journalSuffix(), monitor());
+      JournalSegmentManager segmentManager = _journalFilePreparation || _journalFileRecycling
+          ? new JournalSegmentManager(directory, _journalSizeThreshold, _journalFileRecycling, monitor())
+          : null;
+      return new PersistentJournal(directory, _journalSizeThreshold, _journalAgeThreshold, journalSyncPolicy(), _journalMemoryMapped, _journalBinaryFormat, _groupCommit, segmentManager, recoveryPipeline(), journalIndex(), _abortMarkers, _journalBlockCodec, journalSuffix(), monitor());
     }
   }
 
 
+  private RecoveryPipeline recoveryPipeline() {
+    if (_recoveryThreads == 0) return null;
+    return new RecoveryPipeline(_recoveryThreads, _recoveryReorderBufferSize, journalSerializer(), monitor());
+  }
+
+  private JournalIndex journalIndex() {
+    if (_journalIndexInterval == 0) return null;
+    return new JournalIndex(_journalIndexInterval);
+  }
+
   private Serializer journalSerializer() {
     if (_journalSerializer != null) return _journalSerializer;
     return new JavaSerializer();
   }
 
+  private File[] journalStripeDirectories() {
+    File[] directories = new File[_journalStripeDirectories.length];
+    for (int i = 0; i < directories.length; i++) {
+      directories[i] = new File(_journalStripeDirectories[i]);
+    }
+    return directories;
+  }
+
+  private JournalSyncPolicy journalSyncPolicy() {
+    if (_journalSyncPolicy != null) return _journalSyncPolicy;
+    return _journalDiskSync ? (JournalSyncPolicy) new PerGroupSyncPolicy() : new OSManagedSyncPolicy();
+  }
+
   private String journalSuffix() {
     return _journalSuffix != null ? _journalSuffix : "journal";
   }
 
-  private GenericSnapshotManager<P> snapshotManager() throws Exception {
+  private GenericSnapshotManager<P> snapshotManager(PrevaylerDirectory directory) throws Exception {
     if (_nullSnapshotManager != null)
       return _nullSnapshotManager;
 
-    PrevaylerDirectory directory = new PrevaylerDirectory(prevalenceDirectory());
     if (!_snapshotSerializers.isEmpty())
       return new GenericSnapshotManager<P>(_snapshotSerializers, _primarySnapshotSuffix, prevalentSystem(), directory, journalSerializer());
 
@@ -0,0 +1,153 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.implementation.replication.RawJournalServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+
+public class RawJournalReplicationTest extends FileIOTest {
+
+  private Prevayler<AppendingSystem> _server;
+  private Prevayler<AppendingSystem> _replica;
+  private long _serverBufferSize = RawJournalServer.DEFAULT_BUFFER_SIZE;
+
+  public void testCatchUpAndLiveTail() throws Exception {
+    serverCrashRecover(10, false, false);
+    serverAppend("a", "a");
+    serverAppend("b", "ab");
+    serverAppend("c", "abc"); //Starts new journal (3).
+
+    replicaRecover(10, "abc");
+    serverAppend("d", "abcd");
+    serverAppend("e", "abcde"); //Starts new journal (5).
+    serverAppend("f", "abcdef");
+    waitForReplica("abcdef");
+  }
+
+  public void testPreparedJournalFiles() throws Exception {
+    serverCrashRecover(11, true, false);
+    serverAppend("a", "a");
+    serverAppend("b", "ab");
+    serverAppend("c", "abc"); //Journal (3) is started from the spare, with a preallocated tail.
+
+    serverCrashRecover(15, true, false); //The previous server is not closed, as after a crash.
+    replicaRecover(15, "abc");
+    serverAppend("d", "abcd");
+    waitForReplica("abcd");
+  }
+
+  public void testBinaryJournal() throws Exception {
+    serverCrashRecover(12, false, true);
+    serverAppend("a", "a");
+    serverAppend("b", "ab");
+    serverAppend("c", "abc");
+
+    replicaRecover(12, "abc");
+    serverAppend("d", "abcd");
+    serverAppend("e", "abcde");
+    waitForReplica("abcde");
+  }
+
+  public void testReplicaFallingBehindIsSentTheFiles() throws Exception {
+    _serverBufferSize = 1;  //Every group commit overflows the buffer.
+    serverCrashRecover(17, false, false);
+    serverAppend("a", "a");
+    replicaRecover(17, "a");
+
+    String expected = "a";
+    for (char c = 'b'; c <= 'k'; c++) {  //Starts several new journals.
+      expected += c;
+      serverAppend(String.valueOf(c), expected);
+    }
+    waitForReplica(expected);
+  }
+
+  public void testReplicaIsReadOnly() throws Exception {
+    serverCrashRecover(13, false, false);
+    replicaRecover(13, "");
+    try {
+      _replica.execute(new Appendix("a"));
+      fail();
+    } catch (UnsupportedOperationException expected) {
+    }
+  }
+
+  public void testMissingJournal() throws Exception {
+    serverCrashRecover(14, false, false);
+    serverAppend("a", "a");
+    serverAppend("b", "ab");
+    serverAppend("c", "abc"); //Starts new journal (3).
+    _server.takeSnapshot();
+    assertTrue(new File(_testDirectory + File.separator + "server", "0000000000000000001.journal").delete());
+
+    try {
+      replicaRecover(14, "abc");
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testClosingTheServerReleasesThePort() throws Exception {
+    serverCrashRecover(16, false, false);
+    serverAppend("a", "a");
+    replicaRecover(16, "a");
+    _server.close();
+    _server = null;
+
+    ServerSocket socket = new ServerSocket();
+    socket.setReuseAddress(true);
+    socket.bind(new InetSocketAddress(PrevaylerFactory.DEFAULT_REPLICATION_PORT + 16));
+    socket.close();
+  }
+
+
+  private void serverAppend(String appendix, String expectedResult) {
+    _server.execute(new Appendix(appendix));
+    assertEquals(expectedResult, _server.prevalentSystem().value());
+  }
+
+  private void waitForReplica(String expectedResult) {
+    for (int i = 0; i < 500 && !expectedResult.equals(_replica.prevalentSystem().value()); i++) Cool.sleep(10);
+    assertEquals(expectedResult, _replica.prevalentSystem().value());
+  }
+
+  private void serverCrashRecover(int portOffset, boolean preparation, boolean binary) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = factory("server");
+    factory.configureJournalFileSizeThreshold(binary ? 200 : 232);  //Enough to hold 2 transactions.
+    factory.configureJournalFilePreparation(preparation);
+    factory.configureJournalBinaryFormat(binary);
+    factory.configureRawJournalReplicationServer(PrevaylerFactory.DEFAULT_REPLICATION_PORT + portOffset);
+    factory.configureRawJournalReplicationServerBuffer(_serverBufferSize);
+    _server = factory.create();
+  }
+
+  private void replicaRecover(int portOffset, String expectedResult) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = factory("replica");
+    factory.configureRawJournalReplicationClient("localhost", PrevaylerFactory.DEFAULT_REPLICATION_PORT + portOffset);
+    _replica = factory.create();
+    assertEquals(expectedResult, _replica.prevalentSystem().value());
+  }
+
+  private PrevaylerFactory<AppendingSystem> factory(String directory) {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configurePrevalenceDirectory(_testDirectory + File.separator + directory);
+    return factory;
+  }
+
+
+  protected void tearDown() throws Exception {
+    if (_replica != null) _replica.close();
+    if (_server != null) _server.close();
+    _server = null;
+    _replica = null;
+    super.tearDown();
+  }
+
+}
@@ -0,0 +1,294 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.replication;
+
+import org.prevayler.Clock;
+import org.prevayler.foundation.BinaryChunk;
+import org.prevayler.foundation.BinaryChunking;
+import org.prevayler.foundation.BlockCodec;
+import org.prevayler.foundation.BlockInputStream;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.foundation.monitor.SimpleMonitor;
+import org.prevayler.implementation.Capsule;
+import org.prevayler.implementation.TransactionTimestamp;
+import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.publishing.TransactionPublisher;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.net.Socket;
+
+
+/**
+ * Keeps a read-only replica up to date with the journal bytes shipped by a RawJournalServer,
+ * parsing them exactly as the journal files are parsed during recovery. Transactions cannot be
+ * published through a replica. Block-encoded journal files are decoded with the codec given, which
+ * must be of the same kind as the one the server's journal was configured with.
+ */
+public class RawJournalClientPublisher implements TransactionPublisher {
+
+  private final BrokenClock _clock = new BrokenClock();
+
+  private final Socket _socket;
+  private final DataInputStream _input;
+  private final BlockCodec _blockCodec;
+  private final Monitor _monitor;
+
+  private TransactionSubscriber _subscriber;
+  private long _nextTransaction;
+
+  private final Object _upToDateMonitor = new Object();
+  private boolean _upToDate = false;
+  private IOException _failure;
+
+
+  public RawJournalClientPublisher(String serverIpAddress, int serverPort) throws IOException {
+    this(serverIpAddress, serverPort, null);
+  }
+
+
+  /**
+   * @param blockCodec Decodes block-encoded journal files. Null if the server does not write any.
+   */
+  public RawJournalClientPublisher(String serverIpAddress, int serverPort, BlockCodec blockCodec) throws IOException {
+    this(serverIpAddress, serverPort, blockCodec, new SimpleMonitor(System.err));
+  }
+
+
+  /**
+   * @param blockCodec Decodes block-encoded journal files. Null if the server does not write any.
+   * @param monitor    Told when the replica stops being updated after it caught up.
+   */
+  public RawJournalClientPublisher(String serverIpAddress, int serverPort, BlockCodec blockCodec, Monitor monitor) throws IOException {
+    _socket = new Socket(serverIpAddress, serverPort);
+    _input = new DataInputStream(new BufferedInputStream(_socket.getInputStream()));
+    _blockCodec = blockCodec;
+    _monitor = monitor;
+  }
+
+
+  public synchronized void subscribe(TransactionSubscriber subscriber, long initialTransaction) throws IOException {
+    if (_subscriber != null)
+      throw new UnsupportedOperationException("The current implementation can only support one subscriber.");
+    _subscriber = subscriber;
+    _nextTransaction = initialTransaction;
+
+    DataOutputStream output = new DataOutputStream(_socket.getOutputStream());
+    output.writeLong(initialTransaction);
+    output.flush();
+    startListening();
+
+    synchronized (_upToDateMonitor) {
+      while (!_upToDate && _failure == null) wait(_upToDateMonitor);
+      if (_failure != null) throw _failure;
+    }
+  }
+
+
+  private void startListening() {
+    Thread listener = new Thread() {
+      public void run() {
+        try {
+          receiveFromServer();
+        } catch (IOException iox) {
+          fail(iox);
+        }
+      }
+    };
+    listener.setDaemon(true);
+    listener.start();
+  }
+
+
+  private void receiveFromServer() throws IOException {
+    while (true) {
+      int type = _input.read();
+      if (type == -1) throw new EOFException("The replication server closed the connection.");
+      if (type == RawJournalServer.SEGMENT) {
+        receiveSegment(_input.readByte());
+      } else if (type == RawJournalServer.CAUGHT_UP) {
+        upToDate();
+      } else if (type == RawJournalServer.ERROR) {
+        throw new IOException(_input.readUTF());
+      } else {
+        throw new StreamCorruptedException("Unexpected frame from the replication server: " + type);
+      }
+    }
+  }
+
+
+  private void receiveSegment(int flags) throws IOException {
+    boolean binary = (flags & RawJournalServer.BINARY_SEGMENT) != 0;
+    SegmentInputStream segment = new SegmentInputStream();
+    InputStream blocks = (flags & RawJournalServer.BLOCK_SEGMENT) != 0 ? new BlockInputStream(segment, blockCodec()) : null;
+    while (true) {
+      TransactionTimestamp transactionTimestamp;
+      if (blocks != null) transactionTimestamp = binary ? readBinary(blocks) : readText(blocks);
+      else transactionTimestamp = binary ? readBinary(segment) : readText(segment);
+      if (transactionTimestamp == null) break;
+      receive(transactionTimestamp);
+    }
+    segment.drain();
+  }
+
+
+  private BlockCodec blockCodec() throws IOException {
+    if (_blockCodec == null) throw new IOException("The replication server ships block-encoded journal files, but no block codec is configured to read them.");
+    return _blockCodec;
+  }
+
+
+  private static TransactionTimestamp readBinary(InputStream segment) throws IOException {
+    BinaryChunk chunk = BinaryChunking.readChunk(segment);
+    return chunk == null ? null : TransactionTimestamp.fromBinaryChunk(chunk);
+  }
+
+
+  /**
+   * A zero byte where a chunk should start is the preallocated tail of the file.
+   */
+  private static TransactionTimestamp readText(SegmentInputStream segment) throws IOException {
+    if (segment.peek() <= 0) return null;
+    return readText((InputStream) segment);
+  }
+
+
+  /**
+   * A BlockInputStream ends by itself at the preallocated tail of the file.
+   */
+  private static TransactionTimestamp readText(InputStream blocks) throws IOException {
+    Chunk chunk = Chunking.readChunk(blocks);
+    return chunk == null ? null : TransactionTimestamp.fromChunk(chunk);
+  }
+
+
+  private void receive(TransactionTimestamp transactionTimestamp) throws IOException {
+    long systemVersion = transactionTimestamp.systemVersion();
+    if (systemVersion < _nextTransaction) return;
+    if (systemVersion > _nextTransaction)
+      throw new StreamCorruptedException("Transaction " + _nextTransaction + " is missing from the journal shipped by the replication server.");
+
+    _clock.advanceTo(transactionTimestamp.executionTime());
+    _subscriber.receive(transactionTimestamp);
+    _nextTransaction++;
+  }
+
+
+  private void upToDate() {
+    synchronized (_upToDateMonitor) {
+      _upToDate = true;
+      _upToDateMonitor.notifyAll();
+    }
+  }
+
+
+  private void fail(IOException failure) {
+    synchronized (_upToDateMonitor) {
+      if (_upToDate) {
+        if (!_socket.isClosed()) _monitor.notify(RawJournalClientPublisher.class, "Lost the raw journal replication server. The replica is no longer updated.", failure);
+        return;
+      }
+      _failure = failure;
+      _upToDateMonitor.notifyAll();
+    }
+  }
+
+
+  private static void wait(Object monitor) {
+    try {
+      monitor.wait();
+    } catch (InterruptedException ix) {
+      throw new RuntimeException("Unexpected InterruptedException.");
+    }
+  }
+
+
+  public void cancelSubscription(TransactionSubscriber subscriber) {
+    throw new UnsupportedOperationException("Removing subscribers is not yet supported by the current implementation.");
+  }
+
+
+  public void publish(Capsule capsule) {
+    throw new UnsupportedOperationException("Replicas fed by a RawJournalServer are read-only. Transactions must be executed on the server.");
+  }
+
+
+  public Clock clock() {
+    return _clock;
+  }
+
+
+  public void close() throws IOException {
+    _socket.close();
+  }
+
+
+  /**
+   * The contents of the DATA frames of one journal file, ending before the next SEGMENT frame.
+   * CAUGHT_UP frames may come between DATA frames and are handled on the way.
+   */
+  private class SegmentInputStream extends InputStream {
+
+    private long _remaining = 0;
+    private boolean _ended = false;
+
+    public int read() throws IOException {
+      if (!nextData()) return -1;
+      _remaining--;
+      return _input.readUnsignedByte();
+    }
+
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      if (length == 0) return 0;
+      if (!nextData()) return -1;
+      int read = _input.read(buffer, offset, (int) Math.min(length, _remaining));
+      if (read == -1) throw new EOFException("The replication server closed the connection.");
+      _remaining -= read;
+      return read;
+    }
+
+    int peek() throws IOException {
+      if (!nextData()) return -1;
+      _input.mark(1);
+      int next = _input.read();
+      _input.reset();
+      return next;
+    }
+
+    void drain() throws IOException {
+      while (nextData()) {
+        if (read() == -1) return;
+        _remaining -= _input.skip(_remaining);
+      }
+    }
+
+    private boolean nextData() throws IOException {
+      while (_remaining == 0) {
+        if (_ended) return false;
+        _input.mark(1);
+        int type = _input.read();
+        if (type == RawJournalServer.DATA) {
+          _remaining = _input.readLong();
+        } else if (type == RawJournalServer.CAUGHT_UP) {
+          upToDate();
+        } else {
+          _input.reset();
+          _ended = true;
+        }
+      }
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,390 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.replication;
+
+import org.prevayler.foundation.JournalTap;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.journal.PersistentJournal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+
+
+/**
+ * Serves one replica for RawJournalServer. The connection taps the journal before looking at the
+ * journal files, so that every file is either complete, and sent whole, or tapped from the start of
+ * its current contents on.
+ * <p/>
+ * The tap only queues what it is given, since it is called on the transaction pipeline. Once more
+ * than the buffer size is queued for a replica that cannot keep up, the tap drops what it is given
+ * and is removed. The connection then sends the rest of the journal files already written straight
+ * from the files, as when the replica connected, and taps the journal again.
+ */
+class RawJournalConnection extends Thread implements JournalTap {
+
+  private static final int STARTED = 0;
+  private static final int FLUSHED = 1;
+  private static final int FINISHED = 2;
+  private static final int OVERFLOWED = 3;
+
+  private final RawJournalServer _server;
+  private final PersistentJournal _journal;
+  private final PrevaylerDirectory _directory;
+  private final String _journalSuffix;
+  private final String _binaryJournalSuffix;
+  private final String _blockJournalSuffix;
+  private final String _blockBinaryJournalSuffix;
+  private final SocketChannel _socket;
+  private final long _bufferSize;
+
+  private final LinkedBlockingQueue _events = new LinkedBlockingQueue();
+
+  /**
+   * The bytes of the FLUSHED events queued, and whether the tap overflowed. Guarded by _events.
+   */
+  private long _queuedBytes = 0;
+  private boolean _overflowed = false;
+
+  /**
+   * The tapped journal file being sent, or null between files.
+   */
+  private File _current;
+
+  /**
+   * The number of bytes of the current file sent so far.
+   */
+  private long _currentSent;
+
+  /**
+   * The first transaction of the latest journal file started, or -1 if none was. Earlier files were sent whole.
+   */
+  private long _lastJournalStarted = -1;
+
+  /**
+   * Events of later journal files that arrived before the current file was finished. Retired journal
+   * files are closed on a background thread, so a file may be finished after the next one started.
+   */
+  private LinkedList _pending = new LinkedList();
+
+
+  /**
+   * @param bufferSize The number of bytes that can be queued for the replica before the tap is dropped.
+   */
+  RawJournalConnection(RawJournalServer server, PersistentJournal journal, PrevaylerDirectory directory, String journalSuffix, SocketChannel socket, long bufferSize) {
+    _server = server;
+    _journal = journal;
+    _directory = directory;
+    _journalSuffix = journalSuffix;
+    _binaryJournalSuffix = PersistentJournal.binaryJournalSuffix(journalSuffix);
+    _blockJournalSuffix = PersistentJournal.blockJournalSuffix(journalSuffix);
+    _blockBinaryJournalSuffix = PersistentJournal.blockJournalSuffix(_binaryJournalSuffix);
+    _socket = socket;
+    _bufferSize = bufferSize;
+    setDaemon(true);
+    start();
+  }
+
+
+  public void run() {
+    try {
+      long initialTransaction = readLong();
+      long firstTappedJournal;
+      try {
+        firstTappedJournal = _journal.addJournalTap(this);
+      } catch (UnsupportedOperationException exception) {
+        sendError(exception.getMessage());
+        return;
+      }
+      try {
+        boolean caughtUp;
+        _journal.startReadingJournalFiles(initialTransaction);
+        try {
+          caughtUp = catchUp(initialTransaction, firstTappedJournal);
+        } finally {
+          _journal.finishedReadingJournalFiles(initialTransaction);
+        }
+        if (caughtUp) {
+          while (true) handle(take());
+        }
+      } finally {
+        _journal.removeJournalTap(this);
+      }
+    } catch (IOException iox) {
+      //The replica disconnected.
+    } catch (InterruptedException ix) {
+      //Stopped.
+    } finally {
+      try {
+        _socket.close();
+      } catch (IOException ignored) {
+      }
+      _server.ended(this);
+    }
+  }
+
+
+  /**
+   * Sends the complete journal files from the one holding the initial transaction on, then the
+   * current contents of the first tapped file, if it already exists. If journal files are indexed, the
+   * first file is sent from the indexed transaction closest to the initial one.
+   *
+   * @return false if the replica cannot be served.
+   */
+  private boolean catchUp(long initialTransaction, long firstTappedJournal) throws IOException {
+    File[] journals = completeJournalFiles(firstTappedJournal);
+    int first = 0;
+    for (int i = 0; i < journals.length; i++) {
+      if (PrevaylerDirectory.journalVersion(journals[i]) <= initialTransaction) first = i;
+    }
+    long firstTransactionAvailable = first < journals.length ? PrevaylerDirectory.journalVersion(journals[first]) : firstTappedJournal;
+    if (firstTransactionAvailable > initialTransaction) {
+      sendError("The journal files holding transaction " + initialTransaction + " are no longer available.");
+      return false;
+    }
+
+    for (int i = first; i < journals.length; i++) {
+      long start = i == first ? _journal.indexedOffset(journals[i], initialTransaction) : 0;
+      sendWhole(journals[i], start);
+    }
+
+    TapEvent next = (TapEvent) _events.peek();
+    if (next != null && next._type == STARTED && PrevaylerDirectory.journalVersion(next._file) == firstTappedJournal) {
+      handle((TapEvent) _events.poll());
+    }
+
+    send(frame(RawJournalServer.CAUGHT_UP, 0));
+    return true;
+  }
+
+
+  private File[] completeJournalFiles(long firstTappedJournal) throws IOException {
+    File[] journals = _directory.journalFiles();
+    List complete = new ArrayList();
+    for (int i = 0; i < journals.length; i++) {
+      String name = journals[i].getName();
+      boolean ours = name.endsWith("." + _journalSuffix) || name.endsWith("." + _binaryJournalSuffix)
+          || name.endsWith("." + _blockJournalSuffix) || name.endsWith("." + _blockBinaryJournalSuffix);
+      if (ours && PrevaylerDirectory.journalVersion(journals[i]) < firstTappedJournal) complete.add(journals[i]);
+    }
+    return (File[]) complete.toArray(new File[complete.size()]);
+  }
+
+
+  /**
+   * Sends a complete journal file from the given offset on.
+   */
+  private void sendWhole(File journal, long start) throws IOException {
+    sendSegment(journal);
+    _lastJournalStarted = PrevaylerDirectory.journalVersion(journal);
+    transfer(journal, start, journal.length());
+  }
+
+
+  private TapEvent take() throws InterruptedException {
+    TapEvent event = (TapEvent) _events.take();
+    if (event._type == FLUSHED) {
+      synchronized (_events) {
+        _queuedBytes -= event._bytes.length;
+      }
+    }
+    return event;
+  }
+
+
+  private void handle(TapEvent event) throws IOException {
+    if (event._type == OVERFLOWED) {
+      catchUpAfterOverflow();
+      return;
+    }
+    if (!event._file.equals(_current) && PrevaylerDirectory.journalVersion(event._file) <= _lastJournalStarted) {
+      return;  //Tapped before the tap overflowed, or finished by a retired file after that, and sent whole since.
+    }
+    if (event._type == STARTED && event._file.equals(_current)) {  //Tapped again after the tap overflowed.
+      transfer(event._file, _currentSent, event._offset);
+      _currentSent = event._offset;
+      return;
+    }
+    if (_current == null && event._type == STARTED) {
+      _current = event._file;
+      _lastJournalStarted = PrevaylerDirectory.journalVersion(event._file);
+      sendSegment(event._file);
+      transfer(event._file, 0, event._offset);
+      _currentSent = event._offset;
+      return;
+    }
+    if (!event._file.equals(_current)) {
+      _pending.add(event);
+      return;
+    }
+    if (event._type == FLUSHED) {
+      send(frame(RawJournalServer.DATA, event._bytes.length));
+      send(ByteBuffer.wrap(event._bytes));
+      _currentSent = event._offset + event._bytes.length;
+      return;
+    }
+    if (event._type == FINISHED) {
+      _current = null;
+      List later = _pending;
+      _pending = new LinkedList();
+      for (int i = 0; i < later.size(); i++) handle((TapEvent) later.get(i));
+    }
+  }
+
+
+  /**
+   * Drops what the tap queued and taps the journal again. The current file, unless it is the one
+   * tapped again, and the files after it that are complete by then, are sent from the files, which are
+   * kept from being recycled meanwhile.
+   */
+  private void catchUpAfterOverflow() throws IOException {
+    long firstTransactionToSend = _current != null ? PrevaylerDirectory.journalVersion(_current) : _lastJournalStarted + 1;
+    _journal.startReadingJournalFiles(firstTransactionToSend);
+    try {
+      _journal.removeJournalTap(this);
+      synchronized (_events) {
+        _events.clear();
+        _queuedBytes = 0;
+        _overflowed = false;
+      }
+      _pending.clear();
+
+      long firstTappedJournal = _journal.addJournalTap(this);
+      if (_current != null && PrevaylerDirectory.journalVersion(_current) < firstTappedJournal) {
+        transfer(_current, _currentSent, _current.length());
+        _current = null;
+      }
+      File[] journals = completeJournalFiles(firstTappedJournal);
+      for (int i = 0; i < journals.length; i++) {
+        if (PrevaylerDirectory.journalVersion(journals[i]) > _lastJournalStarted) sendWhole(journals[i], 0);
+      }
+    } finally {
+      _journal.finishedReadingJournalFiles(firstTransactionToSend);
+    }
+  }
+
+
+  private void sendSegment(File journal) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(2);
+    buffer.put(RawJournalServer.SEGMENT);
+    String name = journal.getName();
+    int flags = 0;
+    if (name.endsWith("." + _binaryJournalSuffix) || name.endsWith("." + _blockBinaryJournalSuffix)) flags |= RawJournalServer.BINARY_SEGMENT;
+    if (name.endsWith("." + _blockJournalSuffix) || name.endsWith("." + _blockBinaryJournalSuffix)) flags |= RawJournalServer.BLOCK_SEGMENT;
+    buffer.put((byte) flags);
+    buffer.flip();
+    send(buffer);
+  }
+
+
+  /**
+   * Sends the given range of the file as a DATA frame, straight from the file to the socket. The range
+   * starts at a chunk, where the replica can start reading.
+   */
+  private void transfer(File journal, long start, long end) throws IOException {
+    if (start >= end) return;
+    send(frame(RawJournalServer.DATA, end - start));
+    FileInputStream input = new FileInputStream(journal);
+    try {
+      FileChannel channel = input.getChannel();
+      long position = start;
+      while (position < end) {
+        long sent = channel.transferTo(position, end - position, _socket);
+        if (sent == 0 && position >= channel.size()) throw new IOException("Journal file " + journal + " is shorter than expected.");
+        position += sent;
+      }
+    } finally {
+      input.close();
+    }
+  }
+
+
+  private void sendError(String message) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeByte(RawJournalServer.ERROR);
+    output.writeUTF(message);
+    output.flush();
+    send(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+
+  private static ByteBuffer frame(byte type, long length) {
+    ByteBuffer buffer = ByteBuffer.allocate(type == RawJournalServer.DATA ? 9 : 1);
+    buffer.put(type);
+    if (type == RawJournalServer.DATA) buffer.putLong(length);
+    buffer.flip();
+    return buffer;
+  }
+
+
+  private void send(ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) _socket.write(buffer);
+  }
+
+
+  private long readLong() throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    while (buffer.hasRemaining()) {
+      if (_socket.read(buffer) == -1) throw new IOException("The replica disconnected.");
+    }
+    buffer.flip();
+    return buffer.getLong();
+  }
+
+
+  public void started(File file, long length) {
+    queue(new TapEvent(STARTED, file, length, null));
+  }
+
+  public void flushed(File file, long offset, byte[] bytes) {
+    queue(new TapEvent(FLUSHED, file, offset, bytes));
+  }
+
+  public void finished(File file) {
+    queue(new TapEvent(FINISHED, file, 0, null));
+  }
+
+  private void queue(TapEvent event) {
+    synchronized (_events) {
+      if (_overflowed) return;
+      if (event._type == FLUSHED) {
+        _queuedBytes += event._bytes.length;
+        if (_queuedBytes > _bufferSize) {
+          _overflowed = true;
+          event = new TapEvent(OVERFLOWED, null, 0, null);
+        }
+      }
+      _events.add(event);
+    }
+  }
+
+
+  private static class TapEvent {
+
+    private final int _type;
+    private final File _file;
+    private final long _offset;
+    private final byte[] _bytes;
+
+    TapEvent(int type, File file, long offset, byte[] bytes) {
+      _type = type;
+      _file = file;
+      _offset = offset;
+      _bytes = bytes;
+    }
+
+  }
+
+}
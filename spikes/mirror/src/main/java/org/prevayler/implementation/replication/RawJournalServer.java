@@ -0,0 +1,130 @@
+//Prevayler(TM) - The Free-Software Prevalence Layer.
+//Copyright (C) 2001-2003 Klaus Wuestefeld
+//This library is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.
+
+package org.prevayler.implementation.replication;
+
+import org.prevayler.foundation.monitor.Monitor;
+import org.prevayler.implementation.PrevaylerDirectory;
+import org.prevayler.implementation.journal.PersistentJournal;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * Ships the journal files of a PersistentJournal to replicas as raw bytes, without deserializing
+ * and reserializing each transaction as ServerConnection does. Complete journal files are sent with
+ * FileChannel.transferTo(), so they go from the page cache to the socket without being copied
+ * through the JVM, and the bytes of each group commit are then forwarded as they are synced.
+ * <p/>
+ * The protocol: the replica sends the long number of the first transaction it needs. The server
+ * then sends frames, each a type byte followed by its payload:
+ * <pre>
+ *   SEGMENT   byte flags       A new journal file starts, in the binary format if bit 0 is set and
+ *                              written in blocks by a BlockCodec if bit 1 is set.
+ *   DATA      long length      Followed by that many bytes of the current journal file.
+ *   CAUGHT_UP                  All transactions synced before the replica connected have been sent.
+ *   ERROR     UTF message      The replica cannot be served. Nothing follows.
+ * </pre>
+ * The bytes synced while a replica is being served are queued for it, up to a buffer size. A replica
+ * falling further behind is sent the journal files written meanwhile straight from the files.
+ * <p/>
+ * The server, and every connection to a replica, is closed along with the journal.
+ * See RawJournalClientPublisher.
+ */
+public class RawJournalServer extends Thread implements Closeable {
+
+  static final byte SEGMENT = 1;
+  static final byte DATA = 2;
+  static final byte CAUGHT_UP = 3;
+  static final byte ERROR = 4;
+
+  static final int BINARY_SEGMENT = 1;
+  static final int BLOCK_SEGMENT = 2;
+
+  public static final long DEFAULT_BUFFER_SIZE = 64 * 1024 * 1024;
+
+  private final PersistentJournal _journal;
+  private final PrevaylerDirectory _directory;
+  private final String _journalSuffix;
+  private final ServerSocketChannel _serverSocket;
+  private final Monitor _monitor;
+  private final long _bufferSize;
+
+  /**
+   * The connections still serving a replica. Guarded by itself, as is _closed.
+   */
+  private final List _connections = new ArrayList();
+  private boolean _closed = false;
+
+
+  public RawJournalServer(PersistentJournal journal, PrevaylerDirectory directory, String journalSuffix, int port, Monitor monitor) throws IOException {
+    this(journal, directory, journalSuffix, port, monitor, DEFAULT_BUFFER_SIZE);
+  }
+
+  /**
+   * @param bufferSize The number of bytes synced to the journal that are queued for each replica.
+   */
+  public RawJournalServer(PersistentJournal journal, PrevaylerDirectory directory, String journalSuffix, int port, Monitor monitor, long bufferSize) throws IOException {
+    _journal = journal;
+    _directory = directory;
+    _journalSuffix = journalSuffix;
+    _monitor = monitor;
+    _bufferSize = bufferSize;
+    _serverSocket = ServerSocketChannel.open();
+    _serverSocket.socket().setReuseAddress(true);
+    _serverSocket.socket().bind(new InetSocketAddress(port));
+    journal.closeWithJournal(this);
+    setName("Prevayler raw journal server on port " + port);
+    setDaemon(true);
+    start();
+  }
+
+  public void run() {
+    try {
+      while (true) accept(_serverSocket.accept());
+    } catch (IOException iox) {
+      if (_serverSocket.isOpen()) _monitor.notify(RawJournalServer.class, "The raw journal server stopped accepting replicas.", iox);
+    }
+  }
+
+  private void accept(SocketChannel socket) throws IOException {
+    synchronized (_connections) {
+      if (_closed) {
+        socket.close();
+        return;
+      }
+      _connections.add(new RawJournalConnection(this, _journal, _directory, _journalSuffix, socket, _bufferSize));
+    }
+  }
+
+  void ended(RawJournalConnection connection) {
+    synchronized (_connections) {
+      _connections.remove(connection);
+    }
+  }
+
+  /**
+   * Stops accepting replicas and disconnects the ones being served. The port is only released once
+   * the accepting thread has left accept(), so this waits for it.
+   */
+  public void close() throws IOException {
+    synchronized (_connections) {
+      _closed = true;
+      for (int i = 0; i < _connections.size(); i++) ((RawJournalConnection) _connections.get(i)).interrupt();
+    }
+    _serverSocket.close();
+    try {
+      join();
+    } catch (InterruptedException ix) {
+      throw new RuntimeException("Unexpected InterruptedException.");
+    }
+  }
+
+}
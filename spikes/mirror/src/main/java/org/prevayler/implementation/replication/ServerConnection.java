@@ -11,25 +11,35 @@ import org.prevayler.implementation.publishing.POBox;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 import org.prevayler.implementation.publishing.TransactionSubscriber;
 
+import java.io.Closeable;
 import java.io.IOException;
 
 
 /**
  * Reserved for future implementation.
  */
-class ServerConnection extends Thread implements TransactionSubscriber {
+class ServerConnection extends Thread implements TransactionSubscriber, Closeable {
 
   static final String SUBSCRIBER_UP_TO_DATE = "SubscriberUpToDate";
   static final String REMOTE_TRANSACTION = "RemoteTransaction";
 
   private final TransactionPublisher _publisher;
+  private final int _bufferCapacity;
+  private final int _overflowPolicy;
+  private POBox _poBox;
   private Capsule _remoteCapsule;
 
   private final ObjectSocket _remote;
   private final Thread _clockTickSender = createClockTickSender();
 
-  ServerConnection(TransactionPublisher publisher, ObjectSocket remoteSocket) throws IOException {
+  /**
+   * @param bufferCapacity The number of transactions buffered for the replica. See POBox.
+   * @param overflowPolicy What to do when the replica falls that many transactions behind. See POBox.
+   */
+  ServerConnection(TransactionPublisher publisher, ObjectSocket remoteSocket, int bufferCapacity, int overflowPolicy) throws IOException {
     _publisher = publisher;
+    _bufferCapacity = bufferCapacity;
+    _overflowPolicy = overflowPolicy;
     _remote = remoteSocket;
     setDaemon(true);
     start();
@@ -40,9 +50,9 @@ class ServerConnection extends Thread implements TransactionSubscriber {
     try {
       long initialTransaction = ((Long) _remote.readObject()).longValue();
 
-      POBox poBox = new POBox(this);
-      _publisher.subscribe(poBox, initialTransaction);
-      poBox.waitToEmpty();
+      _poBox = new POBox(this, _bufferCapacity, _overflowPolicy, _publisher);
+      _publisher.subscribe(_poBox, initialTransaction);
+      _poBox.waitToEmpty();
 
       send(SUBSCRIBER_UP_TO_DATE);
 
@@ -108,10 +118,10 @@ class ServerConnection extends Thread implements TransactionSubscriber {
   }
 
 
-  private synchronized void close() {
+  public synchronized void close() {
     _clockTickSender.interrupt();
     this.interrupt();
-    _publisher.cancelSubscription(this);
+    if (_poBox != null) _publisher.cancelSubscription(_poBox);
   }
 
 
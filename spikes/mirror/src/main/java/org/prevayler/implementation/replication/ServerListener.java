@@ -6,6 +6,7 @@ package org.prevayler.implementation.replication;
 
 import org.prevayler.foundation.network.ObjectServerSocket;
 import org.prevayler.foundation.network.OldNetworkImpl;
+import org.prevayler.implementation.publishing.POBox;
 import org.prevayler.implementation.publishing.TransactionPublisher;
 
 import java.io.IOException;
@@ -18,19 +19,31 @@ public class ServerListener extends Thread {
 
   private final TransactionPublisher _publisher;
   private final ObjectServerSocket _serverSocket;
+  private final int _bufferCapacity;
+  private final int _overflowPolicy;
 
   //TODO Close the socket when the publisher is closed (listen for it or have the Dashboard (new idea) close this when it closes the publisher).
 
   public ServerListener(TransactionPublisher publisher, OldNetworkImpl network, int port) throws IOException {
+    this(publisher, network, port, POBox.DEFAULT_CAPACITY, POBox.BLOCK_PUBLISHER);
+  }
+
+  /**
+   * @param bufferCapacity The number of transactions buffered for each replica. See POBox.
+   * @param overflowPolicy What to do when a replica falls that many transactions behind. See POBox.
+   */
+  public ServerListener(TransactionPublisher publisher, OldNetworkImpl network, int port, int bufferCapacity, int overflowPolicy) throws IOException {
     _serverSocket = network.openObjectServerSocket(port);
     _publisher = publisher;
+    _bufferCapacity = bufferCapacity;
+    _overflowPolicy = overflowPolicy;
     setDaemon(true);
     start(); //FIXME: Make sure this thread ends when Prevayler is closed.
   }
 
   public void run() {
     try {
-      while (true) new ServerConnection(_publisher, _serverSocket.accept());
+      while (true) new ServerConnection(_publisher, _serverSocket.accept(), _bufferCapacity, _overflowPolicy);
     } catch (IOException iox) {
       iox.printStackTrace();
     }
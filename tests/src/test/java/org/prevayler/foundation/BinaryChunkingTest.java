@@ -0,0 +1,122 @@
+package org.prevayler.foundation;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+
+public class BinaryChunkingTest extends TestCase {
+
+  public void testCrc32c() throws IOException {
+    Crc32c crc = new Crc32c();
+    byte[] bytes = "123456789".getBytes("US-ASCII");
+    crc.update(bytes, 0, bytes.length);
+    assertEquals(0xE3069283L, crc.getValue());
+  }
+
+  public void testBinaryOutput() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk("foo".getBytes("US-ASCII"), 1, 0x0102030405060708L, 1000));
+    byte[] bytes = output.toByteArray();
+
+    assertEquals(BinaryChunking.HEADER_LENGTH + 3, bytes.length);
+    assertEquals(3, BinaryChunking.getInt(bytes, 0));
+    assertEquals(1, BinaryChunking.getInt(bytes, 4));
+    assertEquals(8, bytes[8]);
+    assertEquals(0x0102030405060708L, BinaryChunking.getLong(bytes, 8));
+    assertEquals(1000, BinaryChunking.getLong(bytes, 16));
+    assertEquals("foo", new String(bytes, BinaryChunking.HEADER_LENGTH, 3, "US-ASCII"));
+  }
+
+  public void testMultipleChunks() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+
+    BinaryChunking.writeChunk(output, new BinaryChunk("foo".getBytes("US-ASCII"), 0, 1, 1001));
+    BinaryChunking.writeChunk(output, new BinaryChunk("".getBytes("US-ASCII"), 1, 2, 1002));
+    BinaryChunking.writeChunk(output, new BinaryChunk("zot".getBytes("US-ASCII"), 0, 3, 1003));
+
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+
+    BinaryChunk chunk = BinaryChunking.readChunk(input);
+    assertEquals("foo", new String(chunk.getBytes(), "US-ASCII"));
+    assertEquals(0, chunk.getFlags());
+    assertEquals(1, chunk.getVersion());
+    assertEquals(1001, chunk.getTime());
+
+    chunk = BinaryChunking.readChunk(input);
+    assertEquals("", new String(chunk.getBytes(), "US-ASCII"));
+    assertEquals(1, chunk.getFlags());
+    assertEquals(2, chunk.getVersion());
+
+    chunk = BinaryChunking.readChunk(input);
+    assertEquals("zot", new String(chunk.getBytes(), "US-ASCII"));
+    assertEquals(3, chunk.getVersion());
+
+    assertNull(BinaryChunking.readChunk(input));
+  }
+
+  public void testZeroedTailIsEndOfStream() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk("foo".getBytes("US-ASCII"), 0, 1, 1001));
+    output.write(new byte[100]);
+
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+    assertEquals("foo", new String(BinaryChunking.readChunk(input).getBytes(), "US-ASCII"));
+    assertNull(BinaryChunking.readChunk(input));
+  }
+
+  public void testMalformed() throws IOException {
+    byte[] valid = chunkBytes();
+
+    byte[] corrupted = (byte[]) valid.clone();
+    corrupted[BinaryChunking.HEADER_LENGTH + 1] ^= 1;
+    checkMalformed(corrupted, "Chunk checksum mismatch");
+
+    corrupted = (byte[]) valid.clone();
+    corrupted[16] ^= 1;
+    checkMalformed(corrupted, "Chunk header corrupted");
+
+    corrupted = (byte[]) valid.clone();
+    corrupted[2] ^= 1;
+    checkMalformed(corrupted, "Chunk header corrupted");
+
+    corrupted = (byte[]) valid.clone();
+    corrupted[3] = (byte) 0x80;
+    checkMalformed(corrupted, "Chunk header corrupted");
+
+    corrupted = (byte[]) valid.clone();
+    corrupted[BinaryChunking.CHECKSUM_OFFSET] ^= 1;
+    checkMalformed(corrupted, "Chunk checksum mismatch");
+
+    checkMalformed(truncated(valid, valid.length - 1), "Unexpected end of stream in chunk data");
+    checkMalformed(truncated(valid, BinaryChunking.HEADER_LENGTH - 1), "Unexpected end of stream in chunk header");
+  }
+
+  private byte[] chunkBytes() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk("foo".getBytes("US-ASCII"), 0, 1, 1001));
+    return output.toByteArray();
+  }
+
+  private byte[] truncated(byte[] bytes, int length) {
+    byte[] result = new byte[length];
+    System.arraycopy(bytes, 0, result, 0, length);
+    return result;
+  }
+
+  private void checkMalformed(byte[] input, String message) {
+    try {
+      BinaryChunking.readChunk(new ByteArrayInputStream(input));
+      fail("Should have thrown IOException");
+    } catch (IOException exception) {
+      assertEquals(message, exception.getMessage());
+      if (message.startsWith("Unexpected end of stream")) {
+        assertTrue("Actual exception class was <" + exception.getClass().getName() + ">",
+            exception instanceof EOFException);
+      }
+    }
+  }
+
+}
@@ -37,6 +37,17 @@ public class ChunkingTest extends TestCase {
     assertNull(Chunking.readChunk(input));
   }
 
+  public void testZeroedTailIsEndOfStream() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Chunking.writeChunk(output, new Chunk("foo".getBytes("US-ASCII")));
+    output.write(new byte[100]);
+
+    ByteArrayInputStream input = new ByteArrayInputStream(output.toByteArray());
+    assertEquals("foo", new String(Chunking.readChunk(input).getBytes(), "US-ASCII"));
+    assertNull(Chunking.readChunk(input));
+    assertEquals(99, input.available());
+  }
+
   public void testMalformed() throws IOException {
     checkMalformed("3\nfoo\r\n", "Chunk header corrupted");
     checkMalformed("3\rfoo\r\n", "Chunk header corrupted");
@@ -44,6 +55,7 @@ public class ChunkingTest extends TestCase {
     checkMalformed("f\r\nabcdefghijklmno\r\n", "Chunk header corrupted");
     checkMalformed("FFF\r\nabcdefghijklmno\r\n", "Unexpected end of stream in chunk data");
     checkMalformed("FFF", "Unexpected end of stream in chunk header");
+    checkMalformed("FFF\0\0\0\0", "Unexpected end of stream in chunk header");
     checkMalformed("F\r\nabcdefghijklmno\n", "Chunk trailer corrupted");
     checkMalformed("F\r\nabcdefghijklmno\r", "Unexpected end of stream in chunk trailer");
     checkMalformed("F\r\nabcdefghijklmno", "Unexpected end of stream in chunk trailer");
@@ -0,0 +1,119 @@
+package org.prevayler.foundation;
+
+import java.io.*;
+
+public class GroupCommitPolicyTest extends FileIOTest {
+
+  public void testNoWaitingForLoneWriter() {
+    GroupCommitPolicy policy = new GroupCommitPolicy(1000, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      policy.recordSync(1, 10, 500000, 0);
+    }
+    assertEquals(0, policy.batchWindowNanos());
+  }
+
+  public void testWindowAdaptsToForceLatency() {
+    GroupCommitPolicy policy = new GroupCommitPolicy(1000, 0, 0);
+    for (int i = 0; i < 100; i++) {
+      policy.recordSync(4, 40, 200000, 0);
+    }
+    assertTrue(policy.batchWindowNanos() <= 200000);
+    assertTrue(policy.batchWindowNanos() > 150000);
+
+    for (int i = 0; i < 100; i++) {
+      policy.recordSync(4, 40, 5000000, 0);
+    }
+    assertEquals(1000000, policy.batchWindowNanos());
+
+    GroupCommitStats stats = policy.stats();
+    assertEquals(200, stats.syncCount());
+    assertEquals(800, stats.objectsSynced());
+    assertEquals(8000, stats.bytesSynced());
+    assertEquals(4, stats.largestBatch());
+    assertEquals(4.0, stats.averageBatchCount(), 0.001);
+    assertEquals(2600.0, stats.averageForceMicros(), 0.001);
+    assertEquals(1000, stats.currentWindowMicros());
+  }
+
+  public void testBatchLimits() {
+    GroupCommitPolicy policy = new GroupCommitPolicy(1000, 100, 10);
+    assertFalse(policy.isBatchFull(9, 99));
+    assertTrue(policy.isBatchFull(10, 0));
+    assertTrue(policy.isBatchFull(1, 100));
+
+    GroupCommitPolicy unlimited = new GroupCommitPolicy(1000, 0, 0);
+    assertFalse(unlimited.isBatchFull(1000000, 1000000));
+  }
+
+  public void testNegativeLimits() {
+    try {
+      new GroupCommitPolicy(-1, 0, 0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testManyWriters() throws Exception {
+    GroupCommitPolicy policy = new GroupCommitPolicy(2000, 0, 4);
+    File file = new File(_testDirectory, "stream.bin");
+    final DurableOutputStream out = new DurableOutputStream(file, new PerGroupSyncPolicy(), 0, policy, false);
+
+    final int threads = 4;
+    final int objectsPerThread = 50;
+    final Turn[] turns = new Turn[threads * objectsPerThread];
+    turns[0] = Turn.first();
+    for (int i = 1; i < turns.length; i++) {
+      turns[i] = turns[i - 1].next();
+    }
+
+    final Exception[] failure = new Exception[1];
+    Thread[] workers = new Thread[threads];
+    for (int t = 0; t < threads; t++) {
+      final int first = t;
+      workers[t] = new Thread() {
+        public void run() {
+          try {
+            for (int i = first; i < turns.length; i += threads) {
+              out.sync(new DummyGuide(String.valueOf(i), turns[i]));
+            }
+          } catch (IOException exception) {
+            failure[0] = exception;
+          }
+        }
+      };
+      workers[t].start();
+    }
+    for (int t = 0; t < threads; t++) {
+      workers[t].join();
+    }
+    out.close();
+
+    assertNull(failure[0]);
+    assertEquals(turns.length, policy.stats().objectsSynced());
+    assertEquals(out.fileSyncCount(), policy.stats().syncCount());
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    for (int i = 0; i < turns.length; i++) {
+      assertEquals(String.valueOf(i), reader.readLine());
+    }
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  private static class DummyGuide extends Guided {
+
+    private final String _value;
+
+    public DummyGuide(String value, Turn turn) {
+      super(turn);
+      _value = value;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+      stream.write(_value.getBytes());
+      stream.write('\n');
+    }
+
+  }
+
+}
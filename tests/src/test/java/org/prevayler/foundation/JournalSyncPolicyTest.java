@@ -0,0 +1,165 @@
+package org.prevayler.foundation;
+
+import org.prevayler.JournalSyncListener;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Date;
+
+public class JournalSyncPolicyTest extends FileIOTest {
+
+  public void testPolicies() {
+    assertTrue(new PerGroupSyncPolicy().isForceRequired(1, 0));
+    assertFalse(new OSManagedSyncPolicy().isForceRequired(Long.MAX_VALUE, Long.MAX_VALUE));
+
+    ByteThresholdSyncPolicy bytes = new ByteThresholdSyncPolicy(100);
+    assertFalse(bytes.isForceRequired(99, Long.MAX_VALUE));
+    assertTrue(bytes.isForceRequired(100, 0));
+
+    IntervalSyncPolicy interval = new IntervalSyncPolicy(5);
+    assertFalse(interval.isForceRequired(Long.MAX_VALUE, 4999999));
+    assertTrue(interval.isForceRequired(0, 5000000));
+
+    try {
+      new IntervalSyncPolicy(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  public void testAcknowledgement() throws Exception {
+    checkAcknowledgement(false);
+    checkAcknowledgement(true);
+  }
+
+  private void checkAcknowledgement(boolean memoryMapped) throws Exception {
+    JournalSyncPolicy policy = new ByteThresholdSyncPolicy(10);
+    File file = new File(_testDirectory, "stream" + memoryMapped + ".bin");
+    DurableOutput out = memoryMapped
+        ? (DurableOutput) new MappedJournalOutputStream(file, policy, 0, null, false)
+        : new DurableOutputStream(file, policy, 0, null, false);
+
+    Turn turn = Turn.first();
+    DummyGuide first = new DummyGuide("abcd", turn);
+    out.sync(first);
+    assertSame(policy, first._policy);
+    assertFalse(first._forced);
+
+    DummyGuide second = new DummyGuide("efgh", turn = turn.next());
+    out.sync(second);
+    assertTrue(second._forced);
+
+    DummyGuide third = new DummyGuide("ijkl", turn.next());
+    out.sync(third);
+    assertFalse(third._forced);
+
+    out.force();
+    out.close();
+    assertEquals("abcd\nefgh\nijkl\n", new String(readFile(file)));
+  }
+
+  public void testIntervalForcesInBackground() throws Exception {
+    IntervalSyncPolicy policy = new IntervalSyncPolicy(10);
+    final int[] forces = new int[1];
+    File file = new File(_testDirectory, "stream.bin");
+    DurableOutputStream out = new DurableOutputStream(file, policy, 0, null, false) {
+      public void force() throws IOException {
+        super.force();
+        synchronized (forces) {
+          forces[0]++;
+          forces.notifyAll();
+        }
+      }
+    };
+
+    out.sync(new DummyGuide("abcd", Turn.first()));
+
+    synchronized (forces) {
+      long deadline = System.currentTimeMillis() + 5000;
+      while (forces[0] == 0 && System.currentTimeMillis() < deadline) forces.wait(100);
+    }
+    assertTrue(forces[0] > 0);
+    out.close();
+  }
+
+  public void testListenerTransaction() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    JournalSyncPolicy policy = new IntervalSyncPolicy(1000);
+    factory.configureJournalSyncPolicy(policy);
+    Prevayler<StringBuffer> prevayler = factory.create();
+
+    ListeningAppendix appendix = new ListeningAppendix("a");
+    prevayler.execute(appendix);
+    assertSame(policy, appendix._policy);
+    assertEquals("a", prevayler.prevalentSystem().toString());
+    prevayler.close();
+
+    factory.configurePrevalentSystem(new StringBuffer());
+    prevayler = factory.create();
+    assertEquals("a", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  private byte[] readFile(File file) throws IOException {
+    java.io.FileInputStream input = new java.io.FileInputStream(file);
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      int read = 0;
+      while (read < bytes.length) read += input.read(bytes, read, bytes.length - read);
+      return bytes;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static class DummyGuide extends Guided {
+
+    private final String _value;
+    JournalSyncPolicy _policy;
+    boolean _forced;
+
+    public DummyGuide(String value, Turn turn) {
+      super(turn);
+      _value = value;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+      stream.write(_value.getBytes());
+      stream.write('\n');
+    }
+
+    public void acknowledged(JournalSyncPolicy policy, boolean forced) {
+      _policy = policy;
+      _forced = forced;
+    }
+
+  }
+
+  private static class ListeningAppendix implements Transaction<StringBuffer>, JournalSyncListener {
+
+    private static final long serialVersionUID = 1L;
+
+    private final String _appendix;
+    transient JournalSyncPolicy _policy;
+
+    public ListeningAppendix(String appendix) {
+      _appendix = appendix;
+    }
+
+    public void executeOn(StringBuffer prevalentSystem, Date executionTime) {
+      prevalentSystem.append(_appendix);
+    }
+
+    public void journaled(JournalSyncPolicy policy, boolean forced) {
+      _policy = policy;
+    }
+
+  }
+
+}
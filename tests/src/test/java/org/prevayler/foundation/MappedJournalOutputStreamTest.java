@@ -0,0 +1,133 @@
+package org.prevayler.foundation;
+
+import java.io.*;
+
+public class MappedJournalOutputStreamTest extends FileIOTest {
+
+  public void testSingleThreaded() throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+
+    MappedJournalOutputStream out = new MappedJournalOutputStream(file, true, 0);
+
+    Turn myTurn = Turn.first();
+    out.sync(new DummyGuide("first", myTurn));
+    out.sync(new DummyGuide("second", myTurn.next()));
+    assertEquals(13, out.length());
+    out.close();
+
+    assertTrue(out.reallyClosed());
+    assertEquals(2, out.fileSyncCount());
+    assertEquals(13, file.length());
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    assertEquals("first", reader.readLine());
+    assertEquals("second", reader.readLine());
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  public void testObjectsSpanningSegments() throws Exception {
+    checkObjectsSpanningSegments(new PerGroupSyncPolicy());
+  }
+
+  public void testUnforcedSegmentsAreForcedWhenReleased() throws Exception {
+    checkObjectsSpanningSegments(new OSManagedSyncPolicy());
+  }
+
+  public void testSmallSizeThresholdStillMapsWholeSegments() throws Exception {
+    assertEquals(MappedJournalOutputStream.MIN_SEGMENT_LENGTH, MappedJournalOutputStream.segmentLength(232));
+    assertEquals(MappedJournalOutputStream.SEGMENT_LENGTH, MappedJournalOutputStream.segmentLength(0));
+    assertEquals(MappedJournalOutputStream.SEGMENT_LENGTH, MappedJournalOutputStream.segmentLength(Long.MAX_VALUE));
+
+    File file = new File(_testDirectory, "stream.bin");
+    MappedJournalOutputStream out = new MappedJournalOutputStream(file, true, 4);
+    out.sync(new DummyGuide("first", Turn.first()));
+    assertEquals(MappedJournalOutputStream.MIN_SEGMENT_LENGTH, file.length());
+    out.close();
+
+    assertEquals(6, file.length());
+  }
+
+  public void testMultiThreaded() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      File file = new File(_testDirectory, "stream" + i + ".bin");
+      final MappedJournalOutputStream out = new MappedJournalOutputStream(file, true, 0);
+
+      Turn one = Turn.first();
+      final Turn two = one.next();
+      Turn three = two.next();
+      final Turn four = three.next();
+
+      Thread thread = new Thread() {
+        public void run() {
+          try {
+            out.sync(new DummyGuide("1.first", two));
+            out.sync(new DummyGuide("1.second", four));
+          } catch (IOException e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      thread.start();
+      out.sync(new DummyGuide("2.first", one));
+      out.sync(new DummyGuide("2.second", three));
+      thread.join();
+
+      int syncsBeforeClose = out.fileSyncCount();
+      assertTrue(syncsBeforeClose >= 2);
+      assertTrue(syncsBeforeClose <= 4);
+
+      out.close();
+
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      assertEquals("2.first", reader.readLine());
+      assertEquals("1.first", reader.readLine());
+      assertEquals("2.second", reader.readLine());
+      assertEquals("1.second", reader.readLine());
+      assertEquals(null, reader.readLine());
+      reader.close();
+    }
+  }
+
+  private void checkObjectsSpanningSegments(JournalSyncPolicy syncPolicy) throws Exception {
+    File file = new File(_testDirectory, "stream.bin");
+
+    MappedJournalOutputStream out = new MappedJournalOutputStream(file, 4, syncPolicy, null, false);
+
+    Turn turn = Turn.first();
+    out.sync(new DummyGuide("first", turn));
+    turn = turn.next();
+    out.sync(new DummyGuide("second", turn));
+    turn = turn.next();
+    out.sync(new DummyGuide("third", turn));
+    out.force();
+    out.close();
+
+    assertEquals(3, out.fileSyncCount());
+    assertEquals(19, file.length());
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    assertEquals("first", reader.readLine());
+    assertEquals("second", reader.readLine());
+    assertEquals("third", reader.readLine());
+    assertEquals(null, reader.readLine());
+    reader.close();
+  }
+
+  private static class DummyGuide extends Guided {
+
+    private final String _value;
+
+    public DummyGuide(String value, Turn turn) {
+      super(turn);
+      _value = value;
+    }
+
+    public void writeTo(OutputStream stream) throws IOException {
+      stream.write(_value.getBytes());
+      stream.write('\n');
+    }
+
+  }
+
+}
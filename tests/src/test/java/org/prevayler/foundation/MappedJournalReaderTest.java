@@ -0,0 +1,158 @@
+package org.prevayler.foundation;
+
+import org.prevayler.foundation.monitor.NullMonitor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.nio.ByteBuffer;
+
+public class MappedJournalReaderTest extends FileIOTest {
+
+  public void testTextChunks() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Chunk first = new Chunk("foo".getBytes("US-ASCII"));
+    first.setParameter("systemVersion", "1");
+    first.setParameter("withQuery", "false");
+    Chunking.writeChunk(output, first);
+    Chunking.writeChunk(output, new Chunk(new byte[0]));
+    Chunking.writeChunk(output, new Chunk(new byte[300]));
+    MappedJournalReader reader = reader(output.toByteArray());
+
+    Chunk chunk = reader.readChunk();
+    assertEquals("foo", new String(chunk.getBytes(), "US-ASCII"));
+    assertEquals("1", chunk.getParameter("systemVersion"));
+    assertEquals("false", chunk.getParameter("withQuery"));
+    assertFalse(chunk.getByteBuffer().hasArray());
+
+    assertEquals(0, reader.readChunk().getBytes().length);
+    assertEquals(300, reader.readChunk().getByteBuffer().remaining());
+    assertNull(reader.readChunk());
+    assertEquals(output.size(), reader.position());
+    reader.close();
+  }
+
+  public void testZeroedTextTail() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    Chunking.writeChunk(output, new Chunk("foo".getBytes("US-ASCII")));
+    output.write(new byte[1000]);
+    MappedJournalReader reader = reader(output.toByteArray());
+
+    assertEquals("foo", new String(reader.readChunk().getBytes(), "US-ASCII"));
+    assertNull(reader.readChunk());
+    reader.close();
+  }
+
+  public void testTextCorruption() throws IOException {
+    assertTextFails("3\r\nfoo", EOFException.class);
+    assertTextFails("3\r\nfo", EOFException.class);
+    assertTextFails("3\r", EOFException.class);
+    assertTextFails("3\0\0\0\0", EOFException.class);
+    assertTextFails("3\r\nfooXY", IOException.class);
+    assertTextFails("03\r\nfoo\r\n", IOException.class);
+    assertTextFails("3;a\r\nfoo\r\n", IOException.class);
+    assertTextFails("3;a=b=c\r\nfoo\r\n", IOException.class);
+    assertTextFails("80000000\r\n", IOException.class);
+  }
+
+  public void testBinaryChunks() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk("foo".getBytes("US-ASCII"), 1, 7, 1001));
+    BinaryChunking.writeChunk(output, new BinaryChunk(new byte[0], 0, 8, 1002));
+    output.write(new byte[100]);
+    MappedJournalReader reader = reader(output.toByteArray());
+
+    BinaryChunk chunk = reader.readBinaryChunk();
+    assertEquals("foo", new String(chunk.getBytes(), "US-ASCII"));
+    assertEquals(1, chunk.getFlags());
+    assertEquals(7, chunk.getVersion());
+    assertEquals(1001, chunk.getTime());
+
+    chunk = reader.readBinaryChunk();
+    assertEquals(0, chunk.getByteBuffer().remaining());
+    assertEquals(8, chunk.getVersion());
+
+    assertNull(reader.readBinaryChunk());
+    reader.close();
+  }
+
+  public void testBinaryCorruption() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    BinaryChunking.writeChunk(output, new BinaryChunk("foo".getBytes("US-ASCII"), 0, 1, 1001));
+    byte[] bytes = output.toByteArray();
+
+    bytes[bytes.length - 1] = 'x';
+    MappedJournalReader reader = reader(bytes);
+    try {
+      reader.readBinaryChunk();
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+    assertEquals(bytes.length, reader.position());
+    reader.close();
+
+    byte[] torn = new byte[bytes.length - 1];
+    System.arraycopy(bytes, 0, torn, 0, torn.length);
+    reader = reader(torn);
+    try {
+      reader.readBinaryChunk();
+      fail();
+    } catch (EOFException expected) {
+    }
+    reader.close();
+  }
+
+  public void testSameChunksAsStreamReader() throws IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    for (int i = 0; i < 100; i++) {
+      Chunk chunk = new Chunk(("transaction " + i).getBytes("US-ASCII"));
+      chunk.setParameter("systemVersion", String.valueOf(i));
+      Chunking.writeChunk(output, chunk);
+    }
+    File file = file(output.toByteArray());
+
+    DurableInputStream stream = new DurableInputStream(file, new NullMonitor(), false);
+    DurableInputStream mapped = new DurableInputStream(file, new NullMonitor(), true);
+    for (int i = 0; i < 100; i++) {
+      Chunk expected = stream.readChunk();
+      Chunk actual = mapped.readChunk();
+      assertEquals(expected.getParameters(), actual.getParameters());
+      assertEquals(ByteBuffer.wrap(expected.getBytes()), actual.getByteBuffer());
+    }
+    try {
+      mapped.readChunk();
+      fail();
+    } catch (EOFException expected) {
+    }
+    stream.close();
+  }
+
+
+  private void assertTextFails(String contents, Class exceptionClass) throws IOException {
+    MappedJournalReader reader = reader(contents.getBytes("US-ASCII"));
+    try {
+      reader.readChunk();
+      fail(contents);
+    } catch (IOException exception) {
+      assertEquals(contents, exceptionClass, exception.getClass());
+    } finally {
+      reader.close();
+    }
+  }
+
+  private MappedJournalReader reader(byte[] contents) throws IOException {
+    return new MappedJournalReader(file(contents));
+  }
+
+  private File file(byte[] contents) throws IOException {
+    File file = File.createTempFile("journal", ".bin", new File(_testDirectory));
+    FileOutputStream output = new FileOutputStream(file);
+    output.write(contents);
+    output.close();
+    return file;
+  }
+
+}
@@ -0,0 +1,112 @@
+package org.prevayler.foundation;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.logging.Logger;
+
+import org.junit.Test;
+
+/**
+ * Measures the turns per second that a chain of Turns and a RingBufferPipeline with each WaitStrategy
+ * sequence through four stages, as many as a transaction goes through in CentralPublisher and
+ * PersistentJournal, with 1 to 64 threads. The work in each stage is trivial, so that only the cost
+ * of sequencing is measured. Also works as a test: the work checks that the stages are taken in order.<p/>
+ *
+ * Spinning is only measured with no more threads than processors, beyond which it stalls.
+ */
+public class PipelineBenchmark {
+  static final Logger LOG = Logger.getLogger(PipelineBenchmark.class.getName());
+  static final int STAGES = 4;
+  static final int TURNS = 64000;
+  static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  /**
+   * What each sequencer under measure provides: the next turn through the pipeline, and its release.
+   */
+  interface Sequencer {
+    PipelineTurn claim();
+
+    void release(PipelineTurn turn);
+  }
+
+  static class TurnSequencer implements Sequencer {
+    private Turn nextTurn = Turn.first();
+
+    @Override
+    public synchronized PipelineTurn claim() {
+      Turn turn = nextTurn;
+      nextTurn = nextTurn.next();
+      return turn;
+    }
+
+    @Override
+    public void release(PipelineTurn turn) {
+    }
+  }
+
+  static class RingSequencer implements Sequencer {
+    private final RingBufferPipeline pipeline;
+
+    RingSequencer(WaitStrategy waitStrategy) {
+      pipeline = new RingBufferPipeline(RingBufferPipeline.DEFAULT_SIZE, waitStrategy);
+    }
+
+    @Override
+    public PipelineTurn claim() {
+      return pipeline.claim();
+    }
+
+    @Override
+    public void release(PipelineTurn turn) {
+      ((RingBufferPipeline.Slot) turn).release();
+    }
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    int processors = Runtime.getRuntime().availableProcessors();
+    for (int threads : THREADS) {
+      StringBuilder line = new StringBuilder(threads + " threads:");
+      line.append(" turn ").append(turnsPerSecond(new TurnSequencer(), threads));
+      line.append(", ring/park ").append(turnsPerSecond(new RingSequencer(new ParkWaitStrategy()), threads));
+      line.append(", ring/yield ").append(turnsPerSecond(new RingSequencer(new YieldWaitStrategy()), threads));
+      if (threads <= processors) {
+        line.append(", ring/spin ").append(turnsPerSecond(new RingSequencer(new SpinWaitStrategy()), threads));
+      }
+      LOG.info(line.append(" turns/s").toString());
+    }
+  }
+
+  static long turnsPerSecond(final Sequencer sequencer, int threadCount) throws InterruptedException {
+    final long[] stageCounts = new long[STAGES];
+    final int turnsPerThread = TURNS / threadCount;
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < turnsPerThread; j++) {
+            PipelineTurn turn = sequencer.claim();
+            for (int stage = 0; stage < STAGES; stage++) {
+              turn.start();
+              stageCounts[stage]++;  //Guarded by the turn.
+              turn.end();
+            }
+            sequencer.release(turn);
+          }
+        }
+      };
+    }
+
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    long elapsed = System.nanoTime() - start;
+
+    for (int stage = 0; stage < STAGES; stage++) {
+      assertEquals(turnsPerThread * threadCount, stageCounts[stage]);
+    }
+    return turnsPerThread * threadCount * 1000000000L / Math.max(elapsed, 1);
+  }
+
+}
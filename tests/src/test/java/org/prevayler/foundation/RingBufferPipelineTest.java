@@ -0,0 +1,142 @@
+package org.prevayler.foundation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class RingBufferPipelineTest extends FileIOTest {
+
+  private static final int STAGES = 3;
+
+  public void testStagesAreTakenInOrderWhenParking() throws Exception {
+    checkStagesAreTakenInOrder(new ParkWaitStrategy(), 16, 50);
+  }
+
+  public void testStagesAreTakenInOrderWhenYielding() throws Exception {
+    checkStagesAreTakenInOrder(new YieldWaitStrategy(), 8, 50);
+  }
+
+  public void testStagesAreTakenInOrderWhenSpinning() throws Exception {
+    checkStagesAreTakenInOrder(new SpinWaitStrategy(), 2, 20);
+  }
+
+  public void testAbortStopsFollowingTurnsOnly() {
+    RingBufferPipeline pipeline = new RingBufferPipeline(4, new ParkWaitStrategy());
+    RingBufferPipeline.Slot first = pipeline.claim();
+    RingBufferPipeline.Slot second = pipeline.claim();
+    RingBufferPipeline.Slot third = pipeline.claim();
+
+    first.start();
+    first.end();
+    second.start();
+    try {
+      second.abort("aborted", new RuntimeException());
+      fail();
+    } catch (IllegalStateException expected) {
+      assertEquals("aborted", expected.getMessage());
+    }
+
+    first.start();
+    first.end();
+    first.release();
+    try {
+      third.start();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      pipeline.claim();
+      fail();
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  public void testPrevaylerWithRingBufferPipeline() throws Exception {
+    final Prevayler<List> prevayler = prevayler();
+    Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      final int thread = i;
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < 50; j++) prevayler.execute(new Add(thread + "-" + j));
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) threads[i].join();
+    List executed = new ArrayList(prevayler.prevalentSystem());
+    prevayler.close();
+    assertEquals(400, executed.size());
+
+    Prevayler<List> recovered = prevayler();
+    assertEquals(executed, recovered.prevalentSystem());
+    recovered.close();
+  }
+
+
+  /**
+   * A ring smaller than the number of threads, so that slots are reused while turns are waiting for them.
+   */
+  private void checkStagesAreTakenInOrder(WaitStrategy waitStrategy, int threadCount, final int turnsPerThread) throws Exception {
+    final RingBufferPipeline pipeline = new RingBufferPipeline(4, waitStrategy);
+    final List[] stages = new List[STAGES];
+    for (int i = 0; i < STAGES; i++) stages[i] = Collections.synchronizedList(new ArrayList());
+
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        public void run() {
+          for (int j = 0; j < turnsPerThread; j++) {
+            RingBufferPipeline.Slot turn = pipeline.claim();
+            long sequence = turn.sequence();
+            for (int stage = 0; stage < STAGES; stage++) {
+              turn.start();
+              stages[stage].add(new Long(sequence));
+              if (stage == 1) Thread.yield();
+              turn.end();
+            }
+            turn.release();
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (int i = 0; i < threads.length; i++) threads[i].join();
+
+    for (int stage = 0; stage < STAGES; stage++) {
+      List sequences = stages[stage];
+      assertEquals(threadCount * turnsPerThread, sequences.size());
+      for (int i = 1; i < sequences.size(); i++) {
+        assertEquals(((Long) sequences.get(i - 1)).longValue() + 1, ((Long) sequences.get(i)).longValue());
+      }
+    }
+  }
+
+  private Prevayler<List> prevayler() throws Exception {
+    PrevaylerFactory<List> factory = new PrevaylerFactory<List>();
+    factory.configurePrevalentSystem(new ArrayList());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePipelineWaitStrategy(new ParkWaitStrategy());
+    return factory.create();
+  }
+
+
+  private static class Add implements Transaction<List> {
+    private static final long serialVersionUID = 1L;
+    private final String _item;
+
+    Add(String item) {
+      _item = item;
+    }
+
+    public void executeOn(List list, Date ignored) {
+      list.add(_item);
+    }
+  }
+
+}
@@ -0,0 +1,59 @@
+package org.prevayler.foundation;
+
+import junit.framework.TestCase;
+
+public class ScratchBufferTest extends TestCase {
+
+  public void testReusedByThread() {
+    ScratchBuffer buffer = ScratchBuffer.acquire();
+    buffer.write(1);
+    ScratchBuffer nested = ScratchBuffer.acquire();
+    assertNotSame(buffer, nested);
+    assertEquals(0, nested.size());
+    nested.release();
+    buffer.release();
+
+    ScratchBuffer again = ScratchBuffer.acquire();
+    assertSame(buffer, again);
+    assertEquals(0, again.size());
+    again.release();
+  }
+
+  public void testLargeArrayIsNotKept() {
+    ScratchBuffer buffer = ScratchBuffer.acquire();
+    buffer.write(new byte[100 * 1024], 0, 100 * 1024);
+    buffer.release();
+    assertTrue(ScratchBuffer.acquire().array(0).length < 100 * 1024);
+    buffer.release();
+  }
+
+  public void testArray() {
+    ScratchBuffer buffer = ScratchBuffer.acquire();
+    buffer.write(7);
+    byte[] array = buffer.array(1000);
+    assertTrue(array.length >= 1000);
+    assertEquals(7, array[0]);
+    buffer.release();
+  }
+
+  public void testHex() throws Exception {
+    int[] values = {0, 1, 9, 10, 15, 16, 255, 0x7FFFFFFF, -1, Integer.MIN_VALUE, 0x1000};
+    for (int i = 0; i < values.length; i++) {
+      ScratchBuffer buffer = ScratchBuffer.acquire();
+      buffer.writeHex(values[i]);
+      assertEquals(Integer.toHexString(values[i]).toUpperCase(), buffer.toString("US-ASCII"));
+      buffer.release();
+    }
+  }
+
+  public void testDecimal() throws Exception {
+    long[] values = {0, 1, 9, 10, 99, 100, -1, -10, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE, 1000000000000000000L};
+    for (int i = 0; i < values.length; i++) {
+      ScratchBuffer buffer = ScratchBuffer.acquire();
+      buffer.writeDecimal(values[i]);
+      assertEquals(String.valueOf(values[i]), buffer.toString("US-ASCII"));
+      buffer.release();
+    }
+  }
+
+}
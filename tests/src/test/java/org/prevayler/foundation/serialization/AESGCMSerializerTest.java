@@ -0,0 +1,120 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class AESGCMSerializerTest extends FileIOTest {
+
+  private static final byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17, 18, 19, 20, 21, 22, 23, 24, 25, 26, 27, 28, 29, 30, 31, 32};
+  private static final int SEGMENT_SIZE = 1000;
+
+  private final AESGCMSerializer _serializer = new AESGCMSerializer(new JavaSerializer(), KEY, SEGMENT_SIZE);
+
+  public void testRoundTrip() throws Exception {
+    List list = list();
+    assertEquals(list, read(_serializer, write(_serializer, list)));
+  }
+
+  public void testEachStreamIsEncryptedDifferently() throws Exception {
+    byte[] first = write(_serializer, "same");
+    byte[] second = write(_serializer, "same");
+    assertFalse(new String(first, "ISO-8859-1").equals(new String(second, "ISO-8859-1")));
+  }
+
+  public void testCorruptionIsDetected() throws Exception {
+    byte[] encrypted = write(_serializer, list());
+    encrypted[encrypted.length / 2] ^= 1;
+    try {
+      read(_serializer, encrypted);
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+  public void testWrongKeyIsDetected() throws Exception {
+    byte[] encrypted = write(_serializer, list());
+    byte[] otherKey = (byte[]) KEY.clone();
+    otherKey[0] = 0;
+    try {
+      read(new AESGCMSerializer(new JavaSerializer(), otherKey), encrypted);
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+  public void testTruncationIsDetected() throws Exception {
+    byte[] encrypted = write(_serializer, list());
+    byte[] truncated = new byte[encrypted.length - SEGMENT_SIZE / 2];
+    System.arraycopy(encrypted, 0, truncated, 0, truncated.length);
+    try {
+      read(_serializer, truncated);
+      fail();
+    } catch (EOFException expected) {
+    }
+  }
+
+  public void testSnapshot() throws Exception {
+    Prevayler<ArrayList> prevayler = prevayler();
+    prevayler.execute(new Add("a"));
+    prevayler.execute(new Add("b"));
+    File snapshot = prevayler.takeSnapshot();
+    prevayler.close();
+    assertTrue(snapshot.getName().endsWith(".aessnapshot"));
+
+    new File(_testDirectory, "0000000000000000001.journal").delete();
+    prevayler = prevayler();
+    assertEquals("[a, b]", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+
+  private Prevayler<ArrayList> prevayler() throws Exception {
+    PrevaylerFactory<ArrayList> factory = new PrevaylerFactory<ArrayList>();
+    factory.configurePrevalentSystem(new ArrayList());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureSnapshotSerializer("aessnapshot", new AESGCMSerializer(new GZIPSerializer(new JavaSerializer()), KEY));
+    return factory.create();
+  }
+
+  private static List list() {
+    List list = new ArrayList();
+    for (int i = 0; i < 5000; i++) list.add("item " + i);
+    return list;
+  }
+
+  private static byte[] write(Serializer serializer, Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    serializer.writeObject(bytes, object);
+    return bytes.toByteArray();
+  }
+
+  private static Object read(Serializer serializer, byte[] bytes) throws Exception {
+    return serializer.readObject(new ByteArrayInputStream(bytes));
+  }
+
+
+  private static class Add implements Transaction<ArrayList> {
+    private static final long serialVersionUID = 1L;
+    private final String _item;
+
+    Add(String item) {
+      _item = item;
+    }
+
+    public void executeOn(ArrayList list, Date ignored) {
+      list.add(_item);
+    }
+  }
+
+}
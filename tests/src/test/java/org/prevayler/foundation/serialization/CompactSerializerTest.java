@@ -0,0 +1,123 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class CompactSerializerTest extends FileIOTest {
+
+  public void testRoundTrip() throws Exception {
+    CompactSerializer serializer = new CompactSerializer(registryFile());
+    Holder holder = holder();
+
+    Holder copy = (Holder) read(serializer, write(serializer, holder));
+    assertEquals("name", copy._name);
+    assertEquals(42, copy._number);
+    assertEquals(holder._items, copy._items);
+    assertSame(copy._items, copy._sameItems);
+    assertSame(copy, copy._self);
+    assertEquals(Kind.SECOND, copy._kind);
+  }
+
+  public void testSmallerThanJavaSerialization() throws Exception {
+    CompactSerializer serializer = new CompactSerializer(registryFile());
+    byte[] compact = write(serializer, holder());
+    byte[] java = write(new JavaSerializer(), holder());
+    assertTrue(compact.length + " should be much smaller than " + java.length, compact.length * 3 < java.length);
+
+    assertEquals(compact.length, write(serializer, holder()).length);
+  }
+
+  public void testRegistryIsReloaded() throws Exception {
+    CompactSerializer serializer = new CompactSerializer(registryFile());
+    byte[] bytes = write(serializer, holder());
+    int registered = serializer.registeredClasses();
+
+    CompactSerializer reloaded = new CompactSerializer(registryFile());
+    assertEquals(registered, reloaded.registeredClasses());
+    assertEquals("name", ((Holder) read(reloaded, bytes))._name);
+
+    write(reloaded, holder());
+    assertEquals(registered, reloaded.registeredClasses());
+    assertEquals(registered, new CompactSerializer(registryFile()).registeredClasses());
+  }
+
+  public void testTornRegistryTailIsCutOff() throws Exception {
+    CompactSerializer serializer = new CompactSerializer(registryFile());
+    byte[] bytes = write(serializer, new Date(1000));
+    long length = registryFile().length();
+
+    FileOutputStream output = new FileOutputStream(registryFile(), true);
+    output.write(new byte[]{0, 0, 1, 0, 1, 2});
+    output.close();
+
+    CompactSerializer reloaded = new CompactSerializer(registryFile());
+    assertEquals(length, registryFile().length());
+    assertEquals(new Date(1000), read(reloaded, bytes));
+  }
+
+  public void testUnknownClassId() throws Exception {
+    CompactSerializer serializer = new CompactSerializer(registryFile());
+    byte[] bytes = write(serializer, new Date(1000));
+    new RandomAccessFile(registryFile(), "rw").setLength(0);
+
+    try {
+      read(new CompactSerializer(registryFile()), bytes);
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+
+  private File registryFile() {
+    return new File(_testDirectory, "journal.classes");
+  }
+
+  private static Holder holder() {
+    Holder holder = new Holder();
+    holder._name = "name";
+    holder._number = 42;
+    holder._items = new ArrayList();
+    holder._items.add(new Integer(1));
+    holder._items.add("two");
+    holder._sameItems = holder._items;
+    holder._self = holder;
+    holder._kind = Kind.SECOND;
+    return holder;
+  }
+
+  private static byte[] write(Serializer serializer, Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    serializer.writeObject(bytes, object);
+    return bytes.toByteArray();
+  }
+
+  private static Object read(Serializer serializer, byte[] bytes) throws Exception {
+    return serializer.readObject(new ByteArrayInputStream(bytes));
+  }
+
+
+  private static class Holder implements Serializable {
+    private static final long serialVersionUID = 1L;
+    String _name;
+    int _number;
+    List _items;
+    List _sameItems;
+    Holder _self;
+    Kind _kind;
+  }
+
+  private static enum Kind {
+    FIRST, SECOND
+  }
+
+}
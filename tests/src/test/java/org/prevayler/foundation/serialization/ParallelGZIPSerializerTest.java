@@ -0,0 +1,131 @@
+package org.prevayler.foundation.serialization;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.ParallelGZIPInputStream;
+import org.prevayler.foundation.ParallelGZIPOutputStream;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+
+public class ParallelGZIPSerializerTest extends FileIOTest {
+
+  private static final int BLOCK_SIZE = 1000;
+
+  public void testRoundTrip() throws Exception {
+    ParallelGZIPSerializer serializer = new ParallelGZIPSerializer(new JavaSerializer(), 4, BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    List list = list();
+    byte[] compressed = write(serializer, list);
+    assertEquals(list, read(serializer, compressed));
+    assertEquals(list, read(new GZIPSerializer(new JavaSerializer()), compressed));
+  }
+
+  public void testOutputIsMultiMemberGzip() throws Exception {
+    byte[] bytes = new byte[10 * BLOCK_SIZE + 7];
+    new Random(1).nextBytes(bytes);
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    ParallelGZIPOutputStream gzip = new ParallelGZIPOutputStream(compressed, 3, BLOCK_SIZE, 1);
+    gzip.write(bytes);
+    gzip.close();
+
+    assertEquals(bytes.length, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))).length);
+    assertEquals(bytes.length, readFully(new ParallelGZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()), 2)).length);
+  }
+
+  public void testEmptyStream() throws Exception {
+    ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+    new ParallelGZIPOutputStream(compressed, 2).close();
+    assertEquals(0, readFully(new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()))).length);
+    assertEquals(0, readFully(new ParallelGZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()), 2)).length);
+  }
+
+  public void testReadsSequentialGzip() throws Exception {
+    List list = list();
+    byte[] compressed = write(new GZIPSerializer(new JavaSerializer()), list);
+    assertEquals(list, read(new ParallelGZIPSerializer(new JavaSerializer(), 4, BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION), compressed));
+  }
+
+  public void testCorruptionIsDetected() throws Exception {
+    ParallelGZIPSerializer serializer = new ParallelGZIPSerializer(new JavaSerializer(), 4, BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION);
+    byte[] compressed = write(serializer, list());
+    compressed[compressed.length / 2] ^= 1;
+    try {
+      read(serializer, compressed);
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  public void testSnapshot() throws Exception {
+    Prevayler<ArrayList> prevayler = prevayler();
+    prevayler.execute(new Add("a"));
+    prevayler.execute(new Add("b"));
+    File snapshot = prevayler.takeSnapshot();
+    prevayler.close();
+    assertTrue(snapshot.getName().endsWith(".gzsnapshot"));
+
+    new File(_testDirectory, "0000000000000000001.journal").delete();
+    prevayler = prevayler();
+    assertEquals("[a, b]", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+
+  private Prevayler<ArrayList> prevayler() throws Exception {
+    PrevaylerFactory<ArrayList> factory = new PrevaylerFactory<ArrayList>();
+    factory.configurePrevalentSystem(new ArrayList());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureSnapshotSerializer("gzsnapshot", new ParallelGZIPSerializer(new JavaSerializer(), 2, BLOCK_SIZE, Deflater.DEFAULT_COMPRESSION));
+    return factory.create();
+  }
+
+  private static List list() {
+    List list = new ArrayList();
+    for (int i = 0; i < 5000; i++) list.add("item " + i);
+    return list;
+  }
+
+  private static byte[] write(Serializer serializer, Object object) throws Exception {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    serializer.writeObject(bytes, object);
+    return bytes.toByteArray();
+  }
+
+  private static Object read(Serializer serializer, byte[] bytes) throws Exception {
+    return serializer.readObject(new ByteArrayInputStream(bytes));
+  }
+
+  private static byte[] readFully(InputStream input) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    byte[] buffer = new byte[777];
+    for (int read; (read = input.read(buffer)) != -1; ) bytes.write(buffer, 0, read);
+    input.close();
+    return bytes.toByteArray();
+  }
+
+
+  private static class Add implements Transaction<ArrayList> {
+    private static final long serialVersionUID = 1L;
+    private final String _item;
+
+    Add(String item) {
+      _item = item;
+    }
+
+    public void executeOn(ArrayList list, Date ignored) {
+      list.add(_item);
+    }
+  }
+
+}
@@ -0,0 +1,102 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.BinaryChunk;
+import org.prevayler.foundation.Chunk;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.Arrays;
+import java.util.Date;
+
+public class AbortMarkerTest extends FileIOTest {
+
+  private boolean _binary = false;
+  private boolean _parallel = false;
+
+  public void testFailedTransactionIsSkipped() throws Exception {
+    checkSkipped();
+  }
+
+  public void testFailedTransactionIsSkippedInBinaryJournal() throws Exception {
+    _binary = true;
+    checkSkipped();
+  }
+
+  public void testFailedTransactionIsSkippedInParallelRecovery() throws Exception {
+    _parallel = true;
+    checkSkipped();
+  }
+
+  /**
+   * AppendingSystem appends "rollback" before failing, so a skipped transaction leaves no trace.
+   */
+  private void checkSkipped() throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler(true);
+    prevayler.execute(new Appendix("a"));
+    executeFailing(prevayler);
+    prevayler.execute(new Appendix("b"));
+    executeFailing(prevayler);
+    executeFailing(prevayler);
+    prevayler.execute(new Appendix("c"));
+    assertEquals("arollbackbrollbackrollbackc", prevayler.prevalentSystem().value());
+    prevayler.close();
+
+    assertEquals("abc", recover(true));
+    assertEquals("arollbackbrollbackrollbackc", recover(false));
+  }
+
+  public void testLastFailedTransactionIsReplayed() throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler(true);
+    prevayler.execute(new Appendix("a"));
+    executeFailing(prevayler);
+    prevayler.close();
+
+    assertEquals("arollback", recover(true));
+  }
+
+  public void testMarkersInChunks() {
+    TransactionTimestamp timestamp = new TransactionTimestamp(new TransactionCapsule(new byte[]{1, 2, 3}), 7, new Date(1000));
+    assertEquals(0, TransactionTimestamp.abortMarkers(timestamp.toChunk()).length);
+    assertNull(timestamp.toChunk().getParameter("abortedTransactions"));
+
+    timestamp.setAbortMarkers(new long[]{3, 5});
+    Chunk chunk = timestamp.toChunk();
+    assertEquals("3+5", chunk.getParameter("abortedTransactions"));
+    assertTrue(Arrays.equals(new long[]{3, 5}, TransactionTimestamp.fromChunk(chunk).abortMarkers()));
+
+    BinaryChunk binaryChunk = timestamp.toBinaryChunk();
+    assertTrue(Arrays.equals(new long[]{3, 5}, TransactionTimestamp.abortMarkers(binaryChunk)));
+    TransactionTimestamp decoded = TransactionTimestamp.fromBinaryChunk(binaryChunk);
+    assertEquals(7, decoded.systemVersion());
+    assertTrue(Arrays.equals(new long[]{3, 5}, decoded.abortMarkers()));
+    assertTrue(Arrays.equals(new byte[]{1, 2, 3}, decoded.capsule().serialized()));
+  }
+
+
+  private static void executeFailing(Prevayler<AppendingSystem> prevayler) {
+    try {
+      prevayler.execute(new Appendix("rollback"));
+      fail();
+    } catch (RuntimeException expected) {
+    }
+  }
+
+  private String recover(boolean abortMarkers) throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler(abortMarkers);
+    String value = prevayler.prevalentSystem().value();
+    prevayler.close();
+    return value;
+  }
+
+  private Prevayler<AppendingSystem> prevayler(boolean abortMarkers) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureJournalBinaryFormat(_binary);
+    factory.configureAbortMarkers(abortMarkers);
+    if (_parallel) factory.configureParallelRecovery(2, 4);
+    return factory.create();
+  }
+
+}
@@ -0,0 +1,304 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.BinaryChunking;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.implementation.journal.BinaryJournalConverter;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+public class BinaryJournalTest extends FileIOTest {
+
+  private static final int MARK = BinaryChunking.HEADER_LENGTH;  //The length of a sync mark.
+  private static final int PAGE = 4096;
+
+  private boolean _journalMemoryMapped = false;
+
+  public void testBinaryJournal() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    assertTrue(journal(1, "bjournal").exists());
+    assertFalse(journal(1, "journal").exists());
+
+    recover(true, "ab");
+    recover(false, "ab");
+  }
+
+  public void testLegacyAndBinaryJournalsSideBySide() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(false);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    prevayler = createPrevayler(true);
+    append(prevayler, "c", "abc");
+    prevayler.close();
+
+    assertTrue(journal(1, "journal").exists());
+    assertTrue(journal(3, "bjournal").exists());
+
+    prevayler = createPrevayler(false);
+    append(prevayler, "d", "abcd");
+    prevayler.close();
+
+    assertTrue(journal(4, "journal").exists());
+
+    recover(true, "abcd");
+    recover(false, "abcd");
+  }
+
+  public void testCorruptedTailIsIgnored() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    RandomAccessFile file = new RandomAccessFile(journal(1, "bjournal"), "rw");
+    file.seek(file.length() - 1);
+    int last = file.read();
+    file.seek(file.length() - 1);
+    file.write(last ^ 1);
+    file.close();
+
+    recover(true, "a");
+  }
+
+  public void testTornTailIsTruncated() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    long length = journal(1, "bjournal").length();
+    RandomAccessFile file = new RandomAccessFile(journal(1, "bjournal"), "rw");
+    file.setLength(length - 3);
+    file.close();
+
+    recover(true, "a");
+    assertEquals((length - MARK) / 2, journal(1, "bjournal").length());  //Both transactions have the same length, with a sync mark between them.
+
+    recover(true, "a");
+  }
+
+  public void testTornTailIsTruncatedWithMemoryMappedJournal() throws Exception {
+    _journalMemoryMapped = true;
+    testTornTailIsTruncated();
+  }
+
+  public void testMidFileCorruptionIsNotIgnored() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    append(prevayler, "c", "abc");
+    prevayler.close();
+
+    long length = journal(1, "bjournal").length();
+    RandomAccessFile file = new RandomAccessFile(journal(1, "bjournal"), "rw");
+    long offset = (length - 2 * MARK) / 3;  //The sync mark before the second transaction.
+    file.seek(offset + MARK + 30);
+    int b = file.read();
+    file.seek(offset + MARK + 30);
+    file.write(b ^ 1);
+    file.close();
+
+    try {
+      createPrevayler(true);
+      fail();
+    } catch (StreamCorruptedException expected) {
+      assertTrue(expected.getMessage().indexOf("offset " + offset + " ") != -1);
+    }
+    assertEquals(length, journal(1, "bjournal").length());
+  }
+
+  public void testMidFileCorruptionIsNotIgnoredWithMemoryMappedJournal() throws Exception {
+    _journalMemoryMapped = true;
+    testMidFileCorruptionIsNotIgnored();
+  }
+
+  public void testMidFileCorruptedLengthIsNotTakenForATornTail() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    append(prevayler, "c", "abc");
+    prevayler.close();
+
+    long length = journal(1, "bjournal").length();
+    RandomAccessFile file = new RandomAccessFile(journal(1, "bjournal"), "rw");
+    long offset = (length - 2 * MARK) / 3;  //The sync mark before the second transaction.
+    file.seek(offset + MARK + 2);
+    int b = file.read();
+    file.seek(offset + MARK + 2);
+    file.write(b ^ 1);  //The length now runs past the end of the file.
+    file.close();
+
+    try {
+      createPrevayler(true);
+      fail();
+    } catch (StreamCorruptedException expected) {
+      assertTrue(expected.getMessage().indexOf("offset " + offset + " ") != -1);
+    }
+    assertEquals(length, journal(1, "bjournal").length());
+  }
+
+  public void testMidFileCorruptedLengthIsNotTakenForATornTailWithMemoryMappedJournal() throws Exception {
+    _journalMemoryMapped = true;
+    testMidFileCorruptedLengthIsNotTakenForATornTail();
+  }
+
+  public void testSyncMarksAreNotLookedForPastAZeroedTail() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    append(prevayler, "c", "abc");
+    prevayler.close();
+
+    byte[] bytes = read(journal(1, "bjournal"));
+    int offset = (bytes.length - 2 * MARK) / 3;  //The sync mark before the second transaction.
+    int secondMark = offset + MARK + chunkLength(bytes, offset + MARK);
+    bytes[offset + MARK + 2] ^= 1;
+    byte[] zeroed = new byte[bytes.length + 64 * 1024];  //As much zeroed space as the scan gives up at.
+    System.arraycopy(bytes, 0, zeroed, 0, secondMark);
+    System.arraycopy(bytes, secondMark, zeroed, zeroed.length - (bytes.length - secondMark), bytes.length - secondMark);
+    write(journal(1, "bjournal"), zeroed);
+
+    recover(true, "a");
+    assertEquals(offset, journal(1, "bjournal").length());  //Truncated with the sync mark before the torn transaction.
+  }
+
+  public void testZeroedPageInUnsyncedGroupIsTruncated() throws Exception {
+    int mark = zeroPageOfLargeTransaction(false);
+    recover(true, "a");
+    assertEquals(mark, journal(1, "bjournal").length());
+    recover(true, "a");
+  }
+
+  public void testZeroedPageInUnsyncedGroupIsTruncatedWithMemoryMappedJournal() throws Exception {
+    _journalMemoryMapped = true;
+    testZeroedPageInUnsyncedGroupIsTruncated();
+  }
+
+  public void testZeroedPageInSyncedGroupIsNotIgnored() throws Exception {
+    int mark = zeroPageOfLargeTransaction(true);
+    long length = journal(1, "bjournal").length();
+    try {
+      createPrevayler(true);
+      fail();
+    } catch (StreamCorruptedException expected) {
+      assertTrue(expected.getMessage().indexOf("offset " + mark + " ") != -1);
+    }
+    assertEquals(length, journal(1, "bjournal").length());
+  }
+
+  /**
+   * Journals "a", a large transaction and "c", each synced on its own, and zeroes a page of the large
+   * one, as a power loss may leave it. Unless synced, the sync mark telling that the large one was
+   * synced is removed, which leaves it in a single group with "c", as when they are synced together.
+   *
+   * @return The offset of the sync mark before the large transaction.
+   */
+  private int zeroPageOfLargeTransaction(boolean synced) throws Exception {
+    String large = new String(new char[3 * PAGE]).replace('\0', 'b');
+    Prevayler<AppendingSystem> prevayler = createPrevayler(true);
+    append(prevayler, "a", "a");
+    append(prevayler, large, "a" + large);
+    append(prevayler, "c", "a" + large + "c");
+    prevayler.close();
+
+    byte[] bytes = read(journal(1, "bjournal"));
+    int mark = chunkLength(bytes, 0);
+    int secondMark = mark + MARK + chunkLength(bytes, mark + MARK);
+    if (!synced) {
+      byte[] group = new byte[bytes.length - MARK];
+      System.arraycopy(bytes, 0, group, 0, secondMark);
+      System.arraycopy(bytes, secondMark + MARK, group, secondMark, group.length - secondMark);
+      bytes = group;
+    }
+
+    int page = (mark + 2 * MARK) / PAGE * PAGE + PAGE;
+    assertTrue(page + PAGE < secondMark);
+    Arrays.fill(bytes, page, page + PAGE, (byte) 0);
+    write(journal(1, "bjournal"), bytes);
+    return mark;
+  }
+
+  public void testConverter() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(false);
+    append(prevayler, "a", "a");
+    prevayler.close();
+    prevayler = createPrevayler(false);
+    append(prevayler, "b", "ab");
+    append(prevayler, "c", "abc");
+    prevayler.close();
+
+    int converted = BinaryJournalConverter.convert(new PrevaylerDirectory(_testDirectory), "journal", new NullMonitor());
+
+    assertEquals(2, converted);
+    assertFalse(journal(1, "journal").exists());
+    assertFalse(journal(2, "journal").exists());
+    assertTrue(journal(1, "bjournal").exists());
+    assertTrue(journal(2, "bjournal").exists());
+
+    recover(false, "abc");
+  }
+
+  private void recover(boolean binary, String expectedResult) throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(binary);
+    assertEquals(expectedResult, prevayler.prevalentSystem().value());
+    prevayler.close();
+  }
+
+  private void append(Prevayler<AppendingSystem> prevayler, String appendix, String expectedResult) throws Exception {
+    prevayler.execute(new Appendix(appendix));
+    assertEquals(expectedResult, prevayler.prevalentSystem().value());
+  }
+
+  private File journal(long transaction, String suffix) {
+    return new PrevaylerDirectory(_testDirectory).journalFile(transaction, suffix);
+  }
+
+  /**
+   * The length of the chunk starting at the given offset, header included.
+   */
+  private static int chunkLength(byte[] journal, int offset) {
+    return MARK + ((journal[offset] & 0xFF) | (journal[offset + 1] & 0xFF) << 8 | (journal[offset + 2] & 0xFF) << 16 | (journal[offset + 3] & 0xFF) << 24);
+  }
+
+  private static byte[] read(File file) throws Exception {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] bytes = new byte[(int) input.length()];
+      input.readFully(bytes);
+      return bytes;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void write(File file, byte[] bytes) throws Exception {
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    try {
+      output.setLength(0);
+      output.write(bytes);
+    } finally {
+      output.close();
+    }
+  }
+
+  private Prevayler<AppendingSystem> createPrevayler(boolean binary) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalBinaryFormat(binary);
+    factory.configureJournalMemoryMapped(_journalMemoryMapped);
+    return factory.create();
+  }
+
+}
@@ -0,0 +1,187 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.BlockCodec;
+import org.prevayler.foundation.DeflateBlockCodec;
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+import java.util.zip.Deflater;
+
+public class BlockJournalTest extends FileIOTest {
+
+  private BlockCodec _codec = new DeflateBlockCodec();
+  private boolean _binary = false;
+
+  public void testBlockJournal() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    assertTrue(journal(new File(_testDirectory), 1, "zjournal").exists());
+    assertFalse(journal(new File(_testDirectory), 1, "journal").exists());
+
+    recover("ab");
+  }
+
+  public void testBinaryBlockJournal() throws Exception {
+    _binary = true;
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    assertTrue(journal(new File(_testDirectory), 1, "zbjournal").exists());
+
+    recover("ab");
+    _binary = false;
+    recover("ab");
+  }
+
+  public void testPlainAndBlockJournalsSideBySide() throws Exception {
+    _codec = null;
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "a", "a");
+    prevayler.close();
+
+    _codec = new DeflateBlockCodec();
+    prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    assertTrue(journal(new File(_testDirectory), 1, "journal").exists());
+    assertTrue(journal(new File(_testDirectory), 2, "zjournal").exists());
+    recover("ab");
+  }
+
+  public void testCodecIsRequiredToRecover() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "a", "a");
+    prevayler.close();
+
+    _codec = null;
+    try {
+      createPrevayler(new File(_testDirectory));
+      fail();
+    } catch (IOException expected) {
+      assertTrue(expected.getMessage().indexOf("no block codec") != -1);
+    }
+  }
+
+  /**
+   * The second journal file starts with a dictionary sampled from the transactions recovered from the first.
+   */
+  public void testSmallerThanPlainJournal() throws Exception {
+    _codec = new DeflateBlockCodec(Deflater.DEFAULT_COMPRESSION, 4096);
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    appendMany(prevayler, 0);
+    prevayler.close();
+
+    _codec = new DeflateBlockCodec(Deflater.DEFAULT_COMPRESSION, 4096);
+    prevayler = createPrevayler(new File(_testDirectory));
+    appendMany(prevayler, 1);
+    prevayler.close();
+
+    File plainDirectory = new File(_testDirectory, "plain");
+    _codec = null;
+    prevayler = createPrevayler(plainDirectory);
+    appendMany(prevayler, 0);
+    prevayler.close();
+
+    long plain = journal(plainDirectory, 1, "journal").length();
+    long withoutDictionary = journal(new File(_testDirectory), 1, "zjournal").length();
+    long withDictionary = journal(new File(_testDirectory), 301, "zjournal").length();
+    assertTrue(withDictionary + " should be much smaller than " + withoutDictionary, withDictionary * 2 < withoutDictionary);
+    assertTrue(withDictionary + " should be much smaller than " + plain, withDictionary * 2 < plain);
+
+    _codec = new DeflateBlockCodec(Deflater.DEFAULT_COMPRESSION, 4096);
+    prevayler = createPrevayler(new File(_testDirectory));
+    assertEquals(600, prevayler.prevalentSystem().value().length());
+    prevayler.close();
+  }
+
+  public void testTornBlockIsTruncated() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+    long firstBlockEnd = blockOffset(2, 1);
+
+    RandomAccessFile file = new RandomAccessFile(journal(new File(_testDirectory), 1, "zjournal"), "rw");
+    file.setLength(file.length() - 3);
+    file.close();
+
+    recover("a");
+    assertEquals(firstBlockEnd, journal(new File(_testDirectory), 1, "zjournal").length());
+  }
+
+  public void testMidFileCorruptionIsNotIgnored() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    append(prevayler, "c", "abc");
+    prevayler.close();
+    long firstBlockEnd = blockOffset(3, 1);
+
+    RandomAccessFile file = new RandomAccessFile(journal(new File(_testDirectory), 1, "zjournal"), "rw");
+    file.seek(firstBlockEnd + 20);
+    int b = file.read();
+    file.seek(firstBlockEnd + 20);
+    file.write(b ^ 1);
+    file.close();
+
+    try {
+      createPrevayler(new File(_testDirectory));
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+
+  private void recover(String expectedResult) throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler(new File(_testDirectory));
+    assertEquals(expectedResult, prevayler.prevalentSystem().value());
+    prevayler.close();
+  }
+
+  private void append(Prevayler<AppendingSystem> prevayler, String appendix, String expectedResult) throws Exception {
+    prevayler.execute(new Appendix(appendix));
+    assertEquals(expectedResult, prevayler.prevalentSystem().value());
+  }
+
+  private void appendMany(Prevayler<AppendingSystem> prevayler, int letter) throws Exception {
+    for (int i = 0; i < 300; i++) {
+      prevayler.execute(new Appendix(String.valueOf((char) ('a' + letter))));
+    }
+  }
+
+  /**
+   * The offset of the given block in the first journal file, whose blocks all have the same length since
+   * each holds a single transaction of the same length. The header of the file holds the codec name and
+   * no dictionary, since nothing was encoded before.
+   */
+  private long blockOffset(int blockCount, int block) {
+    long headerLength = 4 + 4 + "deflate".length() + 4 + 4;
+    long blockLength = (journal(new File(_testDirectory), 1, "zjournal").length() - headerLength) / blockCount;
+    return headerLength + block * blockLength;
+  }
+
+  private File journal(File directory, long transaction, String suffix) {
+    return new PrevaylerDirectory(directory).journalFile(transaction, suffix);
+  }
+
+  private Prevayler<AppendingSystem> createPrevayler(File directory) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configurePrevalenceDirectory(directory.getPath());
+    factory.configureJournalBinaryFormat(_binary);
+    factory.configureJournalBlockCodec(_codec);
+    return factory.create();
+  }
+
+}
@@ -0,0 +1,193 @@
+package org.prevayler.implementation;
+
+import org.prevayler.OptimisticQuery;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Query;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ConcurrentQueryTest extends FileIOTest {
+
+  public void testQueriesRunConcurrently() throws Exception {
+    final Prevayler<AppendingSystem> prevayler = prevayler(false);
+    final CountDownLatch firstStarted = new CountDownLatch(1);
+    final CountDownLatch secondStarted = new CountDownLatch(1);
+
+    Thread first = new Thread() {
+      public void run() {
+        try {
+          prevayler.execute(new Query<AppendingSystem, String>() {
+            public String query(AppendingSystem prevalentSystem, Date ignored) throws Exception {
+              firstStarted.countDown();
+              secondStarted.await(10, TimeUnit.SECONDS);
+              return prevalentSystem.value();
+            }
+          });
+        } catch (Exception exception) {
+          throw new RuntimeException(exception);
+        }
+      }
+    };
+    first.start();
+    assertTrue(firstStarted.await(10, TimeUnit.SECONDS));
+
+    prevayler.execute(new Query<AppendingSystem, String>() {
+      public String query(AppendingSystem prevalentSystem, Date ignored) {
+        secondStarted.countDown();
+        return prevalentSystem.value();
+      }
+    });
+    first.join();
+    prevayler.close();
+  }
+
+  public void testTransactionsWaitForRunningQueries() throws Exception {
+    final Prevayler<AppendingSystem> prevayler = prevayler(true);
+    final CountDownLatch queryStarted = new CountDownLatch(1);
+    final CountDownLatch queryReleased = new CountDownLatch(1);
+
+    Thread query = new Thread() {
+      public void run() {
+        try {
+          prevayler.execute(new Query<AppendingSystem, String>() {
+            public String query(AppendingSystem prevalentSystem, Date ignored) throws Exception {
+              queryStarted.countDown();
+              queryReleased.await(10, TimeUnit.SECONDS);
+              return prevalentSystem.value();
+            }
+          });
+        } catch (Exception exception) {
+          throw new RuntimeException(exception);
+        }
+      }
+    };
+    query.start();
+    assertTrue(queryStarted.await(10, TimeUnit.SECONDS));
+
+    Thread transaction = new Thread() {
+      public void run() {
+        prevayler.execute(new Appendix("a"));
+      }
+    };
+    transaction.start();
+    transaction.join(200);
+    assertTrue(transaction.isAlive());
+
+    //The lock is fair, so the queued transaction holds up a locked query but not an optimistic one.
+    assertEquals("", prevayler.execute(new OptimisticValue()));
+
+    queryReleased.countDown();
+    transaction.join();
+    query.join();
+    assertEquals("a", prevayler.execute(new Value()));
+    prevayler.close();
+  }
+
+  public void testOptimisticQueryIsExecutedAgainAfterConcurrentTransaction() throws Exception {
+    final Prevayler<AppendingSystem> prevayler = prevayler(false);
+    prevayler.execute(new Appendix("a"));
+
+    final int[] executions = new int[1];
+    String result = prevayler.execute(new OptimisticValue() {
+      public String query(AppendingSystem prevalentSystem, Date ignored) throws Exception {
+        String value = prevalentSystem.value();
+        if (++executions[0] == 1) {
+          Thread transaction = new Thread() {
+            public void run() {
+              prevayler.execute(new Appendix("b"));
+            }
+          };
+          transaction.start();
+          transaction.join();
+        }
+        return value;
+      }
+    });
+    assertEquals(2, executions[0]);
+    assertEquals("ab", result);
+
+    executions[0] = 0;
+    assertEquals("ab", prevayler.execute(new OptimisticValue() {
+      public String query(AppendingSystem prevalentSystem, Date ignored) {
+        executions[0]++;
+        return prevalentSystem.value();
+      }
+    }));
+    assertEquals(1, executions[0]);
+    prevayler.close();
+  }
+
+  public void testOptimisticQueryErrorIsRetriedAfterConcurrentTransaction() throws Exception {
+    final Prevayler<AppendingSystem> prevayler = prevayler(false);
+    final int[] executions = new int[1];
+    String result = prevayler.execute(new OptimisticValue() {
+      public String query(AppendingSystem prevalentSystem, Date ignored) throws Exception {
+        if (++executions[0] == 1) {
+          Thread transaction = new Thread() {
+            public void run() {
+              prevayler.execute(new Appendix("a"));
+            }
+          };
+          transaction.start();
+          transaction.join();
+          throw new StackOverflowError("Torn read");
+        }
+        return prevalentSystem.value();
+      }
+    });
+    assertEquals(2, executions[0]);
+    assertEquals("a", result);
+
+    try {
+      prevayler.execute(new OptimisticValue() {
+        public String query(AppendingSystem prevalentSystem, Date ignored) {
+          throw new InternalError("Not torn");
+        }
+      });
+      fail();
+    } catch (InternalError expected) {
+      assertEquals("Not torn", expected.getMessage());
+    }
+    prevayler.close();
+  }
+
+  public void testTransactionsAreRecovered() throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler(false);
+    prevayler.execute(new Appendix("a"));
+    prevayler.execute(new Appendix("b"));
+    prevayler.takeSnapshot();
+    prevayler.execute(new Appendix("c"));
+    assertEquals("abc", prevayler.execute(new Value()));
+    prevayler.close();
+
+    prevayler = prevayler(false);
+    assertEquals("abc", prevayler.execute(new OptimisticValue()));
+    prevayler.execute(new Appendix("d"));
+    assertEquals("abcd", prevayler.execute(new Value()));
+    prevayler.close();
+  }
+
+
+  private Prevayler<AppendingSystem> prevayler(boolean fairToTransactions) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureConcurrentQueries(true, fairToTransactions);
+    return factory.create();
+  }
+
+
+  private static class Value implements Query<AppendingSystem, String> {
+    public String query(AppendingSystem prevalentSystem, Date ignored) throws Exception {
+      return prevalentSystem.value();
+    }
+  }
+
+  private static class OptimisticValue extends Value implements OptimisticQuery {
+  }
+
+}
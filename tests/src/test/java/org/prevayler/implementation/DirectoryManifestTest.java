@@ -0,0 +1,183 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+
+public class DirectoryManifestTest extends FileIOTest {
+
+  public void testSameFilesAsListing() throws Exception {
+    String expected = appendMany();
+    assertSameFiles();
+    assertTrue(manifestFile().exists());
+
+    assertEquals(expected, recover());
+    assertSameFiles();
+  }
+
+  public void testManifestIsTrusted() throws Exception {
+    appendMany();
+    File stray = listing().snapshotFile(1000, "snapshot");
+    write(stray, new byte[0]);
+    assertEquals(stray, listing().latestSnapshot());
+    assertFalse(stray.equals(manifest().latestSnapshot()));
+
+    manifestFile().delete();
+    assertEquals(stray, manifest().latestSnapshot());
+    assertTrue(manifestFile().exists());
+  }
+
+  public void testMissingFileIsListed() throws Exception {
+    appendMany();
+    PrevaylerDirectory manifest = manifest();
+    File[] journals = manifest.journalFiles();
+    assertTrue(journals.length > 2);
+    File latestSnapshot = manifest.latestSnapshot();
+
+    assertTrue(journals[journals.length - 1].delete());
+    assertEquals(journals[journals.length - 2], manifest.findInitialJournalFile(Long.MAX_VALUE));
+    assertTrue(latestSnapshot.delete());
+    assertNull(manifest.latestSnapshot());
+    assertSameFiles();
+  }
+
+  public void testInconsistentManifestIsReplaced() throws Exception {
+    String expected = appendMany();
+    File[] journals = listing().journalFiles();
+
+    write(manifestFile(), new byte[0]);
+    assertTrue(Arrays.equals(journals, manifest().journalFiles()));
+
+    write(manifestFile(), "prevayler manifest 2\nadd journal 1 0000000000000000001.journal 0\n".getBytes("UTF-8"));
+    assertTrue(Arrays.equals(journals, manifest().journalFiles()));
+
+    manifest().journalFiles();
+    byte[] compacted = read(manifestFile());
+    write(manifestFile(), Arrays.copyOf(compacted, compacted.length - 3));  //A record torn by a crash.
+    assertTrue(Arrays.equals(journals, manifest().journalFiles()));
+
+    assertEquals(expected, recover());
+  }
+
+  public void testFilesAddedAndRemoved() throws Exception {
+    PrevaylerDirectory manifest = manifest();
+    manifest.produceDirectory();
+    File journal = manifest.journalFile(1, "journal");
+    File otherJournal = manifest.journalFile(5, "journal");
+    manifest.addToManifest(journal);
+    manifest.addToManifest(otherJournal);
+    write(journal, new byte[0]);
+    write(otherJournal, new byte[0]);
+    assertEquals(journal, manifest().findInitialJournalFile(4));
+    assertEquals(otherJournal, manifest().findInitialJournalFile(5));
+    assertNull(manifest().findInitialJournalFile(0));
+
+    assertTrue(otherJournal.delete());
+    manifest.removeFromManifest(otherJournal);
+    assertEquals(journal, manifest().findInitialJournalFile(5));
+    assertTrue(Arrays.equals(new File[]{journal}, manifest().journalFiles()));
+  }
+
+  public void testRecordsAreAppendedAndCompactedOnLoad() throws Exception {
+    PrevaylerDirectory manifest = manifest();
+    manifest.produceDirectory();
+    File journal = manifest.journalFile(1, "journal");
+    manifest.addToManifest(journal);
+    write(journal, new byte[0]);
+    byte[] loaded = read(manifestFile());
+
+    File otherJournal = manifest.journalFile(5, "journal");
+    manifest.addToManifest(otherJournal);
+    manifest.removeFromManifest(otherJournal);
+    byte[] appended = read(manifestFile());
+    assertTrue(appended.length > loaded.length);
+    assertTrue(Arrays.equals(loaded, Arrays.copyOf(appended, loaded.length)));
+
+    assertTrue(Arrays.equals(new File[]{journal}, manifest().journalFiles()));
+    assertTrue(Arrays.equals(loaded, read(manifestFile())));
+  }
+
+
+  private void assertSameFiles() throws IOException {
+    PrevaylerDirectory listing = listing();
+    PrevaylerDirectory manifest = manifest();
+    assertEquals(listing.latestSnapshot(), manifest.latestSnapshot());
+    assertTrue(Arrays.equals(listing.journalFiles(), manifest.journalFiles()));
+    assertEquals(listing.necessaryFiles(), manifest.necessaryFiles());
+    for (long transaction = 0; transaction <= 130; transaction++) {
+      assertEquals(listing.findInitialJournalFile(transaction), manifest.findInitialJournalFile(transaction));
+    }
+  }
+
+  /**
+   * Appends 120 transactions to several journal files, taking a snapshot halfway.
+   */
+  private String appendMany() throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler();
+    String expected = "";
+    for (int i = 0; i < 120; i++) {
+      String appendix = String.valueOf((char) ('a' + i % 26));
+      expected += appendix;
+      prevayler.execute(new Appendix(appendix));
+      if (i == 60) prevayler.takeSnapshot();
+    }
+    prevayler.close();
+    return expected;
+  }
+
+  private String recover() throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler();
+    String value = prevayler.prevalentSystem().value();
+    prevayler.close();
+    return value;
+  }
+
+  private Prevayler<AppendingSystem> prevayler() throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureJournalFileSizeThreshold(1000); //Several journal files.
+    factory.configureDirectoryManifest(true);
+    return factory.create();
+  }
+
+  private PrevaylerDirectory listing() {
+    return new PrevaylerDirectory(new File(_testDirectory));
+  }
+
+  private PrevaylerDirectory manifest() {
+    return new PrevaylerDirectory(new File(_testDirectory), new File[0], true);
+  }
+
+  private File manifestFile() {
+    return new File(_testDirectory, "prevayler.manifest");
+  }
+
+  private static byte[] read(File file) throws IOException {
+    byte[] bytes = new byte[(int) file.length()];
+    DataInputStream input = new DataInputStream(new FileInputStream(file));
+    try {
+      input.readFully(bytes);
+    } finally {
+      input.close();
+    }
+    return bytes;
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(bytes);
+    } finally {
+      output.close();
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.AESGCMBlockCodec;
+import org.prevayler.foundation.BlockCodec;
+import org.prevayler.foundation.DeflateBlockCodec;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.foundation.serialization.DESSerializer;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+import org.prevayler.implementation.journal.BlockJournalConverter;
+
+import java.io.File;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+
+public class EncryptedJournalTest extends FileIOTest {
+
+  private static final byte[] KEY = {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16};
+  private static final byte[] OTHER_KEY = {16, 15, 14, 13, 12, 11, 10, 9, 8, 7, 6, 5, 4, 3, 2, 1};
+
+  private BlockCodec _codec = new AESGCMBlockCodec(KEY);
+  private Serializer _serializer = new JavaSerializer();
+
+  public void testEncryptedJournal() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    append(prevayler, "a", "a");
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    assertTrue(journal(1, "zjournal").exists());
+    recover("ab");
+  }
+
+  public void testCompressedAndEncryptedJournal() throws Exception {
+    _codec = new AESGCMBlockCodec(KEY, new DeflateBlockCodec());
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    append(prevayler, "a", "a");
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    recover("ab");
+  }
+
+  public void testWrongKeyIsDetected() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    append(prevayler, "a", "a");
+    prevayler.close();
+
+    _codec = new AESGCMBlockCodec(OTHER_KEY);
+    try {
+      createPrevayler();
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+  public void testBlockIsBoundToItsFileAndOffset() throws Exception {
+    byte[] block = "transactions".getBytes("US-ASCII");
+    byte[] parameters = _codec.startFile();
+    byte[] encoded = _codec.encode(parameters, 100, block, block.length);
+
+    assertTrue(Arrays.equals(block, _codec.decode(parameters, 100, encoded, block.length)));
+    assertFails(parameters, 200, encoded, block.length);
+    assertFails(_codec.startFile(), 100, encoded, block.length);
+    assertFails(parameters, 100, encoded, block.length + 1);
+    encoded[0] ^= 1;
+    assertFails(parameters, 100, encoded, block.length);
+  }
+
+  public void testConversionFromDES() throws Exception {
+    byte[] desKey = {35, 24, 45, 123, 86, 36, 21, 1};
+    _codec = null;
+    _serializer = new DESSerializer(new JavaSerializer(), desKey);
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    append(prevayler, "a", "a");
+    prevayler.close();
+    prevayler = createPrevayler();
+    append(prevayler, "b", "ab");
+    prevayler.close();
+
+    _codec = new AESGCMBlockCodec(KEY);
+    int converted = BlockJournalConverter.convert(new PrevaylerDirectory(_testDirectory), "journal",
+        _serializer, new JavaSerializer(), _codec, new NullMonitor());
+
+    assertEquals(2, converted);
+    assertFalse(journal(1, "journal").exists());
+    assertTrue(journal(1, "zjournal").exists());
+    assertTrue(journal(2, "zjournal").exists());
+
+    _serializer = new JavaSerializer();
+    recover("ab");
+  }
+
+
+  private void assertFails(byte[] parameters, long offset, byte[] encoded, int decodedLength) throws Exception {
+    try {
+      _codec.decode(parameters, offset, encoded, decodedLength);
+      fail();
+    } catch (StreamCorruptedException expected) {
+    }
+  }
+
+  private void recover(String expectedResult) throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    assertEquals(expectedResult, prevayler.prevalentSystem().value());
+    prevayler.close();
+  }
+
+  private void append(Prevayler<AppendingSystem> prevayler, String appendix, String expectedResult) throws Exception {
+    prevayler.execute(new Appendix(appendix));
+    assertEquals(expectedResult, prevayler.prevalentSystem().value());
+  }
+
+  private File journal(long transaction, String suffix) {
+    return new PrevaylerDirectory(_testDirectory).journalFile(transaction, suffix);
+  }
+
+  private Prevayler<AppendingSystem> createPrevayler() throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureJournalSerializer("journal", _serializer);
+    factory.configureJournalBlockCodec(_codec);
+    return factory.create();
+  }
+
+}
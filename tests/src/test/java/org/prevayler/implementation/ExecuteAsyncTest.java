@@ -0,0 +1,157 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.ParkWaitStrategy;
+
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+
+public class ExecuteAsyncTest extends FileIOTest {
+
+  public void testTransactions() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[100];
+    for (int i = 0; i < futures.length; i++) {
+      futures[i] = prevayler.executeAsync(new Appendix("x"));
+    }
+    CompletableFuture.allOf(futures).get();
+    assertEquals(100, prevayler.prevalentSystem().value().length());
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(100, prevayler.prevalentSystem().value().length());
+    prevayler.close();
+  }
+
+  public void testCloseWaitsForSubmittedTransactions() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    for (int i = 0; i < 20; i++) {
+      prevayler.executeAsync(new Appendix("x"));
+    }
+    prevayler.close();
+
+    prevayler = createPrevayler();
+    assertEquals(20, prevayler.prevalentSystem().value().length());
+    prevayler.close();
+  }
+
+  public void testTransactionsAreExecutedInTheOrderSubmitted() throws Exception {
+    checkSubmissionOrder(createPrevayler());
+  }
+
+  public void testTransactionsAreExecutedInTheOrderSubmittedThroughRingBufferPipeline() throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = factory();
+    factory.configurePipelineWaitStrategy(new ParkWaitStrategy());
+    checkSubmissionOrder(factory.create());
+  }
+
+  private void checkSubmissionOrder(Prevayler<AppendingSystem> prevayler) throws Exception {
+    StringBuffer expected = new StringBuffer();
+    CompletableFuture<?>[] futures = new CompletableFuture<?>[200];
+    for (int i = 0; i < futures.length; i++) {
+      String appendix = Integer.toString(i % 10);
+      expected.append(appendix);
+      futures[i] = prevayler.executeAsync(new Appendix(appendix));
+    }
+    CompletableFuture.allOf(futures).get();
+    assertEquals(expected.toString(), prevayler.prevalentSystem().value());
+    prevayler.close();
+  }
+
+  public void testSubmittingBlocksWhileThePipelineIsFull() throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = factory();
+    factory.configurePipelineCapacity(2);
+    final Prevayler<AppendingSystem> prevayler = factory.create();
+    Gate.open = new CountDownLatch(1);
+
+    CompletableFuture<Void> blocked = prevayler.executeAsync(new Gate());
+    prevayler.executeAsync(new Appendix("a"));
+    Thread submitting = new Thread() {
+      public void run() {
+        prevayler.executeAsync(new Appendix("b"));
+      }
+    };
+    submitting.start();
+    submitting.join(300);
+    assertTrue(submitting.isAlive());
+    assertFalse(blocked.isDone());
+
+    Gate.open.countDown();
+    submitting.join();
+    prevayler.close();
+    assertEquals("ab", prevayler.prevalentSystem().value());
+  }
+
+  public void testSubmittingAfterCloseFails() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    prevayler.executeAsync(new Appendix("a")).get();
+    prevayler.close();
+
+    CompletableFuture<Void> future = prevayler.executeAsync(new Appendix("b"));
+    assertTrue(future.isCompletedExceptionally());
+    try {
+      future.get();
+      fail();
+    } catch (ExecutionException expected) {
+      assertTrue(expected.getCause() instanceof IllegalStateException);
+    }
+  }
+
+  public void testRuntimeException() throws Exception {
+    Prevayler<AppendingSystem> prevayler = createPrevayler();
+    CompletableFuture<Void> future = prevayler.executeAsync(new Appendix("rollback"));
+    try {
+      future.get();
+      fail();
+    } catch (ExecutionException expected) {
+      assertEquals("Testing Rollback", expected.getCause().getMessage());
+    }
+    prevayler.close();
+  }
+
+  public void testTransactionWithQuery() throws Exception {
+    PrevaylerFactory<StringBuffer> factory = new PrevaylerFactory<StringBuffer>();
+    factory.configurePrevalentSystem(new StringBuffer("the system"));
+    factory.configurePrevalenceDirectory(_testDirectory);
+    Prevayler<StringBuffer> prevayler = factory.create();
+
+    assertEquals("the system first", prevayler.executeAsync(new AppendTransactionWithQuery(" first")).get());
+    prevayler.close();
+  }
+
+  private Prevayler<AppendingSystem> createPrevayler() throws Exception {
+    return factory().create();
+  }
+
+  private PrevaylerFactory<AppendingSystem> factory() {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePipelineThreads(2);
+    return factory;
+  }
+
+
+  /**
+   * Waits for the test to open it before appending nothing.
+   */
+  static class Gate implements Transaction<AppendingSystem> {
+    private static final long serialVersionUID = 1L;
+    static CountDownLatch open;
+
+    public void executeOn(AppendingSystem prevalentSystem, Date executionTime) {
+      try {
+        open.await();
+      } catch (InterruptedException e) {
+        throw new RuntimeException(e);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,119 @@
+package org.prevayler.implementation;
+
+import org.prevayler.ImmutableTransaction;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.FileIOTest;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+public class ImmutableTransactionTest extends FileIOTest {
+
+  private static Object _lastExecuted;
+
+  public void testExecutedDirectlyInDeepCopyMode() throws Exception {
+    Prevayler<ArrayList> prevayler = prevayler(false);
+    Append append = new Append("a");
+    prevayler.execute(append);
+    assertSame(append, _lastExecuted);
+
+    CopiedAppend copied = new CopiedAppend("b");
+    prevayler.execute(copied);
+    assertNotSame(copied, _lastExecuted);
+    assertTrue(_lastExecuted instanceof CopiedAppend);
+    prevayler.close();
+  }
+
+  public void testRecovery() throws Exception {
+    Prevayler<ArrayList> prevayler = prevayler(true);
+    prevayler.execute(new Append("a"));
+    prevayler.execute(new CopiedAppend("b"));
+    prevayler.execute(new Append("c"));
+    prevayler.close();
+
+    prevayler = prevayler(true);
+    assertEquals("[a, b, c]", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+  public void testVerificationCatchesChangedTransaction() throws Exception {
+    Prevayler<ArrayList> prevayler = prevayler(true);
+    prevayler.execute(new Append("a"));
+    try {
+      prevayler.execute(new SelfChangingAppend("b"));
+      fail();
+    } catch (Error expected) {
+      assertTrue(expected.getMessage().indexOf("SelfChangingAppend") >= 0);
+    }
+  }
+
+  public void testChangedTransactionIsNotCaughtWithoutVerification() throws Exception {
+    Prevayler<ArrayList> prevayler = prevayler(false);
+    prevayler.execute(new SelfChangingAppend("a"));
+    prevayler.close();
+
+    prevayler = prevayler(false);
+    assertEquals("[a]", prevayler.prevalentSystem().toString());
+    prevayler.close();
+  }
+
+
+  private Prevayler<ArrayList> prevayler(boolean verification) throws Exception {
+    PrevaylerFactory<ArrayList> factory = new PrevaylerFactory<ArrayList>();
+    factory.configurePrevalentSystem(new ArrayList());
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configureImmutableTransactionVerification(verification);
+    return factory.create();
+  }
+
+
+  static class Append implements Transaction<ArrayList>, ImmutableTransaction {
+    private static final long serialVersionUID = 1L;
+    private final String _item;
+
+    Append(String item) {
+      _item = item;
+    }
+
+    public void executeOn(ArrayList list, Date ignored) {
+      list.add(_item);
+      _lastExecuted = this;
+    }
+  }
+
+  static class CopiedAppend implements Transaction<ArrayList> {
+    private static final long serialVersionUID = 1L;
+    private final String _item;
+
+    CopiedAppend(String item) {
+      _item = item;
+    }
+
+    public void executeOn(ArrayList list, Date ignored) {
+      list.add(_item);
+      _lastExecuted = this;
+    }
+  }
+
+  /**
+   * Claims to be immutable but keeps a log of its executions, so replaying it would not find it as it was.
+   */
+  static class SelfChangingAppend implements Transaction<ArrayList>, ImmutableTransaction {
+    private static final long serialVersionUID = 1L;
+    private final String _item;
+    private final List _executions = new ArrayList();
+
+    SelfChangingAppend(String item) {
+      _item = item;
+    }
+
+    public void executeOn(ArrayList list, Date executionTime) {
+      list.add(_item);
+      _executions.add(executionTime);
+    }
+  }
+
+}
@@ -0,0 +1,159 @@
+package org.prevayler.implementation;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.lang.management.ManagementFactory;
+import java.util.Date;
+import java.util.logging.Logger;
+
+import org.junit.Test;
+import org.prevayler.Transaction;
+import org.prevayler.foundation.BinaryChunking;
+import org.prevayler.foundation.Chunking;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.foundation.serialization.Serializer;
+
+/**
+ * Measures the bytes allocated per transaction by serializing it into a Capsule and writing its
+ * journal entry, the way PersistentJournal does, compared to the earlier path that serialized into a
+ * new ByteArrayOutputStream and wrote a Chunk built with Strings. Also works as a test.<p/>
+ *
+ * Allocations are counted by the JVM for the calling thread, so this needs a HotSpot JVM.
+ */
+public class JournalEncodingBenchmark {
+  static final Logger LOG = Logger.getLogger(JournalEncodingBenchmark.class.getName());
+  static final int WARMUP_TRANSACTIONS = 200000;
+  static final int MEASURED_TRANSACTIONS = 200000;
+
+  public static class SetTx implements Transaction<Serializable> {
+    private static final long serialVersionUID = 1L;
+    private final String value;
+
+    public SetTx(String value) {
+      this.value = value;
+    }
+
+    @Override
+    public void executeOn(Serializable prevalentSystem, Date executionTime) {
+    }
+  }
+
+  /**
+   * Writes a fixed payload, so that only the cost of the encoding path itself is measured.
+   */
+  static class PayloadSerializer implements Serializer {
+    private final byte[] payload = new byte[100];
+
+    @Override
+    public void writeObject(OutputStream stream, Object object) throws IOException {
+      stream.write(payload);
+    }
+
+    @Override
+    public Object readObject(InputStream stream) {
+      throw new UnsupportedOperationException();
+    }
+  }
+
+  interface Encoding {
+    void encode(Transaction<Serializable> transaction, long version, OutputStream journal) throws Exception;
+  }
+
+  static class PooledEncoding implements Encoding {
+    private final Serializer serializer;
+    private final boolean binary;
+
+    PooledEncoding(Serializer serializer, boolean binary) {
+      this.serializer = serializer;
+      this.binary = binary;
+    }
+
+    @Override
+    public void encode(Transaction<Serializable> transaction, long version, OutputStream journal) throws Exception {
+      TransactionTimestamp timestamp = new TransactionTimestamp(new TransactionCapsule<Serializable>(transaction, serializer, true), version, new Date(version));
+      if (binary) timestamp.writeBinaryChunkTo(journal);
+      else timestamp.writeChunkTo(journal);
+    }
+  }
+
+  static class LegacyEncoding implements Encoding {
+    private final Serializer serializer;
+    private final boolean binary;
+
+    LegacyEncoding(Serializer serializer, boolean binary) {
+      this.serializer = serializer;
+      this.binary = binary;
+    }
+
+    @Override
+    public void encode(Transaction<Serializable> transaction, long version, OutputStream journal) throws Exception {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      serializer.writeObject(bytes, transaction);
+      TransactionTimestamp timestamp = new TransactionTimestamp(new TransactionCapsule<Serializable>(bytes.toByteArray()), version, new Date(version));
+      if (binary) BinaryChunking.writeChunk(journal, timestamp.toBinaryChunk());
+      else Chunking.writeChunk(journal, timestamp.toChunk());
+    }
+  }
+
+  @Test
+  public void testTextEncodingAllocatesLess() throws Exception {
+    compare(new PayloadSerializer(), false, 4);
+  }
+
+  @Test
+  public void testBinaryEncodingAllocatesLess() throws Exception {
+    compare(new PayloadSerializer(), true, 1.5);
+  }
+
+  @Test
+  public void testWithJavaSerialization() throws Exception {
+    long legacy = bytesPerTransaction(new LegacyEncoding(new JavaSerializer(), false));
+    long pooled = bytesPerTransaction(new PooledEncoding(new JavaSerializer(), false));
+    LOG.info("Java serialization, text journal: " + legacy + " bytes allocated per transaction before, " + pooled + " now.");
+    assertTrue(pooled < legacy);
+  }
+
+  /**
+   * What is left is the serialized copy kept by the capsule, the capsule, the timestamp and its Date.
+   */
+  private void compare(Serializer serializer, boolean binary, double minimumReduction) throws Exception {
+    long legacy = bytesPerTransaction(new LegacyEncoding(serializer, binary));
+    long pooled = bytesPerTransaction(new PooledEncoding(serializer, binary));
+    LOG.info((binary ? "Binary" : "Text") + " journal: " + legacy + " bytes allocated per transaction before, " + pooled + " now.");
+    assertTrue(pooled + " should be " + minimumReduction + " times less than " + legacy, pooled * minimumReduction < legacy);
+  }
+
+  static long bytesPerTransaction(Encoding encoding) throws Exception {
+    SetTx transaction = new SetTx("value");
+    ByteArrayOutputStream journal = new ByteArrayOutputStream(64 * 1024);
+    run(encoding, transaction, journal, WARMUP_TRANSACTIONS);
+
+    long before = allocatedBytes();
+    run(encoding, transaction, journal, MEASURED_TRANSACTIONS);
+    return (allocatedBytes() - before) / MEASURED_TRANSACTIONS;
+  }
+
+  private static void run(Encoding encoding, SetTx transaction, ByteArrayOutputStream journal, int transactions) throws Exception {
+    for (int i = 0; i < transactions; i++) {
+      if (journal.size() > 32 * 1024) journal.reset();  //Like the buffers of DurableOutputStream, which keep their size once flushed.
+      encoding.encode(transaction, i, journal);
+    }
+  }
+
+  private static long allocatedBytes() {
+    com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    return threads.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public static void main(String[] args) throws Exception {
+    JournalEncodingBenchmark benchmark = new JournalEncodingBenchmark();
+    benchmark.testTextEncodingAllocatesLess();
+    benchmark.testBinaryEncodingAllocatesLess();
+    benchmark.testWithJavaSerialization();
+  }
+}
@@ -0,0 +1,178 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.PerGroupSyncPolicy;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.implementation.journal.JournalIndex;
+import org.prevayler.implementation.journal.PersistentJournal;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+
+public class JournalIndexTest extends FileIOTest {
+
+  public void testSeekToIndexedTransaction() throws Exception {
+    checkSeek(false);
+  }
+
+  public void testSeekInBinaryJournal() throws Exception {
+    checkSeek(true);
+  }
+
+  private void checkSeek(boolean binary) throws Exception {
+    appendMany(binary);
+    File journal = onlyJournal();
+    assertEquals(30, JournalIndex.find(journal, 37)[0]);
+    assertNull(JournalIndex.find(journal, 9));
+
+    long offset = JournalIndex.find(journal, 37)[1];
+    overwrite(journal, 0, new byte[(int) offset]); //Only an index can get past this.
+    assertEquals("37 38 39 40 ", recover(37));
+    assertEquals("30 31 32 ", recover(30).substring(0, 9));
+  }
+
+  public void testMissingIndexIsRebuilt() throws Exception {
+    appendMany(false);
+    File indexFile = PrevaylerDirectory.journalIndexFile(onlyJournal());
+    byte[] written = contents(indexFile);
+    assertEquals(4 * 16, written.length);
+
+    indexFile.delete();
+    assertEquals("35 36 37 38 39 40 ", recover(35));
+    assertTrue(Arrays.equals(written, contents(indexFile)));
+  }
+
+  public void testStaleIndexIsIgnoredAndRebuilt() throws Exception {
+    String expected = appendMany(false);
+    File journal = onlyJournal();
+    File indexFile = PrevaylerDirectory.journalIndexFile(journal);
+    byte[] written = contents(indexFile);
+
+    byte[] stale = (byte[]) written.clone();
+    stale[stale.length - 1]++; //Offset of transaction 40.
+    write(indexFile, stale);
+    assertEquals("40 ", recover(40));
+    assertTrue(Arrays.equals(written, contents(indexFile)));
+
+    write(indexFile, new byte[]{0, 0, 0});
+    assertEquals(expected, recoverWithPrevayler());
+    assertTrue(Arrays.equals(written, contents(indexFile)));
+  }
+
+  public void testIndexedOffset() throws Exception {
+    appendMany(false);
+    File journal = onlyJournal();
+    PersistentJournal persistentJournal = journal();
+    assertEquals(JournalIndex.find(journal, 25)[1], persistentJournal.indexedOffset(journal, 25));
+    assertEquals(0, persistentJournal.indexedOffset(journal, 5));
+
+    File indexFile = PrevaylerDirectory.journalIndexFile(journal);
+    byte[] stale = contents(indexFile);
+    stale[16 + 15]++; //Offset of transaction 20.
+    write(indexFile, stale);
+    assertEquals(0, persistentJournal.indexedOffset(journal, 25));
+  }
+
+  public void testInvalidInterval() {
+    try {
+      new JournalIndex(0);
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+
+  /**
+   * Appends transactions 1 to 40 to a single journal file indexed every 10 transactions.
+   */
+  private String appendMany(boolean binary) throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler(binary);
+    String expected = "";
+    for (int i = 0; i < 40; i++) {
+      String appendix = String.valueOf((char) ('a' + i % 26));
+      expected += appendix;
+      prevayler.execute(new Appendix(appendix));
+    }
+    prevayler.close();
+    return expected;
+  }
+
+  private String recoverWithPrevayler() throws Exception {
+    Prevayler<AppendingSystem> prevayler = prevayler(false);
+    String value = prevayler.prevalentSystem().value();
+    prevayler.close();
+    return value;
+  }
+
+  private Prevayler<AppendingSystem> prevayler(boolean binary) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureJournalBinaryFormat(binary);
+    factory.configureJournalIndexInterval(10);
+    return factory.create();
+  }
+
+  /**
+   * The systemVersions of the transactions recovered from the given one on.
+   */
+  private String recover(long initialTransaction) throws Exception {
+    final StringBuffer recovered = new StringBuffer();
+    PersistentJournal journal = journal();
+    journal.update(new TransactionSubscriber() {
+      public void receive(TransactionTimestamp transactionTimestamp) {
+        recovered.append(transactionTimestamp.systemVersion()).append(' ');
+      }
+    }, initialTransaction);
+    journal.close();
+    return recovered.toString();
+  }
+
+  private PersistentJournal journal() throws IOException {
+    return new PersistentJournal(new PrevaylerDirectory(_testDirectory), 0, 0, new PerGroupSyncPolicy(),
+        false, false, null, null, null, new JournalIndex(10), false, null, "journal", new NullMonitor());
+  }
+
+  private File onlyJournal() throws IOException {
+    File[] journals = new PrevaylerDirectory(_testDirectory).journalFiles();
+    assertEquals(1, journals.length);
+    return journals[0];
+  }
+
+  private static byte[] contents(File file) throws IOException {
+    RandomAccessFile input = new RandomAccessFile(file, "r");
+    try {
+      byte[] contents = new byte[(int) input.length()];
+      input.readFully(contents);
+      return contents;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void overwrite(File file, long offset, byte[] bytes) throws IOException {
+    RandomAccessFile output = new RandomAccessFile(file, "rw");
+    try {
+      output.seek(offset);
+      output.write(bytes);
+    } finally {
+      output.close();
+    }
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(bytes);
+    } finally {
+      output.close();
+    }
+  }
+
+}
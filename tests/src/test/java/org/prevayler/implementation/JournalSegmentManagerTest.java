@@ -0,0 +1,126 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.Cool;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.implementation.journal.JournalSegmentManager;
+
+import java.io.File;
+
+public class JournalSegmentManagerTest extends FileIOTest {
+
+  private Prevayler<AppendingSystem> _prevayler;
+
+  public void testPreparedJournalFiles() throws Exception {
+    crashRecover(false, "");
+    waitForSpare();
+    append("a", "a"); //Starts journal (1) from the spare.
+    append("b", "ab");
+    waitForSpare();
+    append("c", "abc"); //Starts new journal (3) from the spare.
+    append("d", "abcd");
+    waitForSpare();
+    append("e", "abcde"); //Starts new journal (5) from the spare.
+    _prevayler.close();
+
+    assertTrue(spare().exists());
+    assertFalse(directory().preparingSpareJournalFile().exists());
+    assertEquals(journal(3).length(), journal(1).length());
+    assertEquals(journal(5).length() * 2, journal(3).length());
+
+    crashRecover(false, "abcde");
+    _prevayler.close();
+  }
+
+  public void testCrashWithPreallocatedTail() throws Exception {
+    crashRecover(false, "");
+    waitForSpare();
+    append("a", "a"); //Starts journal (1) from the spare, which is not truncated until closed.
+    waitForSpare();
+    assertEquals(232, journal(1).length());
+
+    crashRecover(false, "a"); //The previous Prevayler is not closed, as after a crash.
+    append("b", "ab");
+    crashRecover(false, "ab");
+    _prevayler.close();
+  }
+
+  public void testRecycling() throws Exception {
+    crashRecover(false, "");
+    append("a", "a");
+    append("b", "ab");
+    append("c", "abc"); //Starts new journal (3).
+    _prevayler.takeSnapshot(); //Journal (1) is no longer needed.
+    _prevayler.close();
+    assertTrue(journal(1).exists());
+
+    crashRecover(true, "abc");
+    append("d", "abcd"); //Starts new journal (4) from the spare, so journal (1) becomes the next spare.
+    _prevayler.close();
+
+    assertFalse(journal(1).exists());
+    assertTrue(spare().exists());
+
+    crashRecover(true, "abcd");
+    _prevayler.close();
+  }
+
+  public void testJournalBeingReadIsNotRecycled() throws Exception {
+    JournalSegmentManager manager = new JournalSegmentManager(directory(), 232, true, new NullMonitor());
+    waitForSpare();  //Prepared from a new file, since there are no journal files yet.
+
+    crashRecover(false, "");
+    append("a", "a");
+    append("b", "ab");
+    append("c", "abc"); //Starts new journal (3).
+    _prevayler.takeSnapshot(); //Journal (1) is no longer needed.
+    _prevayler.close();
+
+    manager.startReading(2);  //As a replica catching up from transaction 2 would.
+    assertTrue(manager.claimSpare(new File(_testDirectory, "claimed1")));
+    waitForSpare();
+    assertTrue(journal(1).exists());
+
+    manager.finishedReading(2);
+    assertTrue(manager.claimSpare(new File(_testDirectory, "claimed2")));
+    waitForSpare();
+    assertFalse(journal(1).exists());
+    manager.close();
+  }
+
+  private void crashRecover(boolean recycling, String expectedResult) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configureJournalFileSizeThreshold(232);  //Enough to hold 2 transactions.
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureJournalFilePreparation(true);
+    factory.configureJournalFileRecycling(recycling);
+    _prevayler = factory.create();
+    assertEquals(expectedResult, _prevayler.prevalentSystem().value());
+  }
+
+  private void append(String appendix, String expectedResult) {
+    _prevayler.execute(new Appendix(appendix));
+    assertEquals(expectedResult, _prevayler.prevalentSystem().value());
+  }
+
+  private void waitForSpare() {
+    for (int i = 0; i < 500 && !spare().exists(); i++) Cool.sleep(10);
+    assertTrue(spare().exists());
+  }
+
+  private File spare() {
+    return directory().spareJournalFile();
+  }
+
+  private File journal(long transaction) {
+    return directory().journalFile(transaction, "journal");
+  }
+
+  private PrevaylerDirectory directory() {
+    return new PrevaylerDirectory(_testDirectory);
+  }
+
+}
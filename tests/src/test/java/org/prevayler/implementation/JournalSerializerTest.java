@@ -78,6 +78,23 @@ public class JournalSerializerTest extends FileIOTest {
     recover("journal", strategy);
   }
 
+  public void testCompactJournal() throws Exception {
+    CompactSerializer serializer = new CompactSerializer(new File(_testDirectory, "journal.classes"));
+
+    startAndCrash("journal", serializer);
+
+    assertEquals("E;withQuery=false;systemVersion=1;executionTime=1000002\r\n" +
+        "sr\0xpt\0\006 first\r\n" +
+        "F;withQuery=false;systemVersion=2;executionTime=1000004\r\n" +
+        "sr\0xpt\0\007 second\r\n" +
+        "E;withQuery=false;systemVersion=3;executionTime=1000006\r\n" +
+        "sr\0xpt\0\006 third\r\n",
+        journalContents("journal"));
+    assertEquals(1, serializer.registeredClasses());
+
+    recover("journal", new CompactSerializer(new File(_testDirectory, "journal.classes")));
+  }
+
   public void testCompressedJournal() throws Exception {
     GZIPSerializer serializer = new GZIPSerializer(new MySerializer());
 
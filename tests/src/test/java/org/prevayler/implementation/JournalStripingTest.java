@@ -0,0 +1,142 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Set;
+
+public class JournalStripingTest extends FileIOTest {
+
+  private Prevayler<AppendingSystem> _prevayler;
+
+  public void testStripedJournal() throws Exception {
+    crashRecover(3, "");
+    append("a", "a");
+    append("b", "ab");
+    append("c", "abc");
+    append("d", "abcd");
+    append("e", "abcde"); //Starts new journal (5), since stripe 1 holds 2 transactions.
+    _prevayler.close();
+
+    assertTrue(stripe(1, 0).exists());
+    assertTrue(stripe(1, 1).exists());
+    assertTrue(stripe(1, 2).exists());
+    assertTrue(stripe(5, 0).exists());
+
+    crashRecover(3, "abcde");
+    append("f", "abcdef");
+    crashRecover(3, "abcdef");
+    _prevayler.close();
+  }
+
+  public void testAddingStripes() throws Exception {
+    crashRecover(1, "");
+    append("a", "a");
+    append("b", "ab");
+    _prevayler.close();
+    assertFalse(stripe(1, 1).exists());
+
+    crashRecover(2, "ab");
+    append("c", "abc");
+    append("d", "abcd");
+    crashRecover(2, "abcd");
+    _prevayler.close();
+  }
+
+  public void testLaterTransactionsInOtherStripesAfterCrash() throws Exception {
+    crashRecover(2, "");
+    append("a", "a"); //Transaction 1, in stripe 1.
+    byte[] stripeWithoutC = read(stripe(1, 1));
+    append("b", "ab"); //Transaction 2, in stripe 0.
+    append("c", "abc"); //Transaction 3, in stripe 1.
+    append("d", "abcd"); //Transaction 4, starting journal (4).
+    _prevayler.close();
+
+    write(stripe(1, 1), stripeWithoutC); //As if transaction 3 had not been synced when the system crashed.
+
+    crashRecover(2, "ab");
+    append("x", "abx"); //Transaction 3 again, starting journal (3). Journal (4) is never read again.
+    crashRecover(2, "abx");
+    append("y", "abxy");
+    crashRecover(2, "abxy");
+    _prevayler.close();
+  }
+
+  public void testNecessaryFiles() throws Exception {
+    crashRecover(2, "");
+    append("a", "a");
+    append("b", "ab");
+    append("c", "abc");
+    append("d", "abcd"); //Starts new journal (4).
+    _prevayler.takeSnapshot();
+    _prevayler.close();
+
+    Set necessary = directory(2).necessaryFiles();
+    assertFalse(necessary.contains(stripe(1, 0)));
+    assertFalse(necessary.contains(stripe(1, 1)));
+    assertTrue(necessary.contains(stripe(4, 0)));
+    assertTrue(necessary.contains(stripe(4, 1)));
+  }
+
+  private void crashRecover(int stripes, String expectedResult) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configureJournalFileSizeThreshold(232);  //Enough to hold 2 transactions.
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureJournalStripeDirectories(stripeDirectories(stripes));
+    _prevayler = factory.create();
+    assertEquals(expectedResult, _prevayler.prevalentSystem().value());
+  }
+
+  private void append(String appendix, String expectedResult) {
+    _prevayler.execute(new Appendix(appendix));
+    assertEquals(expectedResult, _prevayler.prevalentSystem().value());
+  }
+
+  private String[] stripeDirectories(int stripes) {
+    String[] directories = new String[stripes - 1];
+    for (int i = 0; i < directories.length; i++) {
+      directories[i] = _testDirectory + File.separator + "stripe" + (i + 1);
+    }
+    return directories;
+  }
+
+  private PrevaylerDirectory directory(int stripes) {
+    String[] names = stripeDirectories(stripes);
+    File[] directories = new File[names.length];
+    for (int i = 0; i < names.length; i++) directories[i] = new File(names[i]);
+    return new PrevaylerDirectory(new File(_testDirectory), directories);
+  }
+
+  private File stripe(long transaction, int stripe) {
+    PrevaylerDirectory directory = directory(3);
+    return directory.journalStripeFile(directory.journalFile(transaction, "journal"), stripe);
+  }
+
+  private static byte[] read(File file) throws IOException {
+    FileInputStream input = new FileInputStream(file);
+    try {
+      byte[] bytes = new byte[(int) file.length()];
+      int read = 0;
+      while (read < bytes.length) read += input.read(bytes, read, bytes.length - read);
+      return bytes;
+    } finally {
+      input.close();
+    }
+  }
+
+  private static void write(File file, byte[] bytes) throws IOException {
+    FileOutputStream output = new FileOutputStream(file);
+    try {
+      output.write(bytes);
+    } finally {
+      output.close();
+    }
+  }
+
+}
@@ -0,0 +1,129 @@
+package org.prevayler.implementation;
+
+import junit.framework.TestCase;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.POBox;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class POBoxTest extends TestCase {
+
+  private CentralPublisher _publisher;
+  private SlowSubscriber _delegate;
+
+  protected void setUp() throws Exception {
+    _publisher = new CentralPublisher(new MachineClock(), new TransientJournal());
+    _delegate = new SlowSubscriber();
+  }
+
+  public void testDeliversInOrder() throws Exception {
+    _delegate.open();
+    POBox poBox = new POBox(_delegate);
+    _publisher.subscribe(poBox, 1);
+    publish(100);
+    poBox.waitToEmpty();
+
+    assertEquals(0, poBox.depth());
+    assertEquals(0, poBox.overflows());
+    _delegate.checkReceivedInOrder(100);
+  }
+
+  public void testBlockPublisher() throws Exception {
+    POBox poBox = new POBox(_delegate, 4, POBox.BLOCK_PUBLISHER, null);
+    _publisher.subscribe(poBox, 1);
+    Thread publishing = new Thread() {
+      public void run() {
+        publish(10);
+      }
+    };
+    publishing.start();
+    publishing.join(300);
+    assertTrue(publishing.isAlive());
+    assertTrue(poBox.depth() <= poBox.capacity());
+    assertTrue(poBox.overflows() > 0);
+
+    _delegate.open();
+    publishing.join();
+    poBox.waitToEmpty();
+    _delegate.checkReceivedInOrder(10);
+  }
+
+  public void testDisconnectSubscriber() throws Exception {
+    POBox poBox = new POBox(_delegate, 4, POBox.DISCONNECT_SUBSCRIBER, _publisher);
+    _publisher.subscribe(poBox, 1);
+    publish(10);
+    _delegate.open();
+    assertTrue(_delegate._closed.await(10, TimeUnit.SECONDS));
+
+    int received = _delegate._received.size();
+    assertTrue(received < 10);
+    publish(1);
+    poBox.waitToEmpty();
+    assertEquals(received, _delegate._received.size());
+  }
+
+  public void testSpillToJournal() throws Exception {
+    POBox poBox = new POBox(_delegate, 4, POBox.SPILL_TO_JOURNAL, _publisher);
+    _publisher.subscribe(poBox, 1);
+    publish(20);
+    assertTrue(poBox.overflows() > 0);
+    assertTrue(_delegate._received.size() < 20);
+
+    _delegate.open();
+    publish(5);
+    for (int i = 0; i < 1000 && _delegate._received.size() < 25; i++) Thread.sleep(10);
+    _delegate.checkReceivedInOrder(25);
+    assertEquals(1, _delegate._closed.getCount());
+  }
+
+
+  private void publish(int transactions) {
+    for (int i = 0; i < transactions; i++) {
+      _publisher.publish(new TransactionCapsule<AppendingSystem>(new Appendix("a"), new JavaSerializer(), false));
+    }
+  }
+
+
+  /**
+   * Takes the first notification right away and waits to be opened before taking the others.
+   */
+  private static class SlowSubscriber implements TransactionSubscriber, Closeable {
+    private final List _received = Collections.synchronizedList(new ArrayList());
+    private final CountDownLatch _open = new CountDownLatch(1);
+    private final CountDownLatch _closed = new CountDownLatch(1);
+
+    public void receive(TransactionTimestamp transactionTimestamp) {
+      if (!_received.isEmpty()) {
+        try {
+          _open.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      _received.add(new Long(transactionTimestamp.systemVersion()));
+    }
+
+    void open() {
+      _open.countDown();
+    }
+
+    public void close() {
+      _closed.countDown();
+    }
+
+    void checkReceivedInOrder(int count) {
+      assertEquals(count, _received.size());
+      for (int i = 0; i < count; i++) assertEquals(i + 1, ((Long) _received.get(i)).longValue());
+    }
+  }
+
+}
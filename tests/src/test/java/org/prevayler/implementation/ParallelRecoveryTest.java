@@ -0,0 +1,101 @@
+package org.prevayler.implementation;
+
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.foundation.FileIOTest;
+import org.prevayler.foundation.PerGroupSyncPolicy;
+import org.prevayler.foundation.monitor.NullMonitor;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.journal.PersistentJournal;
+import org.prevayler.implementation.journal.RecoveryPipeline;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+public class ParallelRecoveryTest extends FileIOTest {
+
+  private Prevayler<AppendingSystem> _prevayler;
+
+  public void testRecoveryInJournalOrder() throws Exception {
+    crashRecover(false, 4, 16, "");
+    String expected = appendMany();
+    crashRecover(false, 4, 16, expected);
+    crashRecover(false, 0, 0, expected);
+    crashRecover(false, 3, 1, expected);
+    _prevayler.close();
+  }
+
+  public void testBinaryJournal() throws Exception {
+    crashRecover(true, 4, 16, "");
+    String expected = appendMany();
+    crashRecover(true, 2, 5, expected);
+    _prevayler.close();
+  }
+
+  public void testRecoveryAfterSnapshot() throws Exception {
+    crashRecover(false, 4, 16, "");
+    append("a", "a");
+    append("b", "ab");
+    append("c", "abc");
+    _prevayler.takeSnapshot(); //Transactions 1 to 3 are read but not applied.
+    append("d", "abcd");
+    crashRecover(false, 4, 16, "abcd");
+    _prevayler.close();
+  }
+
+  public void testRecoveryStatistics() throws Exception {
+    crashRecover(false, 0, 0, "");
+    String expected = appendMany();
+    _prevayler.close();
+
+    final StringBuffer recovered = new StringBuffer();
+    RecoveryPipeline pipeline = new RecoveryPipeline(4, 8, new JavaSerializer(), new NullMonitor());
+    PersistentJournal journal = new PersistentJournal(new PrevaylerDirectory(_testDirectory), 0, 0, new PerGroupSyncPolicy(),
+        false, false, null, null, pipeline, null, false, null, "journal", new NullMonitor());
+    journal.update(new TransactionSubscriber() {
+      public void receive(TransactionTimestamp transactionTimestamp) {
+        recovered.append(transactionTimestamp.systemVersion()).append(' ');
+      }
+    }, 1);
+    journal.close();
+
+    assertEquals(expected.length(), pipeline.transactionsRecovered());
+    assertTrue(pipeline.transactionsPerSecond() > 0);
+    assertTrue(recovered.toString().startsWith("1 2 3 "));
+    assertTrue(recovered.toString().endsWith(" " + expected.length() + " "));
+  }
+
+  public void testInvalidConfiguration() {
+    try {
+      new RecoveryPipeline(0, 8, new JavaSerializer(), new NullMonitor());
+      fail();
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+
+  private String appendMany() {
+    String expected = "";
+    for (int i = 0; i < 200; i++) {
+      String appendix = String.valueOf((char) ('a' + i % 26));
+      expected += appendix;
+      append(appendix, expected);
+    }
+    return expected;
+  }
+
+  private void crashRecover(boolean binary, int recoveryThreads, int reorderBufferSize, String expectedResult) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalenceDirectory(_testDirectory);
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureJournalFileSizeThreshold(2000); //Several journal files.
+    factory.configureJournalBinaryFormat(binary);
+    factory.configureParallelRecovery(recoveryThreads, reorderBufferSize);
+    _prevayler = factory.create();
+    assertEquals(expectedResult, _prevayler.prevalentSystem().value());
+  }
+
+  private void append(String appendix, String expectedResult) {
+    _prevayler.execute(new Appendix(appendix));
+    assertEquals(expectedResult, _prevayler.prevalentSystem().value());
+  }
+
+}
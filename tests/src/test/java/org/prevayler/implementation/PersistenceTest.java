@@ -20,6 +20,7 @@ public class PersistenceTest extends FileIOTest {
 
   private Prevayler<AppendingSystem> _prevayler;
   private String _prevalenceBase;
+  private boolean _journalMemoryMapped = false;
 
   public void tearDown() throws Exception {
     if (_prevayler != null) {
@@ -36,6 +37,11 @@ public class PersistenceTest extends FileIOTest {
     doTestPersistence(false);
   }
 
+  public void testPersistenceWithMemoryMappedJournal() throws Exception {
+    _journalMemoryMapped = true;
+    doTestPersistence(true);
+  }
+
   public void doTestPersistence(boolean journalDiskSync) throws Exception {
     newPrevalenceBase();
 
@@ -311,6 +317,7 @@ public class PersistenceTest extends FileIOTest {
     factory.configurePrevalentSystem(new AppendingSystem());
     factory.configurePrevalenceDirectory(prevalenceBase());
     factory.configureJournalDiskSync(journalDiskSync);
+    factory.configureJournalMemoryMapped(_journalMemoryMapped);
     _prevayler = factory.create();
   }
 
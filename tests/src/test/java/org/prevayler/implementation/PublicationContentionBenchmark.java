@@ -0,0 +1,235 @@
+package org.prevayler.implementation;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.prevayler.Clock;
+import org.prevayler.foundation.Turn;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.BrokenClock;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.clock.PausableClock;
+import org.prevayler.implementation.journal.Journal;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.StampedLock;
+import java.util.logging.Logger;
+
+/**
+ * Measures the publications per second that the accounting around each CentralPublisher.publish()
+ * allows with 1 to 64 threads: pausing and resuming the clock, holding up subscriptions, and taking a
+ * turn and a system version. The monitors CentralPublisher used to do it with are compared with the
+ * atomics it uses now. Also measures whole publications through a CentralPublisher whose journal does
+ * nothing but take its turn.
+ */
+public class PublicationContentionBenchmark {
+  static final Logger LOG = Logger.getLogger(PublicationContentionBenchmark.class.getName());
+  static final int PUBLICATIONS = 256000;
+  static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  interface Accounting {
+    void publish();
+
+    long publications();
+  }
+
+  /**
+   * The accounting as CentralPublisher did it with monitors.
+   */
+  static class MonitorAccounting implements Accounting {
+    private final MonitorPausableClock _clock = new MonitorPausableClock(new MachineClock());
+    private int _pendingPublications = 0;
+    private final Object _pendingPublicationsMonitor = new Object();
+    private Turn _nextTurn = Turn.first();
+    private long _nextTransaction;
+    private final Object _nextTurnMonitor = new Object();
+
+    @Override
+    public void publish() {
+      synchronized (_pendingPublicationsMonitor) {
+        if (_pendingPublications == 0) _clock.pause();
+        _pendingPublications++;
+      }
+      try {
+        synchronized (_nextTurnMonitor) {
+          _clock.realTime();
+          Turn turn = _nextTurn;
+          synchronized (turn) {  //Turn.next() used to be synchronized.
+            _nextTurn = turn.next();
+          }
+          _nextTransaction++;
+        }
+      } finally {
+        synchronized (_pendingPublicationsMonitor) {
+          _pendingPublications--;
+          if (_pendingPublications == 0) {
+            _clock.resume();
+            _pendingPublicationsMonitor.notifyAll();
+          }
+        }
+      }
+    }
+
+    @Override
+    public long publications() {
+      return _nextTransaction;
+    }
+  }
+
+  /**
+   * The accounting as CentralPublisher does it now, with Turn.next() linking the next turn by a compare-and-set.
+   */
+  static class AtomicAccounting implements Accounting {
+    private final PausableClock _clock = new PausableClock(new MachineClock());
+    private final StampedLock _subscriptionBarrier = new StampedLock();
+    private final AtomicReference<NextTurn> _nextTurn = new AtomicReference<NextTurn>(new NextTurn(Turn.first(), 0));
+
+    @Override
+    public void publish() {
+      long stamp = _subscriptionBarrier.readLock();
+      try {
+        _clock.pause();
+        try {
+          while (true) {
+            NextTurn next = _nextTurn.get();
+            _clock.realTime();
+            if (_nextTurn.compareAndSet(next, new NextTurn(next.turn.next(), next.transaction + 1))) break;
+          }
+        } finally {
+          _clock.resume();
+        }
+      } finally {
+        _subscriptionBarrier.unlockRead(stamp);
+      }
+    }
+
+    @Override
+    public long publications() {
+      return _nextTurn.get().transaction;
+    }
+  }
+
+  static class NextTurn {
+    final Turn turn;
+    final long transaction;
+
+    NextTurn(Turn turn, long transaction) {
+      this.turn = turn;
+      this.transaction = transaction;
+    }
+  }
+
+  /**
+   * The PausableClock as it was, switching between the real clock and a BrokenClock under its monitor.
+   */
+  static class MonitorPausableClock {
+    private final Clock _realClock;
+    private final BrokenClock _brokenClock = new BrokenClock();
+    private Clock _activeClock;
+
+    MonitorPausableClock(Clock realClock) {
+      _realClock = realClock;
+      resume();
+    }
+
+    synchronized void pause() {
+      _brokenClock.advanceTo(_realClock.time());
+      _activeClock = _brokenClock;
+    }
+
+    synchronized void resume() {
+      _activeClock = _realClock;
+    }
+
+    Date realTime() {
+      return _realClock.time();
+    }
+  }
+
+  @Test
+  public void benchmark() throws Exception {
+    for (int threads : THREADS) {
+      StringBuilder line = new StringBuilder(threads + " threads:");
+      line.append(" monitors ").append(publicationsPerSecond(new MonitorAccounting(), threads));
+      line.append(", atomics ").append(publicationsPerSecond(new AtomicAccounting(), threads));
+      line.append(", central publisher ").append(centralPublicationsPerSecond(threads));
+      LOG.info(line.append(" publications/s").toString());
+    }
+  }
+
+  static long publicationsPerSecond(final Accounting accounting, int threadCount) throws InterruptedException {
+    final int publicationsPerThread = PUBLICATIONS / threadCount;
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < publicationsPerThread; j++) accounting.publish();
+        }
+      };
+    }
+    long elapsed = run(threads);
+    assertEquals(publicationsPerThread * threadCount, accounting.publications());
+    return publicationsPerThread * threadCount * 1000000000L / Math.max(elapsed, 1);
+  }
+
+  static long centralPublicationsPerSecond(int threadCount) throws Exception {
+    final CentralPublisher publisher = new CentralPublisher(new MachineClock(), new TurnTakingJournal());
+    final long[] received = new long[1];
+    publisher.subscribe(new TransactionSubscriber() {
+      public void receive(TransactionTimestamp transactionTimestamp) {
+        received[0]++;  //Guarded by the turn.
+      }
+    }, 1);
+
+    final Capsule capsule = new TransactionCapsule<AppendingSystem>(new Appendix("a"), new JavaSerializer(), false);
+    final int publicationsPerThread = PUBLICATIONS / 4 / threadCount;
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < publicationsPerThread; j++) publisher.publish(capsule);
+        }
+      };
+    }
+    long elapsed = run(threads);
+    assertEquals(publicationsPerThread * threadCount, received[0]);
+    return publicationsPerThread * threadCount * 1000000000L / Math.max(elapsed, 1);
+  }
+
+  static long run(Thread[] threads) throws InterruptedException {
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    return System.nanoTime() - start;
+  }
+
+
+  /**
+   * Keeps nothing, so that only the publisher is measured.
+   */
+  static class TurnTakingJournal implements Journal {
+    public void append(TransactionGuide guide) {
+      guide.startTurn();
+      guide.endTurn();
+    }
+
+    public void update(TransactionSubscriber subscriber, long initialTransaction) {
+    }
+
+    public void close() {
+    }
+
+    public long nextTransaction() {
+      return 1;
+    }
+
+    public void transactionFailed(long transaction) {
+    }
+  }
+
+}
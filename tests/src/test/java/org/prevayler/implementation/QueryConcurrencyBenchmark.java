@@ -0,0 +1,95 @@
+package org.prevayler.implementation;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+import org.prevayler.OptimisticQuery;
+import org.prevayler.Prevayler;
+import org.prevayler.PrevaylerFactory;
+import org.prevayler.Query;
+
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+
+/**
+ * Measures the queries per second that a transient Prevayler executes with 1 to 64 threads when every
+ * query synchronizes on the prevalent system, when queries run concurrently under a read lock, and
+ * when they are OptimisticQueries, while another thread keeps executing transactions. Each query does
+ * a little work, so that running them in parallel is worth something on machines with several
+ * processors.
+ */
+public class QueryConcurrencyBenchmark {
+  static final Logger LOG = Logger.getLogger(QueryConcurrencyBenchmark.class.getName());
+  static final int QUERIES = 64000;
+  static final int[] THREADS = {1, 2, 4, 8, 16, 32, 64};
+
+  @Test
+  public void benchmark() throws Exception {
+    for (int threads : THREADS) {
+      StringBuilder line = new StringBuilder(threads + " threads:");
+      line.append(" synchronized ").append(queriesPerSecond(prevayler(false), new Length(), threads));
+      line.append(", read lock ").append(queriesPerSecond(prevayler(true), new Length(), threads));
+      line.append(", optimistic ").append(queriesPerSecond(prevayler(true), new OptimisticLength(), threads));
+      LOG.info(line.append(" queries/s").toString());
+    }
+  }
+
+  static long queriesPerSecond(final Prevayler<AppendingSystem> prevayler, final Query<AppendingSystem, Integer> query, int threadCount) throws Exception {
+    final int queriesPerThread = QUERIES / threadCount;
+    final AtomicBoolean done = new AtomicBoolean();
+    Thread transactions = new Thread() {
+      @Override
+      public void run() {
+        while (!done.get()) prevayler.execute(new Appendix("x"));
+      }
+    };
+    Thread[] threads = new Thread[threadCount];
+    for (int i = 0; i < threadCount; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < queriesPerThread; j++) prevayler.execute(query);
+          } catch (Exception exception) {
+            throw new RuntimeException(exception);
+          }
+        }
+      };
+    }
+
+    transactions.start();
+    long start = System.nanoTime();
+    for (Thread thread : threads) thread.start();
+    for (Thread thread : threads) thread.join();
+    long elapsed = System.nanoTime() - start;
+    done.set(true);
+    transactions.join();
+
+    assertEquals(prevayler.prevalentSystem().value().length(), prevayler.execute(query).intValue());
+    prevayler.close();
+    return queriesPerThread * threadCount * 1000000000L / Math.max(elapsed, 1);
+  }
+
+  static Prevayler<AppendingSystem> prevayler(boolean concurrentQueries) throws Exception {
+    PrevaylerFactory<AppendingSystem> factory = new PrevaylerFactory<AppendingSystem>();
+    factory.configurePrevalentSystem(new AppendingSystem());
+    factory.configureTransientMode(true);
+    factory.configureConcurrentQueries(concurrentQueries);
+    return factory.create();
+  }
+
+
+  static class Length implements Query<AppendingSystem, Integer> {
+    public Integer query(AppendingSystem prevalentSystem, Date ignored) {
+      String value = prevalentSystem.value();
+      int length = 0;
+      while (length < value.length() && value.charAt(length) == 'x') length++;
+      return length;
+    }
+  }
+
+  static class OptimisticLength extends Length implements OptimisticQuery {
+  }
+
+}
@@ -0,0 +1,113 @@
+package org.prevayler.implementation;
+
+import junit.framework.TestCase;
+import org.prevayler.foundation.serialization.JavaSerializer;
+import org.prevayler.implementation.clock.MachineClock;
+import org.prevayler.implementation.journal.TransientJournal;
+import org.prevayler.implementation.publishing.CentralPublisher;
+import org.prevayler.implementation.publishing.POBox;
+import org.prevayler.implementation.publishing.TransactionSubscriber;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class SubscriberFanOutTest extends TestCase {
+
+  private CentralPublisher _publisher;
+
+  protected void setUp() throws Exception {
+    _publisher = new CentralPublisher(new MachineClock(), new TransientJournal());
+  }
+
+  public void testSubscriptionCanBeCancelledDuringNotification() throws Exception {
+    final Recorder added = new Recorder();
+    Recorder cancelling = new Recorder() {
+      public void receive(TransactionTimestamp transactionTimestamp) {
+        super.receive(transactionTimestamp);
+        _publisher.cancelSubscription(this);
+        _publisher.addSubscriber(added);
+      }
+    };
+    _publisher.subscribe(cancelling, 1);
+    publish(3);
+
+    assertEquals(1, cancelling._received.size());
+    assertEquals(2, added._received.size());
+  }
+
+  public void testSubscribingAgainDoesNotNotifyTwice() throws Exception {
+    Recorder recorder = new Recorder();
+    _publisher.subscribe(recorder, 1);
+    publish(2);
+    _publisher.subscribe(recorder, 2);
+    publish(1);
+
+    assertEquals(4, recorder._received.size());
+    assertEquals(new Long(2), recorder._received.get(2));
+    assertEquals(new Long(3), recorder._received.get(3));
+  }
+
+  public void testPOBoxesAreNotifiedAfterOtherSubscribers() throws Exception {
+    final Recorder delegate = new Recorder();
+    final POBox poBox = new POBox(delegate);
+    final List depthsSeen = new ArrayList();
+    _publisher.subscribe(poBox, 1);
+    _publisher.subscribe(new TransactionSubscriber() {
+      public void receive(TransactionTimestamp transactionTimestamp) {
+        depthsSeen.add(new Integer(poBox.depth() + delegate._received.size()));
+      }
+    }, 1);
+    publish(1);
+    poBox.waitToEmpty();
+
+    assertEquals(Collections.singletonList(new Integer(0)), depthsSeen);
+    assertEquals(1, delegate._received.size());
+  }
+
+  public void testDeliveryLatencyIsReportedPerSubscriber() throws Exception {
+    Recorder fast = new Recorder();
+    Recorder slow = new Recorder() {
+      public void receive(TransactionTimestamp transactionTimestamp) {
+        super.receive(transactionTimestamp);
+        try {
+          Thread.sleep(5);
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    POBox poBox = new POBox(slow);
+    _publisher.subscribe(fast, 1);
+    _publisher.subscribe(poBox, 1);
+    publish(4);
+    poBox.waitToEmpty();
+
+    assertEquals(4, _publisher.deliveryLatency(fast).deliveries());
+    assertEquals(4, _publisher.deliveryLatency(poBox).deliveries());
+    assertEquals(4, poBox.deliveryLatency().deliveries());
+    assertTrue(poBox.deliveryLatency().maxNanos() >= 5000000);
+    assertTrue(_publisher.deliveryLatency(poBox).maxNanos() < poBox.deliveryLatency().maxNanos());
+    assertNull(_publisher.deliveryLatency(slow));
+
+    _publisher.cancelSubscription(fast);
+    assertNull(_publisher.deliveryLatency(fast));
+  }
+
+
+  private void publish(int transactions) {
+    for (int i = 0; i < transactions; i++) {
+      _publisher.publish(new TransactionCapsule<AppendingSystem>(new Appendix("a"), new JavaSerializer(), false));
+    }
+  }
+
+
+  private static class Recorder implements TransactionSubscriber {
+    final List _received = Collections.synchronizedList(new ArrayList());
+
+    public void receive(TransactionTimestamp transactionTimestamp) {
+      _received.add(new Long(transactionTimestamp.systemVersion()));
+    }
+  }
+
+}
@@ -0,0 +1,50 @@
+package org.prevayler.implementation.clock;
+
+import junit.framework.TestCase;
+
+import java.util.Date;
+
+public class PausableClockTest extends TestCase {
+
+  public void testPausedClockStopsUntilAdvanced() {
+    BrokenClock realClock = new BrokenClock(new Date(1000));
+    PausableClock clock = new PausableClock(realClock);
+
+    clock.pause();
+    realClock.advanceTo(new Date(2000));
+    assertEquals(1000, clock.time().getTime());
+    clock.advanceTo(new Date(1500));
+    assertEquals(1500, clock.time().getTime());
+
+    clock.resume();
+    assertEquals(2000, clock.time().getTime());
+    realClock.advanceTo(new Date(0));
+    assertEquals(1500, clock.time().getTime());  //Never goes back.
+  }
+
+  public void testTimesOfAnyRange() {
+    BrokenClock realClock = new BrokenClock(new Date(Long.MIN_VALUE));
+    PausableClock clock = new PausableClock(realClock);
+
+    clock.pause();
+    assertEquals(Long.MIN_VALUE, clock.time().getTime());
+    clock.advanceTo(new Date(Long.MAX_VALUE));
+    assertEquals(Long.MAX_VALUE, clock.time().getTime());
+    clock.resume();
+    assertEquals(Long.MAX_VALUE, clock.time().getTime());
+  }
+
+  public void testManyPausesAtOnce() {
+    BrokenClock realClock = new BrokenClock(new Date(1000));
+    PausableClock clock = new PausableClock(realClock);
+
+    int pauses = 100000;
+    for (int i = 0; i < pauses; i++) clock.pause();
+    realClock.advanceTo(new Date(2000));
+    for (int i = 1; i < pauses; i++) clock.resume();
+    assertEquals(1000, clock.time().getTime());
+    clock.resume();
+    assertEquals(2000, clock.time().getTime());
+  }
+
+}